@@ -0,0 +1,22 @@
+package twitterarchiver;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler always attached so that allocation
+ * rates (gc.alloc.rate.norm is bytes per operation) are reported next to
+ * throughput. Takes the usual JMH command line, e.g. a regexp to pick benchmarks.
+ */
+public class Benchmarks {
+  public static void main(String[] args) throws Exception {
+    Options options = new OptionsBuilder()
+            .parent(new CommandLineOptions(args))
+            .addProfiler(GCProfiler.class)
+            .build();
+    new Runner(options).run();
+  }
+}
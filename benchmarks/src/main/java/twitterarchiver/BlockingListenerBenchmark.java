@@ -0,0 +1,99 @@
+package twitterarchiver;
+
+import com.twitter.hbc.core.event.Event;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lines pushed through TwitterFeed to a listener that blocks for a millisecond on
+ * each event, like a database round trip, called from its worker thread at a
+ * concurrency of 1 and from virtual threads otherwise.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BlockingListenerBenchmark {
+  private static final int BATCH = 256;
+  private static final long BLOCKED = TimeUnit.MILLISECONDS.toNanos(1);
+
+  @Param({"1", "16", "256"})
+  public int concurrency;
+
+  private final AtomicLong received = new AtomicLong();
+  private List<String> corpus;
+  private int index;
+  private TwitterFeed feed;
+  private volatile BlockingQueue<String> queue;
+
+  @Setup
+  public void setup() throws IOException {
+    corpus = new CorpusGenerator(42).generate(10000);
+    feed = new TwitterFeed(new IngestSource() {
+      @Override
+      public void start(BlockingQueue<String> msgQueue, BlockingQueue<Event> eventQueue) {
+        queue = msgQueue;
+      }
+
+      @Override
+      public void stop() {
+      }
+    });
+    // The corpus goes round again and again, duplicates would never arrive
+    feed.setDuplicateFilter(null);
+    feed.addEventListener(new TwitterFeedListener() {
+      @Override
+      public void messageReceived(TwitterFeedEvent se) {
+        LockSupport.parkNanos(BLOCKED);
+        received.incrementAndGet();
+      }
+
+      @Override
+      public void tooSlow() {
+        received.incrementAndGet();
+      }
+    }, new ListenerPolicy(10000, ListenerPolicy.Overflow.BLOCK, new File("."), concurrency));
+    feed.start();
+  }
+
+  @TearDown
+  public void tearDown() {
+    feed.stop();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH)
+  public void dispatch() throws InterruptedException {
+    long target = received.get() + BATCH;
+    for (int i = 0; i < BATCH; i++) {
+      if (index == corpus.size()) {
+        index = 0;
+      }
+      queue.put(corpus.get(index++));
+    }
+    while (received.get() < target) {
+      Thread.yield();
+    }
+  }
+}
@@ -0,0 +1,95 @@
+package twitterarchiver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One block of compact records through each codec on a single thread, so blocks per
+ * second times ParallelGzipOutputStream.BLOCK_SIZE is MB/s per core. Setup prints the
+ * compressed bytes per tweet. The dictionary is trained on records from a different
+ * corpus than the one compressed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark {
+  @Param({"gzip", "zstd", "zstd-dict"})
+  public String codec;
+
+  private BlockCodec blockCodec;
+  private List<byte[]> blocks;
+  private int index;
+
+  @Setup
+  public void setup() throws IOException {
+    switch (codec) {
+      case "gzip":
+        blockCodec = BlockCodec.GZIP;
+        break;
+      case "zstd":
+        blockCodec = new ZstdCodec(ZstdCodec.LEVEL);
+        break;
+      default:
+        List<byte[]> samples = new ArrayList<>();
+        TweetSerializer serializer = new TweetSerializer(null);
+        for (CompactTweet tweet : SerializerBenchmark.statuses(new CorpusGenerator(7).generate(50000))) {
+          ByteArrayOutputStream record = new ByteArrayOutputStream();
+          serializer.writeJson(tweet, record);
+          record.write('\n');
+          samples.add(record.toByteArray());
+        }
+        File directory = Files.createTempDirectory("zdict").toFile();
+        File dictionary = ZstdCodec.train(samples, ZstdCodec.DICTIONARY_SIZE, directory);
+        blockCodec = ZstdCodec.load(dictionary, ZstdCodec.LEVEL);
+        dictionary.delete();
+        directory.delete();
+    }
+    List<CompactTweet> tweets = SerializerBenchmark.statuses(new CorpusGenerator(42).generate(20000));
+    ByteArrayOutputStream records = new ByteArrayOutputStream();
+    TweetSerializer serializer = new TweetSerializer(null);
+    for (CompactTweet tweet : tweets) {
+      serializer.writeJson(tweet, records);
+      records.write('\n');
+    }
+    byte[] all = records.toByteArray();
+    blocks = new ArrayList<>();
+    long compressed = blockCodec.header().length + blockCodec.trailer().length;
+    for (int offset = 0; offset + ParallelGzipOutputStream.BLOCK_SIZE <= all.length; offset += ParallelGzipOutputStream.BLOCK_SIZE) {
+      byte[] block = Arrays.copyOfRange(all, offset, offset + ParallelGzipOutputStream.BLOCK_SIZE);
+      blocks.add(block);
+      compressed += blockCodec.compress(block).length;
+    }
+    double covered = (double) tweets.size() * blocks.size() * ParallelGzipOutputStream.BLOCK_SIZE / all.length;
+    System.out.printf("%n%s: %.1f bytes per tweet, %.1f uncompressed%n", codec, compressed / covered,
+            (double) all.length / tweets.size());
+  }
+
+  @Benchmark
+  public int compress() {
+    if (index == blocks.size()) {
+      index = 0;
+    }
+    return blockCodec.compress(blocks.get(index++)).length;
+  }
+}
@@ -0,0 +1,306 @@
+package twitterarchiver;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Generates raw streaming API statuses that look enough like the sample hose to
+ * exercise the whole pipeline: nested users, retweets, entities, geo and deletes.
+ * The output is deterministic for a given seed.
+ * <p/>
+ * Run it directly to write a capture that ReplaySource can play back:
+ * <pre>java -cp benchmarks.jar twitterarchiver.CorpusGenerator corpus.json.gz 1000000</pre>
+ */
+public class CorpusGenerator {
+  private static final String[] WORDS = ("the a to and of in is it you that he was for on are with as I his they be at " +
+          "one have this from or had by hot word but what some we can out other were all there when up use your how " +
+          "said an each she which do their time if will way about many then them write would like so these her long " +
+          "make thing see him two has look more day could go come did number sound no most people my over know " +
+          "water than call first who may down side been now find").split(" ");
+  private static final String[] LANGS = {"en", "en", "en", "ja", "es", "pt", "ar", "id", "fr", "tr", "ko", "ru"};
+  private static final String[] TAGS = new String[500];
+  private static final String[] DOMAINS = {"example.com", "youtube.com", "instagram.com", "news.example.org", "bit.ly"};
+
+  static {
+    for (int i = 0; i < TAGS.length; i++) {
+      TAGS[i] = "tag" + Integer.toString(i * 7919, 36);
+    }
+  }
+
+  private final Random random;
+  private final JsonFactory jf = new JsonFactory();
+  private final SimpleDateFormat createdAt = new SimpleDateFormat("EEE MMM dd HH:mm:ss Z yyyy", Locale.US);
+  private long now = 1356113675000l;
+  private int users = 200000;
+
+  public CorpusGenerator(long seed) {
+    random = new Random(seed);
+    createdAt.setTimeZone(TimeZone.getTimeZone("UTC"));
+  }
+
+  public List<String> generate(int count) {
+    List<String> lines = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      lines.add(next());
+    }
+    return lines;
+  }
+
+  /**
+   * The next line, about 5% of which are delete notices.
+   */
+  public String next() {
+    // Roughly the rate of the sample hose
+    now += random.nextInt(40);
+    StringWriter sw = new StringWriter(4096);
+    try {
+      JsonGenerator g = jf.createGenerator(sw);
+      if (random.nextInt(20) == 0) {
+        g.writeStartObject();
+        g.writeObjectFieldStart("delete");
+        g.writeObjectFieldStart("status");
+        long id = snowflake(now - random.nextInt(86400000));
+        g.writeNumberField("id", id);
+        g.writeStringField("id_str", String.valueOf(id));
+        g.writeNumberField("user_id", userId());
+        g.writeEndObject();
+        g.writeEndObject();
+        g.writeEndObject();
+      } else {
+        writeStatus(g, now, random.nextInt(10) < 3);
+      }
+      g.close();
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+    return sw.toString();
+  }
+
+  private void writeStatus(JsonGenerator g, long timestamp, boolean retweet) throws IOException {
+    long id = snowflake(timestamp);
+    g.writeStartObject();
+    g.writeStringField("created_at", createdAt.format(timestamp));
+    g.writeNumberField("id", id);
+    g.writeStringField("id_str", String.valueOf(id));
+    List<String> tags = new ArrayList<>();
+    List<Long> mentions = new ArrayList<>();
+    List<String> urls = new ArrayList<>();
+    StringBuilder text = new StringBuilder();
+    int words = 3 + random.nextInt(15);
+    for (int i = 0; i < words; i++) {
+      if (i > 0) {
+        text.append(' ');
+      }
+      int kind = random.nextInt(30);
+      if (kind == 0) {
+        String tag = TAGS[(int) Math.abs(random.nextGaussian() * 60) % TAGS.length];
+        tags.add(tag);
+        text.append('#').append(tag);
+      } else if (kind == 1) {
+        mentions.add(userId());
+        text.append("@user").append(mentions.size());
+      } else if (kind == 2) {
+        urls.add("http://" + DOMAINS[random.nextInt(DOMAINS.length)] + "/" + Long.toString(random.nextLong() & 0xffffffffl, 36));
+        text.append("http://t.co/").append(Integer.toString(random.nextInt(), 36));
+      } else {
+        text.append(WORDS[random.nextInt(WORDS.length)]);
+      }
+    }
+    g.writeStringField("text", text.toString());
+    g.writeStringField("source", "<a href=\"http://twitter.com/download/iphone\" rel=\"nofollow\">Twitter for iPhone</a>");
+    g.writeBooleanField("truncated", false);
+    if (random.nextInt(5) == 0) {
+      long replyTo = snowflake(timestamp - random.nextInt(3600000));
+      g.writeNumberField("in_reply_to_status_id", replyTo);
+      g.writeStringField("in_reply_to_status_id_str", String.valueOf(replyTo));
+      g.writeNumberField("in_reply_to_user_id", userId());
+    } else {
+      g.writeNullField("in_reply_to_status_id");
+      g.writeNullField("in_reply_to_status_id_str");
+      g.writeNullField("in_reply_to_user_id");
+    }
+    writeUser(g);
+    if (random.nextInt(50) == 0) {
+      double lat = random.nextDouble() * 180 - 90;
+      double lon = random.nextDouble() * 360 - 180;
+      g.writeObjectFieldStart("geo");
+      g.writeStringField("type", "Point");
+      g.writeArrayFieldStart("coordinates");
+      g.writeNumber(lat);
+      g.writeNumber(lon);
+      g.writeEndArray();
+      g.writeEndObject();
+      g.writeObjectFieldStart("coordinates");
+      g.writeStringField("type", "Point");
+      g.writeArrayFieldStart("coordinates");
+      g.writeNumber(lon);
+      g.writeNumber(lat);
+      g.writeEndArray();
+      g.writeEndObject();
+    } else {
+      g.writeNullField("geo");
+      g.writeNullField("coordinates");
+    }
+    g.writeNullField("place");
+    g.writeNullField("contributors");
+    if (retweet) {
+      g.writeFieldName("retweeted_status");
+      writeStatus(g, timestamp - random.nextInt(86400000), false);
+    }
+    g.writeNumberField("retweet_count", random.nextInt(1000));
+    g.writeNumberField("favorite_count", random.nextInt(1000));
+    g.writeObjectFieldStart("entities");
+    g.writeArrayFieldStart("hashtags");
+    for (String tag : tags) {
+      g.writeStartObject();
+      g.writeStringField("text", tag);
+      writeIndices(g);
+      g.writeEndObject();
+    }
+    g.writeEndArray();
+    g.writeArrayFieldStart("symbols");
+    g.writeEndArray();
+    g.writeArrayFieldStart("urls");
+    for (String url : urls) {
+      g.writeStartObject();
+      g.writeStringField("url", "http://t.co/" + Integer.toString(url.hashCode(), 36));
+      g.writeStringField("expanded_url", url);
+      g.writeStringField("display_url", url.substring(7));
+      writeIndices(g);
+      g.writeEndObject();
+    }
+    g.writeEndArray();
+    g.writeArrayFieldStart("user_mentions");
+    for (int i = 0; i < mentions.size(); i++) {
+      g.writeStartObject();
+      g.writeStringField("screen_name", "user" + (i + 1));
+      g.writeStringField("name", "User " + (i + 1));
+      g.writeNumberField("id", mentions.get(i));
+      g.writeStringField("id_str", String.valueOf(mentions.get(i)));
+      writeIndices(g);
+      g.writeEndObject();
+    }
+    g.writeEndArray();
+    if (random.nextInt(10) == 0) {
+      g.writeArrayFieldStart("media");
+      g.writeStartObject();
+      long mediaId = snowflake(timestamp);
+      g.writeNumberField("id", mediaId);
+      g.writeStringField("media_url", "http://pbs.twimg.com/media/" + Long.toString(mediaId, 36) + ".jpg");
+      g.writeStringField("type", "photo");
+      writeIndices(g);
+      g.writeEndObject();
+      g.writeEndArray();
+    }
+    g.writeEndObject();
+    g.writeBooleanField("favorited", false);
+    g.writeBooleanField("retweeted", false);
+    g.writeBooleanField("possibly_sensitive", false);
+    g.writeStringField("filter_level", "medium");
+    g.writeStringField("lang", LANGS[random.nextInt(LANGS.length)]);
+    g.writeStringField("timestamp_ms", String.valueOf(timestamp));
+    g.writeEndObject();
+  }
+
+  private void writeUser(JsonGenerator g) throws IOException {
+    long id = userId();
+    g.writeObjectFieldStart("user");
+    g.writeNumberField("id", id);
+    g.writeStringField("id_str", String.valueOf(id));
+    g.writeStringField("name", "User " + id);
+    g.writeStringField("screen_name", "user" + id);
+    g.writeStringField("location", random.nextBoolean() ? "" : "San Francisco, CA");
+    g.writeStringField("url", random.nextInt(3) == 0 ? "http://example.com/~user" + id : null);
+    if (random.nextInt(4) == 0) {
+      g.writeNullField("description");
+    } else {
+      StringBuilder bio = new StringBuilder();
+      int words = random.nextInt(25);
+      for (int i = 0; i < words; i++) {
+        bio.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+      }
+      g.writeStringField("description", bio.toString());
+    }
+    g.writeBooleanField("protected", false);
+    g.writeNumberField("followers_count", (long) Math.abs(random.nextGaussian() * 5000));
+    g.writeNumberField("friends_count", random.nextInt(2000));
+    g.writeNumberField("listed_count", random.nextInt(100));
+    g.writeStringField("created_at", createdAt.format(now - (id % 100000) * 86400000l / 30));
+    g.writeNumberField("favourites_count", random.nextInt(10000));
+    g.writeNumberField("utc_offset", -28800);
+    g.writeStringField("time_zone", "Pacific Time (US & Canada)");
+    g.writeBooleanField("geo_enabled", random.nextBoolean());
+    g.writeBooleanField("verified", random.nextInt(50) == 0);
+    g.writeNumberField("statuses_count", random.nextInt(100000));
+    g.writeStringField("lang", LANGS[random.nextInt(LANGS.length)]);
+    g.writeBooleanField("contributors_enabled", false);
+    g.writeBooleanField("is_translator", false);
+    g.writeStringField("profile_background_color", "C0DEED");
+    g.writeStringField("profile_background_image_url", "http://abs.twimg.com/images/themes/theme1/bg.png");
+    g.writeBooleanField("profile_background_tile", false);
+    g.writeStringField("profile_image_url", "http://pbs.twimg.com/profile_images/" + id + "/avatar_normal.jpg");
+    g.writeStringField("profile_link_color", "0084B4");
+    g.writeStringField("profile_sidebar_border_color", "C0DEED");
+    g.writeStringField("profile_sidebar_fill_color", "DDEEF6");
+    g.writeStringField("profile_text_color", "333333");
+    g.writeBooleanField("profile_use_background_image", true);
+    g.writeBooleanField("default_profile", true);
+    g.writeBooleanField("default_profile_image", false);
+    g.writeNullField("following");
+    g.writeNullField("follow_request_sent");
+    g.writeNullField("notifications");
+    g.writeEndObject();
+  }
+
+  private void writeIndices(JsonGenerator g) throws IOException {
+    g.writeArrayFieldStart("indices");
+    int start = random.nextInt(120);
+    g.writeNumber(start);
+    g.writeNumber(start + 1 + random.nextInt(20));
+    g.writeEndArray();
+  }
+
+  // Popular users show up far more often than the long tail
+  private long userId() {
+    return 1 + (long) Math.abs(random.nextGaussian() * users);
+  }
+
+  private long snowflake(long timestamp) {
+    return ((timestamp - 1288834974657l) << 22) | (random.nextInt() & 0x3fffff);
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length != 2) {
+      System.err.println("Usage: CorpusGenerator <file[.gz]> <lines>");
+      System.exit(1);
+    }
+    OutputStream os = new FileOutputStream(args[0]);
+    if (args[0].endsWith(".gz")) {
+      os = new GZIPOutputStream(os, 65536);
+    }
+    CorpusGenerator generator = new CorpusGenerator(42);
+    int count = Integer.parseInt(args[1]);
+    try (Writer writer = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8))) {
+      for (int i = 0; i < count; i++) {
+        writer.write(generator.next());
+        writer.write('\n');
+      }
+    }
+  }
+}
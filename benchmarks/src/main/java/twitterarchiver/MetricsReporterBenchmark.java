@@ -0,0 +1,77 @@
+package twitterarchiver;
+
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricsRegistry;
+import com.yammer.metrics.core.Timer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializing a registry about the size of a busy node's through
+ * JsonMetricsReporter.writeJson. The JVM section is left out, it costs the same
+ * however many metrics there are.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetricsReporterBenchmark {
+  private final NullOutputStream out = new NullOutputStream();
+  private MetricsRegistry registry;
+  private JsonMetricsReporter reporter;
+
+  @Setup
+  public void setup() throws IOException {
+    registry = new MetricsRegistry();
+    Random random = new Random(42);
+    for (int i = 0; i < 40; i++) {
+      Counter counter = registry.newCounter(MetricsReporterBenchmark.class, "counter" + i);
+      counter.inc(random.nextInt(1000000));
+      Meter meter = registry.newMeter(MetricsReporterBenchmark.class, "meter" + i, "events", TimeUnit.SECONDS);
+      meter.mark(random.nextInt(1000000));
+      Timer timer = registry.newTimer(MetricsReporterBenchmark.class, "timer" + i);
+      Histogram histogram = registry.newHistogram(MetricsReporterBenchmark.class, "histogram" + i);
+      for (int j = 0; j < 1000; j++) {
+        timer.update(random.nextInt(1000), TimeUnit.MILLISECONDS);
+        histogram.update(random.nextInt(1000));
+      }
+      final long value = random.nextLong();
+      registry.newGauge(MetricsReporterBenchmark.class, "gauge" + i, new Gauge<Long>() {
+        @Override
+        public Long value() {
+          return value;
+        }
+      });
+    }
+    reporter = new JsonMetricsReporter("benchmark", registry, "token", "http://localhost", false);
+  }
+
+  @TearDown
+  public void tearDown() {
+    registry.shutdown();
+  }
+
+  @Benchmark
+  public long writeJson() throws IOException {
+    reporter.writeJson(out);
+    return out.count;
+  }
+}
@@ -0,0 +1,20 @@
+package twitterarchiver;
+
+import java.io.OutputStream;
+
+/**
+ * Counts what is written and throws it away.
+ */
+class NullOutputStream extends OutputStream {
+  long count;
+
+  @Override
+  public void write(int b) {
+    count++;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) {
+    count += len;
+  }
+}
@@ -0,0 +1,62 @@
+package twitterarchiver;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MappingJsonFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The parse stage on its own: compact field extraction against a full tree.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParseBenchmark {
+  private final JsonFactory jf = new JsonFactory();
+  private final JsonFactory mapping = new MappingJsonFactory();
+  private List<String> corpus;
+  private int index;
+
+  @Setup
+  public void setup() {
+    corpus = new CorpusGenerator(42).generate(10000);
+  }
+
+  private String nextLine() {
+    if (index == corpus.size()) {
+      index = 0;
+    }
+    return corpus.get(index++);
+  }
+
+  @Benchmark
+  public CompactTweet extract() throws IOException {
+    try (JsonParser parser = jf.createJsonParser(nextLine())) {
+      return TweetExtractor.extract(parser);
+    }
+  }
+
+  @Benchmark
+  public JsonNode tree() throws IOException {
+    try (JsonParser parser = mapping.createJsonParser(nextLine())) {
+      return parser.readValueAsTree();
+    }
+  }
+}
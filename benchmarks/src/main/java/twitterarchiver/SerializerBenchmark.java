@@ -0,0 +1,62 @@
+package twitterarchiver;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TweetSerializer.writeJson, the compact encoding of one status. Should allocate next
+ * to nothing per status once warmed up.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializerBenchmark {
+  private final NullOutputStream out = new NullOutputStream();
+  private List<CompactTweet> tweets;
+  private TweetSerializer serializer;
+  private int index;
+
+  @Setup
+  public void setup() throws IOException {
+    serializer = new TweetSerializer(null);
+    tweets = statuses(new CorpusGenerator(42).generate(10000));
+  }
+
+  static List<CompactTweet> statuses(List<String> lines) throws IOException {
+    JsonFactory jf = new JsonFactory();
+    List<CompactTweet> tweets = new ArrayList<>();
+    for (String line : lines) {
+      CompactTweet tweet = TweetExtractor.extract(jf.createJsonParser(line));
+      if (tweet.isStatus()) {
+        tweets.add(tweet);
+      }
+    }
+    return tweets;
+  }
+
+  @Benchmark
+  public long writeJson() throws IOException {
+    if (index == tweets.size()) {
+      index = 0;
+    }
+    serializer.writeJson(tweets.get(index++), out);
+    return out.count;
+  }
+}
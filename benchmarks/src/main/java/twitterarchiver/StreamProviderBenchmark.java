@@ -0,0 +1,92 @@
+package twitterarchiver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compact records appended to the hourly archive by several threads at once, the
+ * way the listener threads share StreamProvider in production. Measures the
+ * producer side; the appender thread and the compressors run behind it. encode is
+ * what TweetSerializer does for each status, encoding straight into a pooled record.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StreamProviderBenchmark {
+  private File directory;
+  private StreamProvider provider;
+  private List<byte[]> records;
+  private List<CompactTweet> tweets;
+  private TweetSerializer serializer;
+
+  @State(Scope.Thread)
+  public static class Cursor {
+    int index;
+  }
+
+  @Setup
+  public void setup() throws IOException {
+    directory = Files.createTempDirectory("streamprovider").toFile();
+    provider = new StreamProvider(new File(directory, "bench").getPath());
+    provider.start();
+    serializer = new TweetSerializer(provider);
+    tweets = SerializerBenchmark.statuses(new CorpusGenerator(42).generate(10000));
+    records = new ArrayList<>();
+    for (CompactTweet tweet : tweets) {
+      records.add(serializer.toJson(tweet));
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws InterruptedException {
+    provider.close();
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    directory.delete();
+  }
+
+  @Benchmark
+  @Threads(4)
+  public boolean append(Cursor cursor) {
+    if (cursor.index == records.size()) {
+      cursor.index = 0;
+    }
+    return provider.append(records.get(cursor.index++));
+  }
+
+  @Benchmark
+  @Threads(4)
+  public boolean encode(Cursor cursor) throws IOException {
+    if (cursor.index == tweets.size()) {
+      cursor.index = 0;
+    }
+    CompactTweet tweet = tweets.get(cursor.index++);
+    RecordQueue.Record record = provider.claim();
+    serializer.encode(tweet, record);
+    return provider.append(record, tweet, System.nanoTime());
+  }
+}
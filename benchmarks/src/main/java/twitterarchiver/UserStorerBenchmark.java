@@ -0,0 +1,64 @@
+package twitterarchiver;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.mongodb.BasicDBObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the Mongo document for a user, with and without the lazy tree parse
+ * that UserStorer triggers on each event.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UserStorerBenchmark {
+  private List<String> lines;
+  private List<JsonNode> users;
+  private int index;
+
+  @Setup
+  public void setup() {
+    lines = new ArrayList<>();
+    users = new ArrayList<>();
+    for (String line : new CorpusGenerator(42).generate(10000)) {
+      JsonNode user = new TwitterFeedEvent(null, line).getNode().get("user");
+      if (user != null) {
+        lines.add(line);
+        users.add(user);
+      }
+    }
+  }
+
+  private int next() {
+    if (index == lines.size()) {
+      index = 0;
+    }
+    return index++;
+  }
+
+  @Benchmark
+  public BasicDBObject document() {
+    return UserStorer.toDocument(users.get(next()));
+  }
+
+  @Benchmark
+  public BasicDBObject documentFromLine() {
+    return UserStorer.toDocument(new TwitterFeedEvent(null, lines.get(next())).getNode().get("user"));
+  }
+}
@@ -2,9 +2,14 @@ package twitterarchiver;
 
 import com.sampullara.cli.Args;
 import com.sampullara.cli.Argument;
+import com.twitter.hbc.core.endpoint.StreamingEndpoint;
 import com.yammer.metrics.Metrics;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
@@ -17,7 +22,7 @@ public class App {
 
   private static Logger log = Logger.getLogger("TwitterFeed");
 
-  @Argument
+  @Argument(description = "Stream to archive, sample, firehose or filter, and the prefix of the archives")
   private static String hose = "sample";
 
   @Argument
@@ -32,6 +37,96 @@ public class App {
   @Argument
   private static String wavefront;
 
+  @Argument
+  private static String metricsFile;
+
+  @Argument(description = "Statuses per ten minutes the duplicate filter is sized for, by default enough for -hose")
+  private static Long dedupPerBucket;
+
+  @Argument(description = "Where metrics reports that couldn't be sent are kept, metrics.spool next to the archives by default")
+  private static String metricsSpool;
+
+  @Argument
+  private static Long metricsSpoolMB = 16l;
+
+  @Argument
+  private static Boolean columnar = false;
+
+  @Argument
+  private static String replay;
+
+  @Argument
+  private static Double speed = 1.0;
+
+  @Argument
+  private static Boolean stream = false;
+
+  @Argument
+  private static Boolean trending = false;
+
+  @Argument
+  private static Integer userThreads = 1;
+
+  @Argument
+  private static Integer connections = 1;
+
+  @Argument(description = "Comma separated terms for -hose filter")
+  private static String track;
+
+  @Argument(description = "Comma separated user ids for -hose filter")
+  private static String follow;
+
+  @Argument
+  private static String codec = "gzip";
+
+  @Argument
+  private static String dict;
+
+  @Argument
+  private static String trainDict;
+
+  @Argument
+  private static Long segmentMB = 0l;
+
+  @Argument
+  private static Long segmentRecords = 0l;
+
+  @Argument
+  private static Integer segmentSeconds = 0;
+
+  @Argument
+  private static String query;
+
+  @Argument
+  private static String from;
+
+  @Argument
+  private static String to;
+
+  @Argument
+  private static String lang;
+
+  @Argument
+  private static String hashtag;
+
+  @Argument
+  private static Long userId;
+
+  @Argument
+  private static Boolean geo = false;
+
+  @Argument
+  private static Boolean verified = false;
+
+  @Argument
+  private static String aggregate;
+
+  @Argument
+  private static String export;
+
+  @Argument
+  private static String exportTo;
+
   public static void main(String[] args) throws IOException {
     try {
       Args.parse(App.class, args);
@@ -40,36 +135,165 @@ public class App {
       Args.usage(App.class);
       System.exit(1);
     }
+    if (query != null) {
+      ArchiveQuery.Predicate predicate = new ArchiveQuery.Predicate()
+              .lang(lang)
+              .hashtag(hashtag)
+              .geo(geo)
+              .verified(verified);
+      if (from != null) {
+        predicate.from(ArchiveQuery.parseTime(from));
+      }
+      if (to != null) {
+        predicate.to(ArchiveQuery.parseTime(to));
+      }
+      if (userId != null) {
+        predicate.userId(userId);
+      }
+      new ArchiveQuery(predicate, aggregate).run(new File(query));
+      return;
+    }
+    if (export != null) {
+      new ParquetExport(exportTo == null ? null : new File(exportTo)).run(new File(export));
+      return;
+    }
+    if (trainDict != null) {
+      List<byte[]> samples = ZstdCodec.sample(new File(trainDict), 200000);
+      File file = ZstdCodec.train(samples, ZstdCodec.DICTIONARY_SIZE, new File("."));
+      System.out.println("Trained " + file + " on " + samples.size() + " records");
+      return;
+    }
     Properties auth = new Properties();
-    auth.load(App.class.getResourceAsStream("/auth.properties"));
-    if (wavefront != null) {
+    InputStream authStream = App.class.getResourceAsStream("/auth.properties");
+    if (authStream != null) {
+      auth.load(authStream);
+    }
+    if (metricsFile != null) {
+      System.out.println("Starting metrics reporter to " + metricsFile);
+      new JsonMetricsReporter("twitterfeed", Metrics.defaultRegistry(), new File(metricsFile), true).start(1, TimeUnit.MINUTES);
+    } else if (wavefront != null) {
       System.out.println("Starting metrics reporter");
       JsonMetricsReporter mr = new JsonMetricsReporter("twitterfeed", Metrics.defaultRegistry(), auth.getProperty("sunnylabstoken"), wavefront);
+      // The archives are written to the directory the hose names, if it names one
+      File spool = metricsSpool != null ? new File(metricsSpool)
+              : new File(new File(hose).getAbsoluteFile().getParentFile(), "metrics.spool");
+      mr.setSpool(spool, metricsSpoolMB * 1024 * 1024);
       mr.start(1, TimeUnit.MINUTES);
     }
     String host = auth.getProperty("host");
     if (host == null) {
       host = "stream.twitter.com";
     }
-    String url = "https://" + host + "/1/statuses/" + hose + ".json";
-    TwitterFeed twitterFeed = new TwitterFeed(auth.getProperty("oauth.consumerKey"),
-            auth.getProperty("oauth.consumerSecret"),
-            auth.getProperty("oauth.accessToken"),
-            auth.getProperty("oauth.accessTokenSecret"));
-    log.info("Connecting to: " + url);
-    final StreamProvider jsonStreamProvider = new StreamProvider(hose);
-    // Get the filename we are going to use
-    jsonStreamProvider.getStream();
-    if (!view) {
-      TwitterFeedUploader uploader = new TwitterFeedUploader(hose, ".json.gz", jsonStreamProvider);
-      uploader.start();
+    List<IngestSource> sources = new ArrayList<>();
+    if (replay == null) {
+      List<StreamingEndpoint> endpoints;
+      try {
+        List<Long> followIds = new ArrayList<>();
+        for (String id : split(follow)) {
+          followIds.add(Long.parseLong(id));
+        }
+        // Filter terms and users are split between the connections, copies from redundant ones are dropped as duplicates
+        endpoints = HosebirdSource.endpoints(hose, split(track), followIds, connections);
+      } catch (IllegalArgumentException e) {
+        System.err.println(e.getMessage());
+        Args.usage(App.class);
+        System.exit(1);
+        return;
+      }
+      for (int i = 0; i < endpoints.size(); i++) {
+        StreamingEndpoint endpoint = endpoints.get(i);
+        sources.add(new HosebirdSource(auth.getProperty("oauth.consumerKey"),
+                auth.getProperty("oauth.consumerSecret"),
+                auth.getProperty("oauth.accessToken"),
+                auth.getProperty("oauth.accessTokenSecret"),
+                "https://" + host, endpoint, hose + "-" + i));
+        log.info("Connecting to: https://" + host + endpoint.getURI() + " " + endpoint.getPostParamString());
+      }
+    } else {
+      // More than one connection replays the same lines again, as redundant connections would
+      for (int i = 0; i < connections; i++) {
+        sources.add(new ReplaySource(new File(replay), speed));
+      }
+      log.info("Replaying: " + replay + " at " + (speed > 0 ? speed + "x" : "full speed"));
+    }
+    // An undersized filter would take most new statuses for copies, the firehose needs twenty times the sample's
+    long perBucket = dedupPerBucket != null ? dedupPerBucket : DuplicateFilter.perBucket(hose);
+    TwitterFeed twitterFeed = new TwitterFeed(sources, new DuplicateFilter(perBucket));
+    final StreamProvider jsonStreamProvider;
+    String jsonSuffix;
+    if (codec.equals("zstd")) {
+      jsonSuffix = ".json.zst";
+      jsonStreamProvider = new StreamProvider(hose, jsonSuffix,
+              dict == null ? new ZstdCodec(ZstdCodec.LEVEL) : ZstdCodec.load(new File(dict), ZstdCodec.LEVEL));
+    } else {
+      jsonSuffix = ".json.gz";
+      jsonStreamProvider = new StreamProvider(hose);
+    }
+    // Shorter segments than an hour, listed in an hourly manifest and uploaded as soon as they close
+    jsonStreamProvider.setSegments(segmentMB * 1024 * 1024, segmentRecords, segmentSeconds * 1000l);
+    StreamProvider columnarStreamProvider = null;
+    if (columnar) {
+      columnarStreamProvider = new StreamProvider(hose, ".tcol");
+      columnarStreamProvider.setSegments(segmentMB * 1024 * 1024, segmentRecords, segmentSeconds * 1000l);
     }
     if (!upload) {
-      twitterFeed.addEventListener(new TweetSerializer(jsonStreamProvider));
+      // The archives would rather hold up the feed than lose anything
+      ListenerPolicy archive = new ListenerPolicy(10000, ListenerPolicy.Overflow.BLOCK);
+      twitterFeed.addEventListener(new TweetSerializer(jsonStreamProvider), archive);
+      DistinctListener distinct = new DistinctListener();
+      twitterFeed.addEventListener(distinct);
+      jsonStreamProvider.addRotationListener(distinct);
+      if (columnar) {
+        twitterFeed.addEventListener(new ColumnarTweetWriter(columnarStreamProvider), archive);
+      }
       if (users) {
-        twitterFeed.addEventListener(new UserStorer());
+        // Above one the storer is called from that many virtual threads
+        twitterFeed.addEventListener(new UserStorer(), ListenerPolicy.DEFAULT.blocking(userThreads));
+      }
+      if (trending) {
+        twitterFeed.addEventListener(new TrendingListener());
       }
     }
+    // Open the first files, once the writers have set their headers, so the uploader knows what is current
+    jsonStreamProvider.start();
+    if (columnar) {
+      columnarStreamProvider.start();
+    }
+    if (!view) {
+      if (stream) {
+        new MultipartUploader(hose, jsonSuffix, jsonStreamProvider).start();
+        if (columnar) {
+          new MultipartUploader(hose, ".tcol", columnarStreamProvider).start();
+        }
+      } else {
+        TwitterFeedUploader uploader = new TwitterFeedUploader(hose, jsonSuffix, jsonStreamProvider);
+        TwitterFeedUploader columnarUploader = columnar ? new TwitterFeedUploader(hose, ".tcol", columnarStreamProvider) : null;
+        if (segmentMB > 0 || segmentRecords > 0 || segmentSeconds > 0) {
+          // Each segment has to be up before the next one closes
+          long spread = segmentSeconds * 1000l / 2;
+          uploader.setSpread(spread);
+          if (columnar) {
+            columnarUploader.setSpread(spread);
+          }
+        }
+        uploader.start();
+        if (columnar) {
+          columnarUploader.start();
+        }
+      }
+    }
+    twitterFeed.start();
   }
 
+  private static List<String> split(String list) {
+    List<String> values = new ArrayList<>();
+    if (list != null) {
+      for (String value : list.split(",")) {
+        if (!value.trim().isEmpty()) {
+          values.add(value.trim());
+        }
+      }
+    }
+    return values;
+  }
 }
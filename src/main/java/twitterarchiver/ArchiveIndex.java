@@ -0,0 +1,450 @@
+package twitterarchiver;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Sidecar point lookup index for a block gzipped archive, written as the archive is
+ * rotated. It maps status ids, user ids and hashtags to the gzip members holding them
+ * so a lookup only has to decompress those members:
+ * <pre>
+ * file    := "TIDX" version:byte members users tags
+ * members := count:varint (minIdDelta:zigzag idRange:varint records:varint)*
+ * users   := count:varint (userIdDelta:varint member:varint)*
+ * tags    := count:varint (tagHashDelta:zigzag member:varint)*
+ * </pre>
+ * Status ids are kept as a min/max range per member since they arrive close to
+ * sorted. User ids and hashtags are sorted (key, member) pairs with duplicates
+ * removed, hashtags by a 64 bit hash of their lower case form, so a lookup can turn
+ * up a member that doesn't hold the tag and callers check the records they read.
+ */
+public class ArchiveIndex {
+  static final byte[] MAGIC = {'T', 'I', 'D', 'X'};
+  static final int VERSION = 1;
+
+  private final long[] minIds;
+  private final long[] maxIds;
+  private final int[] records;
+  private final long[] userIds;
+  private final int[] userMembers;
+  private final long[] tagHashes;
+  private final int[] tagMembers;
+
+  private ArchiveIndex(long[] minIds, long[] maxIds, int[] records, long[] userIds, int[] userMembers,
+                       long[] tagHashes, int[] tagMembers) {
+    this.minIds = minIds;
+    this.maxIds = maxIds;
+    this.records = records;
+    this.userIds = userIds;
+    this.userMembers = userMembers;
+    this.tagHashes = tagHashes;
+    this.tagMembers = tagMembers;
+  }
+
+  public static ArchiveIndex read(File file) throws IOException {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536))) {
+      byte[] magic = new byte[MAGIC.length];
+      in.readFully(magic);
+      if (!Arrays.equals(magic, MAGIC)) {
+        throw new IOException("Not an archive index: " + file);
+      }
+      int version = in.read();
+      if (version != VERSION) {
+        throw new IOException("Unsupported archive index version: " + version);
+      }
+      int members = (int) ColumnarFormat.readVarint(in);
+      long[] minIds = new long[members];
+      long[] maxIds = new long[members];
+      int[] records = new int[members];
+      long previous = 0;
+      for (int i = 0; i < members; i++) {
+        previous = minIds[i] = previous + ColumnarFormat.unzigzag(ColumnarFormat.readVarint(in));
+        maxIds[i] = minIds[i] + ColumnarFormat.readVarint(in);
+        records[i] = (int) ColumnarFormat.readVarint(in);
+      }
+      int users = (int) ColumnarFormat.readVarint(in);
+      long[] userIds = new long[users];
+      int[] userMembers = new int[users];
+      previous = 0;
+      for (int i = 0; i < users; i++) {
+        previous = userIds[i] = previous + ColumnarFormat.readVarint(in);
+        userMembers[i] = (int) ColumnarFormat.readVarint(in);
+      }
+      int tags = (int) ColumnarFormat.readVarint(in);
+      long[] tagHashes = new long[tags];
+      int[] tagMembers = new int[tags];
+      previous = 0;
+      for (int i = 0; i < tags; i++) {
+        previous = tagHashes[i] = previous + ColumnarFormat.unzigzag(ColumnarFormat.readVarint(in));
+        tagMembers[i] = (int) ColumnarFormat.readVarint(in);
+      }
+      return new ArchiveIndex(minIds, maxIds, records, userIds, userMembers, tagHashes, tagMembers);
+    }
+  }
+
+  public int members() {
+    return minIds.length;
+  }
+
+  public long minId(int member) {
+    return minIds[member];
+  }
+
+  public long maxId(int member) {
+    return maxIds[member];
+  }
+
+  public int records(int member) {
+    return records[member];
+  }
+
+  /**
+   * Members whose id range covers the status id.
+   */
+  public int[] membersForId(long id) {
+    int[] members = new int[4];
+    int count = 0;
+    for (int i = 0; i < minIds.length; i++) {
+      if (records[i] > 0 && id >= minIds[i] && id <= maxIds[i]) {
+        if (count == members.length) {
+          members = Arrays.copyOf(members, count * 2);
+        }
+        members[count++] = i;
+      }
+    }
+    return Arrays.copyOf(members, count);
+  }
+
+  public int[] membersForUser(long userId) {
+    return range(userIds, userMembers, userId);
+  }
+
+  public int[] membersForHashtag(String hashtag) {
+    return range(tagHashes, tagMembers, hashtag(hashtag));
+  }
+
+  private static int[] range(long[] keys, int[] members, long key) {
+    int i = Arrays.binarySearch(keys, key);
+    if (i < 0) {
+      return new int[0];
+    }
+    int from = i;
+    while (from > 0 && keys[from - 1] == key) {
+      from--;
+    }
+    int to = i + 1;
+    while (to < keys.length && keys[to] == key) {
+      to++;
+    }
+    return Arrays.copyOfRange(members, from, to);
+  }
+
+  static long hashtag(String tag) {
+    String lower = tag.toLowerCase(Locale.ROOT);
+    long hash = 0xcbf29ce484222325l;
+    for (int i = 0; i < lower.length(); i++) {
+      hash ^= lower.charAt(i);
+      hash *= 0x100000001b3l;
+    }
+    return hash;
+  }
+
+  /**
+   * Decodes the records that start in the given members of the archive and returns the
+   * lines of the ones the filter accepts.
+   */
+  public static List<String> read(File archive, BlockGzipIndex gzi, int[] members, Filter filter) throws IOException {
+    JsonFactory jf = new JsonFactory();
+    List<String> matches = new ArrayList<>();
+    for (int member : members) {
+      long start = gzi.uncompressedOffset(member);
+      long end = member + 1 < gzi.members() ? gzi.uncompressedOffset(member + 1) : Long.MAX_VALUE;
+      // A record can run over into the next member when it is longer than a block
+      try (InputStream is = gzi.open(archive, member, Math.min(member + 2, gzi.members()))) {
+        LineReader lines = new LineReader(is);
+        byte[] line;
+        long position = start;
+        while (position < end && (line = lines.next()) != null) {
+          position += line.length + 1;
+          try (JsonParser parser = jf.createJsonParser(line)) {
+            CompactTweet tweet = TweetSerializer.readJson(parser);
+            if (tweet != null && filter.accept(tweet)) {
+              matches.add(new String(line, StandardCharsets.UTF_8));
+            }
+          } catch (IOException e) {
+            // The tail of a record that started in the member before
+          }
+        }
+      }
+    }
+    return matches;
+  }
+
+  public interface Filter {
+    boolean accept(CompactTweet tweet);
+  }
+
+  // Just enough line splitting to count bytes exactly, a Reader would hide them
+  static class LineReader {
+    private final InputStream in;
+    private byte[] buffer = new byte[1024];
+
+    LineReader(InputStream in) {
+      this.in = new BufferedInputStream(in, 65536);
+    }
+
+    byte[] next() throws IOException {
+      int length = 0;
+      int b;
+      while ((b = in.read()) != -1 && b != '\n') {
+        if (length == buffer.length) {
+          buffer = Arrays.copyOf(buffer, length * 2);
+        }
+        buffer[length++] = (byte) b;
+      }
+      return b == -1 && length == 0 ? null : Arrays.copyOf(buffer, length);
+    }
+  }
+
+  /**
+   * Collects the ids, users and hashtags of the records written to one archive along
+   * with where they were written, and turns them into an index once the archive is
+   * closed and its member table is known.
+   */
+  static class Builder {
+    private long[] offsets = new long[1024];
+    private long[] ids = new long[1024];
+    private long[] users = new long[1024];
+    private int count;
+    private long[] tagOffsets = new long[256];
+    private long[] tags = new long[256];
+    private int tagCount;
+
+    void add(CompactTweet tweet, long offset) {
+      if (count == offsets.length) {
+        offsets = Arrays.copyOf(offsets, count * 2);
+        ids = Arrays.copyOf(ids, count * 2);
+        users = Arrays.copyOf(users, count * 2);
+      }
+      offsets[count] = offset;
+      ids[count] = tweet.id;
+      users[count] = tweet.userId;
+      count++;
+      if (tweet.hashtags != null) {
+        for (String hashtag : tweet.hashtags) {
+          if (hashtag != null) {
+            if (tagCount == tags.length) {
+              tags = Arrays.copyOf(tags, tagCount * 2);
+              tagOffsets = Arrays.copyOf(tagOffsets, tagCount * 2);
+            }
+            tagOffsets[tagCount] = offset;
+            tags[tagCount++] = hashtag(hashtag);
+          }
+        }
+      }
+    }
+
+    boolean isEmpty() {
+      return count == 0;
+    }
+
+    void reset() {
+      count = 0;
+      tagCount = 0;
+    }
+
+    void write(File file, BlockGzipIndex gzi) throws IOException {
+      int members = gzi.members();
+      long[] minIds = new long[members];
+      long[] maxIds = new long[members];
+      int[] records = new int[members];
+      Arrays.fill(minIds, Long.MAX_VALUE);
+      Arrays.fill(maxIds, Long.MIN_VALUE);
+      int[] userMembers = new int[count];
+      for (int i = 0; i < count; i++) {
+        int member = gzi.memberFor(offsets[i]);
+        minIds[member] = Math.min(minIds[member], ids[i]);
+        maxIds[member] = Math.max(maxIds[member], ids[i]);
+        records[member]++;
+        userMembers[i] = member;
+      }
+      long[] userKeys = Arrays.copyOf(users, count);
+      int userCount = sortUnique(userKeys, userMembers, count);
+      long[] tagKeys = Arrays.copyOf(tags, tagCount);
+      int[] tagMembers = new int[tagCount];
+      for (int i = 0; i < tagCount; i++) {
+        tagMembers[i] = gzi.memberFor(tagOffsets[i]);
+      }
+      int uniqueTags = sortUnique(tagKeys, tagMembers, tagCount);
+
+      File temp = new File(file.getPath() + ".tmp");
+      try (OutputStream out = new BufferedOutputStream(new FileOutputStream(temp), 65536)) {
+        out.write(MAGIC);
+        out.write(VERSION);
+        ColumnarFormat.writeVarint(out, members);
+        long previous = 0;
+        for (int i = 0; i < members; i++) {
+          if (records[i] == 0) {
+            // The trailing EOF member, or one holding only the middle of a long record
+            minIds[i] = maxIds[i] = previous;
+          }
+          ColumnarFormat.writeVarint(out, ColumnarFormat.zigzag(minIds[i] - previous));
+          ColumnarFormat.writeVarint(out, maxIds[i] - minIds[i]);
+          ColumnarFormat.writeVarint(out, records[i]);
+          previous = minIds[i];
+        }
+        ColumnarFormat.writeVarint(out, userCount);
+        previous = 0;
+        for (int i = 0; i < userCount; i++) {
+          ColumnarFormat.writeVarint(out, userKeys[i] - previous);
+          ColumnarFormat.writeVarint(out, userMembers[i]);
+          previous = userKeys[i];
+        }
+        ColumnarFormat.writeVarint(out, uniqueTags);
+        previous = 0;
+        for (int i = 0; i < uniqueTags; i++) {
+          ColumnarFormat.writeVarint(out, ColumnarFormat.zigzag(tagKeys[i] - previous));
+          ColumnarFormat.writeVarint(out, tagMembers[i]);
+          previous = tagKeys[i];
+        }
+      }
+      if (!temp.renameTo(file)) {
+        throw new IOException("Could not write " + file);
+      }
+    }
+  }
+
+  /**
+   * Sorts the pairs by key then value and removes duplicate pairs, returning how many remain.
+   */
+  static int sortUnique(long[] keys, int[] values, int length) {
+    sort(keys, values, 0, length - 1);
+    int unique = 0;
+    for (int i = 0; i < length; i++) {
+      if (unique == 0 || keys[i] != keys[unique - 1] || values[i] != values[unique - 1]) {
+        keys[unique] = keys[i];
+        values[unique] = values[i];
+        unique++;
+      }
+    }
+    return unique;
+  }
+
+  private static void sort(long[] keys, int[] values, int lo, int hi) {
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      long pivotKey = keys[mid];
+      int pivotValue = values[mid];
+      int i = lo;
+      int j = hi;
+      while (i <= j) {
+        while (compare(keys[i], values[i], pivotKey, pivotValue) < 0) {
+          i++;
+        }
+        while (compare(keys[j], values[j], pivotKey, pivotValue) > 0) {
+          j--;
+        }
+        if (i <= j) {
+          long key = keys[i];
+          keys[i] = keys[j];
+          keys[j] = key;
+          int value = values[i];
+          values[i] = values[j];
+          values[j] = value;
+          i++;
+          j--;
+        }
+      }
+      // Recurse into the smaller half so the stack stays shallow
+      if (j - lo < hi - i) {
+        sort(keys, values, lo, j);
+        lo = i;
+      } else {
+        sort(keys, values, i, hi);
+        hi = j;
+      }
+    }
+  }
+
+  private static int compare(long key, int value, long otherKey, int otherValue) {
+    int c = Long.compare(key, otherKey);
+    return c != 0 ? c : Integer.compare(value, otherValue);
+  }
+
+  /**
+   * Prints the records of an archive for a status id, user id or hashtag using its index.
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 3) {
+      System.err.println("Usage: ArchiveIndex <archive.json.gz> id|user|tag <value>");
+      System.exit(1);
+    }
+    File archive = new File(args[0]);
+    ArchiveIndex index = read(new File(args[0] + ".idx"));
+    BlockGzipIndex gzi = BlockGzipIndex.read(new File(args[0] + ".gzi"));
+    final String value = args[2];
+    int[] members;
+    Filter filter;
+    switch (args[1]) {
+      case "id":
+        final long id = Long.parseLong(value);
+        members = index.membersForId(id);
+        filter = new Filter() {
+          @Override
+          public boolean accept(CompactTweet tweet) {
+            return tweet.id == id;
+          }
+        };
+        break;
+      case "user":
+        final long userId = Long.parseLong(value);
+        members = index.membersForUser(userId);
+        filter = new Filter() {
+          @Override
+          public boolean accept(CompactTweet tweet) {
+            return tweet.userId == userId;
+          }
+        };
+        break;
+      case "tag":
+        members = index.membersForHashtag(value);
+        filter = new Filter() {
+          @Override
+          public boolean accept(CompactTweet tweet) {
+            if (tweet.hashtags != null) {
+              for (String hashtag : tweet.hashtags) {
+                if (value.equalsIgnoreCase(hashtag)) {
+                  return true;
+                }
+              }
+            }
+            return false;
+          }
+        };
+        break;
+      default:
+        System.err.println("Unknown lookup: " + args[1]);
+        System.exit(1);
+        return;
+    }
+    System.err.println("Reading " + members.length + " of " + gzi.members() + " members");
+    for (String line : read(archive, gzi, members, filter)) {
+      System.out.println(line);
+    }
+  }
+}
@@ -0,0 +1,527 @@
+package twitterarchiver;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Scans a directory of hourly .json.gz and .json.zst archives in parallel on a
+ * fork-join pool and writes the records matching a Predicate, or counts of them
+ * grouped by an aggregate, to stdout. Every archive is a task and every run of up to CHUNK gzip members within
+ * it a subtask. Predicates are pushed down as far as they go before anything is
+ * decompressed:
+ * <ul>
+ * <li>an archive only holds statuses created before the end of the hour it was
+ * started in, so its name rules it out of anything that starts later</li>
+ * <li>the .stats sidecar, filled in by earlier scans, has the created_at range, langs
+ * and geo and verified counts of every member</li>
+ * <li>the .idx sidecar lists the members holding a user or hashtag</li>
+ * </ul>
+ * A .json.zst archive has neither sidecar and is read whole, with its dictionary.
+ * Matching records are written a chunk at a time, so they come out grouped but in no
+ * particular order across chunks.
+ */
+public class ArchiveQuery {
+  private static final Pattern ARCHIVE = Pattern.compile(".*?([0-9]+)\\.json\\.(gz|zst)");
+  private static final long HOUR = 3600000l;
+  // Members scanned by one subtask, about a megabyte of records
+  private static final int CHUNK = 16;
+
+  private final Predicate predicate;
+  private final String aggregate;
+  private final OutputStream out;
+  private final ConcurrentHashMap<String, AtomicLong> counts = new ConcurrentHashMap<>();
+  private final AtomicLong files = new AtomicLong();
+  private final AtomicLong skippedFiles = new AtomicLong();
+  private final AtomicLong members = new AtomicLong();
+  private final AtomicLong scannedMembers = new AtomicLong();
+  private final AtomicLong records = new AtomicLong();
+  private final AtomicLong matched = new AtomicLong();
+
+  /**
+   * @param aggregate null to write matching records, otherwise one of count, lang,
+   *                  hashtag, user or hour
+   */
+  public ArchiveQuery(Predicate predicate, String aggregate) {
+    if (aggregate != null && !Arrays.asList("count", "lang", "hashtag", "user", "hour").contains(aggregate)) {
+      throw new IllegalArgumentException("Unknown aggregate: " + aggregate);
+    }
+    this.predicate = predicate;
+    this.aggregate = aggregate;
+    out = new BufferedOutputStream(System.out, 65536);
+  }
+
+  /**
+   * Runs the query over every archive in the directory, or over a single archive.
+   */
+  public void run(File path) throws IOException {
+    long start = System.currentTimeMillis();
+    File[] archives;
+    if (path.isDirectory()) {
+      archives = path.listFiles(new FilenameFilter() {
+        @Override
+        public boolean accept(File dir, String name) {
+          return name.endsWith(".json.gz") || name.endsWith(".json.zst");
+        }
+      });
+      Arrays.sort(archives);
+    } else {
+      archives = new File[]{path};
+    }
+    final List<ForkJoinTask<?>> tasks = new ArrayList<>();
+    for (File archive : archives) {
+      tasks.add(new ArchiveTask(archive));
+    }
+    new ForkJoinPool().invoke(new RecursiveAction() {
+      @Override
+      protected void compute() {
+        invokeAll(tasks);
+      }
+    });
+    if (aggregate != null) {
+      writeCounts();
+    }
+    out.flush();
+    System.err.println("Scanned " + (files.get() - skippedFiles.get()) + " of " + files.get() + " archives, "
+            + scannedMembers.get() + " of " + members.get() + " members, " + records.get() + " records, "
+            + matched.get() + " matched in " + (System.currentTimeMillis() - start) + "ms");
+  }
+
+  private void writeCounts() throws IOException {
+    List<Map.Entry<String, AtomicLong>> entries = new ArrayList<>(counts.entrySet());
+    Collections.sort(entries, new Comparator<Map.Entry<String, AtomicLong>>() {
+      @Override
+      public int compare(Map.Entry<String, AtomicLong> o1, Map.Entry<String, AtomicLong> o2) {
+        int c = Long.compare(o2.getValue().get(), o1.getValue().get());
+        return c != 0 ? c : o1.getKey().compareTo(o2.getKey());
+      }
+    });
+    for (Map.Entry<String, AtomicLong> entry : entries) {
+      String line = aggregate.equals("count") ? entry.getValue() + "\n" : entry.getKey() + "\t" + entry.getValue() + "\n";
+      out.write(line.getBytes(StandardCharsets.UTF_8));
+    }
+  }
+
+  /**
+   * Plans the scan of one archive and forks a subtask for every run of members that
+   * can't be ruled out. Statistics learned along the way are saved once they are done.
+   */
+  private class ArchiveTask extends RecursiveAction {
+    private final File archive;
+
+    ArchiveTask(File archive) {
+      this.archive = archive;
+    }
+
+    @Override
+    protected void compute() {
+      files.incrementAndGet();
+      Matcher matcher = ARCHIVE.matcher(archive.getName());
+      if (matcher.matches()) {
+        long started = Long.parseLong(matcher.group(1));
+        if ((started / HOUR + 1) * HOUR <= predicate.from) {
+          skippedFiles.incrementAndGet();
+          return;
+        }
+      }
+      try {
+        File gziFile = new File(archive.getPath() + ".gzi");
+        BlockGzipIndex gzi;
+        ArchiveStats stats = null;
+        File statsFile = new File(archive.getPath() + ".stats");
+        if (gziFile.exists()) {
+          gzi = BlockGzipIndex.read(gziFile);
+          if (statsFile.exists()) {
+            stats = ArchiveStats.read(statsFile);
+          }
+          if (stats == null || stats.members() != gzi.members()) {
+            stats = new ArchiveStats(gzi.members());
+          }
+        } else {
+          // Still being written or from before archives were block gzipped, read it in one go
+          gzi = BlockGzipIndex.whole();
+        }
+        members.addAndGet(gzi.members());
+        boolean[] candidates = new boolean[gzi.members()];
+        Arrays.fill(candidates, true);
+        File idxFile = new File(archive.getPath() + ".idx");
+        if (stats != null && idxFile.exists() && (predicate.userId != 0 || predicate.hashtag != null)) {
+          ArchiveIndex index = ArchiveIndex.read(idxFile);
+          if (predicate.userId != 0) {
+            retain(candidates, index.membersForUser(predicate.userId));
+          }
+          if (predicate.hashtag != null) {
+            retain(candidates, index.membersForHashtag(predicate.hashtag));
+          }
+        }
+        if (stats != null) {
+          for (int i = 0; i < candidates.length; i++) {
+            candidates[i] = candidates[i] && predicate.mayMatch(stats, i);
+          }
+        }
+        List<ChunkTask> chunks = new ArrayList<>();
+        int i = 0;
+        while (i < candidates.length) {
+          if (!candidates[i]) {
+            i++;
+            continue;
+          }
+          int from = i;
+          while (i < candidates.length && candidates[i] && i - from < CHUNK) {
+            i++;
+          }
+          chunks.add(new ChunkTask(archive, gzi, stats, from, i));
+        }
+        if (chunks.isEmpty()) {
+          skippedFiles.incrementAndGet();
+          return;
+        }
+        invokeAll(chunks);
+        if (stats != null && stats.isChanged()) {
+          stats.write(statsFile);
+        }
+      } catch (IOException e) {
+        System.err.println("Failed to scan " + archive + ": " + e);
+      }
+    }
+
+    private void retain(boolean[] candidates, int[] members) {
+      boolean[] listed = new boolean[candidates.length];
+      for (int member : members) {
+        listed[member] = true;
+      }
+      for (int i = 0; i < candidates.length; i++) {
+        candidates[i] = candidates[i] && listed[i];
+      }
+    }
+  }
+
+  /**
+   * Decodes members [from, to) of an archive, writing or counting the matches and
+   * recording what each member holds.
+   */
+  private class ChunkTask extends RecursiveAction {
+    private final File archive;
+    private final BlockGzipIndex gzi;
+    private final ArchiveStats stats;
+    private final int from;
+    private final int to;
+
+    ChunkTask(File archive, BlockGzipIndex gzi, ArchiveStats stats, int from, int to) {
+      this.archive = archive;
+      this.gzi = gzi;
+      this.stats = stats;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      scannedMembers.addAndGet(to - from);
+      JsonFactory jf = new JsonFactory();
+      ByteArrayOutputStream matches = new ByteArrayOutputStream();
+      Map<String, long[]> groups = new HashMap<>();
+      MemberStats member = new MemberStats();
+      int current = from;
+      long next = current + 1 < gzi.members() ? gzi.uncompressedOffset(current + 1) : Long.MAX_VALUE;
+      long end = to < gzi.members() ? gzi.uncompressedOffset(to) : Long.MAX_VALUE;
+      long scanned = 0;
+      long found = 0;
+      // A record can run over into the next member when it is longer than a block
+      try (InputStream is = archive.getName().endsWith(".zst") ? ZstdCodec.open(archive)
+              : gzi.open(archive, from, Math.min(to + 1, gzi.members()))) {
+        ArchiveIndex.LineReader lines = new ArchiveIndex.LineReader(is);
+        long position = gzi.uncompressedOffset(from);
+        byte[] line;
+        while (position < end && (line = lines.next()) != null) {
+          while (position >= next) {
+            member.save(current++);
+            next = current + 1 < gzi.members() ? gzi.uncompressedOffset(current + 1) : Long.MAX_VALUE;
+          }
+          position += line.length + 1;
+          CompactTweet tweet;
+          try (JsonParser parser = jf.createJsonParser(line)) {
+            tweet = TweetSerializer.readJson(parser);
+          } catch (IOException e) {
+            // The tail of a record that started in the member before
+            continue;
+          }
+          if (tweet == null || !tweet.isStatus()) {
+            continue;
+          }
+          scanned++;
+          member.add(tweet);
+          if (predicate.accept(tweet)) {
+            found++;
+            if (aggregate == null) {
+              matches.write(line);
+              matches.write('\n');
+              if (matches.size() >= 65536) {
+                write(matches);
+              }
+            } else {
+              group(groups, tweet);
+            }
+          }
+        }
+        while (current < to) {
+          member.save(current++);
+        }
+      } catch (IOException e) {
+        System.err.println("Failed to read " + archive + " members " + from + "-" + to + ": " + e);
+      }
+      records.addAndGet(scanned);
+      matched.addAndGet(found);
+      try {
+        write(matches);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+      for (Map.Entry<String, long[]> entry : groups.entrySet()) {
+        AtomicLong count = counts.get(entry.getKey());
+        if (count == null) {
+          AtomicLong existing = counts.putIfAbsent(entry.getKey(), count = new AtomicLong());
+          if (existing != null) {
+            count = existing;
+          }
+        }
+        count.addAndGet(entry.getValue()[0]);
+      }
+    }
+
+    private void group(Map<String, long[]> groups, CompactTweet tweet) {
+      switch (aggregate) {
+        case "count":
+          increment(groups, "count");
+          break;
+        case "lang":
+          increment(groups, String.valueOf(tweet.lang));
+          break;
+        case "hashtag":
+          if (tweet.hashtags != null) {
+            for (String hashtag : tweet.hashtags) {
+              increment(groups, hashtag.toLowerCase(Locale.ROOT));
+            }
+          }
+          break;
+        case "user":
+          increment(groups, String.valueOf(tweet.userId));
+          break;
+        case "hour":
+          increment(groups, hour(createdAt(tweet)));
+          break;
+      }
+    }
+
+    private void increment(Map<String, long[]> groups, String key) {
+      long[] count = groups.get(key);
+      if (count == null) {
+        groups.put(key, count = new long[1]);
+      }
+      count[0]++;
+    }
+
+    private void write(ByteArrayOutputStream matches) throws IOException {
+      if (matches.size() > 0) {
+        synchronized (out) {
+          matches.writeTo(out);
+        }
+        matches.reset();
+      }
+    }
+
+    // What has been seen of the current member so far
+    private class MemberStats {
+      long min = Long.MAX_VALUE;
+      long max = Long.MIN_VALUE;
+      int records;
+      int geo;
+      int verified;
+      Set<String> langs = new HashSet<>();
+
+      void add(CompactTweet tweet) {
+        long createdAt = createdAt(tweet);
+        min = Math.min(min, createdAt);
+        max = Math.max(max, createdAt);
+        records++;
+        if (tweet.geo) {
+          geo++;
+        }
+        if (tweet.verified) {
+          verified++;
+        }
+        langs.add(tweet.lang == null ? "" : tweet.lang);
+      }
+
+      void save(int member) {
+        if (stats != null) {
+          if (records == 0) {
+            min = max = 0;
+          }
+          stats.update(member, min, max, records, geo, verified, langs.toArray(new String[langs.size()]));
+        }
+        min = Long.MAX_VALUE;
+        max = Long.MIN_VALUE;
+        records = geo = verified = 0;
+        langs.clear();
+      }
+    }
+  }
+
+  /**
+   * When the status was created, from its id if the archive doesn't have it.
+   */
+  static long createdAt(CompactTweet tweet) {
+    return tweet.createdAtMillis != 0 ? tweet.createdAtMillis : TweetExtractor.snowflakeTimestamp(tweet.id);
+  }
+
+  private static String hour(long millis) {
+    SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH", Locale.ROOT);
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    return format.format(millis);
+  }
+
+  /**
+   * Parses epoch millis or a UTC time like 2012-12-21, 2012-12-21T18 or 2012-12-21T18:30.
+   */
+  public static long parseTime(String time) {
+    if (time.matches("[0-9]+")) {
+      return Long.parseLong(time);
+    }
+    for (String pattern : new String[]{"yyyy-MM-dd'T'HH:mm:ss", "yyyy-MM-dd'T'HH:mm", "yyyy-MM-dd'T'HH", "yyyy-MM-dd"}) {
+      SimpleDateFormat format = new SimpleDateFormat(pattern, Locale.ROOT);
+      format.setTimeZone(TimeZone.getTimeZone("UTC"));
+      format.setLenient(false);
+      ParsePosition position = new ParsePosition(0);
+      Date date = format.parse(time, position);
+      if (date != null && position.getIndex() == time.length()) {
+        return date.getTime();
+      }
+    }
+    throw new IllegalArgumentException("Can't parse time: " + time);
+  }
+
+  /**
+   * What a record has to satisfy, every condition that is set has to hold.
+   */
+  public static class Predicate {
+    // Created in [from, to)
+    long from = Long.MIN_VALUE;
+    long to = Long.MAX_VALUE;
+    String lang;
+    String hashtag;
+    long userId;
+    boolean geo;
+    boolean verified;
+
+    public Predicate from(long from) {
+      this.from = from;
+      return this;
+    }
+
+    public Predicate to(long to) {
+      this.to = to;
+      return this;
+    }
+
+    public Predicate lang(String lang) {
+      this.lang = lang;
+      return this;
+    }
+
+    public Predicate hashtag(String hashtag) {
+      this.hashtag = hashtag;
+      return this;
+    }
+
+    public Predicate userId(long userId) {
+      this.userId = userId;
+      return this;
+    }
+
+    public Predicate geo(boolean geo) {
+      this.geo = geo;
+      return this;
+    }
+
+    public Predicate verified(boolean verified) {
+      this.verified = verified;
+      return this;
+    }
+
+    boolean accept(CompactTweet tweet) {
+      long createdAt = createdAt(tweet);
+      if (createdAt < from || createdAt >= to) {
+        return false;
+      }
+      if (lang != null && !lang.equals(tweet.lang)) {
+        return false;
+      }
+      if (userId != 0 && tweet.userId != userId) {
+        return false;
+      }
+      if (geo && !tweet.geo) {
+        return false;
+      }
+      if (verified && !tweet.verified) {
+        return false;
+      }
+      if (hashtag != null) {
+        if (tweet.hashtags == null) {
+          return false;
+        }
+        for (String h : tweet.hashtags) {
+          if (hashtag.equalsIgnoreCase(h)) {
+            return true;
+          }
+        }
+        return false;
+      }
+      return true;
+    }
+
+    /**
+     * False if the statistics rule out any record in the member matching.
+     */
+    boolean mayMatch(ArchiveStats stats, int member) {
+      int records = stats.records(member);
+      if (records < 0) {
+        return true;
+      }
+      return records > 0
+              && stats.maxCreatedAt(member) >= from && stats.minCreatedAt(member) < to
+              && (lang == null || stats.hasLang(member, lang))
+              && (!geo || stats.geo(member) > 0)
+              && (!verified || stats.verified(member) > 0);
+    }
+  }
+}
@@ -0,0 +1,396 @@
+package twitterarchiver;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.yammer.metrics.core.Counter;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+import static com.yammer.metrics.Metrics.newCounter;
+import static java.util.regex.Pattern.quote;
+
+/**
+ * Repairs archives left behind by a process that died while writing them. StreamProvider
+ * keeps a .ckpt manifest next to every open archive and appends the file length and
+ * record offset to it each time everything written so far has been synced, at a record
+ * boundary; a cleanly closed archive has its manifest deleted. An archive that still
+ * has one is cut back to its last complete record: everything up to the last
+ * checkpoint is trusted, and past it gzip members, or columnar blocks, are only kept if
+ * they are whole and check out. A block gzipped archive then gets the EOF member and
+ * .gzi and .idx sidecars it would have had. A zstd archive is cut back to the last
+ * checkpoint itself, its frames can't be checked without the dictionary. A streaming
+ * upload that already sent parts of what was cut is set aside for MultipartUploader to
+ * abort. A recovered segment is then listed in its hour's SegmentManifest as it would
+ * have been when closed. Runs before the uploaders can see the file.
+ */
+public class ArchiveRecovery {
+  private static final Logger log = Logger.getLogger("ArchiveRecovery");
+  private static final Counter recovered = newCounter(ArchiveRecovery.class, "recovered_files");
+  private static final Counter lostBytes = newCounter(ArchiveRecovery.class, "lost_bytes");
+
+  /**
+   * Recovers every archive named prefix, a timestamp and suffix that still has a
+   * checkpoint manifest, listing each in its hour's SegmentManifest if they are segments.
+   */
+  public static void recoverAll(String prefix, String suffix, boolean segmented) {
+    // The prefix can hold a directory as well as the start of the names
+    int slash = prefix.lastIndexOf(File.separatorChar);
+    File dir = new File(slash < 0 ? "." : prefix.substring(0, slash + 1));
+    final Pattern archives = Pattern.compile(quote(prefix.substring(slash + 1)) + "([0-9]+)" + quote(suffix));
+    File[] list = dir.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return archives.matcher(name).matches() && new File(dir, name + ".ckpt").exists();
+      }
+    });
+    if (list == null) {
+      return;
+    }
+    Arrays.sort(list);
+    for (File archive : list) {
+      try {
+        recover(archive);
+        if (segmented) {
+          Matcher matcher = archives.matcher(archive.getName());
+          matcher.matches();
+          long hour = Long.parseLong(matcher.group(1)) / 3600000 * 3600000l;
+          SegmentManifest.append(SegmentManifest.fileFor(prefix, hour, suffix), prefix + matcher.group(1) + suffix,
+                  records(archive), archive.length());
+        }
+      } catch (IOException e) {
+        log.severe("Could not recover " + archive + ": " + e);
+      }
+    }
+  }
+
+  /**
+   * The records StreamProvider appended that an archive still holds: lines of JSON, or
+   * blocks of a columnar file. -1 for a zstd archive whose dictionary is missing.
+   */
+  static long records(File archive) throws IOException {
+    String name = archive.getName();
+    if (archive.length() == 0) {
+      return 0;
+    }
+    if (name.endsWith(".gz") || name.endsWith(".zst")) {
+      InputStream is;
+      try {
+        is = name.endsWith(".gz") ? new GZIPInputStream(new FileInputStream(archive), 65536) : ZstdCodec.open(archive);
+      } catch (IOException e) {
+        log.warning("Could not count the records of " + archive + ": " + e);
+        return -1;
+      }
+      long records = 0;
+      try {
+        byte[] buffer = new byte[65536];
+        int n;
+        while ((n = is.read(buffer)) != -1) {
+          for (int i = 0; i < n; i++) {
+            if (buffer[i] == '\n') {
+              records++;
+            }
+          }
+        }
+      } finally {
+        is.close();
+      }
+      return records;
+    }
+    long blocks = 0;
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(archive), 65536))) {
+      if (ColumnarFormat.readHeader(in)) {
+        EnumSet<ColumnarFormat.Column> none = EnumSet.noneOf(ColumnarFormat.Column.class);
+        while (ColumnarBlock.read(in, none) != null) {
+          blocks++;
+        }
+      }
+    }
+    return blocks;
+  }
+
+  /**
+   * Cuts the archive back to its last complete record and finishes it, returning how
+   * many bytes of the file had to be dropped.
+   */
+  public static long recover(File archive) throws IOException {
+    File manifest = checkpointFile(archive);
+    long length = archive.length();
+    long checkpoint = lastCheckpoint(manifest, length);
+    boolean gzip = archive.getName().endsWith(".gz");
+    Members members = gzip ? salvageGzip(archive, checkpoint) : null;
+    long good;
+    if (gzip) {
+      good = members.good;
+    } else if (archive.getName().endsWith(".zst")) {
+      good = Math.max(checkpoint, zstdHeaderLength(archive));
+    } else {
+      good = salvageColumnar(archive, checkpoint);
+    }
+    try (RandomAccessFile raf = new RandomAccessFile(archive, "rw")) {
+      raf.setLength(good);
+      if (gzip) {
+        raf.seek(good);
+        raf.write(ParallelGzipOutputStream.EOF);
+      }
+    }
+    if (gzip) {
+      File gzi = new File(archive.getPath() + ".gzi");
+      BlockGzipIndex.write(gzi, members.compressed, members.uncompressed, members.entries);
+      index(archive, BlockGzipIndex.read(gzi));
+    }
+    File upload = new File(archive.getPath() + ".mpu");
+    MultipartUploader.State state = MultipartUploader.State.load(upload);
+    if (state != null && !state.etags.isEmpty() && state.etags.lastKey() * MultipartUploader.PART_SIZE > good) {
+      // Parts already sent hold bytes that are gone now, the uploader aborts the upload and starts again
+      if (!upload.renameTo(new File(archive.getPath() + ".mpu.abort"))) {
+        throw new IOException("Could not set aside " + upload);
+      }
+    }
+    manifest.delete();
+    long lost = length - good;
+    recovered.inc();
+    lostBytes.inc(lost);
+    log.warning("Recovered " + archive + ": kept " + good + " bytes up to the last complete record, lost " + lost
+            + " bytes past it, last checkpoint at " + checkpoint);
+    return lost;
+  }
+
+  static File checkpointFile(File archive) {
+    return new File(archive.getPath() + ".ckpt");
+  }
+
+  // The file length at the last checkpoint that made it to disk, a torn last entry is ignored
+  private static long lastCheckpoint(File manifest, long length) throws IOException {
+    long checkpoint = 0;
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(manifest)))) {
+      while (true) {
+        long bytes = in.readLong();
+        in.readLong();
+        if (bytes <= length) {
+          checkpoint = bytes;
+        }
+      }
+    } catch (EOFException e) {
+      return checkpoint;
+    }
+  }
+
+  // Where every member after the first starts and where the last complete record ends
+  private static class Members {
+    long[] compressed = new long[64];
+    long[] uncompressed = new long[64];
+    int entries;
+    long good;
+    int goodEntries;
+
+    void add(long compressedOffset, long uncompressedOffset) {
+      if (entries == compressed.length) {
+        compressed = Arrays.copyOf(compressed, entries * 2);
+        uncompressed = Arrays.copyOf(uncompressed, entries * 2);
+      }
+      compressed[entries] = compressedOffset;
+      uncompressed[entries] = uncompressedOffset;
+      entries++;
+    }
+  }
+
+  /**
+   * Walks the members by the sizes in their BC fields. Members up to the checkpoint are
+   * taken as they are, later ones are inflated and kept while they are intact and the
+   * data so far ends with a whole record.
+   */
+  private static Members salvageGzip(File archive, long checkpoint) throws IOException {
+    Members members = new Members();
+    try (RandomAccessFile raf = new RandomAccessFile(archive, "r")) {
+      long length = raf.length();
+      long offset = 0;
+      long uncompressed = 0;
+      byte[] header = new byte[18];
+      while (offset + header.length <= length) {
+        raf.seek(offset);
+        raf.readFully(header);
+        if (header[0] != 0x1f || header[1] != (byte) 0x8b || header[3] != 4 || header[12] != 'B' || header[13] != 'C') {
+          break;
+        }
+        int size = ((header[16] & 0xff) | (header[17] & 0xff) << 8) + 1;
+        if (offset + size > length) {
+          break;
+        }
+        byte[] member = new byte[size];
+        raf.seek(offset);
+        raf.readFully(member);
+        int isize = getInt(member, size - 4);
+        if (isize == 0) {
+          // The EOF member, written just before the process died
+          break;
+        }
+        boolean whole = true;
+        if (offset + size > checkpoint) {
+          byte[] data = inflate(member, isize);
+          if (data == null) {
+            break;
+          }
+          whole = data[isize - 1] == '\n';
+        }
+        if (offset > 0) {
+          members.add(offset, uncompressed);
+        }
+        offset += size;
+        uncompressed += isize;
+        if (whole) {
+          members.good = offset;
+          members.goodEntries = members.entries;
+        }
+      }
+    }
+    members.entries = members.goodEntries;
+    return members;
+  }
+
+  // The member's data if it inflates to the length and CRC in its trailer, otherwise null
+  private static byte[] inflate(byte[] member, int isize) {
+    Inflater inflater = new Inflater(true);
+    try {
+      inflater.setInput(member, 18, member.length - 18 - 8);
+      byte[] data = new byte[isize];
+      int read = 0;
+      while (read < isize && !inflater.finished()) {
+        int n = inflater.inflate(data, read, isize - read);
+        if (n == 0 && inflater.needsInput()) {
+          return null;
+        }
+        read += n;
+      }
+      CRC32 crc = new CRC32();
+      crc.update(data, 0, read);
+      return read == isize && (int) crc.getValue() == getInt(member, member.length - 8) ? data : null;
+    } catch (DataFormatException e) {
+      return null;
+    } finally {
+      inflater.end();
+    }
+  }
+
+  private static int getInt(byte[] b, int offset) {
+    return (b[offset] & 0xff) | (b[offset + 1] & 0xff) << 8 | (b[offset + 2] & 0xff) << 16 | (b[offset + 3] & 0xff) << 24;
+  }
+
+  // The skippable frame naming the dictionary, if it made it to disk whole
+  private static long zstdHeaderLength(File archive) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(archive, "r")) {
+      if (raf.length() < 8) {
+        return 0;
+      }
+      byte[] prefix = new byte[8];
+      raf.readFully(prefix);
+      if (getInt(prefix, 0) != ZstdCodec.SKIPPABLE_MAGIC) {
+        return 0;
+      }
+      long length = 8 + (getInt(prefix, 4) & 0xffffffffL);
+      return length <= raf.length() ? length : 0;
+    }
+  }
+
+  /**
+   * Reads whole blocks past the checkpoint, returning where the last one ends.
+   */
+  private static long salvageColumnar(File archive, long checkpoint) throws IOException {
+    FileInputStream fis = new FileInputStream(archive);
+    fis.getChannel().position(checkpoint);
+    CountingInputStream counter = new CountingInputStream(new BufferedInputStream(fis, 65536));
+    long good = checkpoint;
+    try (DataInputStream in = new DataInputStream(counter)) {
+      if (checkpoint == 0) {
+        if (!ColumnarFormat.readHeader(in)) {
+          return 0;
+        }
+        good = counter.count;
+      }
+      EnumSet<ColumnarFormat.Column> columns = EnumSet.allOf(ColumnarFormat.Column.class);
+      while (ColumnarBlock.read(in, columns) != null) {
+        good = checkpoint + counter.count;
+      }
+    } catch (IOException | RuntimeException e) {
+      // A block cut short, or garbage where the next one should be
+    }
+    return good;
+  }
+
+  /**
+   * Rebuilds the point lookup index, which is only written when an archive is closed.
+   */
+  private static void index(File archive, BlockGzipIndex gzi) throws IOException {
+    JsonFactory jf = new JsonFactory();
+    ArchiveIndex.Builder builder = new ArchiveIndex.Builder();
+    try (InputStream is = new GZIPInputStream(new FileInputStream(archive), 65536)) {
+      ArchiveIndex.LineReader lines = new ArchiveIndex.LineReader(is);
+      long position = 0;
+      byte[] line;
+      while ((line = lines.next()) != null) {
+        try (JsonParser parser = jf.createJsonParser(line)) {
+          CompactTweet tweet = TweetSerializer.readJson(parser);
+          if (tweet != null && tweet.isStatus()) {
+            builder.add(tweet, position);
+          }
+        } catch (IOException e) {
+          // Not a record we wrote
+        }
+        position += line.length + 1;
+      }
+    }
+    if (!builder.isEmpty()) {
+      builder.write(new File(archive.getPath() + ".idx"), gzi);
+    }
+  }
+
+  private static class CountingInputStream extends FilterInputStream {
+    long count;
+
+    CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b != -1) {
+        count++;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, len);
+      if (n > 0) {
+        count += n;
+      }
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = super.skip(n);
+      count += skipped;
+      return skipped;
+    }
+  }
+}
@@ -0,0 +1,177 @@
+package twitterarchiver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Per member statistics of a finished archive, gathered by ArchiveQuery as it scans
+ * members and kept next to the archive as a .stats sidecar so later queries can skip
+ * members without decompressing them. Members that have never been scanned are
+ * unknown and always have to be read:
+ * <pre>
+ * file    := "TSTA" version:byte langs members
+ * langs   := count:varint (length:varint utf8)*
+ * members := count:varint (records+1:varint [minCreatedAt:zigzag createdAtRange:varint
+ *            geo:varint verified:varint langCount:varint lang:varint*])*
+ * </pre>
+ */
+public class ArchiveStats {
+  static final byte[] MAGIC = {'T', 'S', 'T', 'A'};
+  static final int VERSION = 1;
+
+  private final long[] minCreatedAt;
+  private final long[] maxCreatedAt;
+  // -1 until the member has been scanned
+  private final int[] records;
+  private final int[] geo;
+  private final int[] verified;
+  private final String[][] langs;
+  private volatile boolean changed;
+
+  ArchiveStats(int members) {
+    minCreatedAt = new long[members];
+    maxCreatedAt = new long[members];
+    records = new int[members];
+    geo = new int[members];
+    verified = new int[members];
+    langs = new String[members][];
+    Arrays.fill(records, -1);
+  }
+
+  public static ArchiveStats read(File file) throws IOException {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536))) {
+      byte[] magic = new byte[MAGIC.length];
+      in.readFully(magic);
+      if (!Arrays.equals(magic, MAGIC)) {
+        throw new IOException("Not archive statistics: " + file);
+      }
+      int version = in.read();
+      if (version != VERSION) {
+        throw new IOException("Unsupported archive statistics version: " + version);
+      }
+      String[] dictionary = new String[(int) ColumnarFormat.readVarint(in)];
+      for (int i = 0; i < dictionary.length; i++) {
+        byte[] bytes = new byte[(int) ColumnarFormat.readVarint(in)];
+        in.readFully(bytes);
+        dictionary[i] = new String(bytes, StandardCharsets.UTF_8);
+      }
+      ArchiveStats stats = new ArchiveStats((int) ColumnarFormat.readVarint(in));
+      for (int i = 0; i < stats.records.length; i++) {
+        stats.records[i] = (int) ColumnarFormat.readVarint(in) - 1;
+        if (stats.records[i] >= 0) {
+          stats.minCreatedAt[i] = ColumnarFormat.unzigzag(ColumnarFormat.readVarint(in));
+          stats.maxCreatedAt[i] = stats.minCreatedAt[i] + ColumnarFormat.readVarint(in);
+          stats.geo[i] = (int) ColumnarFormat.readVarint(in);
+          stats.verified[i] = (int) ColumnarFormat.readVarint(in);
+          String[] langs = new String[(int) ColumnarFormat.readVarint(in)];
+          for (int j = 0; j < langs.length; j++) {
+            langs[j] = dictionary[(int) ColumnarFormat.readVarint(in)];
+          }
+          stats.langs[i] = langs;
+        }
+      }
+      return stats;
+    }
+  }
+
+  public void write(File file) throws IOException {
+    Map<String, Integer> ids = new HashMap<>();
+    ByteArrayOutputStream dictionary = new ByteArrayOutputStream();
+    ByteArrayOutputStream body = new ByteArrayOutputStream(4096);
+    ColumnarFormat.writeVarint(body, records.length);
+    for (int i = 0; i < records.length; i++) {
+      ColumnarFormat.writeVarint(body, records[i] + 1);
+      if (records[i] >= 0) {
+        ColumnarFormat.writeVarint(body, ColumnarFormat.zigzag(minCreatedAt[i]));
+        ColumnarFormat.writeVarint(body, maxCreatedAt[i] - minCreatedAt[i]);
+        ColumnarFormat.writeVarint(body, geo[i]);
+        ColumnarFormat.writeVarint(body, verified[i]);
+        ColumnarFormat.writeVarint(body, langs[i].length);
+        for (String lang : langs[i]) {
+          Integer id = ids.get(lang);
+          if (id == null) {
+            ids.put(lang, id = ids.size());
+            byte[] bytes = lang.getBytes(StandardCharsets.UTF_8);
+            ColumnarFormat.writeVarint(dictionary, bytes.length);
+            dictionary.write(bytes);
+          }
+          ColumnarFormat.writeVarint(body, id);
+        }
+      }
+    }
+    File temp = new File(file.getPath() + ".tmp");
+    try (OutputStream out = new BufferedOutputStream(new FileOutputStream(temp), 65536)) {
+      out.write(MAGIC);
+      out.write(VERSION);
+      ColumnarFormat.writeVarint(out, ids.size());
+      dictionary.writeTo(out);
+      body.writeTo(out);
+    }
+    if (!temp.renameTo(file)) {
+      temp.delete();
+      throw new IOException("Could not write " + file);
+    }
+    changed = false;
+  }
+
+  public int members() {
+    return records.length;
+  }
+
+  /**
+   * Records that start in the member, or -1 if it hasn't been scanned.
+   */
+  public int records(int member) {
+    return records[member];
+  }
+
+  public long minCreatedAt(int member) {
+    return minCreatedAt[member];
+  }
+
+  public long maxCreatedAt(int member) {
+    return maxCreatedAt[member];
+  }
+
+  public int geo(int member) {
+    return geo[member];
+  }
+
+  public int verified(int member) {
+    return verified[member];
+  }
+
+  public boolean hasLang(int member, String lang) {
+    return Arrays.binarySearch(langs[member], lang == null ? "" : lang) >= 0;
+  }
+
+  /**
+   * Records what a scan found in a member. Different members may be updated from
+   * different threads as long as the stats are only written once they are done.
+   */
+  void update(int member, long minCreatedAt, long maxCreatedAt, int records, int geo, int verified, String[] langs) {
+    this.minCreatedAt[member] = minCreatedAt;
+    this.maxCreatedAt[member] = maxCreatedAt;
+    this.records[member] = records;
+    this.geo[member] = geo;
+    this.verified[member] = verified;
+    Arrays.sort(langs);
+    this.langs[member] = langs;
+    changed = true;
+  }
+
+  public boolean isChanged() {
+    return changed;
+  }
+}
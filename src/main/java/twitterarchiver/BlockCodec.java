@@ -0,0 +1,44 @@
+package twitterarchiver;
+
+/**
+ * How ParallelGzipOutputStream turns each block of records into a member that can be
+ * decompressed on its own. Members are written one after the other between an
+ * optional header and trailer, so the file as a whole reads as one stream in the
+ * codec's own format.
+ */
+public interface BlockCodec {
+  /**
+   * Gzip members with the BGZF extra field and end of file marker, see ParallelGzipOutputStream.
+   */
+  BlockCodec GZIP = new BlockCodec() {
+    @Override
+    public byte[] header() {
+      return new byte[0];
+    }
+
+    @Override
+    public byte[] compress(byte[] data) {
+      return ParallelGzipOutputStream.compress(data).bytes;
+    }
+
+    @Override
+    public byte[] trailer() {
+      return ParallelGzipOutputStream.EOF;
+    }
+  };
+
+  /**
+   * Written once at the start of every file.
+   */
+  byte[] header();
+
+  /**
+   * Called from any number of threads at once.
+   */
+  byte[] compress(byte[] data);
+
+  /**
+   * Written once when the file is closed.
+   */
+  byte[] trailer();
+}
@@ -0,0 +1,146 @@
+package twitterarchiver;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The member table ParallelGzipOutputStream writes next to an archive, the same layout
+ * as bgzip's .gzi: a little endian count followed by (compressed, uncompressed) offset
+ * pairs for every member after the first. Lets a reader start decompressing at the
+ * member holding an uncompressed offset or hand out member aligned ranges of a file.
+ */
+public class BlockGzipIndex {
+  private final long[] compressed;
+  private final long[] uncompressed;
+
+  private BlockGzipIndex(long[] compressed, long[] uncompressed) {
+    this.compressed = compressed;
+    this.uncompressed = uncompressed;
+  }
+
+  public static BlockGzipIndex read(File gzi) throws IOException {
+    try (DataInputStream dis = new DataInputStream(new FileInputStream(gzi))) {
+      int entries = (int) Long.reverseBytes(dis.readLong());
+      // The first member always starts at zero in both coordinates
+      long[] compressed = new long[entries + 1];
+      long[] uncompressed = new long[entries + 1];
+      for (int i = 1; i <= entries; i++) {
+        compressed[i] = Long.reverseBytes(dis.readLong());
+        uncompressed[i] = Long.reverseBytes(dis.readLong());
+      }
+      return new BlockGzipIndex(compressed, uncompressed);
+    }
+  }
+
+  /**
+   * Writes the start of every member after the first, in both coordinates.
+   */
+  static void write(File gzi, long[] compressed, long[] uncompressed, int entries) throws IOException {
+    try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(gzi)))) {
+      dos.writeLong(Long.reverseBytes(entries));
+      for (int i = 0; i < entries; i++) {
+        dos.writeLong(Long.reverseBytes(compressed[i]));
+        dos.writeLong(Long.reverseBytes(uncompressed[i]));
+      }
+    }
+  }
+
+  /**
+   * A single member covering the whole of a gzip file that has no .gzi.
+   */
+  static BlockGzipIndex whole() {
+    return new BlockGzipIndex(new long[1], new long[1]);
+  }
+
+  public int members() {
+    return compressed.length;
+  }
+
+  public long compressedOffset(int member) {
+    return compressed[member];
+  }
+
+  public long uncompressedOffset(int member) {
+    return uncompressed[member];
+  }
+
+  /**
+   * The member that holds the given uncompressed offset.
+   */
+  public int memberFor(long uncompressedOffset) {
+    int i = Arrays.binarySearch(uncompressed, uncompressedOffset);
+    return i >= 0 ? i : -i - 2;
+  }
+
+  /**
+   * Decompresses members [from, to) of the file, to may be members() to read to the end.
+   * Members written by ParallelGzipOutputStream start on a line boundary unless a
+   * single line was longer than a block.
+   */
+  public InputStream open(File file, int from, int to) throws IOException {
+    FileInputStream fis = new FileInputStream(file);
+    try {
+      long start = compressed[from];
+      long end = to < compressed.length ? compressed[to] : file.length();
+      fis.getChannel().position(start);
+      return new GZIPInputStream(new BoundedInputStream(fis, end - start), 65536);
+    } catch (IOException e) {
+      fis.close();
+      throw e;
+    }
+  }
+
+  private static class BoundedInputStream extends FilterInputStream {
+    private long remaining;
+
+    BoundedInputStream(InputStream in, long remaining) {
+      super(in);
+      this.remaining = remaining;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (remaining <= 0) {
+        return -1;
+      }
+      int b = super.read();
+      if (b != -1) {
+        remaining--;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (remaining <= 0) {
+        return -1;
+      }
+      int n = super.read(b, off, (int) Math.min(len, remaining));
+      if (n > 0) {
+        remaining -= n;
+      }
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = super.skip(Math.min(n, remaining));
+      remaining -= skipped;
+      return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return (int) Math.min(super.available(), remaining);
+    }
+  }
+}
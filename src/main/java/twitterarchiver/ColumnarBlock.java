@@ -0,0 +1,379 @@
+package twitterarchiver;
+
+import twitterarchiver.ColumnarFormat.Column;
+import twitterarchiver.ColumnarFormat.Decoder;
+import twitterarchiver.ColumnarFormat.Encoder;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * One block of the columnar archive. When read back only the requested columns
+ * are decoded, the arrays for the others stay null. Absent ids are stored as 0.
+ */
+public class ColumnarBlock {
+  public int size;
+  public String[] text;
+  public long[] id;
+  public long[] userId;
+  public long[] createdAt;
+  public long[] inReplyToId;
+  public long[] retweetedId;
+  public long[][] mentions;
+  public String[][] hashtags;
+  public String[][] urls;
+  public String[][] media;
+  public boolean[] geo;
+  public double[] longitude;
+  public double[] latitude;
+  public boolean[] verified;
+  public long[] followers;
+  public long[] friends;
+  public long[] favourites;
+  public long[] statuses;
+  public long[] listed;
+  public String[] lang;
+
+  private static final String[] NONE = new String[0];
+
+  /**
+   * Encodes a run of statuses as one block.
+   */
+  static void write(OutputStream out, List<CompactTweet> tweets) throws IOException {
+    Encoder raw = new Encoder();
+    Encoder scratch = new Encoder();
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    try {
+      ColumnarFormat.writeVarint(out, tweets.size());
+      ColumnarFormat.writeVarint(out, Column.values().length);
+      for (Column column : Column.values()) {
+        raw.length = 0;
+        encode(column, tweets, raw);
+        ColumnarFormat.writeColumn(out, column, raw, deflater, scratch);
+      }
+    } finally {
+      deflater.end();
+    }
+  }
+
+  private static void encode(Column column, List<CompactTweet> tweets, Encoder e) {
+    long previous = 0;
+    switch (column) {
+      case TEXT:
+        for (CompactTweet t : tweets) {
+          e.writeString(t.text);
+        }
+        break;
+      case ID:
+        for (CompactTweet t : tweets) {
+          e.writeVarint(ColumnarFormat.zigzag(t.id - previous));
+          previous = t.id;
+        }
+        break;
+      case USER_ID:
+        for (CompactTweet t : tweets) {
+          e.writeVarint(t.userId);
+        }
+        break;
+      case CREATED_AT:
+        // Relative to the time in the status id, which it almost always matches to the second
+        for (CompactTweet t : tweets) {
+          long createdAt = TweetExtractor.parseCreatedAt(t.createdAt);
+          e.writeVarint(createdAt == 0 ? 0 : 1 + ColumnarFormat.zigzag(createdAt - TweetExtractor.snowflakeTimestamp(t.id)));
+        }
+        break;
+      case IN_REPLY_TO_ID:
+        for (CompactTweet t : tweets) {
+          e.writeVarint(t.inReplyToStatusId == 0 ? 0 : 1 + ColumnarFormat.zigzag(t.id - t.inReplyToStatusId));
+        }
+        break;
+      case RETWEETED_ID:
+        for (CompactTweet t : tweets) {
+          e.writeVarint(t.retweet ? 1 + ColumnarFormat.zigzag(t.id - t.retweetedId) : 0);
+        }
+        break;
+      case USER_MENTION_IDS:
+        for (CompactTweet t : tweets) {
+          long[] ids = t.mentions == null ? new long[0] : t.mentions;
+          e.writeVarint(ids.length);
+          for (long id : ids) {
+            e.writeVarint(id);
+          }
+        }
+        break;
+      case HASHTAGS:
+        encodeDictionary(e, tweets, 0);
+        break;
+      case URLS:
+        encodeDictionary(e, tweets, 1);
+        break;
+      case MEDIA:
+        encodeDictionary(e, tweets, 2);
+        break;
+      case GEO:
+        for (CompactTweet t : tweets) {
+          if (t.geo && t.coordinates != null) {
+            e.writeByte(1);
+            e.writeDouble(t.coordinates[0]);
+            e.writeDouble(t.coordinates[1]);
+          } else {
+            e.writeByte(0);
+          }
+        }
+        break;
+      case VERIFIED:
+        encodeBits(e, tweets);
+        break;
+      case FOLLOWERS_FRIENDS_FAVS_STATUSES_LISTED:
+        for (CompactTweet t : tweets) {
+          e.writeVarint(t.followers);
+        }
+        for (CompactTweet t : tweets) {
+          e.writeVarint(t.friends);
+        }
+        for (CompactTweet t : tweets) {
+          e.writeVarint(t.favourites);
+        }
+        for (CompactTweet t : tweets) {
+          e.writeVarint(t.statuses);
+        }
+        for (CompactTweet t : tweets) {
+          e.writeVarint(t.listed);
+        }
+        break;
+      case LANG:
+        Map<String, Integer> dictionary = new HashMap<>();
+        List<String> values = new ArrayList<>();
+        for (CompactTweet t : tweets) {
+          if (t.lang != null && !dictionary.containsKey(t.lang)) {
+            dictionary.put(t.lang, values.size());
+            values.add(t.lang);
+          }
+        }
+        writeDictionary(e, values);
+        for (CompactTweet t : tweets) {
+          e.writeVarint(t.lang == null ? 0 : dictionary.get(t.lang) + 1);
+        }
+        break;
+    }
+  }
+
+  private static String[] strings(CompactTweet t, int which) {
+    String[] values = which == 0 ? t.hashtags : which == 1 ? t.urls : t.media;
+    return values == null ? NONE : values;
+  }
+
+  private static void encodeDictionary(Encoder e, List<CompactTweet> tweets, int which) {
+    Map<String, Integer> dictionary = new HashMap<>();
+    List<String> values = new ArrayList<>();
+    for (CompactTweet t : tweets) {
+      for (String value : strings(t, which)) {
+        if (value != null && !dictionary.containsKey(value)) {
+          dictionary.put(value, values.size());
+          values.add(value);
+        }
+      }
+    }
+    writeDictionary(e, values);
+    for (CompactTweet t : tweets) {
+      String[] strings = strings(t, which);
+      e.writeVarint(strings.length);
+      for (String value : strings) {
+        e.writeVarint(value == null ? 0 : dictionary.get(value) + 1);
+      }
+    }
+  }
+
+  private static void writeDictionary(Encoder e, List<String> values) {
+    e.writeVarint(values.size());
+    for (String value : values) {
+      e.writeString(value);
+    }
+  }
+
+  private static void encodeBits(Encoder e, List<CompactTweet> tweets) {
+    int bits = 0;
+    int count = 0;
+    for (CompactTweet t : tweets) {
+      if (t.verified) {
+        bits |= 1 << count;
+      }
+      if (++count == 8) {
+        e.writeByte(bits);
+        bits = 0;
+        count = 0;
+      }
+    }
+    if (count > 0) {
+      e.writeByte(bits);
+    }
+  }
+
+  /**
+   * Reads the next block decoding only the given columns, or returns null at the end of the file.
+   */
+  static ColumnarBlock read(DataInputStream in, Set<Column> columns) throws IOException {
+    int first = in.read();
+    if (first == -1) {
+      return null;
+    }
+    ColumnarBlock block = new ColumnarBlock();
+    // The first byte of the record count varint has already been consumed
+    long size = first & 0x7F;
+    if ((first & 0x80) != 0) {
+      size |= ColumnarFormat.readVarint(in) << 7;
+    }
+    block.size = (int) size;
+    int count = (int) ColumnarFormat.readVarint(in);
+    for (int i = 0; i < count; i++) {
+      Column column = Column.forId(in.readUnsignedByte());
+      int rawLength = (int) ColumnarFormat.readVarint(in);
+      int length = (int) ColumnarFormat.readVarint(in);
+      if (column == null || !columns.contains(column)) {
+        while (length > 0) {
+          length -= in.skipBytes(length);
+        }
+      } else {
+        block.decode(column, ColumnarFormat.readColumn(in, rawLength, length));
+      }
+    }
+    return block;
+  }
+
+  private void decode(Column column, Decoder d) {
+    int n = size;
+    switch (column) {
+      case TEXT:
+        text = new String[n];
+        for (int i = 0; i < n; i++) {
+          text[i] = d.readString();
+        }
+        break;
+      case ID:
+        id = new long[n];
+        long previous = 0;
+        for (int i = 0; i < n; i++) {
+          previous = id[i] = previous + ColumnarFormat.unzigzag(d.readVarint());
+        }
+        break;
+      case USER_ID:
+        userId = readLongs(d, n);
+        break;
+      case CREATED_AT:
+        // Stored relative to the status id, so only usable alongside it
+        createdAt = readLongs(d, n);
+        break;
+      case IN_REPLY_TO_ID:
+        inReplyToId = readLongs(d, n);
+        break;
+      case RETWEETED_ID:
+        retweetedId = readLongs(d, n);
+        break;
+      case USER_MENTION_IDS:
+        mentions = new long[n][];
+        for (int i = 0; i < n; i++) {
+          mentions[i] = readLongs(d, (int) d.readVarint());
+        }
+        break;
+      case HASHTAGS:
+        hashtags = readDictionary(d, n);
+        break;
+      case URLS:
+        urls = readDictionary(d, n);
+        break;
+      case MEDIA:
+        media = readDictionary(d, n);
+        break;
+      case GEO:
+        geo = new boolean[n];
+        longitude = new double[n];
+        latitude = new double[n];
+        for (int i = 0; i < n; i++) {
+          if (d.readByte() == 1) {
+            geo[i] = true;
+            longitude[i] = d.readDouble();
+            latitude[i] = d.readDouble();
+          }
+        }
+        break;
+      case VERIFIED:
+        verified = new boolean[n];
+        int bits = 0;
+        for (int i = 0; i < n; i++) {
+          if (i % 8 == 0) {
+            bits = d.readByte();
+          }
+          verified[i] = (bits & (1 << (i % 8))) != 0;
+        }
+        break;
+      case FOLLOWERS_FRIENDS_FAVS_STATUSES_LISTED:
+        followers = readLongs(d, n);
+        friends = readLongs(d, n);
+        favourites = readLongs(d, n);
+        statuses = readLongs(d, n);
+        listed = readLongs(d, n);
+        break;
+      case LANG:
+        String[] dictionary = readStrings(d);
+        lang = new String[n];
+        for (int i = 0; i < n; i++) {
+          int index = (int) d.readVarint();
+          lang[i] = index == 0 ? null : dictionary[index - 1];
+        }
+        break;
+    }
+  }
+
+  /**
+   * Turns the relative encodings into absolute values once all the columns are read.
+   */
+  void resolve() {
+    for (int i = 0; i < size && id != null; i++) {
+      if (createdAt != null && createdAt[i] != 0) {
+        createdAt[i] = TweetExtractor.snowflakeTimestamp(id[i]) + ColumnarFormat.unzigzag(createdAt[i] - 1);
+      }
+      if (inReplyToId != null && inReplyToId[i] != 0) {
+        inReplyToId[i] = id[i] - ColumnarFormat.unzigzag(inReplyToId[i] - 1);
+      }
+      if (retweetedId != null && retweetedId[i] != 0) {
+        retweetedId[i] = id[i] - ColumnarFormat.unzigzag(retweetedId[i] - 1);
+      }
+    }
+  }
+
+  private static long[] readLongs(Decoder d, int n) {
+    long[] values = new long[n];
+    for (int i = 0; i < n; i++) {
+      values[i] = d.readVarint();
+    }
+    return values;
+  }
+
+  private static String[] readStrings(Decoder d) {
+    String[] values = new String[(int) d.readVarint()];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = d.readString();
+    }
+    return values;
+  }
+
+  private static String[][] readDictionary(Decoder d, int n) {
+    String[] dictionary = readStrings(d);
+    String[][] values = new String[n][];
+    for (int i = 0; i < n; i++) {
+      String[] record = values[i] = new String[(int) d.readVarint()];
+      for (int j = 0; j < record.length; j++) {
+        int index = (int) d.readVarint();
+        record[j] = index == 0 ? null : dictionary[index - 1];
+      }
+    }
+    return values;
+  }
+}
@@ -0,0 +1,231 @@
+package twitterarchiver;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A block columnar layout for the compact schema. A file is a header followed by
+ * blocks; each block holds a run of statuses with every column encoded and deflated
+ * separately so a reader can skip the columns it doesn't need without inflating them.
+ * <pre>
+ * file   := "TCOL" version:byte block*
+ * block  := records:varint columns:varint column*
+ * column := id:byte rawLength:varint length:varint deflated-bytes
+ * </pre>
+ * Ids and timestamps are delta/zigzag varints, lang, hashtags, urls and media are
+ * dictionary encoded per block and the five user counters are packed one after
+ * the other as varint arrays.
+ */
+public class ColumnarFormat {
+  static final byte[] MAGIC = {'T', 'C', 'O', 'L'};
+  static final int VERSION = 1;
+
+  public enum Column {
+    TEXT('t'), ID('i'), USER_ID('u'), CREATED_AT('c'), IN_REPLY_TO_ID('s'), RETWEETED_ID('r'),
+    USER_MENTION_IDS('m'), HASHTAGS('h'), URLS('l'), MEDIA('p'), GEO('g'), VERIFIED('v'),
+    FOLLOWERS_FRIENDS_FAVS_STATUSES_LISTED('z'), LANG('n');
+
+    final char id;
+
+    Column(char id) {
+      this.id = id;
+    }
+
+    static Column forId(int id) {
+      for (Column column : values()) {
+        if (column.id == id) {
+          return column;
+        }
+      }
+      return null;
+    }
+  }
+
+  static void writeHeader(OutputStream out) throws IOException {
+    out.write(MAGIC);
+    out.write(VERSION);
+  }
+
+  /**
+   * Returns false for an empty file, one that was rotated before its first block.
+   */
+  static boolean readHeader(DataInputStream in) throws IOException {
+    int first = in.read();
+    if (first == -1) {
+      return false;
+    }
+    byte[] magic = new byte[MAGIC.length];
+    magic[0] = (byte) first;
+    in.readFully(magic, 1, magic.length - 1);
+    if (!Arrays.equals(magic, MAGIC)) {
+      throw new IOException("Not a columnar archive");
+    }
+    int version = in.read();
+    if (version != VERSION) {
+      throw new IOException("Unsupported columnar version: " + version);
+    }
+    return true;
+  }
+
+  static void writeColumn(OutputStream out, Column column, Encoder raw, Deflater deflater, Encoder scratch) throws IOException {
+    deflater.reset();
+    deflater.setInput(raw.buffer, 0, raw.length);
+    deflater.finish();
+    scratch.length = 0;
+    while (!deflater.finished()) {
+      scratch.ensure(4096);
+      scratch.length += deflater.deflate(scratch.buffer, scratch.length, scratch.buffer.length - scratch.length);
+    }
+    out.write(column.id);
+    writeVarint(out, raw.length);
+    writeVarint(out, scratch.length);
+    out.write(scratch.buffer, 0, scratch.length);
+  }
+
+  static Decoder readColumn(DataInputStream in, int rawLength, int length) throws IOException {
+    byte[] deflated = new byte[length];
+    in.readFully(deflated);
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(deflated);
+      byte[] raw = new byte[rawLength];
+      int read = 0;
+      while (read < rawLength) {
+        int n = inflater.inflate(raw, read, rawLength - read);
+        if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+          throw new EOFException("Truncated column");
+        }
+        read += n;
+      }
+      return new Decoder(raw);
+    } catch (DataFormatException e) {
+      throw new IOException("Corrupt column", e);
+    } finally {
+      inflater.end();
+    }
+  }
+
+  static void writeVarint(OutputStream out, long value) throws IOException {
+    while ((value & ~0x7Fl) != 0) {
+      out.write((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    out.write((int) value);
+  }
+
+  static long readVarint(DataInputStream in) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      int b = in.read();
+      if (b == -1) {
+        throw new EOFException();
+      }
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed varint");
+  }
+
+  static long zigzag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  static long unzigzag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  /**
+   * Growable byte buffer that columns are encoded into before they are deflated.
+   */
+  static final class Encoder {
+    byte[] buffer = new byte[4096];
+    int length;
+
+    void ensure(int extra) {
+      if (length + extra > buffer.length) {
+        buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+      }
+    }
+
+    void writeByte(int b) {
+      ensure(1);
+      buffer[length++] = (byte) b;
+    }
+
+    void writeVarint(long value) {
+      ensure(10);
+      while ((value & ~0x7Fl) != 0) {
+        buffer[length++] = (byte) ((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      buffer[length++] = (byte) value;
+    }
+
+    void writeDouble(double value) {
+      long bits = Double.doubleToLongBits(value);
+      ensure(8);
+      for (int i = 56; i >= 0; i -= 8) {
+        buffer[length++] = (byte) (bits >>> i);
+      }
+    }
+
+    void writeString(String value) {
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      writeVarint(bytes.length);
+      ensure(bytes.length);
+      System.arraycopy(bytes, 0, buffer, length, bytes.length);
+      length += bytes.length;
+    }
+  }
+
+  /**
+   * Reads back what an Encoder wrote.
+   */
+  static final class Decoder {
+    private final byte[] buffer;
+    private int position;
+
+    Decoder(byte[] buffer) {
+      this.buffer = buffer;
+    }
+
+    int readByte() {
+      return buffer[position++] & 0xFF;
+    }
+
+    long readVarint() {
+      long value = 0;
+      for (int shift = 0; ; shift += 7) {
+        int b = buffer[position++];
+        value |= (long) (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+      }
+    }
+
+    double readDouble() {
+      long bits = 0;
+      for (int i = 0; i < 8; i++) {
+        bits = (bits << 8) | (buffer[position++] & 0xFF);
+      }
+      return Double.longBitsToDouble(bits);
+    }
+
+    String readString() {
+      int length = (int) readVarint();
+      String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+      position += length;
+      return value;
+    }
+  }
+}
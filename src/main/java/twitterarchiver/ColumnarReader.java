@@ -0,0 +1,125 @@
+package twitterarchiver;
+
+import twitterarchiver.ColumnarFormat.Column;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Reads a columnar archive block by block, decoding only the columns asked for.
+ */
+public class ColumnarReader implements Closeable {
+  private final DataInputStream in;
+  private final Set<Column> columns;
+  private final boolean empty;
+
+  public ColumnarReader(InputStream is, Set<Column> columns) throws IOException {
+    in = new DataInputStream(new BufferedInputStream(is, 65536));
+    empty = !ColumnarFormat.readHeader(in);
+    this.columns = EnumSet.copyOf(columns);
+    // These are stored relative to the status id
+    if (columns.contains(Column.CREATED_AT) || columns.contains(Column.IN_REPLY_TO_ID) || columns.contains(Column.RETWEETED_ID)) {
+      this.columns.add(Column.ID);
+    }
+  }
+
+  public ColumnarReader(File file, Set<Column> columns) throws IOException {
+    this(new FileInputStream(file), columns);
+  }
+
+  /**
+   * The next block, or null once the file is exhausted.
+   */
+  public ColumnarBlock next() throws IOException {
+    if (empty) {
+      return null;
+    }
+    ColumnarBlock block = ColumnarBlock.read(in, columns);
+    if (block != null) {
+      block.resolve();
+    }
+    return block;
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+
+  /**
+   * Dumps the given columns of an archive as tab separated values.
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2) {
+      System.err.println("Usage: ColumnarReader <file> <column ids, e.g. iun>");
+      System.exit(1);
+    }
+    Set<Column> columns = EnumSet.noneOf(Column.class);
+    for (char id : args[1].toCharArray()) {
+      Column column = Column.forId(id);
+      if (column == null) {
+        System.err.println("Unknown column: " + id);
+        System.exit(1);
+      }
+      columns.add(column);
+    }
+    try (ColumnarReader reader = new ColumnarReader(new File(args[0]), columns)) {
+      ColumnarBlock block;
+      StringBuilder sb = new StringBuilder();
+      while ((block = reader.next()) != null) {
+        for (int i = 0; i < block.size; i++) {
+          sb.setLength(0);
+          for (char id : args[1].toCharArray()) {
+            if (sb.length() > 0) {
+              sb.append('\t');
+            }
+            sb.append(value(block, Column.forId(id), i));
+          }
+          System.out.println(sb);
+        }
+      }
+    }
+  }
+
+  private static String value(ColumnarBlock b, Column column, int i) {
+    switch (column) {
+      case TEXT:
+        return b.text[i].replace('\n', ' ').replace('\t', ' ');
+      case ID:
+        return String.valueOf(b.id[i]);
+      case USER_ID:
+        return String.valueOf(b.userId[i]);
+      case CREATED_AT:
+        return String.valueOf(b.createdAt[i]);
+      case IN_REPLY_TO_ID:
+        return String.valueOf(b.inReplyToId[i]);
+      case RETWEETED_ID:
+        return String.valueOf(b.retweetedId[i]);
+      case USER_MENTION_IDS:
+        return Arrays.toString(b.mentions[i]);
+      case HASHTAGS:
+        return Arrays.toString(b.hashtags[i]);
+      case URLS:
+        return Arrays.toString(b.urls[i]);
+      case MEDIA:
+        return Arrays.toString(b.media[i]);
+      case GEO:
+        return b.geo[i] ? b.longitude[i] + "," + b.latitude[i] : "";
+      case VERIFIED:
+        return String.valueOf(b.verified[i]);
+      case FOLLOWERS_FRIENDS_FAVS_STATUSES_LISTED:
+        return b.followers[i] + "," + b.friends[i] + "," + b.favourites[i] + "," + b.statuses[i] + "," + b.listed[i];
+      case LANG:
+        return String.valueOf(b.lang[i]);
+    }
+    return "";
+  }
+}
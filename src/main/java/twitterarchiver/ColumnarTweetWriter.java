@@ -0,0 +1,77 @@
+package twitterarchiver;
+
+import com.yammer.metrics.core.Counter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.yammer.metrics.Metrics.newCounter;
+
+/**
+ * Archives statuses in the columnar block format. Statuses are buffered until a
+ * block is full or the hour rolls over, so a block never spans two files.
+ */
+public class ColumnarTweetWriter implements TwitterFeedListener, RotationListener {
+  private static final int BLOCK_SIZE = 8192;
+
+  private final StreamProvider streamProvider;
+  private final Counter blocks;
+  private final Counter dropped;
+  private List<CompactTweet> pending = new ArrayList<>(BLOCK_SIZE);
+
+  public ColumnarTweetWriter(StreamProvider streamProvider) {
+    this.streamProvider = streamProvider;
+    ByteArrayOutputStream header = new ByteArrayOutputStream();
+    try {
+      ColumnarFormat.writeHeader(header);
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+    streamProvider.setHeader(header.toByteArray());
+    streamProvider.addRotationListener(this);
+    blocks = newCounter(ColumnarTweetWriter.class, "blocks");
+    dropped = newCounter(ColumnarTweetWriter.class, "dropped");
+  }
+
+  @Override
+  public synchronized void messageReceived(TwitterFeedEvent se) {
+    CompactTweet tweet = se.getTweet();
+    if (tweet == null || !tweet.isStatus()) {
+      return;
+    }
+    pending.add(tweet);
+    if (pending.size() == BLOCK_SIZE) {
+      try {
+        ByteArrayOutputStream block = new ByteArrayOutputStream(1 << 20);
+        writeBlock(block);
+        streamProvider.append(block.toByteArray());
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * The last partial block of the hour goes straight to the file being closed.
+   */
+  @Override
+  public synchronized void rotating(String filename, OutputStream stream) throws IOException {
+    if (!pending.isEmpty()) {
+      writeBlock(stream);
+    }
+  }
+
+  private void writeBlock(OutputStream stream) throws IOException {
+    ColumnarBlock.write(stream, pending);
+    blocks.inc();
+    pending = new ArrayList<>(BLOCK_SIZE);
+  }
+
+  @Override
+  public void tooSlow() {
+    dropped.inc();
+  }
+}
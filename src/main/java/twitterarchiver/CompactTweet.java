@@ -0,0 +1,52 @@
+package twitterarchiver;
+
+/**
+ * The handful of fields from a status that we actually archive, pulled straight off
+ * the token stream by {@link TweetExtractor} or read back from an archive by
+ * {@link TweetSerializer#readJson}. Non-status messages leave text null.
+ */
+public class CompactTweet {
+  String text;
+  long id;
+  String createdAt;
+  // created_at in epoch millis when read back from an archive, 0 otherwise
+  long createdAtMillis;
+  long inReplyToStatusId;
+  boolean retweet;
+  long retweetedId;
+  long[] mentions;
+  String[] hashtags;
+  String[] urls;
+  String[] media;
+  // The status carried a non-null geo field
+  boolean geo;
+  // GeoJSON ordering, longitude first
+  double[] coordinates;
+  boolean delete;
+
+  long userId;
+  int descriptionLength;
+  boolean verified;
+  long followers;
+  long friends;
+  long favourites;
+  long statuses;
+  long listed;
+  String lang;
+
+  public boolean isStatus() {
+    return text != null;
+  }
+
+  public boolean isDelete() {
+    return delete;
+  }
+
+  public long getId() {
+    return id;
+  }
+
+  public long getUserId() {
+    return userId;
+  }
+}
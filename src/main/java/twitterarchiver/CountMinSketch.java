@@ -0,0 +1,85 @@
+package twitterarchiver;
+
+import java.util.Arrays;
+
+/**
+ * Approximate counts of keys in a fixed depth x width table of counters. Every key
+ * increments one counter per row and its estimate is the smallest of them, so it can
+ * only be over counted, by at most about e/width of the total with a probability
+ * that falls off exponentially with the depth. Only the counters that are at the
+ * minimum get incremented (conservative update), which keeps collisions from piling
+ * up on keys that are already ahead.
+ */
+class CountMinSketch {
+  private final int depth;
+  private final int mask;
+  private final int[] counters;
+  private long total;
+
+  /**
+   * @param width counters per row, rounded up to a power of two
+   */
+  CountMinSketch(int depth, int width) {
+    this.depth = depth;
+    int size = Integer.highestOneBit(Math.max(width, 2) - 1) << 1;
+    mask = size - 1;
+    counters = new int[depth * size];
+  }
+
+  void add(long hash) {
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32);
+    int min = Integer.MAX_VALUE;
+    for (int i = 0; i < depth; i++) {
+      min = Math.min(min, counters[index(i, h1, h2)]);
+    }
+    for (int i = 0; i < depth; i++) {
+      int index = index(i, h1, h2);
+      if (counters[index] == min) {
+        counters[index]++;
+      }
+    }
+    total++;
+  }
+
+  long estimate(long hash) {
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32);
+    int min = Integer.MAX_VALUE;
+    for (int i = 0; i < depth; i++) {
+      min = Math.min(min, counters[index(i, h1, h2)]);
+    }
+    return min;
+  }
+
+  long total() {
+    return total;
+  }
+
+  void clear() {
+    Arrays.fill(counters, 0);
+    total = 0;
+  }
+
+  // Row i uses h1 + i * h2, as good as independent hashes for this purpose
+  private int index(int row, int h1, int h2) {
+    return row * (mask + 1) + ((h1 + row * h2) & mask);
+  }
+
+  /**
+   * 64 bit FNV-1a of the string, finished with a murmur3 mix so both halves are usable.
+   */
+  static long hash(String key) {
+    long hash = 0xcbf29ce484222325l;
+    for (int i = 0; i < key.length(); i++) {
+      hash ^= key.charAt(i);
+      hash *= 0x100000001b3l;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+}
@@ -0,0 +1,106 @@
+package twitterarchiver;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Distinct users, urls and hashtags in the current file, in a HyperLogLog each. When
+ * the archive rotates the sketches are saved next to it as a .hll file and start
+ * over, so any range of files can be merged offline with HyperLogLog.main. Those of
+ * files closed earlier in the hour are merged as they go, so the gauges count the
+ * whole hour so far however many segments it is archived as.
+ */
+public class DistinctListener implements TwitterFeedListener, RotationListener {
+  private static final long HOUR = 3600000l;
+
+  private final HyperLogLog users = new HyperLogLog();
+  private final HyperLogLog urls = new HyperLogLog();
+  private final HyperLogLog hashtags = new HyperLogLog();
+  // The files closed so far this hour
+  private final HyperLogLog hourUsers = new HyperLogLog();
+  private final HyperLogLog hourUrls = new HyperLogLog();
+  private final HyperLogLog hourHashtags = new HyperLogLog();
+  private long hour = System.currentTimeMillis() / HOUR;
+
+  public DistinctListener() {
+    gauge("distinct_users", users, hourUsers);
+    gauge("distinct_urls", urls, hourUrls);
+    gauge("distinct_hashtags", hashtags, hourHashtags);
+  }
+
+  private void gauge(String name, final HyperLogLog sketch, final HyperLogLog hourSketch) {
+    Metrics.newGauge(DistinctListener.class, name, new Gauge<Long>() {
+      @Override
+      public Long value() {
+        synchronized (DistinctListener.this) {
+          HyperLogLog merged = hourSketch.copy();
+          merged.merge(sketch);
+          return merged.cardinality();
+        }
+      }
+    });
+  }
+
+  @Override
+  public synchronized void messageReceived(TwitterFeedEvent se) {
+    CompactTweet tweet = se.getTweet();
+    if (tweet == null || !tweet.isStatus()) {
+      return;
+    }
+    users.add(HyperLogLog.hash(tweet.userId));
+    if (tweet.urls != null) {
+      for (String url : tweet.urls) {
+        urls.add(url);
+      }
+    }
+    if (tweet.hashtags != null) {
+      for (String hashtag : tweet.hashtags) {
+        hashtags.add(hashtag.toLowerCase(Locale.ROOT));
+      }
+    }
+  }
+
+  /**
+   * Saves what was counted while the file was current next to it and starts over.
+   */
+  @Override
+  public void rotating(String filename, OutputStream stream) throws IOException {
+    rotating(new File(filename + ".hll"), System.currentTimeMillis());
+  }
+
+  void rotating(File hll, long now) throws IOException {
+    Map<String, HyperLogLog> sketches = new LinkedHashMap<>();
+    synchronized (this) {
+      sketches.put("users", users.copy());
+      sketches.put("urls", urls.copy());
+      sketches.put("hashtags", hashtags.copy());
+      // Files never cross an hour, so the next one starting in a new hour starts the counts over
+      if (now / HOUR != hour) {
+        hour = now / HOUR;
+        hourUsers.clear();
+        hourUrls.clear();
+        hourHashtags.clear();
+      } else {
+        hourUsers.merge(users);
+        hourUrls.merge(urls);
+        hourHashtags.merge(hashtags);
+      }
+      users.clear();
+      urls.clear();
+      hashtags.clear();
+    }
+    HyperLogLog.write(hll, sketches);
+  }
+
+  @Override
+  public void tooSlow() {
+
+  }
+}
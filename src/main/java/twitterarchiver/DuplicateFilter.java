@@ -0,0 +1,177 @@
+package twitterarchiver;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Remembers the status ids seen recently so copies delivered again after a reconnect,
+ * or by a second connection, can be dropped. Ids are bucketed by the time in their
+ * snowflake and every bucket is a Bloom filter, so memory is fixed: a ring of buckets
+ * covers the window and the oldest is cleared when a newer one needs its place. An id
+ * older than the window can't be checked and is let through. Bits are set with CAS so
+ * any number of parse workers can share a filter; the same id checked by two threads
+ * at the same instant may get through twice, which reconnect duplicates never are.
+ * A bucket that fills past the point where its false positive rate would exceed the
+ * target stops dropping anything, better a few copies archived than real statuses lost.
+ */
+public class DuplicateFilter {
+  // Statuses per ten minutes, with room to spare, of the sample hose and of the firehose
+  static final long SAMPLE_PER_BUCKET = 250000;
+  static final long FIREHOSE_PER_BUCKET = 5000000;
+  private static final AtomicInteger instances = new AtomicInteger();
+
+  private final long bucketMillis;
+  private final Bucket[] buckets;
+  private final int hashes;
+  // Statuses in a bucket past which its false positive rate is over the target
+  private final long limit;
+  // Tells the metrics of each filter apart, "" for the first
+  final String suffix;
+  private final Counter duplicates;
+  private final Counter tooOld;
+  private final Counter saturated;
+
+  /**
+   * Sized for the sample hose.
+   */
+  public DuplicateFilter() {
+    this(SAMPLE_PER_BUCKET);
+  }
+
+  /**
+   * An hour and a bit in ten minute buckets, each sized for the given number of
+   * statuses at a false positive rate of 1 in 10,000, about 2.4 bytes a status.
+   */
+  public DuplicateFilter(long expected) {
+    this(TimeUnit.MINUTES.toMillis(10), 7, expected, 0.0001);
+  }
+
+  /**
+   * @param expected statuses per bucket the false positive rate holds up to
+   */
+  public DuplicateFilter(long bucketMillis, int buckets, long expected, double fpp) {
+    this.bucketMillis = bucketMillis;
+    // Optimal bits and hashes for the rate, bits rounded up to a power of two which only lowers it
+    long bits = (long) Math.ceil(-expected * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+    bits = Long.highestOneBit(Math.max(bits, 64) - 1) << 1;
+    hashes = Math.max(1, (int) Math.round(-Math.log(fpp) / Math.log(2)));
+    // (1 - e^(-kn/m))^k = fpp solved for n
+    limit = (long) (-bits / (double) hashes * Math.log(1 - Math.pow(fpp, 1.0 / hashes)));
+    this.buckets = new Bucket[buckets];
+    for (int i = 0; i < buckets; i++) {
+      this.buckets[i] = new Bucket(bits);
+    }
+    int instance = instances.incrementAndGet();
+    suffix = instance == 1 ? "" : "_" + instance;
+    duplicates = Metrics.newCounter(DuplicateFilter.class, "duplicates" + suffix);
+    tooOld = Metrics.newCounter(DuplicateFilter.class, "too_old" + suffix);
+    saturated = Metrics.newCounter(DuplicateFilter.class, "saturated" + suffix);
+    Metrics.newGauge(DuplicateFilter.class, "false_positive_rate" + suffix, new Gauge<Double>() {
+      @Override
+      public Double value() {
+        return falsePositiveRate();
+      }
+    });
+  }
+
+  /**
+   * True if the status has probably been seen before, otherwise remembers it.
+   */
+  public boolean isDuplicate(long id) {
+    long number = TweetExtractor.snowflakeTimestamp(id) / bucketMillis;
+    Bucket bucket = buckets[(int) (number % buckets.length)];
+    long epoch = bucket.epoch;
+    if (epoch != number) {
+      if (epoch > number) {
+        tooOld.inc();
+        return false;
+      }
+      bucket.advance(number);
+    }
+    if (bucket.add(HyperLogLog.hash(id), hashes)) {
+      return false;
+    }
+    if (bucket.count.get() > limit) {
+      // Too full to tell a copy from a status that happens to hit set bits
+      saturated.inc();
+      return false;
+    }
+    duplicates.inc();
+    return true;
+  }
+
+  /**
+   * Statuses per bucket to size the filter for, from the hose being archived.
+   */
+  public static long perBucket(String hose) {
+    return "firehose".equals(hose) ? FIREHOSE_PER_BUCKET : SAMPLE_PER_BUCKET;
+  }
+
+  /**
+   * The chance that a new status in the fullest bucket is taken for a duplicate,
+   * (1 - e^(-kn/m))^k for n statuses in m bits with k hashes.
+   */
+  public double falsePositiveRate() {
+    double worst = 0;
+    for (Bucket bucket : buckets) {
+      double fill = 1 - Math.exp(-(double) hashes * bucket.count.get() / bucket.bits);
+      worst = Math.max(worst, Math.pow(fill, hashes));
+    }
+    return worst;
+  }
+
+  private static class Bucket {
+    private final long bits;
+    private final AtomicLongArray words;
+    private final AtomicLong count = new AtomicLong();
+    // The bucket number the filter holds, published after it is cleared
+    private volatile long epoch = -1;
+
+    Bucket(long bits) {
+      this.bits = bits;
+      words = new AtomicLongArray((int) (bits >>> 6));
+    }
+
+    synchronized void advance(long number) {
+      if (epoch < number) {
+        for (int i = 0; i < words.length(); i++) {
+          words.lazySet(i, 0);
+        }
+        count.set(0);
+        epoch = number;
+      }
+    }
+
+    /**
+     * Sets the id's bits, true if any of them wasn't already set.
+     */
+    boolean add(long hash, int hashes) {
+      long mask = bits - 1;
+      int h1 = (int) hash;
+      int h2 = (int) (hash >>> 32);
+      boolean added = false;
+      for (int i = 0; i < hashes; i++) {
+        long bit = (h1 + (long) i * h2) & mask;
+        int word = (int) (bit >>> 6);
+        long flag = 1L << bit;
+        long current;
+        while (((current = words.get(word)) & flag) == 0) {
+          if (words.compareAndSet(word, current, current | flag)) {
+            added = true;
+            break;
+          }
+        }
+      }
+      if (added) {
+        count.incrementAndGet();
+      }
+      return added;
+    }
+  }
+}
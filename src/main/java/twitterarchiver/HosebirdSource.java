@@ -0,0 +1,144 @@
+package twitterarchiver;
+
+import com.twitter.hbc.ClientBuilder;
+import com.twitter.hbc.core.Client;
+import com.twitter.hbc.core.Constants;
+import com.twitter.hbc.core.Hosts;
+import com.twitter.hbc.core.HttpHosts;
+import com.twitter.hbc.core.endpoint.StatusesFilterEndpoint;
+import com.twitter.hbc.core.endpoint.StatusesFirehoseEndpoint;
+import com.twitter.hbc.core.endpoint.StatusesSampleEndpoint;
+import com.twitter.hbc.core.endpoint.StreamingEndpoint;
+import com.twitter.hbc.core.event.Event;
+import com.twitter.hbc.core.processor.StringDelimitedProcessor;
+import com.twitter.hbc.httpclient.auth.Authentication;
+import com.twitter.hbc.httpclient.auth.OAuth1;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Live lines from the Twitter streaming API, one connection to one endpoint.
+ */
+public class HosebirdSource implements IngestSource {
+  private final String consumerKey;
+  private final String consumerSecret;
+  private final String token;
+  private final String secret;
+  private final String host;
+  private final StreamingEndpoint endpoint;
+  private final String name;
+  private Client hosebirdClient;
+
+  public HosebirdSource(String consumerKey, String consumerSecret, String token, String secret) {
+    this(consumerKey, consumerSecret, token, secret, Constants.STREAM_HOST, new StatusesSampleEndpoint(), "Sample-Hose-Client");
+  }
+
+  /**
+   * @param host   such as https://stream.twitter.com
+   * @param name   for the client's logs
+   */
+  public HosebirdSource(String consumerKey, String consumerSecret, String token, String secret,
+                        String host, StreamingEndpoint endpoint, String name) {
+    this.consumerKey = consumerKey;
+    this.consumerSecret = consumerSecret;
+    this.token = token;
+    this.secret = secret;
+    this.host = host;
+    this.endpoint = endpoint;
+    this.name = name;
+  }
+
+  /**
+   * An endpoint of the hose for each connection: sample or firehose, where extra
+   * connections only add redundancy, or filter, which needs terms or users to filter on.
+   *
+   * @throws IllegalArgumentException for any other hose, or terms and users without filter
+   */
+  public static List<StreamingEndpoint> endpoints(String hose, List<String> terms, List<Long> follow, int connections) {
+    boolean filtering = !terms.isEmpty() || !follow.isEmpty();
+    switch (hose) {
+      case "filter":
+        if (!filtering) {
+          throw new IllegalArgumentException("-hose filter needs -track or -follow");
+        }
+        return filters(terms, follow, connections);
+      case "sample":
+      case "firehose":
+        if (filtering) {
+          throw new IllegalArgumentException("-track and -follow need -hose filter");
+        }
+        List<StreamingEndpoint> endpoints = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+          endpoints.add(hose.equals("sample") ? new StatusesSampleEndpoint() : new StatusesFirehoseEndpoint());
+        }
+        return endpoints;
+      default:
+        throw new IllegalArgumentException("Unknown hose: " + hose + ", use sample, firehose or filter");
+    }
+  }
+
+  /**
+   * Filter endpoints that between them track every term and follow every user given,
+   * dealt out round robin so each connection gets a similar share.
+   */
+  public static List<StreamingEndpoint> filters(List<String> terms, List<Long> follow, int connections) {
+    List<List<String>> termShards = new ArrayList<>();
+    List<List<Long>> followShards = new ArrayList<>();
+    for (int i = 0; i < connections; i++) {
+      termShards.add(new ArrayList<String>());
+      followShards.add(new ArrayList<Long>());
+    }
+    for (int i = 0; i < terms.size(); i++) {
+      termShards.get(i % connections).add(terms.get(i));
+    }
+    for (int i = 0; i < follow.size(); i++) {
+      followShards.get(i % connections).add(follow.get(i));
+    }
+    List<StreamingEndpoint> endpoints = new ArrayList<>();
+    for (int i = 0; i < connections; i++) {
+      if (termShards.get(i).isEmpty() && followShards.get(i).isEmpty()) {
+        // More connections than there is to filter on
+        continue;
+      }
+      StatusesFilterEndpoint endpoint = new StatusesFilterEndpoint();
+      if (!termShards.get(i).isEmpty()) {
+        endpoint.trackTerms(termShards.get(i));
+      }
+      if (!followShards.get(i).isEmpty()) {
+        endpoint.followings(followShards.get(i));
+      }
+      endpoints.add(endpoint);
+    }
+    return endpoints;
+  }
+
+  @Override
+  public void start(BlockingQueue<String> msgQueue, BlockingQueue<Event> eventQueue) {
+    /** Declare the host you want to connect to, the endpoint, and authentication (basic auth or oauth) */
+    Hosts hosebirdHosts = new HttpHosts(host);
+
+    // These secrets should be read from a config file
+    Authentication hosebirdAuth = new OAuth1(consumerKey, consumerSecret, token, secret);
+
+    ClientBuilder builder = new ClientBuilder()
+            .name(name)                                              // optional: mainly for the logs
+            .hosts(hosebirdHosts)
+            .authentication(hosebirdAuth)
+            .endpoint(endpoint)
+            .processor(new StringDelimitedProcessor(msgQueue))
+            .eventMessageQueue(eventQueue);                          // optional: use this if you want to process client events
+
+    hosebirdClient = builder.build();
+    // Attempts to establish a connection.
+    hosebirdClient.connect();
+  }
+
+  @Override
+  public void stop() {
+    if (hosebirdClient != null) {
+      hosebirdClient.stop();
+    }
+  }
+}
@@ -0,0 +1,16 @@
+package twitterarchiver;
+
+import com.twitter.hbc.core.event.Event;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Somewhere raw lines come from. Implementations deliver one status (or other
+ * stream message) per line to the message queue that feeds the dispatch ring.
+ */
+public interface IngestSource {
+  public void start(BlockingQueue<String> msgQueue, BlockingQueue<Event> eventQueue) throws IOException;
+
+  public void stop();
+}
@@ -3,6 +3,8 @@ package twitterarchiver;
 import com.fasterxml.jackson.core.JsonEncoding;
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.MappingJsonFactory;
+import com.sun.management.UnixOperatingSystemMXBean;
 import com.yammer.metrics.core.Clock;
 import com.yammer.metrics.core.Counter;
 import com.yammer.metrics.core.Gauge;
@@ -19,33 +21,71 @@ import com.yammer.metrics.core.VirtualMachineMetrics;
 import com.yammer.metrics.reporting.AbstractPollingReporter;
 import com.yammer.metrics.stats.Snapshot;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
 import java.net.HttpURLConnection;
 import java.net.InetAddress;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.SortedMap;
 import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
 import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 
 /**
- * Adapted from MetricsServlet.
+ * Adapted from MetricsServlet. Each period the metrics that changed since the last
+ * report, and every so often all of them, are written as one line of JSON into a
+ * buffer that is kept from report to report, gzipped into another and either posted
+ * to the endpoint or appended to a local file as a gzip member, so the file reads as
+ * one gzipped stream of reports. Posts have a fixed length and their response is read
+ * to the end so the connection is kept alive for the next one. Reports that can't be
+ * posted go to a bounded ReportSpool and are sent, oldest first, ahead of the next
+ * report that can be.
  */
 public class JsonMetricsReporter extends AbstractPollingReporter implements MetricProcessor<JsonMetricsReporter.Context> {
+  private static final Logger log = Logger.getLogger("JsonMetricsReporter");
+  // Every metric is reported this often, in periods, whether it changed or not
+  private static final int FULL_REPORT_PERIODS = 15;
+  private static final long SPOOL_BYTES = 16 * 1024 * 1024;
+  private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
   private final Clock clock = Clock.defaultClock();
   private final VirtualMachineMetrics vm = VirtualMachineMetrics.getInstance();
   private final String service;
   private final MetricsRegistry registry;
-  private final JsonFactory factory = new JsonFactory();
+  // Mapping so gauges can be maps or lists, like the trending top lists
+  private final JsonFactory factory = new MappingJsonFactory();
 
-  private final String table;
-  private final String wavefrontURL;
-  private final String host;
+  private final URL url;
+  private final File sink;
+  private ReportSpool spool = new ReportSpool(new File("metrics.spool"), SPOOL_BYTES);
 
   private final boolean includeVMMetrics;
 
+  // Reused by every report, only touched by the reporting thread
+  private final Buffer json = new Buffer(65536);
+  private final Buffer gzipped = new Buffer(16384);
+  private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+  private final CRC32 crc = new CRC32();
+  private final byte[] drain = new byte[4096];
+  // What each metric was when it was last reported
+  private final Map<MetricName, Object> reported = new HashMap<>();
+  private int reports;
+
   public JsonMetricsReporter(String service, MetricsRegistry registry, String token, String wavefrontURL) throws UnknownHostException {
     this(service, registry, token, wavefrontURL, true);
   }
@@ -54,26 +94,165 @@ public class JsonMetricsReporter extends AbstractPollingReporter implements Metr
     super(registry, "jsonmetrics-reporter");
     this.service = service;
     this.registry = registry;
-    this.table = token;
-    this.wavefrontURL = wavefrontURL;
-    this.host = InetAddress.getLocalHost().getHostName();
+    try {
+      this.url = new URL(wavefrontURL + "/report/metrics?t=" + token + "&h=" + InetAddress.getLocalHost().getHostName());
+    } catch (MalformedURLException e) {
+      throw new IllegalArgumentException("Bad metrics endpoint: " + wavefrontURL, e);
+    }
+    this.sink = null;
     this.includeVMMetrics = includeVMMetrics;
   }
 
+  /**
+   * Reports to a local file instead of an endpoint.
+   */
+  public JsonMetricsReporter(String service, MetricsRegistry registry, File sink, boolean includeVMMetrics) {
+    super(registry, "jsonmetrics-reporter");
+    this.service = service;
+    this.registry = registry;
+    this.url = null;
+    this.sink = sink;
+    this.includeVMMetrics = includeVMMetrics;
+  }
+
+  /**
+   * Where reports that couldn't be posted are kept, and how large that file may grow.
+   */
+  public void setSpool(File file, long maxBytes) {
+    spool = new ReportSpool(file, maxBytes);
+  }
+
   @Override
   public void run() {
     try {
-      URL http = new URL(wavefrontURL + "/report/metrics?t=" + table + "&h=" + host);
-      System.out.println("Reporting started to: " + http);
-      HttpURLConnection urlc = (HttpURLConnection) http.openConnection();
-      urlc.setDoOutput(true);
-      urlc.addRequestProperty("Content-Type", "application/json");
-      OutputStream outputStream = urlc.getOutputStream();
-      writeJson(outputStream);
-      outputStream.close();
-      System.out.println("Reporting complete: " + urlc.getResponseCode());
+      report();
+    } catch (IOException e) {
+      log.warning("Could not report metrics: " + e);
+    }
+  }
+
+  /**
+   * Writes and delivers one report.
+   */
+  void report() throws IOException {
+    json.reset();
+    JsonGenerator generator = factory.createGenerator(json, JsonEncoding.UTF8);
+    generator.writeStartObject();
+    generator.writeNumberField("timestamp", clock.time());
+    if (includeVMMetrics) {
+      writeVmMetrics(generator);
+    }
+    writeMetrics(generator, false, reports++ % FULL_REPORT_PERIODS != 0);
+    generator.writeEndObject();
+    generator.close();
+    json.write('\n');
+    gzip();
+    if (sink != null) {
+      try (OutputStream out = new FileOutputStream(sink, true)) {
+        out.write(gzipped.array(), 0, gzipped.size());
+      }
+      return;
+    }
+    // Anything that failed before goes first so the endpoint sees reports in order
+    if (!spool.isEmpty()) {
+      List<byte[]> spooled = spool.drain();
+      int sent = 0;
+      try {
+        for (byte[] report : spooled) {
+          post(report, report.length);
+          sent++;
+        }
+      } catch (IOException e) {
+        spool.appendAll(spooled.subList(sent, spooled.size()));
+        spool(e);
+        return;
+      }
+      log.info("Sent " + sent + " spooled metrics reports");
+    }
+    try {
+      post(gzipped.array(), gzipped.size());
     } catch (IOException e) {
-      e.printStackTrace();
+      spool(e);
+    }
+  }
+
+  private void spool(IOException e) throws IOException {
+    int dropped = spool.append(gzipped.array(), 0, gzipped.size());
+    log.warning("Could not report metrics, spooled for later: " + e + (dropped > 0 ? ", dropped " + dropped + " old reports" : ""));
+  }
+
+  private void post(byte[] body, int length) throws IOException {
+    HttpURLConnection urlc = (HttpURLConnection) url.openConnection();
+    urlc.setDoOutput(true);
+    urlc.setFixedLengthStreamingMode(length);
+    urlc.setConnectTimeout(10000);
+    urlc.setReadTimeout(30000);
+    urlc.addRequestProperty("Content-Type", "application/json");
+    urlc.addRequestProperty("Content-Encoding", "gzip");
+    try (OutputStream out = urlc.getOutputStream()) {
+      out.write(body, 0, length);
+    }
+    int code = urlc.getResponseCode();
+    // Reading the response to the end hands the socket back to be reused by the next post
+    InputStream in = code < 400 ? urlc.getInputStream() : urlc.getErrorStream();
+    if (in != null) {
+      try {
+        while (in.read(drain) != -1) {
+          // Discard
+        }
+      } finally {
+        in.close();
+      }
+    }
+    if (code / 100 != 2) {
+      throw new IOException("Metrics endpoint returned " + code);
+    }
+  }
+
+  // The json buffer as a single gzip member in the gzipped buffer
+  private void gzip() {
+    gzipped.reset();
+    gzipped.write(GZIP_HEADER, 0, GZIP_HEADER.length);
+    deflater.reset();
+    deflater.setInput(json.array(), 0, json.size());
+    deflater.finish();
+    gzipped.deflate(deflater);
+    crc.reset();
+    crc.update(json.array(), 0, json.size());
+    writeIntLE(gzipped, (int) crc.getValue());
+    writeIntLE(gzipped, json.size());
+  }
+
+  private static void writeIntLE(OutputStream out, int value) {
+    try {
+      out.write(value);
+      out.write(value >> 8);
+      out.write(value >> 16);
+      out.write(value >> 24);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * A byte array stream whose array can be read in place and deflated into.
+   */
+  private static final class Buffer extends ByteArrayOutputStream {
+    Buffer(int size) {
+      super(size);
+    }
+
+    byte[] array() {
+      return buf;
+    }
+
+    void deflate(Deflater deflater) {
+      while (!deflater.finished()) {
+        if (count == buf.length) {
+          buf = Arrays.copyOf(buf, buf.length * 2);
+        }
+        count += deflater.deflate(buf, count, buf.length - count);
+      }
     }
   }
 
@@ -169,7 +348,7 @@ public class JsonMetricsReporter extends AbstractPollingReporter implements Metr
       json.writeNumberField("thread_count", vm.threadCount());
       json.writeNumberField("current_time", clock.time());
       json.writeNumberField("uptime", vm.uptime());
-      json.writeNumberField("fd_usage", vm.fileDescriptorUsage());
+      json.writeNumberField("fd_usage", fileDescriptorUsage());
 
       json.writeFieldName("thread-states");
       json.writeStartObject();
@@ -204,14 +383,26 @@ public class JsonMetricsReporter extends AbstractPollingReporter implements Metr
   }
 
   public void writeRegularMetrics(JsonGenerator json, boolean showFullSamples) throws IOException {
+    writeMetrics(json, showFullSamples, false);
+  }
+
+  private void writeMetrics(JsonGenerator json, boolean showFullSamples, boolean changedOnly) throws IOException {
     for (Map.Entry<String, SortedMap<MetricName, Metric>> entry : registry.groupedMetrics().entrySet()) {
       for (Map.Entry<MetricName, Metric> subEntry : entry.getValue().entrySet()) {
+        if (!changed(subEntry.getKey(), subEntry.getValue()) && changedOnly) {
+          continue;
+        }
         json.writeFieldName(sanitize(subEntry.getKey()));
         try {
-          subEntry.getValue()
-              .processWith(this,
-                  subEntry.getKey(),
-                  new Context(json, showFullSamples));
+          if (subEntry.getValue() instanceof Gauge) {
+            // Already evaluated by changed(), some gauges are costly to read
+            json.writeObject(reported.get(subEntry.getKey()));
+          } else {
+            subEntry.getValue()
+                .processWith(this,
+                    subEntry.getKey(),
+                    new Context(json, showFullSamples));
+          }
         } catch (Exception e) {
           e.printStackTrace();
         }
@@ -284,6 +475,41 @@ public class JsonMetricsReporter extends AbstractPollingReporter implements Metr
     json.writeEndObject();
   }
 
+  /**
+   * Remembers the metric's value, true if it isn't what was last reported. Meters and
+   * timers are compared by count since their rates decay on their own, and
+   * histograms are cleared once they are reported so any samples are new.
+   */
+  private boolean changed(MetricName name, Metric metric) {
+    Object value;
+    if (metric instanceof Gauge) {
+      value = evaluateGauge((Gauge<?>) metric);
+    } else if (metric instanceof Counter) {
+      value = ((Counter) metric).count();
+    } else if (metric instanceof Metered) {
+      value = ((Metered) metric).count();
+    } else if (metric instanceof Histogram) {
+      return ((Histogram) metric).count() > 0;
+    } else {
+      return true;
+    }
+    boolean seen = reported.containsKey(name);
+    return !Objects.equals(reported.put(name, value), value) || !seen;
+  }
+
+  /**
+   * VirtualMachineMetrics reflects into the JDK's internal bean for this, which the
+   * module system refuses from Java 17 on, the exported interface has it too.
+   */
+  private static double fileDescriptorUsage() {
+    OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    if (os instanceof UnixOperatingSystemMXBean) {
+      UnixOperatingSystemMXBean unix = (UnixOperatingSystemMXBean) os;
+      return unix.getOpenFileDescriptorCount() / (double) unix.getMaxFileDescriptorCount();
+    }
+    return Double.NaN;
+  }
+
   private static Object evaluateGauge(Gauge<?> gauge) {
     try {
       return gauge.value();
@@ -0,0 +1,67 @@
+package twitterarchiver;
+
+import java.io.File;
+
+/**
+ * How many events a listener may fall behind by and what happens to the next one
+ * once it has, and how many events it may be handling at once.
+ */
+public class ListenerPolicy {
+  public enum Overflow {
+    /** Drop the incoming event and tell the listener it is too slow */
+    DROP_NEWEST,
+    /** Drop the oldest queued event to make room and tell the listener it is too slow */
+    DROP_OLDEST,
+    /** Hold up the feed until the listener catches up, nothing is lost */
+    BLOCK,
+    /** Queue further events in a journal on disk until the listener catches up */
+    SPILL
+  }
+
+  /**
+   * What listeners get unless they ask for something else, the limit the feed always had.
+   */
+  public static final ListenerPolicy DEFAULT = new ListenerPolicy(10000, Overflow.DROP_NEWEST);
+
+  final int capacity;
+  final Overflow overflow;
+  final File spillDirectory;
+  final int concurrency;
+
+  public ListenerPolicy(int capacity, Overflow overflow) {
+    this(capacity, overflow, new File("."));
+  }
+
+  /**
+   * @param spillDirectory where the journal goes with {@link Overflow#SPILL}
+   */
+  public ListenerPolicy(int capacity, Overflow overflow, File spillDirectory) {
+    this(capacity, overflow, spillDirectory, 1);
+  }
+
+  /**
+   * @param concurrency above 1 the listener blocks, on a database say, and is called
+   *                    from up to this many virtual threads at once, or a pool of as
+   *                    many platform threads without them, so it must be thread safe
+   *                    and can't rely on seeing events in order
+   */
+  public ListenerPolicy(int capacity, Overflow overflow, File spillDirectory, int concurrency) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+    }
+    if (concurrency < 1) {
+      throw new IllegalArgumentException("Concurrency must be positive: " + concurrency);
+    }
+    this.capacity = capacity;
+    this.overflow = overflow;
+    this.spillDirectory = spillDirectory;
+    this.concurrency = concurrency;
+  }
+
+  /**
+   * This policy for a listener that blocks, called from up to concurrency virtual threads.
+   */
+  public ListenerPolicy blocking(int concurrency) {
+    return new ListenerPolicy(capacity, overflow, spillDirectory, concurrency);
+  }
+}
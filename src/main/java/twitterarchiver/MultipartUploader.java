@@ -0,0 +1,331 @@
+package twitterarchiver;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.StorageClass;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.TimerContext;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.yammer.metrics.Metrics.newCounter;
+import static java.lang.Long.parseLong;
+import static java.util.regex.Pattern.quote;
+
+/**
+ * Uploads archives to S3 as multipart uploads while they are still being written.
+ * Every PART_SIZE bytes that reach the disk become a part, uploaded in parallel with
+ * the others; once StreamProvider moves on to a new file the remainder goes up as
+ * the last part and the upload is completed. Archives are only ever appended to so
+ * a part never changes after it is sent. What has been uploaded is kept in a .mpu
+ * file next to the archive so a restart carries on from there. Closed files are finished
+ * straight away rather than on the next check.
+ */
+public class MultipartUploader extends TimerTask {
+  private static final Logger log = Logger.getLogger("MultipartUploader");
+  // S3 needs every part but the last to be at least 5MB
+  static final long PART_SIZE = 8 * 1024 * 1024;
+  private static final int THREADS = 4;
+
+  private final String prefix;
+  private final String suffix;
+  private final StreamProvider streamProvider;
+  private final Timer timer;
+  private final AmazonS3Client client;
+  private final ThreadPoolExecutor parts;
+  private final Counter uploads;
+  private final Counter uploadedParts;
+  private final Counter uploadedBytes;
+  private final com.yammer.metrics.core.Timer partLatency;
+  private final Set<String> dictionaries = new HashSet<>();
+
+  public MultipartUploader(String prefix, String suffix, StreamProvider streamProvider) {
+    this(prefix, suffix, streamProvider, TwitterFeedUploader.createClient());
+  }
+
+  MultipartUploader(String prefix, String suffix, StreamProvider streamProvider, AmazonS3Client client) {
+    this.prefix = prefix;
+    this.suffix = suffix;
+    this.streamProvider = streamProvider;
+    this.client = client;
+    timer = new Timer("MultipartUploader" + suffix, true);
+    parts = new ThreadPoolExecutor(THREADS, THREADS, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "MultipartUploader" + MultipartUploader.this.suffix + "-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    uploads = newCounter(MultipartUploader.class, "uploads" + suffix);
+    uploadedParts = newCounter(MultipartUploader.class, "parts" + suffix);
+    uploadedBytes = newCounter(MultipartUploader.class, "uploaded_bytes" + suffix);
+    partLatency = Metrics.newTimer(MultipartUploader.class, "part_latency" + suffix);
+    Metrics.newGauge(MultipartUploader.class, "parts_active" + suffix, new Gauge<Integer>() {
+      @Override
+      public Integer value() {
+        return parts.getActiveCount();
+      }
+    });
+    Metrics.newGauge(MultipartUploader.class, "parts_queued" + suffix, new Gauge<Integer>() {
+      @Override
+      public Integer value() {
+        return parts.getQueue().size();
+      }
+    });
+    streamProvider.addRotationListener(new RotationListener() {
+      @Override
+      public void rotating(String filename, OutputStream stream) {
+      }
+
+      @Override
+      public void rotated(String filename) {
+        timer.schedule(new TimerTask() {
+          @Override
+          public void run() {
+            MultipartUploader.this.run();
+          }
+        }, 0);
+      }
+    });
+  }
+
+  /**
+   * Checks for new parts every 30 seconds.
+   */
+  public void start() {
+    timer.schedule(this, 0, 30 * 1000l);
+  }
+
+  @Override
+  public void run() {
+    try {
+      final Pattern GET_TIMESTAMP = Pattern.compile(quote(prefix) + "([0-9]+)" + quote(suffix));
+      String[] list = new File(".").list(new FilenameFilter() {
+        @Override
+        public boolean accept(File dir, String name) {
+          return GET_TIMESTAMP.matcher(name).matches();
+        }
+      });
+      Arrays.sort(list);
+      for (String s : list) {
+        Matcher matcher = GET_TIMESTAMP.matcher(s);
+        if (matcher.matches()) {
+          // Read the current filename first so we never treat a file that is still growing as done
+          boolean finished = !s.equals(streamProvider.getFilename());
+          if (finished && new File(s + ".ckpt").exists()) {
+            // Left by a crash and not recovered yet
+            continue;
+          }
+          try {
+            upload(new File(s), TwitterFeedUploader.keyFor(prefix, parseLong(matcher.group(1)), s), finished);
+          } catch (Exception e) {
+            e.printStackTrace();
+          }
+        }
+      }
+      SegmentManifest.uploadAll(client, prefix, suffix, streamProvider.getFilename(), uploadedBytes);
+    } catch (Throwable th) {
+      th.printStackTrace();
+    }
+  }
+
+  void upload(File file, String key, boolean finished) throws IOException, InterruptedException {
+    File stateFile = new File(file.getPath() + ".mpu");
+    long length = file.length();
+    File staleFile = new File(file.getPath() + ".mpu.abort");
+    if (staleFile.exists()) {
+      // Recovery cut the file back past parts sent before a crash, start over
+      State stale = State.load(staleFile);
+      client.abortMultipartUpload(new AbortMultipartUploadRequest(TwitterFeedUploader.BUCKET, stale.key, stale.uploadId));
+      staleFile.delete();
+      log.warning("Aborted upload " + stale.uploadId + " of " + file + ", it was cut back by recovery");
+    }
+    State state = State.load(stateFile);
+    if (state == null && !finished && length < PART_SIZE) {
+      // Nothing to send yet
+      return;
+    }
+    if (state == null) {
+      InitiateMultipartUploadRequest request = new InitiateMultipartUploadRequest(TwitterFeedUploader.BUCKET, key);
+      request.setStorageClass(StorageClass.ReducedRedundancy);
+      state = new State(key, client.initiateMultipartUpload(request).getUploadId());
+      state.save(stateFile);
+      log.info("Started upload of " + file + " as " + state.uploadId);
+    }
+    List<Future<PartETag>> futures = new ArrayList<>();
+    int last = finished ? (int) Math.max(1, (length + PART_SIZE - 1) / PART_SIZE) : (int) (length / PART_SIZE);
+    for (int part = 1; part <= last; part++) {
+      if (!state.etags.containsKey(part)) {
+        futures.add(parts.submit(uploadPart(file, state, part, Math.min(PART_SIZE, length - (part - 1) * PART_SIZE), part == last && finished)));
+      }
+    }
+    boolean failed = false;
+    for (Future<PartETag> future : futures) {
+      try {
+        PartETag etag = future.get();
+        state.etags.put(etag.getPartNumber(), etag.getETag());
+      } catch (ExecutionException e) {
+        if (isMissingUpload(e.getCause())) {
+          // Aborted or expired on the S3 side, start it again on the next run
+          log.warning("Upload " + state.uploadId + " of " + file + " is gone, restarting");
+          stateFile.delete();
+          return;
+        }
+        e.getCause().printStackTrace();
+        failed = true;
+      }
+    }
+    state.save(stateFile);
+    if (finished && !failed) {
+      // Up before the archive is complete, so there's never an archive in the bucket without them
+      TwitterFeedUploader.uploadDictionary(client, dictionaries, file, key, uploadedBytes);
+      TwitterFeedUploader.uploadSidecars(client, file, key, uploadedBytes);
+      List<PartETag> etags = new ArrayList<>();
+      for (Map.Entry<Integer, String> entry : state.etags.entrySet()) {
+        etags.add(new PartETag(entry.getKey(), entry.getValue()));
+      }
+      try {
+        client.completeMultipartUpload(new CompleteMultipartUploadRequest(TwitterFeedUploader.BUCKET, key, state.uploadId, etags));
+      } catch (AmazonServiceException e) {
+        if (isMissingUpload(e)) {
+          log.warning("Upload " + state.uploadId + " of " + file + " is gone, restarting");
+          stateFile.delete();
+          return;
+        }
+        throw e;
+      }
+      uploads.inc();
+      TwitterFeedUploader.deleteWithSidecars(file);
+      stateFile.delete();
+      log.info("Uploaded " + file);
+    }
+  }
+
+  private Callable<PartETag> uploadPart(final File file, final State state, final int part, final long size, final boolean lastPart) {
+    return new Callable<PartETag>() {
+      @Override
+      public PartETag call() throws Exception {
+        TimerContext time = partLatency.time();
+        try {
+          UploadPartRequest request = new UploadPartRequest()
+                  .withBucketName(TwitterFeedUploader.BUCKET)
+                  .withKey(state.key)
+                  .withUploadId(state.uploadId)
+                  .withPartNumber(part)
+                  .withFile(file)
+                  .withFileOffset((part - 1) * PART_SIZE)
+                  .withPartSize(size)
+                  .withLastPart(lastPart);
+          PartETag etag = client.uploadPart(request).getPartETag();
+          uploadedParts.inc();
+          uploadedBytes.inc(size);
+          return etag;
+        } finally {
+          time.stop();
+        }
+      }
+    };
+  }
+
+  private static boolean isMissingUpload(Throwable e) {
+    return e instanceof AmazonServiceException && "NoSuchUpload".equals(((AmazonServiceException) e).getErrorCode());
+  }
+
+  /**
+   * Gives up on the upload of a file, leaving the file to be uploaded from scratch.
+   */
+  public void abort(File file) throws IOException {
+    File stateFile = new File(file.getPath() + ".mpu");
+    State state = State.load(stateFile);
+    if (state != null) {
+      client.abortMultipartUpload(new AbortMultipartUploadRequest(TwitterFeedUploader.BUCKET, state.key, state.uploadId));
+      stateFile.delete();
+    }
+  }
+
+  /**
+   * The upload id and the etags of the parts uploaded so far. Saved to a temporary file
+   * and renamed into place so a crash leaves either the old state or the new one.
+   */
+  static class State {
+    final String key;
+    final String uploadId;
+    final TreeMap<Integer, String> etags = new TreeMap<>();
+
+    State(String key, String uploadId) {
+      this.key = key;
+      this.uploadId = uploadId;
+    }
+
+    static State load(File file) throws IOException {
+      if (!file.exists()) {
+        return null;
+      }
+      Properties properties = new Properties();
+      try (InputStream is = new FileInputStream(file)) {
+        properties.load(is);
+      }
+      State state = new State(properties.getProperty("key"), properties.getProperty("uploadId"));
+      for (String name : properties.stringPropertyNames()) {
+        if (name.startsWith("part.")) {
+          state.etags.put(Integer.parseInt(name.substring(5)), properties.getProperty(name));
+        }
+      }
+      return state;
+    }
+
+    void save(File file) throws IOException {
+      Properties properties = new Properties();
+      properties.setProperty("key", key);
+      properties.setProperty("uploadId", uploadId);
+      properties.setProperty("partSize", String.valueOf(PART_SIZE));
+      for (Map.Entry<Integer, String> entry : etags.entrySet()) {
+        properties.setProperty("part." + entry.getKey(), entry.getValue());
+      }
+      File temp = new File(file.getPath() + ".tmp");
+      try (OutputStream os = new FileOutputStream(temp)) {
+        properties.store(os, null);
+      }
+      if (!temp.renameTo(file)) {
+        throw new IOException("Could not replace " + file);
+      }
+    }
+  }
+}
@@ -0,0 +1,290 @@
+package twitterarchiver;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Timer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import static com.yammer.metrics.Metrics.newCounter;
+
+/**
+ * Gzip output compressed on a pool of threads. Data is cut into blocks of at most
+ * 65280 bytes, preferring to cut after a newline so that members hold whole records,
+ * and each block is written as an independent gzip member in order, BGZF style, with
+ * a BC extra field carrying the member size. Plain gunzip reads the result as one
+ * stream. On close a bgzip compatible .gzi table of member offsets is written next
+ * to the file so readers can split it or seek to a member. Another BlockCodec can
+ * stand in for gzip, the blocks are cut and written the same way.
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+  static final int BLOCK_SIZE = 65280;
+  // The empty member BGZF uses to mark a complete file
+  static final byte[] EOF = {
+          0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff, 6, 0, 'B', 'C', 2, 0, 0x1b, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0
+  };
+
+  private static final ThreadPoolExecutor compressors = new ThreadPoolExecutor(
+          Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().availableProcessors(),
+          0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+              Thread thread = new Thread(r, "gzip-" + count.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+  private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+    @Override
+    protected Deflater initialValue() {
+      return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    }
+  };
+  private static final Counter members = newCounter(ParallelGzipOutputStream.class, "members");
+  private static final Counter compressedBytes = newCounter(ParallelGzipOutputStream.class, "compressed_bytes");
+  private static final Timer compressTime = Metrics.newTimer(ParallelGzipOutputStream.class, "compress",
+          TimeUnit.MICROSECONDS, TimeUnit.SECONDS);
+
+  static {
+    Metrics.newGauge(ParallelGzipOutputStream.class, "compressors_active", new Gauge<Integer>() {
+      @Override
+      public Integer value() {
+        return compressors.getActiveCount();
+      }
+    });
+    Metrics.newGauge(ParallelGzipOutputStream.class, "compressors_queued", new Gauge<Integer>() {
+      @Override
+      public Integer value() {
+        return compressors.getQueue().size();
+      }
+    });
+  }
+
+  private final OutputStream out;
+  private final File index;
+  private final BlockCodec codec;
+  private final int maxInFlight = Runtime.getRuntime().availableProcessors() * 2;
+  private final ArrayDeque<Future<Member>> inFlight = new ArrayDeque<>();
+  private byte[] buffer = new byte[BLOCK_SIZE];
+  private int count;
+  private boolean closed;
+
+  // Start of every member after the first, in both coordinates
+  private long[] compressedOffsets = new long[64];
+  private long[] uncompressedOffsets = new long[64];
+  private int entries;
+  private long compressed;
+  private long uncompressed;
+
+  /**
+   * @param out   where members are written, in order
+   * @param index where to write the .gzi member table on close, or null for none
+   */
+  public ParallelGzipOutputStream(OutputStream out, File index) throws IOException {
+    this(out, index, BlockCodec.GZIP);
+  }
+
+  /**
+   * @param index where to write the member table on close, or null for none
+   */
+  public ParallelGzipOutputStream(OutputStream out, File index, BlockCodec codec) throws IOException {
+    this.out = out;
+    this.index = index;
+    this.codec = codec;
+    byte[] header = codec.header();
+    out.write(header);
+    compressed = header.length;
+  }
+
+  public ParallelGzipOutputStream(File file) throws IOException {
+    this(new FileOutputStream(file), new File(file.getPath() + ".gzi"));
+  }
+
+  /**
+   * Bytes written to the underlying stream so far.
+   */
+  public synchronized long getCompressedLength() {
+    return compressed;
+  }
+
+  @Override
+  public synchronized void write(int b) throws IOException {
+    if (count == buffer.length) {
+      cut();
+    }
+    buffer[count++] = (byte) b;
+  }
+
+  @Override
+  public synchronized void write(byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      if (count == buffer.length) {
+        cut();
+      }
+      int n = Math.min(len, buffer.length - count);
+      System.arraycopy(b, off, buffer, count, n);
+      count += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  /**
+   * Compresses whatever is buffered as a member and waits for every member to reach
+   * the underlying stream.
+   */
+  @Override
+  public synchronized void flush() throws IOException {
+    if (count > 0) {
+      submit(Arrays.copyOf(buffer, count));
+      count = 0;
+    }
+    drain(true);
+    out.flush();
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    flush();
+    byte[] trailer = codec.trailer();
+    out.write(trailer);
+    compressed += trailer.length;
+    out.close();
+    if (index != null) {
+      writeIndex();
+    }
+  }
+
+  // The buffer is full, hand off everything up to the last newline and keep the rest
+  private void cut() throws IOException {
+    int end = count;
+    while (end > 0 && buffer[end - 1] != '\n') {
+      end--;
+    }
+    if (end == 0) {
+      // A single line longer than a block, it will have to span members
+      end = count;
+    }
+    submit(Arrays.copyOf(buffer, end));
+    System.arraycopy(buffer, end, buffer, 0, count - end);
+    count -= end;
+  }
+
+  private void submit(final byte[] data) throws IOException {
+    inFlight.add(compressors.submit(new Callable<Member>() {
+      @Override
+      public Member call() {
+        long start = System.nanoTime();
+        Member member = new Member(codec.compress(data), data.length);
+        compressTime.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        return member;
+      }
+    }));
+    drain(false);
+  }
+
+  // Writes completed members in order, blocking if we have too many outstanding or were asked to
+  private void drain(boolean all) throws IOException {
+    while (!inFlight.isEmpty() && (all || inFlight.size() > maxInFlight || inFlight.peek().isDone())) {
+      Member member;
+      try {
+        member = inFlight.poll().get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while compressing", e);
+      } catch (ExecutionException e) {
+        throw new IOException("Failed to compress", e.getCause());
+      }
+      if (uncompressed > 0) {
+        addEntry();
+      }
+      out.write(member.bytes);
+      compressed += member.bytes.length;
+      uncompressed += member.uncompressedLength;
+      members.inc();
+      compressedBytes.inc(member.bytes.length);
+    }
+  }
+
+  private void addEntry() {
+    if (entries == compressedOffsets.length) {
+      compressedOffsets = Arrays.copyOf(compressedOffsets, entries * 2);
+      uncompressedOffsets = Arrays.copyOf(uncompressedOffsets, entries * 2);
+    }
+    compressedOffsets[entries] = compressed;
+    uncompressedOffsets[entries] = uncompressed;
+    entries++;
+  }
+
+  private void writeIndex() throws IOException {
+    BlockGzipIndex.write(index, compressedOffsets, uncompressedOffsets, entries);
+  }
+
+  static final class Member {
+    final byte[] bytes;
+    final int uncompressedLength;
+
+    Member(byte[] bytes, int uncompressedLength) {
+      this.bytes = bytes;
+      this.uncompressedLength = uncompressedLength;
+    }
+  }
+
+  static Member compress(byte[] data) {
+    Deflater deflater = deflaters.get();
+    deflater.reset();
+    deflater.setInput(data);
+    deflater.finish();
+    // Raw deflate never grows a block by more than a few bytes per 16k
+    byte[] member = new byte[18 + data.length + data.length / 1000 + 64 + 8];
+    int length = 18;
+    while (!deflater.finished()) {
+      if (length == member.length) {
+        member = Arrays.copyOf(member, member.length * 2);
+      }
+      length += deflater.deflate(member, length, member.length - length);
+    }
+    CRC32 crc = new CRC32();
+    crc.update(data);
+    int total = length + 8;
+    if (member.length < total) {
+      member = Arrays.copyOf(member, total);
+    }
+    // Header: magic, deflate, FEXTRA, no mtime, no xfl, unknown os, then the BC subfield
+    byte[] header = {0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff, 6, 0, 'B', 'C', 2, 0,
+            (byte) (total - 1), (byte) ((total - 1) >> 8)};
+    System.arraycopy(header, 0, member, 0, header.length);
+    putInt(member, length, (int) crc.getValue());
+    putInt(member, length + 4, data.length);
+    return new Member(total == member.length ? member : Arrays.copyOf(member, total), data.length);
+  }
+
+  private static void putInt(byte[] b, int offset, int value) {
+    b[offset] = (byte) value;
+    b[offset + 1] = (byte) (value >> 8);
+    b[offset + 2] = (byte) (value >> 16);
+    b[offset + 3] = (byte) (value >> 24);
+  }
+}
@@ -0,0 +1,360 @@
+package twitterarchiver;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import static twitterarchiver.ParquetFile.BOOLEAN;
+import static twitterarchiver.ParquetFile.BYTE_ARRAY;
+import static twitterarchiver.ParquetFile.DOUBLE;
+import static twitterarchiver.ParquetFile.INT64;
+import static twitterarchiver.ParquetFile.NONE;
+import static twitterarchiver.ParquetFile.OPTIONAL;
+import static twitterarchiver.ParquetFile.REPEATED;
+import static twitterarchiver.ParquetFile.REQUIRED;
+import static twitterarchiver.ParquetFile.TIMESTAMP_MILLIS;
+import static twitterarchiver.ParquetFile.UTF8;
+
+/**
+ * Converts archives, a local copy of the uploaded prefix/yyyy/m/d/h/ tree or a working
+ * directory, into Parquet files with one column per compact record field, for tools
+ * that would otherwise reparse the JSON every time. Each archive becomes a .parquet of
+ * the same name in the same place under the output directory, and archives that
+ * already have one are skipped, so running it again only converts new hours. Files
+ * still being written, with a .ckpt next to them, are left for later.
+ * <p>
+ * Archives are tasks on a fork-join pool, no more at once than there are threads, and
+ * each writes its row groups out as they fill. When there are fewer archives than
+ * threads, every ROW_GROUP_BYTES of records in a block gzipped archive is a subtask
+ * that builds one row group, found through its .gzi, and the archive's share of the
+ * threads is how many are built ahead of the one being written. Archives without a
+ * .gzi, zstd ones included, are read through on one thread. Either way no more than
+ * about twice as many row groups as threads are in memory.
+ */
+public class ParquetExport {
+  // Uncompressed JSON per row group, ends up as a few MB of Parquet
+  private static final long ROW_GROUP_BYTES = 64 * 1024 * 1024;
+
+  // The TweetSerializer fields, with the counters of z and the coordinates of g split out
+  static final List<ParquetFile.Field> SCHEMA = Arrays.asList(
+          new ParquetFile.Field("id", INT64, REQUIRED, NONE),
+          new ParquetFile.Field("user_id", INT64, REQUIRED, NONE),
+          new ParquetFile.Field("text", BYTE_ARRAY, OPTIONAL, UTF8),
+          new ParquetFile.Field("created_at", INT64, OPTIONAL, TIMESTAMP_MILLIS),
+          new ParquetFile.Field("in_reply_to_status_id", INT64, OPTIONAL, NONE),
+          new ParquetFile.Field("retweeted_id", INT64, OPTIONAL, NONE),
+          new ParquetFile.Field("user_mention_ids", INT64, REPEATED, NONE),
+          new ParquetFile.Field("hashtags", BYTE_ARRAY, REPEATED, UTF8),
+          new ParquetFile.Field("urls", BYTE_ARRAY, REPEATED, UTF8),
+          new ParquetFile.Field("media", BYTE_ARRAY, REPEATED, UTF8),
+          new ParquetFile.Field("longitude", DOUBLE, OPTIONAL, NONE),
+          new ParquetFile.Field("latitude", DOUBLE, OPTIONAL, NONE),
+          new ParquetFile.Field("verified", BOOLEAN, REQUIRED, NONE),
+          new ParquetFile.Field("followers", INT64, REQUIRED, NONE),
+          new ParquetFile.Field("friends", INT64, REQUIRED, NONE),
+          new ParquetFile.Field("favourites", INT64, REQUIRED, NONE),
+          new ParquetFile.Field("statuses", INT64, REQUIRED, NONE),
+          new ParquetFile.Field("listed", INT64, REQUIRED, NONE),
+          new ParquetFile.Field("lang", BYTE_ARRAY, OPTIONAL, UTF8));
+
+  private final File output;
+  private final long rowGroupBytes;
+  private final ForkJoinPool pool = new ForkJoinPool();
+  private final AtomicLong files = new AtomicLong();
+  private final AtomicLong exported = new AtomicLong();
+  private final AtomicLong rowGroups = new AtomicLong();
+  private final AtomicLong records = new AtomicLong();
+  // Row groups each archive builds ahead of the one it is writing
+  private int ahead;
+
+  /**
+   * @param output where the tree of .parquet files goes, or null to put each one next
+   *               to its archive
+   */
+  public ParquetExport(File output) {
+    this(output, ROW_GROUP_BYTES);
+  }
+
+  ParquetExport(File output, long rowGroupBytes) {
+    this.output = output;
+    this.rowGroupBytes = rowGroupBytes;
+  }
+
+  /**
+   * Exports every archive under the directory, or a single archive.
+   */
+  public void run(File path) {
+    long start = System.currentTimeMillis();
+    List<File> archives = new ArrayList<>();
+    File root = path.isDirectory() ? path : path.getAbsoluteFile().getParentFile();
+    find(path, archives);
+    final List<ArchiveTask> tasks = new ArrayList<>();
+    for (File archive : archives) {
+      files.incrementAndGet();
+      File target = target(root, archive);
+      if (!target.exists() && !ArchiveRecovery.checkpointFile(archive).exists()) {
+        tasks.add(new ArchiveTask(archive, target));
+      }
+    }
+    final int parallelism = pool.getParallelism();
+    ahead = Math.max(1, parallelism / Math.max(1, Math.min(parallelism, tasks.size())));
+    pool.invoke(new RecursiveAction() {
+      @Override
+      protected void compute() {
+        // A window of archives, the next one starts as the oldest finishes
+        ArrayDeque<ArchiveTask> running = new ArrayDeque<>();
+        for (ArchiveTask task : tasks) {
+          if (running.size() == parallelism) {
+            running.poll().join();
+          }
+          task.fork();
+          running.add(task);
+        }
+        for (ArchiveTask task : running) {
+          task.join();
+        }
+      }
+    });
+    System.err.println("Exported " + exported.get() + " of " + files.get() + " archives, " + records.get()
+            + " records in " + rowGroups.get() + " row groups in " + (System.currentTimeMillis() - start) + "ms");
+  }
+
+  private static void find(File path, List<File> archives) {
+    if (path.isDirectory()) {
+      File[] list = path.listFiles();
+      if (list == null) {
+        System.err.println("Could not list " + path);
+        return;
+      }
+      Arrays.sort(list);
+      for (File file : list) {
+        find(file, archives);
+      }
+    } else if (path.getName().endsWith(".json.gz") || path.getName().endsWith(".json.zst")) {
+      archives.add(path);
+    }
+  }
+
+  private File target(File root, File archive) {
+    String name = archive.getName();
+    name = name.substring(0, name.lastIndexOf(".json.")) + ".parquet";
+    if (output == null) {
+      return new File(archive.getParentFile(), name);
+    }
+    String relative = root.getAbsoluteFile().toPath().relativize(archive.getAbsoluteFile().getParentFile().toPath()).toString();
+    return new File(new File(output, relative), name);
+  }
+
+  // The status on a line of an archive, or null for anything else
+  private static CompactTweet status(JsonFactory jf, byte[] line) {
+    try (JsonParser parser = jf.createJsonParser(line)) {
+      CompactTweet tweet = TweetSerializer.readJson(parser);
+      return tweet != null && tweet.isStatus() ? tweet : null;
+    } catch (IOException e) {
+      // Not a record, or the tail of one that started in the member before
+      return null;
+    }
+  }
+
+  /**
+   * Converts one archive, writing to a temporary file that takes the place of the
+   * export once it is complete.
+   */
+  private class ArchiveTask extends RecursiveAction {
+    private final File archive;
+    private final File target;
+
+    ArchiveTask(File archive, File target) {
+      this.archive = archive;
+      this.target = target;
+    }
+
+    @Override
+    protected void compute() {
+      File temp = new File(target.getPath() + ".tmp");
+      FileOutputStream out = null;
+      try {
+        File gziFile = new File(archive.getPath() + ".gzi");
+        BlockGzipIndex gzi = archive.getName().endsWith(".gz") && gziFile.exists() ? BlockGzipIndex.read(gziFile) : null;
+        target.getParentFile().mkdirs();
+        out = new FileOutputStream(temp);
+        ParquetFile file = new ParquetFile(new BufferedOutputStream(out, 65536), SCHEMA);
+        if (gzi != null) {
+          convert(gzi, file);
+        } else {
+          convert(file);
+        }
+        file.close();
+        if (!temp.renameTo(target)) {
+          throw new IOException("Could not rename " + temp + " to " + target);
+        }
+        exported.incrementAndGet();
+      } catch (IOException | RuntimeException e) {
+        System.err.println("Failed to export " + archive + ": " + e);
+        if (out != null) {
+          try {
+            out.close();
+          } catch (IOException ignored) {
+          }
+        }
+        temp.delete();
+      }
+    }
+
+    // Row groups built by subtasks from ranges of members, a few at a time, written in order
+    private void convert(BlockGzipIndex gzi, ParquetFile file) throws IOException {
+      List<RowGroupTask> groups = new ArrayList<>();
+      int from = 0;
+      for (int i = 1; i <= gzi.members(); i++) {
+        if (i == gzi.members() || gzi.uncompressedOffset(i) - gzi.uncompressedOffset(from) >= rowGroupBytes) {
+          groups.add(new RowGroupTask(archive, gzi, from, i));
+          from = i;
+        }
+      }
+      ArrayDeque<RowGroupTask> building = new ArrayDeque<>();
+      int next = 0;
+      while (next < groups.size() || !building.isEmpty()) {
+        while (next < groups.size() && building.size() < ahead) {
+          RowGroupTask task = groups.get(next++);
+          task.fork();
+          building.add(task);
+        }
+        write(file, building.poll().join());
+      }
+    }
+
+    // Read through on this thread, each row group written once it is full
+    private void convert(ParquetFile file) throws IOException {
+      JsonFactory jf = new JsonFactory();
+      ParquetFile.RowGroup group = new ParquetFile.RowGroup(SCHEMA);
+      long bytes = 0;
+      try (InputStream is = archive.getName().endsWith(".zst") ? ZstdCodec.open(archive)
+              : new GZIPInputStream(new FileInputStream(archive), 65536)) {
+        ArchiveIndex.LineReader lines = new ArchiveIndex.LineReader(is);
+        byte[] line;
+        while ((line = lines.next()) != null) {
+          bytes += line.length + 1;
+          CompactTweet tweet = status(jf, line);
+          if (tweet != null) {
+            add(group, tweet);
+          }
+          if (bytes >= rowGroupBytes) {
+            write(file, group);
+            group = new ParquetFile.RowGroup(SCHEMA);
+            bytes = 0;
+          }
+        }
+      }
+      write(file, group);
+    }
+
+    private void write(ParquetFile file, ParquetFile.RowGroup group) throws IOException {
+      file.write(group);
+      if (group.rows > 0) {
+        rowGroups.incrementAndGet();
+        records.addAndGet(group.rows);
+      }
+    }
+  }
+
+  /**
+   * Reads members [from, to) of an archive into a row group.
+   */
+  private static class RowGroupTask extends RecursiveTask<ParquetFile.RowGroup> {
+    private final File archive;
+    private final BlockGzipIndex gzi;
+    private final int from;
+    private final int to;
+
+    RowGroupTask(File archive, BlockGzipIndex gzi, int from, int to) {
+      this.archive = archive;
+      this.gzi = gzi;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected ParquetFile.RowGroup compute() {
+      ParquetFile.RowGroup group = new ParquetFile.RowGroup(SCHEMA);
+      JsonFactory jf = new JsonFactory();
+      long end = to < gzi.members() ? gzi.uncompressedOffset(to) : Long.MAX_VALUE;
+      long position = gzi.uncompressedOffset(from);
+      // A record can run over into the next member when it is longer than a block
+      try (InputStream is = gzi.open(archive, from, Math.min(to + 1, gzi.members()))) {
+        ArchiveIndex.LineReader lines = new ArchiveIndex.LineReader(is);
+        byte[] line;
+        while (position < end && (line = lines.next()) != null) {
+          position += line.length + 1;
+          CompactTweet tweet = status(jf, line);
+          if (tweet != null) {
+            add(group, tweet);
+          }
+        }
+      } catch (IOException e) {
+        throw new IllegalStateException("Could not read " + archive, e);
+      }
+      return group;
+    }
+  }
+
+  // One row, the columns in SCHEMA order
+  static void add(ParquetFile.RowGroup group, CompactTweet t) {
+    ParquetFile.Column[] c = group.columns;
+    c[0].add(t.id);
+    c[1].add(t.userId);
+    c[2].add(t.text);
+    optional(c[3], t.createdAtMillis);
+    optional(c[4], t.inReplyToStatusId);
+    if (t.retweet) {
+      c[5].add(t.retweetedId);
+    } else {
+      c[5].addNull();
+    }
+    c[6].add(t.mentions);
+    c[7].add(t.hashtags);
+    c[8].add(t.urls);
+    c[9].add(t.media);
+    if (t.geo && t.coordinates != null) {
+      c[10].add(t.coordinates[0]);
+      c[11].add(t.coordinates[1]);
+    } else {
+      c[10].addNull();
+      c[11].addNull();
+    }
+    c[12].add(t.verified);
+    c[13].add(t.followers);
+    c[14].add(t.friends);
+    c[15].add(t.favourites);
+    c[16].add(t.statuses);
+    c[17].add(t.listed);
+    if (t.lang != null) {
+      c[18].add(t.lang);
+    } else {
+      c[18].addNull();
+    }
+    group.endRow();
+  }
+
+  private static void optional(ParquetFile.Column column, long value) {
+    if (value != 0) {
+      column.add(value);
+    } else {
+      column.addNull();
+    }
+  }
+}
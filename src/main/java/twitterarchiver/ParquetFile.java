@@ -0,0 +1,464 @@
+package twitterarchiver;
+
+import com.github.luben.zstd.Zstd;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Just enough of the Parquet format to write flat tables of primitive, optional and
+ * repeated columns without pulling in Hadoop. Row groups are built in memory, each
+ * column a run of zstd compressed v1 data pages of PLAIN values with RLE levels, and
+ * written whole; only the page being filled is kept uncompressed. Row groups can be
+ * built on any thread and written in order.
+ * <pre>
+ * file   := "PAR1" (PageHeader page)* FileMetaData length:int "PAR1"
+ * page   := repetition-levels? definition-levels? values
+ * levels := length:int (run-length:varint value:byte)*
+ * </pre>
+ * with the headers and footer Thrift compact protocol structs and ints little endian.
+ * Repeated columns are bare repeated fields, the legacy list form every reader takes.
+ */
+class ParquetFile {
+  static final byte[] MAGIC = {'P', 'A', 'R', '1'};
+  // Physical types, repetitions and converted types as parquet.thrift numbers them
+  static final int BOOLEAN = 0;
+  static final int INT64 = 2;
+  static final int DOUBLE = 5;
+  static final int BYTE_ARRAY = 6;
+  static final int REQUIRED = 0;
+  static final int OPTIONAL = 1;
+  static final int REPEATED = 2;
+  static final int NONE = -1;
+  static final int UTF8 = 0;
+  static final int TIMESTAMP_MILLIS = 9;
+  private static final int PLAIN = 0;
+  private static final int RLE = 3;
+  private static final int ZSTD = 6;
+  private static final int DATA_PAGE = 0;
+  private static final int LEVEL = 3;
+  // Uncompressed values per page before it is cut
+  private static final int PAGE_BYTES = 1 << 20;
+
+  /**
+   * A column of the schema.
+   */
+  static final class Field {
+    final String name;
+    final int type;
+    final int repetition;
+    final int convertedType;
+
+    Field(String name, int type, int repetition, int convertedType) {
+      this.name = name;
+      this.type = type;
+      this.repetition = repetition;
+      this.convertedType = convertedType;
+    }
+  }
+
+  private final OutputStream out;
+  private final List<Field> fields;
+  private final Thrift footer = new Thrift();
+  private int rowGroups;
+  private long rows;
+  private long position;
+
+  ParquetFile(OutputStream out, List<Field> fields) throws IOException {
+    this.out = out;
+    this.fields = fields;
+    out.write(MAGIC);
+    position = MAGIC.length;
+  }
+
+  RowGroup newRowGroup() {
+    return new RowGroup(fields);
+  }
+
+  /**
+   * Appends a finished row group, the footer keeps its metadata.
+   */
+  void write(RowGroup group) throws IOException {
+    group.finish();
+    if (group.rows == 0) {
+      return;
+    }
+    // RowGroup: columns, total_byte_size, num_rows
+    footer.beginElement();
+    footer.list(1, Thrift.STRUCT, fields.size());
+    long uncompressed = 0;
+    for (int i = 0; i < fields.size(); i++) {
+      Column column = group.columns[i];
+      Field field = fields.get(i);
+      out.write(column.chunk.buffer, 0, column.chunk.length);
+      footer.beginElement();
+      footer.i64(2, position);
+      footer.beginStruct(3);
+      footer.i32(1, field.type);
+      footer.list(2, Thrift.I32, 2);
+      footer.element(PLAIN);
+      footer.element(RLE);
+      footer.list(3, Thrift.BINARY, 1);
+      footer.element(field.name);
+      footer.i32(4, ZSTD);
+      footer.i64(5, column.values);
+      footer.i64(6, column.uncompressed);
+      footer.i64(7, column.chunk.length);
+      footer.i64(9, position);
+      footer.end();
+      footer.end();
+      position += column.chunk.length;
+      uncompressed += column.uncompressed;
+    }
+    footer.i64(2, uncompressed);
+    footer.i64(3, group.rows);
+    footer.end();
+    rowGroups++;
+    rows += group.rows;
+  }
+
+  /**
+   * Writes the footer and closes the stream.
+   */
+  void close() throws IOException {
+    Thrift meta = new Thrift();
+    meta.i32(1, 1);
+    meta.list(2, Thrift.STRUCT, fields.size() + 1);
+    meta.beginElement();
+    meta.string(4, "schema");
+    meta.i32(5, fields.size());
+    meta.end();
+    for (Field field : fields) {
+      meta.beginElement();
+      meta.i32(1, field.type);
+      meta.i32(3, field.repetition);
+      meta.string(4, field.name);
+      if (field.convertedType != NONE) {
+        meta.i32(6, field.convertedType);
+      }
+      meta.end();
+    }
+    meta.i64(3, rows);
+    meta.list(4, Thrift.STRUCT, rowGroups);
+    meta.append(footer);
+    meta.string(6, "twitterarchiver");
+    meta.stop();
+    out.write(meta.out.buffer, 0, meta.out.length);
+    writeIntLE(out, meta.out.length);
+    out.write(MAGIC);
+    out.close();
+  }
+
+  /**
+   * Rows added a column at a time: every column gets exactly one add call per row, a
+   * list for repeated columns, then endRow().
+   */
+  static final class RowGroup {
+    final Column[] columns;
+    int rows;
+
+    RowGroup(List<Field> fields) {
+      columns = new Column[fields.size()];
+      for (int i = 0; i < columns.length; i++) {
+        columns[i] = new Column(fields.get(i));
+      }
+    }
+
+    void endRow() {
+      rows++;
+      for (Column column : columns) {
+        // Only between rows, so a repeated value never spans pages
+        if (column.page.length >= PAGE_BYTES) {
+          column.cut();
+        }
+      }
+    }
+
+    /**
+     * Bytes held, compressed pages and the pages being filled.
+     */
+    long size() {
+      long size = 0;
+      for (Column column : columns) {
+        size += column.chunk.length + column.page.length;
+      }
+      return size;
+    }
+
+    void finish() {
+      for (Column column : columns) {
+        if (column.levels > 0) {
+          column.cut();
+        }
+      }
+    }
+  }
+
+  static final class Column {
+    private final Field field;
+    // PLAIN values of the page being filled and its levels
+    private final ColumnarFormat.Encoder page = new ColumnarFormat.Encoder();
+    private byte[] definitions = new byte[1024];
+    private byte[] repetitions = new byte[1024];
+    private int levels;
+    private int bits;
+    // Finished pages, headers included
+    private final ColumnarFormat.Encoder chunk = new ColumnarFormat.Encoder();
+    private final ColumnarFormat.Encoder body = new ColumnarFormat.Encoder();
+    private long values;
+    private long uncompressed;
+
+    Column(Field field) {
+      this.field = field;
+    }
+
+    void add(long value) {
+      level(1, 0);
+      writeLongLE(page, value);
+    }
+
+    void add(double value) {
+      level(1, 0);
+      writeLongLE(page, Double.doubleToLongBits(value));
+    }
+
+    void add(boolean value) {
+      level(1, 0);
+      // Bit packed, least significant bit first
+      if ((bits & 7) == 0) {
+        page.writeByte(0);
+      }
+      if (value) {
+        page.buffer[page.length - 1] |= 1 << (bits & 7);
+      }
+      bits++;
+    }
+
+    void add(String value) {
+      level(1, 0);
+      binary(value);
+    }
+
+    void addNull() {
+      level(0, 0);
+    }
+
+    void add(long[] list) {
+      if (list == null || list.length == 0) {
+        addNull();
+        return;
+      }
+      for (int i = 0; i < list.length; i++) {
+        level(1, i == 0 ? 0 : 1);
+        writeLongLE(page, list[i]);
+      }
+    }
+
+    void add(String[] list) {
+      if (list == null || list.length == 0) {
+        addNull();
+        return;
+      }
+      for (int i = 0; i < list.length; i++) {
+        level(1, i == 0 ? 0 : 1);
+        binary(list[i]);
+      }
+    }
+
+    private void binary(String value) {
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      writeIntLE(page, bytes.length);
+      page.ensure(bytes.length);
+      System.arraycopy(bytes, 0, page.buffer, page.length, bytes.length);
+      page.length += bytes.length;
+    }
+
+    private void level(int definition, int repetition) {
+      if (levels == definitions.length) {
+        definitions = Arrays.copyOf(definitions, levels * 2);
+        repetitions = Arrays.copyOf(repetitions, levels * 2);
+      }
+      definitions[levels] = (byte) definition;
+      repetitions[levels] = (byte) repetition;
+      levels++;
+    }
+
+    // Compresses the page being filled onto the chunk
+    private void cut() {
+      body.length = 0;
+      if (field.repetition == REPEATED) {
+        writeLevels(body, repetitions, levels);
+      }
+      if (field.repetition != REQUIRED) {
+        writeLevels(body, definitions, levels);
+      }
+      body.ensure(page.length);
+      System.arraycopy(page.buffer, 0, body.buffer, body.length, page.length);
+      body.length += page.length;
+      byte[] compressed = Zstd.compress(Arrays.copyOf(body.buffer, body.length), LEVEL);
+      Thrift header = new Thrift();
+      header.i32(1, DATA_PAGE);
+      header.i32(2, body.length);
+      header.i32(3, compressed.length);
+      header.beginStruct(5);
+      header.i32(1, levels);
+      header.i32(2, PLAIN);
+      header.i32(3, RLE);
+      header.i32(4, RLE);
+      header.end();
+      header.stop();
+      chunk.ensure(header.out.length + compressed.length);
+      System.arraycopy(header.out.buffer, 0, chunk.buffer, chunk.length, header.out.length);
+      chunk.length += header.out.length;
+      System.arraycopy(compressed, 0, chunk.buffer, chunk.length, compressed.length);
+      chunk.length += compressed.length;
+      uncompressed += header.out.length + body.length;
+      values += levels;
+      page.length = 0;
+      levels = 0;
+      bits = 0;
+    }
+
+    // RLE runs only, levels are 0 or 1 so every value fits a byte
+    private static void writeLevels(ColumnarFormat.Encoder out, byte[] levels, int count) {
+      int start = out.length;
+      writeIntLE(out, 0);
+      int i = 0;
+      while (i < count) {
+        int run = 1;
+        while (i + run < count && levels[i + run] == levels[i]) {
+          run++;
+        }
+        out.writeVarint((long) run << 1);
+        out.writeByte(levels[i]);
+        i += run;
+      }
+      int length = out.length - start - 4;
+      out.buffer[start] = (byte) length;
+      out.buffer[start + 1] = (byte) (length >> 8);
+      out.buffer[start + 2] = (byte) (length >> 16);
+      out.buffer[start + 3] = (byte) (length >> 24);
+    }
+  }
+
+  private static void writeLongLE(ColumnarFormat.Encoder out, long value) {
+    out.ensure(8);
+    for (int i = 0; i < 64; i += 8) {
+      out.buffer[out.length++] = (byte) (value >>> i);
+    }
+  }
+
+  private static void writeIntLE(ColumnarFormat.Encoder out, int value) {
+    out.ensure(4);
+    for (int i = 0; i < 32; i += 8) {
+      out.buffer[out.length++] = (byte) (value >>> i);
+    }
+  }
+
+  private static void writeIntLE(OutputStream out, int value) throws IOException {
+    for (int i = 0; i < 32; i += 8) {
+      out.write(value >>> i);
+    }
+  }
+
+  /**
+   * Thrift compact protocol, the few types the headers and footer use.
+   */
+  static final class Thrift {
+    static final int I32 = 5;
+    static final int I64 = 6;
+    static final int BINARY = 8;
+    static final int LIST = 9;
+    static final int STRUCT = 12;
+
+    final ColumnarFormat.Encoder out = new ColumnarFormat.Encoder();
+    // The last field id written in each enclosing struct, deltas are taken from it
+    private int[] lastIds = new int[8];
+    private int depth;
+
+    private void field(int id, int type) {
+      int delta = id - lastIds[depth];
+      if (delta > 0 && delta <= 15) {
+        out.writeByte(delta << 4 | type);
+      } else {
+        out.writeByte(type);
+        out.writeVarint(ColumnarFormat.zigzag(id));
+      }
+      lastIds[depth] = id;
+    }
+
+    void i32(int id, int value) {
+      field(id, I32);
+      out.writeVarint(ColumnarFormat.zigzag(value));
+    }
+
+    void i64(int id, long value) {
+      field(id, I64);
+      out.writeVarint(ColumnarFormat.zigzag(value));
+    }
+
+    void string(int id, String value) {
+      field(id, BINARY);
+      element(value);
+    }
+
+    void list(int id, int elementType, int size) {
+      field(id, LIST);
+      if (size < 15) {
+        out.writeByte(size << 4 | elementType);
+      } else {
+        out.writeByte(0xF0 | elementType);
+        out.writeVarint(size);
+      }
+    }
+
+    void element(int value) {
+      out.writeVarint(ColumnarFormat.zigzag(value));
+    }
+
+    void element(String value) {
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      out.writeVarint(bytes.length);
+      out.ensure(bytes.length);
+      System.arraycopy(bytes, 0, out.buffer, out.length, bytes.length);
+      out.length += bytes.length;
+    }
+
+    void beginStruct(int id) {
+      field(id, STRUCT);
+      beginElement();
+    }
+
+    /**
+     * A struct in a list, which has no field header of its own.
+     */
+    void beginElement() {
+      if (++depth == lastIds.length) {
+        lastIds = Arrays.copyOf(lastIds, depth * 2);
+      }
+      lastIds[depth] = 0;
+    }
+
+    void end() {
+      out.writeByte(0);
+      depth--;
+    }
+
+    /**
+     * Ends the outermost struct.
+     */
+    void stop() {
+      out.writeByte(0);
+    }
+
+    // Copies elements written to another instance, at the same depth
+    void append(Thrift other) {
+      out.ensure(other.out.length);
+      System.arraycopy(other.out.buffer, 0, out.buffer, out.length, other.out.length);
+      out.length += other.out.length;
+    }
+  }
+}
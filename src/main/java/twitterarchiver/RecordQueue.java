@@ -0,0 +1,156 @@
+package twitterarchiver;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Unbounded lock-free queue of encoded records with any number of producers and a
+ * single consumer. The records are themselves the nodes so offering one is a single
+ * swap and no allocation beyond the record. Producers swap themselves in at the head
+ * and then link the previous head to themselves; the consumer follows the links from
+ * the tail and stops at a link that hasn't been made yet. Records from claim() go back,
+ * buffers and all, to the pool of the thread that claimed them once the consumer has
+ * moved past them, so a steady stream of records allocates nothing. Each producer
+ * thread claims from its own list and takes everything handed back to it in one swap,
+ * the consumer pushes onto that with a CAS, so the pool is lock-free as well and a
+ * pool never holds more records than its thread had in flight at once.
+ */
+class RecordQueue {
+  // Pooled buffers that grew past this are left to the collector
+  private static final int MAX_POOLED = 1 << 16;
+
+  private final AtomicReference<Record> head;
+  private final ThreadLocal<Pool> pools = new ThreadLocal<Pool>() {
+    @Override
+    protected Pool initialValue() {
+      return new Pool();
+    }
+  };
+  // Only touched by the consumer
+  private Record tail;
+
+  RecordQueue() {
+    Record stub = new Record(null);
+    head = new AtomicReference<>(stub);
+    tail = stub;
+  }
+
+  /**
+   * An empty record to write into and offer, from the pool if there is one.
+   */
+  Record claim() {
+    Pool pool = pools.get();
+    Record record = pool.local;
+    if (record == null) {
+      record = pool.returned.getAndSet(null);
+    }
+    if (record != null) {
+      pool.local = record.free;
+      record.free = null;
+    } else {
+      record = new Record(new byte[512]);
+      record.pool = pool;
+    }
+    record.length = 0;
+    record.next = null;
+    return record;
+  }
+
+  void offer(Record record) {
+    Record previous = head.getAndSet(record);
+    Record.NEXT.lazySet(previous, record);
+  }
+
+  /**
+   * Returns the next record or null if there is none yet. Consumer thread only.
+   */
+  Record poll() {
+    Record next = tail.next;
+    if (next == null) {
+      return null;
+    }
+    // The record we return becomes the stub, its data stays readable until the next poll
+    Record done = tail;
+    tail = next;
+    release(done);
+    return next;
+  }
+
+  /**
+   * Gives a record from claim() back to its pool, for one that is never offered. Any thread.
+   */
+  void release(Record record) {
+    Pool pool = record.pool;
+    if (pool != null && record.data.length <= MAX_POOLED) {
+      record.tweet = null;
+      // Only the owner takes from returned, and all of it at once, so pushing can't suffer ABA
+      Record first;
+      do {
+        first = pool.returned.get();
+        record.free = first;
+      } while (!pool.returned.compareAndSet(first, record));
+    }
+  }
+
+  boolean isEmpty() {
+    return tail.next == null && head.get() == tail;
+  }
+
+  /**
+   * One encoded record, usually a single line of the archive, in the first length
+   * bytes of data. Set by the producer before it is offered, read-only after.
+   */
+  static final class Record {
+    static final AtomicReferenceFieldUpdater<Record, Record> NEXT =
+            AtomicReferenceFieldUpdater.newUpdater(Record.class, Record.class, "next");
+
+    byte[] data;
+    int length;
+    // The status the record encodes, if it should be indexed
+    CompactTweet tweet;
+    // System.nanoTime() when what the record encodes was first queued
+    long received;
+    volatile Record next;
+    // The pool of the thread that claimed it, caller's arrays never go to one
+    private Pool pool;
+    // The next record in its pool
+    private Record free;
+
+    Record(byte[] data) {
+      this(data, null, System.nanoTime());
+    }
+
+    Record(byte[] data, CompactTweet tweet, long received) {
+      this.data = data;
+      this.length = data == null ? 0 : data.length;
+      this.tweet = tweet;
+      this.received = received;
+    }
+
+    void write(int b) {
+      if (length == data.length) {
+        data = Arrays.copyOf(data, length * 2);
+      }
+      data[length++] = (byte) b;
+    }
+
+    void write(byte[] b, int off, int len) {
+      if (length + len > data.length) {
+        data = Arrays.copyOf(data, Math.max(length * 2, length + len));
+      }
+      System.arraycopy(b, off, data, length, len);
+      length += len;
+    }
+  }
+
+  /**
+   * The records one producer thread has claimed and got back.
+   */
+  private static final class Pool {
+    // Handed back by the consumer, linked through free
+    final AtomicReference<Record> returned = new AtomicReference<>();
+    // Taken from returned, owner thread only
+    Record local;
+  }
+}
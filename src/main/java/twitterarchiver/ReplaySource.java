@@ -0,0 +1,122 @@
+package twitterarchiver;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.twitter.hbc.core.event.Event;
+import com.yammer.metrics.core.Counter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+
+import static com.yammer.metrics.Metrics.newCounter;
+
+/**
+ * Replays raw line-delimited captures, plain or gzipped, as if they were coming off
+ * the stream. Lines are paced by the timestamps in their status ids: a speed of 1
+ * is real time, 10 is ten times faster and 0 is as fast as the pipeline will go.
+ */
+public class ReplaySource implements IngestSource {
+  private static final Logger log = Logger.getLogger("Replay");
+
+  private final List<File> files;
+  private final double speed;
+  private final JsonFactory jf = new JsonFactory();
+  private final Counter replayed;
+  private volatile boolean running = true;
+
+  /**
+   * @param path  a capture file or a directory of them, replayed in name order
+   * @param speed multiple of real time, 0 for no pacing
+   */
+  public ReplaySource(File path, double speed) {
+    this.speed = speed;
+    if (path.isDirectory()) {
+      File[] list = path.listFiles();
+      Arrays.sort(list);
+      files = new ArrayList<>();
+      for (File file : list) {
+        if (file.isFile()) {
+          files.add(file);
+        }
+      }
+    } else {
+      files = Arrays.asList(path);
+    }
+    replayed = newCounter(ReplaySource.class, "replayed");
+  }
+
+  @Override
+  public void start(final BlockingQueue<String> msgQueue, BlockingQueue<Event> eventQueue) {
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          replay(msgQueue);
+        } catch (Throwable e) {
+          e.printStackTrace();
+        }
+      }
+    }, "ReplaySource").start();
+  }
+
+  @Override
+  public void stop() {
+    running = false;
+  }
+
+  private void replay(BlockingQueue<String> msgQueue) throws IOException, InterruptedException {
+    long start = System.currentTimeMillis();
+    long first = 0;
+    for (File file : files) {
+      log.info("Replaying " + file);
+      try (BufferedReader reader = open(file)) {
+        String line;
+        while (running && (line = reader.readLine()) != null) {
+          if (speed > 0) {
+            long timestamp = timestamp(line);
+            if (timestamp != 0) {
+              if (first == 0) {
+                first = timestamp;
+              }
+              long wait = start + (long) ((timestamp - first) / speed) - System.currentTimeMillis();
+              if (wait > 0) {
+                Thread.sleep(wait);
+              }
+            }
+          }
+          msgQueue.put(line);
+          replayed.inc();
+        }
+      }
+    }
+    log.info("Replay complete: " + replayed.count() + " lines");
+  }
+
+  private long timestamp(String line) {
+    try (JsonParser parser = jf.createJsonParser(line)) {
+      long id = TweetExtractor.peekId(parser);
+      return id == 0 ? 0 : TweetExtractor.snowflakeTimestamp(id);
+    } catch (IOException e) {
+      return 0;
+    }
+  }
+
+  private static BufferedReader open(File file) throws IOException {
+    InputStream is = new FileInputStream(file);
+    if (file.getName().endsWith(".gz")) {
+      is = new GZIPInputStream(is, 65536);
+    }
+    return new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8), 65536);
+  }
+}
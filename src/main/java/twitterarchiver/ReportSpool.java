@@ -0,0 +1,103 @@
+package twitterarchiver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Metrics reports that could not be delivered, kept in order in a file so they can be
+ * sent once the endpoint is back, even after a restart. The file never grows past its
+ * limit: the oldest reports are dropped to make room for new ones.
+ * <pre>
+ * file   := (length:int report)*
+ * </pre>
+ */
+class ReportSpool {
+  private final File file;
+  private final long maxBytes;
+
+  ReportSpool(File file, long maxBytes) {
+    this.file = file;
+    this.maxBytes = maxBytes;
+  }
+
+  boolean isEmpty() {
+    return file.length() == 0;
+  }
+
+  /**
+   * Appends a report, returning how many older ones were dropped to make room for it.
+   */
+  int append(byte[] report, int offset, int length) throws IOException {
+    int dropped = 0;
+    if (file.length() + 4 + length > maxBytes) {
+      List<byte[]> reports = drain();
+      long size = 4 + length;
+      for (byte[] kept : reports) {
+        size += 4 + kept.length;
+      }
+      while (!reports.isEmpty() && size > maxBytes) {
+        size -= 4 + reports.remove(0).length;
+        dropped++;
+      }
+      if (size > maxBytes) {
+        // Too big to keep on its own
+        appendAll(reports);
+        return dropped + 1;
+      }
+      appendAll(reports);
+    }
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), 65536))) {
+      out.writeInt(length);
+      out.write(report, offset, length);
+    }
+    return dropped;
+  }
+
+  /**
+   * Every spooled report, oldest first, leaving the spool empty. A report torn by a
+   * crash while it was being appended is left out.
+   */
+  List<byte[]> drain() throws IOException {
+    List<byte[]> reports = new ArrayList<>();
+    if (!file.exists()) {
+      return reports;
+    }
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536))) {
+      while (true) {
+        byte[] report = new byte[in.readInt()];
+        in.readFully(report);
+        reports.add(report);
+      }
+    } catch (EOFException e) {
+      // The end, or a torn last report
+    }
+    if (!file.delete()) {
+      throw new IOException("Could not empty " + file);
+    }
+    return reports;
+  }
+
+  /**
+   * Puts back reports taken by drain() that still have to be delivered.
+   */
+  void appendAll(List<byte[]> reports) throws IOException {
+    if (reports.isEmpty()) {
+      return;
+    }
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), 65536))) {
+      for (byte[] report : reports) {
+        out.writeInt(report.length);
+        out.write(report);
+      }
+    }
+  }
+}
@@ -0,0 +1,136 @@
+package twitterarchiver;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Preallocated single-producer ring of line slots. A slot can only be reused once
+ * every registered gating sequence has moved past its previous use, so consumers
+ * never see a slot change underneath them. Gating sequences are kept in a
+ * copy-on-write array so stages can come and go without a global lock.
+ */
+class RingBuffer {
+
+  static final class Slot {
+    // Written by the producer before the cursor is advanced, with when the line was queued and published
+    String line;
+    long received;
+    long published;
+    // Written by the parse stage before parsed is advanced
+    TwitterFeedEvent event;
+    volatile long parsed = -1;
+  }
+
+  private final Slot[] slots;
+  private final int mask;
+  private final Sequence cursor = new Sequence(-1);
+  private final AtomicReference<Sequence[]> gating = new AtomicReference<Sequence[]>(new Sequence[0]);
+
+  // Only touched by the producer thread
+  private long next = 0;
+  private long cachedGate = -1;
+
+  RingBuffer(int size) {
+    if (Integer.bitCount(size) != 1) {
+      throw new IllegalArgumentException("Ring size must be a power of 2: " + size);
+    }
+    slots = new Slot[size];
+    for (int i = 0; i < size; i++) {
+      slots[i] = new Slot();
+    }
+    mask = size - 1;
+  }
+
+  int size() {
+    return slots.length;
+  }
+
+  Slot get(long sequence) {
+    return slots[(int) (sequence & mask)];
+  }
+
+  long cursor() {
+    return cursor.get();
+  }
+
+  /**
+   * Claims the next sequence for the producer or returns -1 if the slot is still
+   * in use by one of the gating stages.
+   */
+  long tryNext() {
+    long wrapPoint = next - slots.length;
+    if (wrapPoint > cachedGate) {
+      long min = minimumGatingSequence(next - 1);
+      cachedGate = min;
+      if (wrapPoint > min) {
+        return -1;
+      }
+    }
+    return next++;
+  }
+
+  void publish(long sequence) {
+    cursor.set(sequence);
+  }
+
+  /**
+   * Adds a stage that the producer must wait for. The sequence is positioned at the
+   * current cursor so the stage only sees lines published after it was added.
+   */
+  void addGatingSequence(Sequence sequence) {
+    sequence.set(cursor.get());
+    Sequence[] current, updated;
+    do {
+      current = gating.get();
+      updated = Arrays.copyOf(current, current.length + 1);
+      updated[current.length] = sequence;
+    } while (!gating.compareAndSet(current, updated));
+    // The producer may have wrapped using the old array, so skip anything it published meanwhile
+    sequence.set(cursor.get());
+  }
+
+  void removeGatingSequence(Sequence sequence) {
+    Sequence[] current, updated;
+    do {
+      current = gating.get();
+      int index = -1;
+      for (int i = 0; i < current.length; i++) {
+        if (current[i] == sequence) {
+          index = i;
+          break;
+        }
+      }
+      if (index == -1) {
+        return;
+      }
+      updated = new Sequence[current.length - 1];
+      System.arraycopy(current, 0, updated, 0, index);
+      System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+    } while (!gating.compareAndSet(current, updated));
+  }
+
+  long minimumGatingSequence(long defaultValue) {
+    long min = defaultValue;
+    for (Sequence sequence : gating.get()) {
+      min = Math.min(min, sequence.get());
+    }
+    return min;
+  }
+
+  /**
+   * Progressive back off used by every stage while it waits for work: spin, then
+   * yield, then park briefly so an idle pipeline doesn't burn a core.
+   */
+  static int idle(int counter) {
+    if (counter < 100) {
+      return counter + 1;
+    } else if (counter < 200) {
+      Thread.yield();
+      return counter + 1;
+    } else {
+      LockSupport.parkNanos(100000);
+      return counter;
+    }
+  }
+}
@@ -0,0 +1,20 @@
+package twitterarchiver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Told when StreamProvider is done with a file, while its stream is still open, so
+ * anything buffered for that file can be written out. Called on the appender thread
+ * after every queued record has been written, so the stream can be written directly.
+ */
+public interface RotationListener {
+  public void rotating(String filename, OutputStream stream) throws IOException;
+
+  /**
+   * Told once the file is closed and everything written alongside it is in place, so
+   * it can be uploaded. Also on the appender thread, so don't do the upload here.
+   */
+  default void rotated(String filename) {
+  }
+}
@@ -0,0 +1,122 @@
+package twitterarchiver;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.StorageClass;
+import com.yammer.metrics.core.Counter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.util.regex.Pattern.quote;
+
+/**
+ * The segments an hour was archived as, in order, one line each as they are closed:
+ * <pre>
+ * line := name ' ' records ' ' bytes '\n'
+ * </pre>
+ * with records -1 for a segment recovered after a crash that couldn't be counted.
+ * Kept next to them as prefix, the start of the hour, suffix and .manifest, and
+ * uploaded again each time a segment is added, so the hour in S3 can be read back
+ * without listing it. The length last uploaded is kept in a .uploaded file next to
+ * the manifest, since it is only ever appended to a manifest that is that long is
+ * already in S3.
+ */
+class SegmentManifest {
+  static File fileFor(String prefix, long hour, String suffix) {
+    return new File(prefix + hour + suffix + ".manifest");
+  }
+
+  static void append(File manifest, String segment, long records, long bytes) throws IOException {
+    try (FileOutputStream out = new FileOutputStream(manifest, true)) {
+      out.write((segment + " " + records + " " + bytes + "\n").getBytes(StandardCharsets.UTF_8));
+      out.getFD().sync();
+    }
+  }
+
+  /**
+   * Uploads every manifest here that has grown since it was last uploaded next to its
+   * segments, and deletes those of hours that are over once none of their segments are
+   * left to upload.
+   *
+   * @param current the file being written, whose hour is still going
+   */
+  static void uploadAll(AmazonS3Client client, String prefix, String suffix, String current, Counter uploadedBytes) {
+    uploadAll(new File("."), client, prefix, suffix, current, uploadedBytes);
+  }
+
+  static void uploadAll(File dir, AmazonS3Client client, String prefix, String suffix, String current, Counter uploadedBytes) {
+    Pattern archives = Pattern.compile(quote(prefix) + "([0-9]+)" + quote(suffix));
+    Pattern manifests = Pattern.compile(quote(prefix) + "([0-9]+)" + quote(suffix + ".manifest"));
+    String[] list = dir.list();
+    if (list == null) {
+      return;
+    }
+    long now = Long.MAX_VALUE;
+    if (current != null) {
+      Matcher matcher = archives.matcher(current);
+      if (matcher.matches()) {
+        now = Long.parseLong(matcher.group(1));
+      }
+    }
+    List<Long> waiting = new ArrayList<>();
+    for (String name : list) {
+      Matcher matcher = archives.matcher(name);
+      if (matcher.matches() && !name.equals(current)) {
+        waiting.add(Long.parseLong(matcher.group(1)));
+      }
+    }
+    for (String name : list) {
+      Matcher matcher = manifests.matcher(name);
+      if (!matcher.matches()) {
+        continue;
+      }
+      long hour = Long.parseLong(matcher.group(1));
+      File manifest = new File(dir, name);
+      File uploaded = new File(manifest.getPath() + ".uploaded");
+      long length = manifest.length();
+      if (uploadedLength(uploaded) != length) {
+        PutObjectRequest por = new PutObjectRequest(TwitterFeedUploader.BUCKET,
+                TwitterFeedUploader.keyFor(prefix, hour, name), manifest);
+        por.setStorageClass(StorageClass.ReducedRedundancy);
+        client.putObject(por);
+        uploadedBytes.inc(length);
+        try {
+          Files.write(uploaded.toPath(), String.valueOf(length).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+          // Only means it goes up again next time
+          e.printStackTrace();
+        }
+      }
+      boolean done = now != Long.MAX_VALUE && now >= hour + 3600000l;
+      for (long stamp : waiting) {
+        if (stamp >= hour && stamp < hour + 3600000l) {
+          done = false;
+        }
+      }
+      if (done) {
+        manifest.delete();
+        uploaded.delete();
+      }
+    }
+  }
+
+  // -1 if it hasn't been uploaded yet
+  private static long uploadedLength(File uploaded) {
+    if (!uploaded.exists()) {
+      return -1;
+    }
+    try {
+      return Long.parseLong(new String(Files.readAllBytes(uploaded.toPath()), StandardCharsets.UTF_8).trim());
+    } catch (IOException | NumberFormatException e) {
+      return -1;
+    }
+  }
+}
@@ -0,0 +1,23 @@
+package twitterarchiver;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A position in the dispatch ring. Padded so that the sequences of different
+ * stages, which are written by different threads, do not share a cache line.
+ */
+class Sequence extends AtomicLong {
+  @SuppressWarnings("unused")
+  private long p1, p2, p3, p4, p5, p6, p7;
+
+  Sequence(long initialValue) {
+    super(initialValue);
+  }
+
+  /**
+   * Prevents the padding from being optimized away.
+   */
+  long sumPaddingToPreventOptimisation() {
+    return p1 + p2 + p3 + p4 + p5 + p6 + p7;
+  }
+}
@@ -0,0 +1,114 @@
+package twitterarchiver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Top keys over a sliding window, in memory that doesn't grow with the stream. The
+ * window is a ring of slices, each with a count-min sketch of everything counted in
+ * it and a space-saving summary of its heaviest keys. The candidates for the window
+ * are the keys any slice is tracking and their counts are the sum of the slices'
+ * sketch estimates, so a key that only made one slice's summary is still counted in
+ * the others. Time is event time: the window ends at the newest timestamp seen, a
+ * slice is cleared as the window moves past it and keys older than the window are
+ * ignored.
+ */
+public class SlidingTopK {
+  private final long sliceMillis;
+  private final CountMinSketch[] sketches;
+  private final SpaceSaving[] summaries;
+  private long current = -1;
+  private long late;
+
+  /**
+   * @param slices      slices in the window
+   * @param sliceMillis length of a slice
+   * @param capacity    keys tracked per slice, comfortably more than will be asked for
+   */
+  public SlidingTopK(int slices, long sliceMillis, int capacity) {
+    this.sliceMillis = sliceMillis;
+    sketches = new CountMinSketch[slices];
+    summaries = new SpaceSaving[slices];
+    for (int i = 0; i < slices; i++) {
+      sketches[i] = new CountMinSketch(4, 2048);
+      summaries[i] = new SpaceSaving(capacity);
+    }
+  }
+
+  public synchronized void add(String key, long timestamp) {
+    long slice = timestamp / sliceMillis;
+    if (current < 0) {
+      current = slice;
+    } else if (slice > current) {
+      // Clear every slice the window moves past, at most all of them
+      for (long s = Math.max(current + 1, slice - sketches.length + 1); s <= slice; s++) {
+        int index = (int) (s % sketches.length);
+        sketches[index].clear();
+        summaries[index].clear();
+      }
+      current = slice;
+    } else if (slice <= current - sketches.length) {
+      late++;
+      return;
+    }
+    int index = (int) (slice % sketches.length);
+    sketches[index].add(CountMinSketch.hash(key));
+    summaries[index].offer(key);
+  }
+
+  /**
+   * The k keys with the highest estimated counts in the window, highest first.
+   */
+  public synchronized Map<String, Long> top(int k) {
+    Map<String, Long> estimates = new HashMap<>();
+    for (SpaceSaving summary : summaries) {
+      for (int slot = 0; slot < summary.size(); slot++) {
+        String key = summary.key(slot);
+        if (!estimates.containsKey(key)) {
+          long hash = CountMinSketch.hash(key);
+          long estimate = 0;
+          for (CountMinSketch sketch : sketches) {
+            estimate += sketch.estimate(hash);
+          }
+          estimates.put(key, estimate);
+        }
+      }
+    }
+    List<Map.Entry<String, Long>> entries = new ArrayList<>(estimates.entrySet());
+    Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+      @Override
+      public int compare(Map.Entry<String, Long> o1, Map.Entry<String, Long> o2) {
+        int c = Long.compare(o2.getValue(), o1.getValue());
+        return c != 0 ? c : o1.getKey().compareTo(o2.getKey());
+      }
+    });
+    Map<String, Long> top = new LinkedHashMap<>();
+    for (Map.Entry<String, Long> entry : entries.subList(0, Math.min(k, entries.size()))) {
+      top.put(entry.getKey(), entry.getValue());
+    }
+    return top;
+  }
+
+  /**
+   * Everything counted in the window.
+   */
+  public synchronized long total() {
+    long total = 0;
+    for (CountMinSketch sketch : sketches) {
+      total += sketch.total();
+    }
+    return total;
+  }
+
+  /**
+   * Keys dropped for being older than the window.
+   */
+  public synchronized long late() {
+    return late;
+  }
+}
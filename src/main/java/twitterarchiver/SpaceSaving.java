@@ -0,0 +1,119 @@
+package twitterarchiver;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Space-saving summary of the most frequent keys in a stream, in a fixed number of
+ * slots. A key that is already tracked is counted, a new one takes the slot of the
+ * least counted key and inherits its count as the error bound. Any key seen more
+ * than total/capacity times is guaranteed to be tracked. Slots are kept in an
+ * indexed min-heap by count so both cases are O(log capacity).
+ */
+class SpaceSaving {
+  private final String[] keys;
+  private final long[] counts;
+  private final long[] errors;
+  // heap[i] is a slot, position[slot] is where it is in the heap
+  private final int[] heap;
+  private final int[] position;
+  private final Map<String, Integer> slots;
+  private int size;
+
+  SpaceSaving(int capacity) {
+    keys = new String[capacity];
+    counts = new long[capacity];
+    errors = new long[capacity];
+    heap = new int[capacity];
+    position = new int[capacity];
+    slots = new HashMap<>(capacity * 2);
+  }
+
+  void offer(String key) {
+    Integer slot = slots.get(key);
+    if (slot != null) {
+      counts[slot]++;
+      siftDown(position[slot]);
+    } else if (size < keys.length) {
+      slot = size;
+      keys[slot] = key;
+      counts[slot] = 1;
+      errors[slot] = 0;
+      heap[size] = slot;
+      position[slot] = size;
+      slots.put(key, slot);
+      siftUp(size++);
+    } else {
+      slot = heap[0];
+      slots.remove(keys[slot]);
+      keys[slot] = key;
+      errors[slot] = counts[slot];
+      counts[slot]++;
+      slots.put(key, slot);
+      siftDown(0);
+    }
+  }
+
+  int size() {
+    return size;
+  }
+
+  String key(int slot) {
+    return keys[slot];
+  }
+
+  long count(int slot) {
+    return counts[slot];
+  }
+
+  long error(int slot) {
+    return errors[slot];
+  }
+
+  void clear() {
+    for (int i = 0; i < size; i++) {
+      keys[i] = null;
+    }
+    slots.clear();
+    size = 0;
+  }
+
+  private void siftUp(int i) {
+    while (i > 0) {
+      int parent = (i - 1) >>> 1;
+      if (counts[heap[parent]] <= counts[heap[i]]) {
+        break;
+      }
+      swap(i, parent);
+      i = parent;
+    }
+  }
+
+  private void siftDown(int i) {
+    while (true) {
+      int smallest = i;
+      int left = 2 * i + 1;
+      int right = left + 1;
+      if (left < size && counts[heap[left]] < counts[heap[smallest]]) {
+        smallest = left;
+      }
+      if (right < size && counts[heap[right]] < counts[heap[smallest]]) {
+        smallest = right;
+      }
+      if (smallest == i) {
+        return;
+      }
+      swap(i, smallest);
+      i = smallest;
+    }
+  }
+
+  private void swap(int i, int j) {
+    int a = heap[i];
+    int b = heap[j];
+    heap[i] = b;
+    heap[j] = a;
+    position[b] = i;
+    position[a] = j;
+  }
+}
@@ -0,0 +1,98 @@
+package twitterarchiver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Raw lines a listener has fallen too far behind to queue in memory, appended to a
+ * file by the dispatcher and read back in order by the listener. The file is
+ * truncated whenever the reader catches up so it only grows while a listener is
+ * behind. Left over journals from a previous run are discarded.
+ */
+class SpillJournal {
+  private final File file;
+  private DataOutputStream out;
+  private DataInputStream in;
+  private long written;
+  private long flushed;
+  private long read;
+
+  SpillJournal(File file) {
+    this.file = file;
+    file.delete();
+  }
+
+  /**
+   * Appends the line if the reader hasn't caught up yet, so that nothing overtakes
+   * what is already in the journal.
+   */
+  synchronized boolean appendIfBehind(String line) throws IOException {
+    if (read == written) {
+      return false;
+    }
+    append(line);
+    return true;
+  }
+
+  synchronized void append(String line) throws IOException {
+    if (out == null) {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+    }
+    byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+    written++;
+  }
+
+  /**
+   * The next line or null if the reader has caught up, in which case the file is emptied.
+   */
+  synchronized String next() throws IOException {
+    if (read == written) {
+      reset();
+      return null;
+    }
+    if (read == flushed) {
+      out.flush();
+      flushed = written;
+    }
+    if (in == null) {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+    }
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    read++;
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  synchronized long pending() {
+    return written - read;
+  }
+
+  /**
+   * Discards whatever the reader hasn't read yet, along with the file.
+   */
+  synchronized void close() throws IOException {
+    reset();
+  }
+
+  private void reset() throws IOException {
+    if (out != null) {
+      out.close();
+      out = null;
+    }
+    if (in != null) {
+      in.close();
+      in = null;
+    }
+    written = flushed = read = 0;
+    file.delete();
+  }
+}
@@ -1,80 +1,467 @@
 package twitterarchiver;
 
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.Timer;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.Queue;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.zip.GZIPOutputStream;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.yammer.metrics.Metrics.newCounter;
+import static com.yammer.metrics.Metrics.newHistogram;
+import static com.yammer.metrics.Metrics.newTimer;
+import static java.util.regex.Pattern.quote;
 
 /**
- * Returns the current filename we should use.
+ * Owns the archive files, one an hour, or with setSegments() a run of shorter segments
+ * cut by size, record count or time that never span an hour. Records are appended from any thread onto a lock-free
+ * queue and a single appender thread copies whatever has queued up into one large
+ * buffer and writes it in one go, so concurrent records never interleave and the
+ * output stream is only ever touched by that thread. Rotation happens on the same
+ * thread between batches: listeners get to write out what they have buffered, the
+ * old file is closed and only then does the new file become current. On shutdown
+ * everything queued is written and the last file closed before the JVM exits. Every
+ * few seconds what has been written is flushed, synced and recorded in a .ckpt
+ * manifest, so ArchiveRecovery can finish a file the process died writing the next
+ * time a provider with the same prefix and suffix starts.
+ * <p>
+ * The clock is read once per batch, or per idle pass, and rotation compares it with a
+ * deadline worked out when the file was opened. File names carry the time they were
+ * opened, bumped by a millisecond when needed so they always increase, and each closed
+ * segment is listed in its hour's manifest, see SegmentManifest.
  */
 public class StreamProvider {
+  private static final int BATCH_SIZE = 1 << 18;
+  // Appenders wait rather than let the queue grow without bound if the disk falls behind
+  private static final int MAX_QUEUED = 1 << 16;
+  // How long a record can sit unsynced before a checkpoint is taken
+  private static final long CHECKPOINT_MILLIS = 5000;
 
-  private final Timer timer;
+  private final List<RotationListener> rotationListeners = new CopyOnWriteArrayList<>();
+  private final RecordQueue queue = new RecordQueue();
+  private final AtomicLong queued = new AtomicLong();
+  private final byte[] batch = new byte[BATCH_SIZE];
+  private final Thread appender;
+  private final Counter appended;
+  private final Counter dropped;
+  private final Counter lost;
+  private final Histogram batchSize;
+  private final Timer write;
+  private final Timer endToEnd;
   private String prefix;
-  private String filename;
+  private String suffix;
+  private volatile byte[] header;
+  private volatile String filename;
+  private volatile boolean running = true;
+  // When the current file has to be closed, at the latest, and the hour it belongs to
+  private long deadline;
+  private long hour;
+  // The time in the last file name, names only ever go up
+  private long lastStamp;
+  // Segment limits, 0 for none, and the records written to the current file
+  private long segmentBytes;
+  private long segmentRecords;
+  private long segmentMillis;
+  private long fileRecords;
+  private OutputStream stream;
+  // The file under the stream, and the manifest of checkpoints taken of it
+  private FileOutputStream file;
+  private DataOutputStream checkpoints;
+  private long lastCheckpoint;
+  private boolean dirty;
+  // Point lookup index of the current file and the uncompressed offset of the next record
+  private final ArchiveIndex.Builder index;
+  private long position;
+  // Compresses the files in blocks, or null to write them as is
+  private final BlockCodec codec;
 
   public StreamProvider(String prefix) {
+    this(prefix, ".json.gz");
+  }
+
+  /**
+   * Files whose suffix ends in .gz are block gzipped in parallel with a .gzi member
+   * index written alongside when they are closed, anything else is written as is.
+   * Records appended with their status to a .gz file also get an .idx point lookup
+   * index, see ArchiveIndex.
+   */
+  public StreamProvider(String prefix, String suffix) {
+    this(prefix, suffix, suffix.endsWith(".gz") ? BlockCodec.GZIP : null);
+  }
+
+  /**
+   * Files compressed in blocks in parallel with the codec, or written as is if it is
+   * null. Only gzip files get the .gzi and .idx indexes.
+   */
+  public StreamProvider(String prefix, String suffix, BlockCodec codec) {
     this.prefix = prefix;
-    timer = new Timer();
+    this.suffix = suffix;
+    this.codec = codec;
+    index = codec == BlockCodec.GZIP ? new ArchiveIndex.Builder() : null;
+    appended = newCounter(StreamProvider.class, "appended" + suffix);
+    dropped = newCounter(StreamProvider.class, "dropped" + suffix);
+    // Taken off the queue but never written because the file failed under them
+    lost = newCounter(StreamProvider.class, "lost" + suffix);
+    batchSize = newHistogram(StreamProvider.class, "batch_size" + suffix);
+    // Writing a batch, compression included, and from a line being queued to its record being written
+    write = newTimer(StreamProvider.class, "write" + suffix, TimeUnit.MICROSECONDS, TimeUnit.SECONDS);
+    endToEnd = newTimer(StreamProvider.class, "end_to_end" + suffix, TimeUnit.MICROSECONDS, TimeUnit.SECONDS);
+    Metrics.newGauge(StreamProvider.class, "queued" + suffix, new Gauge<Long>() {
+      @Override
+      public Long value() {
+        return queued.get();
+      }
+    });
+    appender = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        append();
+      }
+    }, "StreamProvider" + suffix);
+    appender.setDaemon(true);
     Runtime.getRuntime().addShutdownHook(new Thread() {
       @Override
       public void run() {
-        OutputStream previousStream = stream;
-        synchronized (StreamProvider.this) {
-          running = false;
-          stream = null;
-        }
         try {
-          Thread.sleep(1000);
-          previousStream.close();
-        } catch (Exception e) {
+          close();
+        } catch (InterruptedException e) {
           e.printStackTrace();
         }
       }
     });
   }
 
-  private boolean running = true;
-  private long last = 0;
-  private OutputStream stream;
+  /**
+   * Recovers files a previous run didn't get to close, opens the first file, so
+   * getFilename() is known, and starts the appender.
+   */
+  public synchronized void start() throws IOException {
+    if (!appender.isAlive() && running) {
+      ArchiveRecovery.recoverAll(prefix, suffix, segmented());
+      lastStamp = lastStamp(new File("."));
+      rotate(System.currentTimeMillis());
+      appender.start();
+    }
+  }
 
-  public synchronized String getFilename() {
+  /**
+   * Writes everything appended so far, closes the current file and stops the appender.
+   */
+  public void close() throws InterruptedException {
+    running = false;
+    if (appender.isAlive()) {
+      appender.join();
+    }
+  }
+
+  public String getFilename() {
     return filename;
   }
 
-  public OutputStream getStream() throws IOException {
-    if (running) {
-      long newlast = (System.currentTimeMillis() / 3600000) * 3600000l; // hour markers
-      if (newlast > last || stream == null) {
-        final OutputStream previousStream = stream;
-        synchronized (this) {
-          last = newlast;
-          // Ensures that it doesn't write over a previous file if you stop and restart
-          filename = prefix + System.currentTimeMillis() + ".json.gz";
-          stream = new GZIPOutputStream(new FileOutputStream(filename));
+  /**
+   * Bytes written at the start of every file this provider opens from now on.
+   */
+  public void setHeader(byte[] header) {
+    this.header = header;
+  }
+
+  /**
+   * Closes files when they reach maxBytes on disk, hold maxRecords or have been open
+   * for the window of millis they were opened in, whichever comes first, as well as
+   * on the hour. 0 leaves that limit off. Windows are aligned to the epoch, so a window
+   * of a minute cuts segments on the minute. Call before start().
+   */
+  public void setSegments(long maxBytes, long maxRecords, long millis) {
+    segmentBytes = maxBytes;
+    segmentRecords = maxRecords;
+    segmentMillis = millis;
+  }
+
+  private boolean segmented() {
+    return segmentBytes > 0 || segmentRecords > 0 || segmentMillis > 0;
+  }
+
+  public void addRotationListener(RotationListener listener) {
+    rotationListeners.add(listener);
+  }
+
+  /**
+   * Queues a record to be written to the current file, waiting if the appender is
+   * far behind. Returns false once the provider has been closed.
+   */
+  public boolean append(byte[] record) {
+    return append(record, null);
+  }
+
+  /**
+   * Queues the record and indexes it by the status it encodes.
+   */
+  public boolean append(byte[] record, CompactTweet tweet) {
+    return append(record, tweet, System.nanoTime());
+  }
+
+  /**
+   * Queues the record, indexed by its status, and times it from when the line it came
+   * from was received, by System.nanoTime().
+   */
+  public boolean append(byte[] record, CompactTweet tweet, long received) {
+    return append(new RecordQueue.Record(record), tweet, received);
+  }
+
+  /**
+   * An empty record to encode into and pass to append(Record, ...), reused once it has
+   * been written.
+   */
+  RecordQueue.Record claim() {
+    return queue.claim();
+  }
+
+  /**
+   * Gives back a record from claim() that won't be appended after all.
+   */
+  void release(RecordQueue.Record record) {
+    queue.release(record);
+  }
+
+  /**
+   * Queues a record from claim() as append(byte[], CompactTweet, long) does.
+   */
+  boolean append(RecordQueue.Record record, CompactTweet tweet, long received) {
+    int idle = 0;
+    while (queued.get() >= MAX_QUEUED && running) {
+      idle = RingBuffer.idle(idle);
+    }
+    if (!running) {
+      dropped.inc();
+      queue.release(record);
+      return false;
+    }
+    record.tweet = tweet;
+    record.received = received;
+    queued.incrementAndGet();
+    queue.offer(record);
+    return true;
+  }
+
+  private void append() {
+    int idle = 0;
+    while (running || !queue.isEmpty()) {
+      int records = 0;
+      boolean written = false;
+      try {
+        long now = System.currentTimeMillis();
+        if (stream == null || full()) {
+          rotate(now);
+        } else if (now >= deadline) {
+          if (fileRecords == 0 && now < hour + 3600000l) {
+            // Nothing came in this window, carry the file over rather than leave an empty segment
+            deadline = deadline(now);
+          } else {
+            rotate(now);
+          }
         }
-        if (previousStream != null) {
-          // Need to wait for the system to stop writing to the old stream
-          timer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-              try {
-                previousStream.close();
-              } catch (IOException e) {
-                e.printStackTrace();
-              }
-            }
-          }, 1000);
+        // A record count limit is kept exactly, the batch stops short of it
+        long room = segmentRecords > 0 ? segmentRecords - fileRecords : Long.MAX_VALUE;
+        int length = 0;
+        // Oldest and newest record in the batch, only they are timed end to end
+        long first = 0;
+        long newest = 0;
+        long start = System.nanoTime();
+        RecordQueue.Record record;
+        while (records < room && (record = queue.poll()) != null) {
+          if (records == 0) {
+            first = record.received;
+          }
+          newest = record.received;
+          records++;
+          byte[] data = record.data;
+          int size = record.length;
+          if (record.tweet != null && index != null) {
+            index.add(record.tweet, position);
+          }
+          position += size;
+          if (length + size > batch.length) {
+            stream.write(batch, 0, length);
+            length = 0;
+          }
+          if (size > batch.length) {
+            stream.write(data, 0, size);
+          } else {
+            System.arraycopy(data, 0, batch, length, size);
+            length += size;
+          }
         }
+        if (records == 0) {
+          if (dirty && now - lastCheckpoint >= CHECKPOINT_MILLIS) {
+            checkpoint();
+          }
+          idle = RingBuffer.idle(idle);
+          continue;
+        }
+        idle = 0;
+        if (length > 0) {
+          stream.write(batch, 0, length);
+        }
+        written = true;
+        long writtenAt = System.nanoTime();
+        write.update(writtenAt - start, TimeUnit.NANOSECONDS);
+        endToEnd.update(writtenAt - first, TimeUnit.NANOSECONDS);
+        if (records > 1) {
+          endToEnd.update(writtenAt - newest, TimeUnit.NANOSECONDS);
+        }
+        dirty = true;
+        fileRecords += records;
+        appended.inc(records);
+        batchSize.update(records);
+        if (now - lastCheckpoint >= CHECKPOINT_MILLIS) {
+          checkpoint();
+        }
+      } catch (IOException | RuntimeException e) {
+        if (records > 0 && !written) {
+          lost.inc(records);
+          System.err.println("Lost " + records + " records writing " + filename);
+        }
+        e.printStackTrace();
+        idle = RingBuffer.idle(idle);
+      } finally {
+        // Whatever became of them they are off the queue, appenders waiting on it must see that
+        queued.addAndGet(-records);
       }
-      return stream;
+    }
+    try {
+      finish();
+    } catch (IOException | RuntimeException e) {
+      e.printStackTrace();
+    }
+  }
+
+  // Whether the current file has reached its size or record limit
+  private boolean full() {
+    if (segmentRecords > 0 && fileRecords >= segmentRecords) {
+      return true;
+    }
+    // Compressed blocks still in flight aren't counted, so a segment can run over a little
+    return segmentBytes > 0 && (stream instanceof ParallelGzipOutputStream
+            ? ((ParallelGzipOutputStream) stream).getCompressedLength() : position) >= segmentBytes;
+  }
+
+  // The end of the window now is in, or of the hour
+  private long deadline(long now) {
+    long end = hour + 3600000l;
+    return segmentMillis > 0 ? Math.min(end, (now / segmentMillis + 1) * segmentMillis) : end;
+  }
+
+  // Closes the current file, if any, and opens the next one. Appender thread only, or before it starts.
+  private void rotate(long now) throws IOException {
+    finish();
+    hour = (now / 3600000) * 3600000l; // hour markers
+    deadline = deadline(now);
+    // Ensures that it doesn't write over a previous file if you stop and restart, and is
+    // current before the file exists so the uploader never mistakes it for a finished one
+    lastStamp = Math.max(now, lastStamp + 1);
+    filename = prefix + lastStamp + suffix;
+    checkpoints = new DataOutputStream(new FileOutputStream(filename + ".ckpt"));
+    file = new FileOutputStream(filename);
+    if (codec == BlockCodec.GZIP) {
+      stream = new ParallelGzipOutputStream(file, new File(filename + ".gzi"));
+    } else if (codec != null) {
+      stream = new ParallelGzipOutputStream(file, null, codec);
     } else {
-      return null;
+      stream = new BufferedOutputStream(file, 65536);
+    }
+    lastCheckpoint = now;
+    dirty = false;
+    position = 0;
+    fileRecords = 0;
+    if (header != null) {
+      stream.write(header);
+      position = header.length;
+    }
+  }
+
+  /**
+   * Gets everything written so far onto the disk, ending at a record boundary since we
+   * are between batches, and records the file length and record offset it got to.
+   */
+  private void checkpoint() throws IOException {
+    stream.flush();
+    file.getFD().sync();
+    checkpoints.writeLong(file.getChannel().position());
+    checkpoints.writeLong(position);
+    checkpoints.flush();
+    lastCheckpoint = System.currentTimeMillis();
+    dirty = false;
+  }
+
+  private void finish() throws IOException {
+    if (stream != null) {
+      OutputStream previousStream = stream;
+      stream = null;
+      for (RotationListener listener : rotationListeners) {
+        try {
+          listener.rotating(filename, previousStream);
+        } catch (IOException | RuntimeException e) {
+          e.printStackTrace();
+        }
+      }
+      previousStream.close();
+      if (index != null && !index.isEmpty()) {
+        // Offsets only map to members once the .gzi is written on close
+        try {
+          index.write(new File(filename + ".idx"), BlockGzipIndex.read(new File(filename + ".gzi")));
+        } catch (IOException e) {
+          e.printStackTrace();
+        } finally {
+          index.reset();
+        }
+      }
+      // Closed cleanly, nothing to recover
+      checkpoints.close();
+      ArchiveRecovery.checkpointFile(new File(filename)).delete();
+      if (segmented()) {
+        try {
+          SegmentManifest.append(SegmentManifest.fileFor(prefix, hour, suffix), filename, fileRecords,
+                  new File(filename).length());
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+      for (RotationListener listener : rotationListeners) {
+        // One listener failing mustn't keep the others from hearing of it, or stop the appender
+        try {
+          listener.rotated(filename);
+        } catch (RuntimeException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+  }
+
+  // The time in the name of the newest file already here, so a restart never reuses or goes back on it
+  private long lastStamp(File dir) {
+    final Pattern files = Pattern.compile(quote(prefix) + "([0-9]+)" + quote(suffix));
+    long last = 0;
+    String[] list = dir.list();
+    if (list != null) {
+      for (String name : list) {
+        Matcher matcher = files.matcher(name);
+        if (matcher.matches()) {
+          last = Math.max(last, Long.parseLong(matcher.group(1)));
+        }
+      }
     }
+    return last;
   }
 }
@@ -0,0 +1,89 @@
+package twitterarchiver;
+
+import com.yammer.metrics.core.Timer;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded line queue that remembers when each line was queued, so the time lines
+ * spend waiting can be measured even though the sources only deal in plain strings.
+ * The times are kept in a ring alongside the queue: producers are serialized with each
+ * other and write the time before the line is queued, and the single consumer reads
+ * it back after taking the line, from the slot the queue's FIFO order says is its.
+ * The ring has one slot more than the queue holds so a producer about to queue
+ * a line never overwrites the time of one the consumer has yet to take. Only put,
+ * offer, take and poll keep the two in step, nothing else may be used to move lines.
+ */
+class TimedQueue extends LinkedBlockingQueue<String> {
+  private final long[] queued;
+  private final Timer wait;
+  // Only touched by producers, under the producer lock
+  private long produced;
+  // Only touched by the consumer
+  private long consumed;
+  private long lastQueued;
+
+  TimedQueue(int capacity, Timer wait) {
+    super(capacity);
+    queued = new long[capacity + 1];
+    this.wait = wait;
+  }
+
+  @Override
+  public synchronized void put(String line) throws InterruptedException {
+    queued[(int) (produced % queued.length)] = System.nanoTime();
+    super.put(line);
+    produced++;
+  }
+
+  @Override
+  public synchronized boolean offer(String line) {
+    queued[(int) (produced % queued.length)] = System.nanoTime();
+    if (super.offer(line)) {
+      produced++;
+      return true;
+    }
+    return false;
+  }
+
+  @Override
+  public synchronized boolean offer(String line, long timeout, TimeUnit unit) throws InterruptedException {
+    queued[(int) (produced % queued.length)] = System.nanoTime();
+    if (super.offer(line, timeout, unit)) {
+      produced++;
+      return true;
+    }
+    return false;
+  }
+
+  @Override
+  public String take() throws InterruptedException {
+    return taken(super.take());
+  }
+
+  @Override
+  public String poll() {
+    return taken(super.poll());
+  }
+
+  @Override
+  public String poll(long timeout, TimeUnit unit) throws InterruptedException {
+    return taken(super.poll(timeout, unit));
+  }
+
+  /**
+   * The System.nanoTime() the line last taken was queued at. Consumer thread only.
+   */
+  long lastQueued() {
+    return lastQueued;
+  }
+
+  private String taken(String line) {
+    if (line != null) {
+      lastQueued = queued[(int) (consumed++ % queued.length)];
+      wait.update(System.nanoTime() - lastQueued, TimeUnit.NANOSECONDS);
+    }
+    return line;
+  }
+}
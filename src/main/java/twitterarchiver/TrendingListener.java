@@ -0,0 +1,93 @@
+package twitterarchiver;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What is trending over the last hour of statuses: the top hashtags, expanded urls
+ * and mentioned user ids, by when the statuses were created. Each is a SlidingTopK of
+ * twelve five minute slices, so memory stays the same however much comes through.
+ * The top ten of each are gauges and snapshot() has them on demand.
+ */
+public class TrendingListener implements TwitterFeedListener {
+  private static final int SLICES = 12;
+  private static final long SLICE = TimeUnit.MINUTES.toMillis(5);
+  private static final int CAPACITY = 256;
+  private static final int TOP = 10;
+
+  private final SlidingTopK hashtags = new SlidingTopK(SLICES, SLICE, CAPACITY);
+  private final SlidingTopK urls = new SlidingTopK(SLICES, SLICE, CAPACITY);
+  private final SlidingTopK mentions = new SlidingTopK(SLICES, SLICE, CAPACITY);
+
+  public TrendingListener() {
+    gauge("hashtags", hashtags);
+    gauge("urls", urls);
+    gauge("mentions", mentions);
+  }
+
+  private void gauge(String name, final SlidingTopK topK) {
+    Metrics.newGauge(TrendingListener.class, name, new Gauge<Map<String, Long>>() {
+      @Override
+      public Map<String, Long> value() {
+        return topK.top(TOP);
+      }
+    });
+  }
+
+  @Override
+  public void messageReceived(TwitterFeedEvent se) {
+    CompactTweet tweet = se.getTweet();
+    if (tweet == null || !tweet.isStatus()) {
+      return;
+    }
+    long timestamp = TweetExtractor.snowflakeTimestamp(tweet.id);
+    if (tweet.hashtags != null) {
+      for (String hashtag : tweet.hashtags) {
+        hashtags.add(hashtag.toLowerCase(Locale.ROOT), timestamp);
+      }
+    }
+    if (tweet.urls != null) {
+      for (String url : tweet.urls) {
+        urls.add(url, timestamp);
+      }
+    }
+    if (tweet.mentions != null) {
+      for (long mention : tweet.mentions) {
+        mentions.add(String.valueOf(mention), timestamp);
+      }
+    }
+  }
+
+  /**
+   * The top k hashtags, urls and mentions in the window right now.
+   */
+  public Map<String, Map<String, Long>> snapshot(int k) {
+    Map<String, Map<String, Long>> snapshot = new LinkedHashMap<>();
+    snapshot.put("hashtags", hashtags.top(k));
+    snapshot.put("urls", urls.top(k));
+    snapshot.put("mentions", mentions.top(k));
+    return snapshot;
+  }
+
+  public SlidingTopK getHashtags() {
+    return hashtags;
+  }
+
+  public SlidingTopK getUrls() {
+    return urls;
+  }
+
+  public SlidingTopK getMentions() {
+    return mentions;
+  }
+
+  @Override
+  public void tooSlow() {
+
+  }
+}
@@ -0,0 +1,347 @@
+package twitterarchiver;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Pulls the compact schema fields out of a raw status without building a tree.
+ * Anything we don't archive is skipped at the token level.
+ */
+public class TweetExtractor {
+
+  private static final long[] NO_IDS = new long[0];
+  private static final long TWEPOCH = 1288834974657l;
+  private static final ThreadLocal<SimpleDateFormat> formatter = new ThreadLocal<SimpleDateFormat>() {
+    @Override
+    protected SimpleDateFormat initialValue() {
+      // Fri Dec 21 18:14:35 +0000 2012
+      return new SimpleDateFormat("EEE MMM dd HH:mm:ss Z yyyy", Locale.US);
+    }
+  };
+
+  private static final String MONTHS = "JanFebMarAprMayJunJulAugSepOctNovDec";
+
+  /**
+   * Milliseconds since the epoch for a created_at string, or 0 if it is missing or malformed.
+   * The fixed layout Twitter always sends is read in place, anything else goes through
+   * SimpleDateFormat.
+   */
+  public static long parseCreatedAt(String createdAt) {
+    if (createdAt == null) {
+      return 0;
+    }
+    long millis = parseFixed(createdAt);
+    if (millis != Long.MIN_VALUE) {
+      return millis;
+    }
+    try {
+      return formatter.get().parse(createdAt).getTime();
+    } catch (ParseException e) {
+      return 0;
+    }
+  }
+
+  // Fri Dec 21 18:14:35 +0000 2012, or Long.MIN_VALUE if it isn't laid out exactly so
+  private static long parseFixed(String s) {
+    if (s.length() != 30 || s.charAt(3) != ' ' || s.charAt(7) != ' ' || s.charAt(10) != ' ' || s.charAt(13) != ':'
+            || s.charAt(16) != ':' || s.charAt(19) != ' ' || s.charAt(25) != ' ') {
+      return Long.MIN_VALUE;
+    }
+    int month = -1;
+    for (int i = 0; i < 12; i++) {
+      if (s.regionMatches(4, MONTHS, i * 3, 3)) {
+        month = i + 1;
+        break;
+      }
+    }
+    int day = digits(s, 8, 2);
+    int hour = digits(s, 11, 2);
+    int minute = digits(s, 14, 2);
+    int second = digits(s, 17, 2);
+    int offset = digits(s, 21, 4);
+    int year = digits(s, 26, 4);
+    char sign = s.charAt(20);
+    if (month < 0 || day < 1 || day > 31 || hour > 23 || minute > 59 || second > 59 || offset < 0 || year < 0
+            || (sign != '+' && sign != '-')) {
+      return Long.MIN_VALUE;
+    }
+    long offsetMinutes = (offset / 100) * 60 + offset % 100;
+    if (sign == '-') {
+      offsetMinutes = -offsetMinutes;
+    }
+    long seconds = daysFromCivil(year, month, day) * 86400 + hour * 3600 + minute * 60 + second - offsetMinutes * 60;
+    return seconds * 1000;
+  }
+
+  // The non-negative number in the digits at offset, or -1 if any of them isn't one
+  private static int digits(String s, int offset, int count) {
+    int value = 0;
+    for (int i = offset; i < offset + count; i++) {
+      char c = s.charAt(i);
+      if (c < '0' || c > '9') {
+        return -1;
+      }
+      value = value * 10 + c - '0';
+    }
+    return value;
+  }
+
+  // Days since 1970-01-01 of a proleptic Gregorian date, lenient about days past the end of the month
+  static long daysFromCivil(int year, int month, int day) {
+    int y = month <= 2 ? year - 1 : year;
+    int era = (y >= 0 ? y : y - 399) / 400;
+    int yoe = y - era * 400;
+    int doy = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+    int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+    return era * 146097l + doe - 719468;
+  }
+
+  /**
+   * Milliseconds since the epoch encoded in a snowflake status id.
+   */
+  public static long snowflakeTimestamp(long id) {
+    return (id >> 22) + TWEPOCH;
+  }
+
+  /**
+   * Reads just far enough into a line to find the top level id, which comes early
+   * in a status. Returns 0 for messages that don't have one, like deletes.
+   */
+  public static long peekId(JsonParser p) throws IOException {
+    if (p.nextToken() != JsonToken.START_OBJECT) {
+      return 0;
+    }
+    while (p.nextToken() == JsonToken.FIELD_NAME) {
+      String name = p.getCurrentName();
+      JsonToken token = p.nextToken();
+      if (name.equals("id") && token == JsonToken.VALUE_NUMBER_INT) {
+        return p.getLongValue();
+      }
+      p.skipChildren();
+    }
+    return 0;
+  }
+
+  public static CompactTweet extract(JsonParser p) throws IOException {
+    if (p.nextToken() != JsonToken.START_OBJECT) {
+      throw new IOException("Expected an object");
+    }
+    CompactTweet t = new CompactTweet();
+    while (p.nextToken() == JsonToken.FIELD_NAME) {
+      String name = p.getCurrentName();
+      JsonToken token = p.nextToken();
+      switch (name) {
+        case "text":
+          if (token == JsonToken.VALUE_STRING) {
+            t.text = p.getText();
+          }
+          break;
+        case "id":
+          t.id = p.getValueAsLong();
+          break;
+        case "created_at":
+          t.createdAt = p.getValueAsString();
+          break;
+        case "in_reply_to_status_id":
+          t.inReplyToStatusId = p.getValueAsLong();
+          break;
+        case "retweeted_status":
+          if (token == JsonToken.START_OBJECT) {
+            t.retweet = true;
+            t.retweetedId = readId(p);
+          }
+          break;
+        case "entities":
+          if (token == JsonToken.START_OBJECT) {
+            readEntities(p, t);
+          } else {
+            p.skipChildren();
+          }
+          break;
+        case "geo":
+          t.geo = token != JsonToken.VALUE_NULL;
+          p.skipChildren();
+          break;
+        case "coordinates":
+          if (token == JsonToken.START_OBJECT) {
+            t.coordinates = readCoordinates(p);
+          }
+          break;
+        case "user":
+          if (token == JsonToken.START_OBJECT) {
+            readUser(p, t);
+          }
+          break;
+        case "delete":
+          t.delete = true;
+          p.skipChildren();
+          break;
+        default:
+          p.skipChildren();
+      }
+    }
+    return t;
+  }
+
+  // Returns the id of the current object, skipping everything else in it
+  private static long readId(JsonParser p) throws IOException {
+    long id = 0;
+    while (p.nextToken() == JsonToken.FIELD_NAME) {
+      String name = p.getCurrentName();
+      p.nextToken();
+      if (name.equals("id")) {
+        id = p.getValueAsLong();
+      } else {
+        p.skipChildren();
+      }
+    }
+    return id;
+  }
+
+  private static void readEntities(JsonParser p, CompactTweet t) throws IOException {
+    while (p.nextToken() == JsonToken.FIELD_NAME) {
+      String name = p.getCurrentName();
+      JsonToken token = p.nextToken();
+      if (token != JsonToken.START_ARRAY) {
+        p.skipChildren();
+        continue;
+      }
+      switch (name) {
+        case "user_mentions":
+          t.mentions = readIds(p);
+          break;
+        case "hashtags":
+          t.hashtags = readStrings(p, "text", null);
+          break;
+        case "urls":
+          t.urls = readStrings(p, "expanded_url", "url");
+          break;
+        case "media":
+          t.media = readStrings(p, "media_url", null);
+          break;
+        default:
+          p.skipChildren();
+      }
+    }
+  }
+
+  private static long[] readIds(JsonParser p) throws IOException {
+    long[] ids = NO_IDS;
+    int size = 0;
+    while (p.nextToken() == JsonToken.START_OBJECT) {
+      if (size == ids.length) {
+        long[] grown = new long[Math.max(4, size * 2)];
+        System.arraycopy(ids, 0, grown, 0, size);
+        ids = grown;
+      }
+      ids[size++] = readId(p);
+    }
+    if (size == ids.length) {
+      return ids;
+    }
+    long[] trimmed = new long[size];
+    System.arraycopy(ids, 0, trimmed, 0, size);
+    return trimmed;
+  }
+
+  // Reads one string field from each object in an array, falling back to another field if it is missing,
+  // and leaves out objects with neither
+  private static String[] readStrings(JsonParser p, String field, String fallback) throws IOException {
+    List<String> values = null;
+    while (p.nextToken() == JsonToken.START_OBJECT) {
+      String value = null;
+      String fallbackValue = null;
+      while (p.nextToken() == JsonToken.FIELD_NAME) {
+        String name = p.getCurrentName();
+        JsonToken token = p.nextToken();
+        if (token == JsonToken.VALUE_STRING && name.equals(field)) {
+          value = p.getText();
+        } else if (token == JsonToken.VALUE_STRING && name.equals(fallback)) {
+          fallbackValue = p.getText();
+        } else {
+          p.skipChildren();
+        }
+      }
+      if (value == null) {
+        value = fallbackValue;
+      }
+      if (value == null) {
+        continue;
+      }
+      if (values == null) {
+        values = new ArrayList<>(2);
+      }
+      values.add(value);
+    }
+    return values == null ? new String[0] : values.toArray(new String[values.size()]);
+  }
+
+  private static double[] readCoordinates(JsonParser p) throws IOException {
+    double[] coordinates = null;
+    while (p.nextToken() == JsonToken.FIELD_NAME) {
+      String name = p.getCurrentName();
+      JsonToken token = p.nextToken();
+      if (name.equals("coordinates") && token == JsonToken.START_ARRAY) {
+        coordinates = new double[2];
+        int i = 0;
+        while (p.nextToken() != JsonToken.END_ARRAY) {
+          if (i < 2) {
+            coordinates[i] = p.getValueAsDouble();
+          }
+          i++;
+          p.skipChildren();
+        }
+      } else {
+        p.skipChildren();
+      }
+    }
+    return coordinates;
+  }
+
+  private static void readUser(JsonParser p, CompactTweet t) throws IOException {
+    while (p.nextToken() == JsonToken.FIELD_NAME) {
+      String name = p.getCurrentName();
+      JsonToken token = p.nextToken();
+      switch (name) {
+        case "id":
+          t.userId = p.getValueAsLong();
+          break;
+        case "description":
+          if (token == JsonToken.VALUE_STRING) {
+            t.descriptionLength = p.getTextLength();
+          }
+          break;
+        case "verified":
+          t.verified = p.getValueAsBoolean();
+          break;
+        case "followers_count":
+          t.followers = p.getValueAsLong();
+          break;
+        case "friends_count":
+          t.friends = p.getValueAsLong();
+          break;
+        case "favourites_count":
+          t.favourites = p.getValueAsLong();
+          break;
+        case "statuses_count":
+          t.statuses = p.getValueAsLong();
+          break;
+        case "listed_count":
+          t.listed = p.getValueAsLong();
+          break;
+        case "lang":
+          t.lang = p.getValueAsString();
+          break;
+        default:
+          p.skipChildren();
+      }
+    }
+  }
+}
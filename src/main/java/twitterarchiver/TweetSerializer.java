@@ -2,19 +2,24 @@ package twitterarchiver;
 
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
-import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.io.SerializedString;
 import com.fasterxml.jackson.databind.MappingJsonFactory;
 import com.yammer.metrics.core.Counter;
 import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.Timer;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import static com.yammer.metrics.Metrics.newCounter;
 import static com.yammer.metrics.Metrics.newHistogram;
+import static com.yammer.metrics.Metrics.newTimer;
 
 /**
  * Convert twitter JSON to a lightweight, compressed JSON representation.
@@ -34,6 +39,22 @@ public class TweetSerializer implements TwitterFeedListener {
   private static final String VERIFIED = "v";
   private static final String FOLLOWERS_FRIENDS_FAVS_STATUSES_LISTED = "z";
   private static final String LANG = "n";
+  // Encoded once, the generator copies them in as they are
+  private static final SerializedString TEXT_NAME = new SerializedString(TEXT);
+  private static final SerializedString ID_NAME = new SerializedString(ID);
+  private static final SerializedString USER_ID_NAME = new SerializedString(USER_ID);
+  private static final SerializedString CREATED_AT_NAME = new SerializedString(CREATED_AT);
+  private static final SerializedString IN_REPLY_TO_ID_NAME = new SerializedString(IN_REPLY_TO_ID);
+  private static final SerializedString RETWEETED_ID_NAME = new SerializedString(RETWEETED_ID);
+  private static final SerializedString USER_MENTION_IDS_NAME = new SerializedString(USER_MENTION_IDS);
+  private static final SerializedString HASHTAGS_NAME = new SerializedString(HASHTAGS);
+  private static final SerializedString URLS_NAME = new SerializedString(URLS);
+  private static final SerializedString MEDIA_NAME = new SerializedString(MEDIA);
+  private static final SerializedString GEO_NAME = new SerializedString(GEO);
+  private static final SerializedString VERIFIED_NAME = new SerializedString(VERIFIED);
+  private static final SerializedString FOLLOWERS_FRIENDS_FAVS_STATUSES_LISTED_NAME =
+          new SerializedString(FOLLOWERS_FRIENDS_FAVS_STATUSES_LISTED);
+  private static final SerializedString LANG_NAME = new SerializedString(LANG);
 
   private final StreamProvider jsonStreamProvider;
   private final Counter urls;
@@ -50,17 +71,21 @@ public class TweetSerializer implements TwitterFeedListener {
   private final Counter delay;
   private final Histogram descriptionLength;
   private final Histogram tweetLength;
+  private final Timer serialize;
   private final JsonFactory jf = new MappingJsonFactory();
+  private final ThreadLocal<Encoder> encoders = new ThreadLocal<Encoder>() {
+    @Override
+    protected Encoder initialValue() {
+      try {
+        return new Encoder(jf);
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  };
 
   public TweetSerializer(StreamProvider jsonStreamProvider) {
     this.jsonStreamProvider = jsonStreamProvider;
-    formatter = new ThreadLocal<SimpleDateFormat>() {
-      @Override
-      protected SimpleDateFormat initialValue() {
-        // Fri Dec 21 18:14:35 +0000 2012
-        return new SimpleDateFormat("EEE MMM dd HH:mm:ss Z yyyy");
-      }
-    };
     tweets = newCounter(TweetSerializer.class, "tweets");
     urls = newCounter(TweetSerializer.class, "urls");
     dropped = newCounter(TweetSerializer.class, "dropped");
@@ -75,26 +100,33 @@ public class TweetSerializer implements TwitterFeedListener {
     delay = newCounter(TweetSerializer.class, "delay");
     descriptionLength = newHistogram(TweetSerializer.class, "description_length");
     tweetLength = newHistogram(TweetSerializer.class, "tweet_length");
+    serialize = newTimer(TweetSerializer.class, "serialize", TimeUnit.MICROSECONDS, TimeUnit.SECONDS);
   }
 
   @Override
   public void messageReceived(final TwitterFeedEvent se) {
     try {
       // Skip deletes, etc.
-      JsonNode node = se.getNode();
-      if (node != null) {
-        if (node.get("text") != null) {
-          final OutputStream jsonStream = jsonStreamProvider.getStream();
-          if (jsonStream != null) {
-            writeJson(node, jsonStream);
+      CompactTweet tweet = se.getTweet();
+      if (tweet != null) {
+        if (tweet.isStatus()) {
+          long start = System.nanoTime();
+          RecordQueue.Record record = jsonStreamProvider.claim();
+          try {
+            encode(tweet, record);
+          } catch (IOException | RuntimeException e) {
+            jsonStreamProvider.release(record);
+            throw e;
           }
+          serialize.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+          jsonStreamProvider.append(record, tweet, se.getReceived());
         } else {
-          if (node.get("delete") != null) {
+          if (tweet.isDelete()) {
             deletes.inc();
           }
         }
       }
-    } catch (IOException e) {
+    } catch (IOException | RuntimeException e) {
       e.printStackTrace();
     }
   }
@@ -104,127 +136,274 @@ public class TweetSerializer implements TwitterFeedListener {
     dropped.inc();
   }
 
-  ThreadLocal<SimpleDateFormat> formatter;
+  void writeJson(CompactTweet s, OutputStream stream) throws IOException {
+    RecordQueue.Record scratch = encoders.get().scratch;
+    scratch.length = 0;
+    encode(s, scratch);
+    stream.write(scratch.data, 0, scratch.length);
+  }
 
-  private Long getLong(JsonNode node, String name) {
-    JsonNode jsonNode = node.get(name);
-    if (jsonNode == null) {
-      return null;
-    } else {
-      return jsonNode.asLong();
+  /**
+   * One line of the archive, newline included.
+   */
+  byte[] toJson(CompactTweet s) throws IOException {
+    RecordQueue.Record record = new RecordQueue.Record(new byte[512]);
+    record.length = 0;
+    encode(s, record);
+    return Arrays.copyOf(record.data, record.length);
+  }
+
+  /**
+   * Appends one line of the archive, newline included, to the record. Allocates nothing
+   * once the thread's generator exists and the record's buffer is big enough, apart from
+   * formatting the coordinates of a geotagged status. If it throws the record holds
+   * part of a line and the thread gets a new generator, the old one being left inside
+   * the object it was writing.
+   */
+  void encode(CompactTweet s, RecordQueue.Record record) throws IOException {
+    Encoder encoder = encoders.get();
+    encoder.record = record;
+    try {
+      encode(s, encoder);
+    } catch (IOException | RuntimeException e) {
+      encoders.remove();
+      throw e;
+    } finally {
+      encoder.record = null;
     }
   }
 
-  private void writeJson(JsonNode s, OutputStream stream) throws IOException {
+  private void encode(CompactTweet s, Encoder encoder) throws IOException {
     tweets.inc();
-    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-    JsonGenerator g = jf.createGenerator(buffer);
+    JsonGenerator g = encoder.generator;
+    // Yammer histograms allocate on every update, the lengths are sampled instead
+    boolean sampled = (encoder.encoded++ & 15) == 0;
     g.writeStartObject();
-    String text = s.get("text").textValue();
-    g.writeStringField(TEXT, text);
-    tweetLength.update(text.length());
-    long id = getLong(s, "id");
-    long timestamp = (id >> 22) + 1288834974657l;
+    String text = s.text;
+    g.writeFieldName(TEXT_NAME);
+    g.writeString(text);
+    if (sampled) {
+      tweetLength.update(text.length());
+    }
+    long id = s.id;
+    long timestamp = TweetExtractor.snowflakeTimestamp(id);
     delay.inc(System.currentTimeMillis() - timestamp);
-    g.writeNumberField(ID, id);
-    JsonNode u = s.get("user");
-    g.writeNumberField(USER_ID, u.get("id").longValue());
-    try {
-      long created_at = formatter.get().parse(s.get("created_at").textValue()).getTime();
-      g.writeNumberField(CREATED_AT, created_at);
-    } catch (ParseException e) {
-      e.printStackTrace();
+    g.writeFieldName(ID_NAME);
+    g.writeNumber(id);
+    g.writeFieldName(USER_ID_NAME);
+    g.writeNumber(s.userId);
+    if (s.createdAt != null) {
+      long createdAt = TweetExtractor.parseCreatedAt(s.createdAt);
+      if (createdAt != 0) {
+        g.writeFieldName(CREATED_AT_NAME);
+        g.writeNumber(createdAt);
+      }
     }
-    Long inReplyToStatusId = getLong(s, "in_reply_to_status_id");
-    if (inReplyToStatusId != null && inReplyToStatusId != 0) {
+    if (s.inReplyToStatusId != 0) {
       replies.inc();
-      g.writeNumberField(IN_REPLY_TO_ID, inReplyToStatusId);
+      g.writeFieldName(IN_REPLY_TO_ID_NAME);
+      g.writeNumber(s.inReplyToStatusId);
     }
-    JsonNode retweetedStatus = s.get("retweeted_status");
-    if (retweetedStatus != null) {
+    if (s.retweet) {
       retweets.inc();
-      g.writeNumberField(RETWEETED_ID, getLong(retweetedStatus, "id"));
-    }
-    JsonNode entities = s.get("entities");
-    if (entities != null && !entities.isNull()) {
-      JsonNode userMentionEntities = entities.get("user_mentions");
-      if (userMentionEntities != null && userMentionEntities.size() > 0) {
-        g.writeArrayFieldStart(USER_MENTION_IDS);
-        for (JsonNode userMentionEntity : userMentionEntities) {
-          mentions.inc();
-          g.writeNumber(getLong(userMentionEntity, "id"));
-        }
-        g.writeEndArray();
-      }
-      JsonNode hashtagEntities = entities.get("hashtags");
-      if (hashtagEntities != null && hashtagEntities.size() > 0) {
-        g.writeArrayFieldStart(HASHTAGS);
-        for (JsonNode hashtagEntity : hashtagEntities) {
-          hashtags.inc();
-          g.writeString(hashtagEntity.get("text").textValue());
-        }
-        g.writeEndArray();
+      g.writeFieldName(RETWEETED_ID_NAME);
+      g.writeNumber(s.retweetedId);
+    }
+    if (s.mentions != null && s.mentions.length > 0) {
+      g.writeFieldName(USER_MENTION_IDS_NAME);
+      g.writeStartArray();
+      for (long mention : s.mentions) {
+        mentions.inc();
+        g.writeNumber(mention);
       }
-      JsonNode urlEntities = entities.get("urls");
-      if (urlEntities != null && urlEntities.size() > 0) {
-        g.writeArrayFieldStart(URLS);
-        for (JsonNode urlEntity : urlEntities) {
-          urls.inc();
-          JsonNode expandedURL = urlEntity.get("expanded_url");
-          if (expandedURL == null) {
-            g.writeString(urlEntity.get("url").textValue());
-          } else {
-            g.writeString(expandedURL.textValue());
-          }
-        }
-        g.writeEndArray();
+      g.writeEndArray();
+    }
+    if (s.hashtags != null && s.hashtags.length > 0) {
+      g.writeFieldName(HASHTAGS_NAME);
+      g.writeStartArray();
+      for (String hashtag : s.hashtags) {
+        hashtags.inc();
+        g.writeString(hashtag);
       }
-      JsonNode mediaEntities = entities.get("media");
-      if (mediaEntities != null && mediaEntities.size() > 0) {
-        g.writeArrayFieldStart(MEDIA);
-        for (JsonNode mediaEntity : mediaEntities) {
-          media.inc();
-          g.writeString(mediaEntity.get("media_url").textValue());
-        }
-        g.writeEndArray();
+      g.writeEndArray();
+    }
+    if (s.urls != null && s.urls.length > 0) {
+      g.writeFieldName(URLS_NAME);
+      g.writeStartArray();
+      for (String url : s.urls) {
+        urls.inc();
+        g.writeString(url);
       }
+      g.writeEndArray();
     }
-    JsonNode geoLocation = s.get("geo");
-    if (geoLocation != null && !geoLocation.isNull()) {
-      JsonNode coordinates = s.get("coordinates");
-      if (coordinates != null && !coordinates.isNull()) {
-        coordinates = coordinates.get("coordinates");
-        if (coordinates != null && !coordinates.isNull()) {
-          geo.inc();
-          g.writeArrayFieldStart(GEO);
-          g.writeNumber(coordinates.get(0).doubleValue());
-          g.writeNumber(coordinates.get(1).doubleValue());
-          g.writeEndArray();
-        }
+    if (s.media != null && s.media.length > 0) {
+      g.writeFieldName(MEDIA_NAME);
+      g.writeStartArray();
+      for (String mediaUrl : s.media) {
+        media.inc();
+        g.writeString(mediaUrl);
       }
+      g.writeEndArray();
     }
-    JsonNode bio = u.get("description");
-    if (bio == null) {
-      descriptionLength.update(0);
-    } else {
-      descriptionLength.update(bio.textValue().length());
+    if (s.geo && s.coordinates != null) {
+      geo.inc();
+      g.writeFieldName(GEO_NAME);
+      g.writeStartArray();
+      g.writeNumber(s.coordinates[0]);
+      g.writeNumber(s.coordinates[1]);
+      g.writeEndArray();
+    }
+    if (sampled) {
+      descriptionLength.update(s.descriptionLength);
     }
-    if (u.get("verified").asBoolean()) {
+    if (s.verified) {
       verified.inc();
-      g.writeBooleanField(VERIFIED, true);
-    }
-    g.writeArrayFieldStart(FOLLOWERS_FRIENDS_FAVS_STATUSES_LISTED);
-    g.writeNumber(u.get("followers_count").longValue());
-    g.writeNumber(u.get("friends_count").longValue());
-    g.writeNumber(u.get("favourites_count").longValue());
-    g.writeNumber(u.get("statuses_count").longValue());
-    g.writeNumber(u.get("listed_count").longValue());
+      g.writeFieldName(VERIFIED_NAME);
+      g.writeBoolean(true);
+    }
+    g.writeFieldName(FOLLOWERS_FRIENDS_FAVS_STATUSES_LISTED_NAME);
+    g.writeStartArray();
+    g.writeNumber(s.followers);
+    g.writeNumber(s.friends);
+    g.writeNumber(s.favourites);
+    g.writeNumber(s.statuses);
+    g.writeNumber(s.listed);
     g.writeEndArray();
-    g.writeStringField(LANG, u.get("lang").textValue());
+    g.writeFieldName(LANG_NAME);
+    if (s.lang == null) {
+      g.writeNull();
+    } else {
+      g.writeString(s.lang);
+    }
     g.writeEndObject();
     g.flush();
-    buffer.writeTo(stream);
-    stream.write('\n');
+    encoder.record.write('\n');
+  }
+
+  /**
+   * A generator per thread that writes straight into whichever record is being encoded.
+   */
+  private static final class Encoder extends OutputStream {
+    final JsonGenerator generator;
+    // For writeJson, which has no record of its own
+    final RecordQueue.Record scratch = new RecordQueue.Record(new byte[512]);
+    RecordQueue.Record record;
+    int encoded;
+
+    Encoder(JsonFactory jf) throws IOException {
+      generator = jf.createGenerator(this);
+      // One record per line rather than space separated
+      generator.setRootValueSeparator(null);
+    }
+
+    @Override
+    public void write(int b) {
+      record.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      record.write(b, off, len);
+    }
+  }
+
+  /**
+   * Reads back one record written by writeJson, or returns null at the end of the input.
+   * Only the fields that were written are filled in, createdAt is left null in favour
+   * of createdAtMillis.
+   */
+  static CompactTweet readJson(JsonParser p) throws IOException {
+    if (p.nextToken() != JsonToken.START_OBJECT) {
+      return null;
+    }
+    CompactTweet t = new CompactTweet();
+    while (p.nextToken() == JsonToken.FIELD_NAME) {
+      String name = p.getCurrentName();
+      JsonToken token = p.nextToken();
+      switch (name) {
+        case TEXT:
+          t.text = p.getText();
+          break;
+        case ID:
+          t.id = p.getLongValue();
+          break;
+        case USER_ID:
+          t.userId = p.getLongValue();
+          break;
+        case CREATED_AT:
+          t.createdAtMillis = p.getLongValue();
+          break;
+        case IN_REPLY_TO_ID:
+          t.inReplyToStatusId = p.getLongValue();
+          break;
+        case RETWEETED_ID:
+          t.retweet = true;
+          t.retweetedId = p.getLongValue();
+          break;
+        case USER_MENTION_IDS:
+          t.mentions = readLongs(p);
+          break;
+        case HASHTAGS:
+          t.hashtags = readStrings(p);
+          break;
+        case URLS:
+          t.urls = readStrings(p);
+          break;
+        case MEDIA:
+          t.media = readStrings(p);
+          break;
+        case GEO:
+          t.geo = true;
+          t.coordinates = new double[2];
+          p.nextToken();
+          t.coordinates[0] = p.getDoubleValue();
+          p.nextToken();
+          t.coordinates[1] = p.getDoubleValue();
+          p.nextToken();
+          break;
+        case VERIFIED:
+          t.verified = token == JsonToken.VALUE_TRUE;
+          break;
+        case FOLLOWERS_FRIENDS_FAVS_STATUSES_LISTED:
+          long[] z = readLongs(p);
+          t.followers = z[0];
+          t.friends = z[1];
+          t.favourites = z[2];
+          t.statuses = z[3];
+          t.listed = z[4];
+          break;
+        case LANG:
+          t.lang = token == JsonToken.VALUE_NULL ? null : p.getText();
+          break;
+        default:
+          p.skipChildren();
+      }
+    }
+    return t;
+  }
+
+  private static long[] readLongs(JsonParser p) throws IOException {
+    long[] values = new long[5];
+    int count = 0;
+    while (p.nextToken() != JsonToken.END_ARRAY) {
+      if (count == values.length) {
+        values = Arrays.copyOf(values, count * 2);
+      }
+      values[count++] = p.getLongValue();
+    }
+    return count == values.length ? values : Arrays.copyOf(values, count);
+  }
+
+  private static String[] readStrings(JsonParser p) throws IOException {
+    List<String> values = new ArrayList<>(4);
+    JsonToken token;
+    while ((token = p.nextToken()) != JsonToken.END_ARRAY) {
+      // Archives written before entities without a value were left out have nulls
+      if (token != JsonToken.VALUE_NULL) {
+        values.add(p.getText());
+      }
+    }
+    return values.toArray(new String[values.size()]);
   }
 
 }
@@ -2,33 +2,30 @@ package twitterarchiver;
 
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonParser;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.MappingJsonFactory;
-import com.twitter.hbc.ClientBuilder;
-import com.twitter.hbc.core.Client;
-import com.twitter.hbc.core.Constants;
-import com.twitter.hbc.core.Hosts;
-import com.twitter.hbc.core.HttpHosts;
-import com.twitter.hbc.core.endpoint.StatusesSampleEndpoint;
 import com.twitter.hbc.core.event.Event;
-import com.twitter.hbc.core.processor.StringDelimitedProcessor;
-import com.twitter.hbc.httpclient.auth.Authentication;
-import com.twitter.hbc.httpclient.auth.OAuth1;
+import com.twitter.hbc.core.event.EventType;
 import com.yammer.metrics.Metrics;
 import com.yammer.metrics.core.Counter;
 import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.Timer;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
-import java.util.Map;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 /**
@@ -41,10 +38,14 @@ import java.util.logging.Logger;
 public class TwitterFeed {
 
   private static Logger log = Logger.getLogger(TwitterFeed.class.getName());
-  private final Set<TwitterFeedListener> sls = new HashSet<TwitterFeedListener>();
-  private final Map<TwitterFeedListener, AtomicInteger> counts = new HashMap<TwitterFeedListener, AtomicInteger>();
-  private final ExecutorService es = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-  private final JsonFactory jf = new MappingJsonFactory();
+  private static final int RING_SIZE = 1 << 16;
+  private final RingBuffer ring = new RingBuffer(RING_SIZE);
+  private final ConcurrentMap<TwitterFeedListener, ListenerConsumer> consumers = new ConcurrentHashMap<TwitterFeedListener, ListenerConsumer>();
+  private final JsonFactory jf = new JsonFactory();
+  private final List<Connection> connections = new ArrayList<>();
+  private final Sequence[] parsers;
+  private volatile boolean running = true;
+  private volatile DuplicateFilter duplicates;
 
   private String username;
   private String password;
@@ -52,126 +53,602 @@ public class TwitterFeed {
   private int maxWaitTime = 5000;
   private int total;
   private Counter lines;
-  private Counter connections;
-  private AtomicBoolean currentlyConnected = new AtomicBoolean();
+  private Meter parsed;
+  private Timer queueWait;
+  private Timer parse;
+  private Timer ringWait;
+  private Counter connects;
   private Gauge<Integer> connected;
 
-  public TwitterFeed(String consumerKey, String consumerSecret, String token, String secret) {
-    /** Set up your blocking queues: Be sure to size these properly based on expected TPS of your stream */
-    final BlockingQueue<String> msgQueue = new LinkedBlockingQueue<>(100000);
-    final BlockingQueue<Event> eventQueue = new LinkedBlockingQueue<>(1000);
+  public TwitterFeed(String consumerKey, String consumerSecret, String token, String secret) throws IOException {
+    this(new HosebirdSource(consumerKey, consumerSecret, token, secret));
+    start();
+  }
 
-    /** Declare the host you want to connect to, the endpoint, and authentication (basic auth or oauth) */
-    Hosts hosebirdHosts = new HttpHosts(Constants.STREAM_HOST);
-    StatusesSampleEndpoint hosebirdEndpoint = new StatusesSampleEndpoint();
+  public TwitterFeed(IngestSource source) {
+    this(Collections.singletonList(source));
+  }
 
-    // These secrets should be read from a config file
-    Authentication hosebirdAuth = new OAuth1(consumerKey, consumerSecret, token, secret);
+  /**
+   * Sets up the dispatch pipeline with a connection for each source. Each has its own
+   * queues, reader thread and metrics, and the readers merge their lines into the one
+   * ring, keeping the order each connection delivered them in; a status that arrives
+   * on more than one connection is dropped by the duplicate filter once parsed.
+   * Nothing is read from the sources until {@link #start()} so listeners added before
+   * then see every line.
+   */
+  public TwitterFeed(List<? extends IngestSource> sources) {
+    this(sources, new DuplicateFilter());
+  }
 
-    ClientBuilder builder = new ClientBuilder()
-            .name("Sample-Hose-Client")                              // optional: mainly for the logs
-            .hosts(hosebirdHosts)
-            .authentication(hosebirdAuth)
-            .endpoint(hosebirdEndpoint)
-            .processor(new StringDelimitedProcessor(msgQueue))
-            .eventMessageQueue(eventQueue);                          // optional: use this if you want to process client events
+  /**
+   * @param duplicates drops statuses already delivered, sized for the hose, or null
+   *                   to let everything through
+   */
+  public TwitterFeed(List<? extends IngestSource> sources, DuplicateFilter duplicates) {
+    if (sources.isEmpty()) {
+      throw new IllegalArgumentException("No sources");
+    }
+    this.duplicates = duplicates;
+    lines = Metrics.newCounter(TwitterFeed.class, "lines");
+    parsed = Metrics.newMeter(TwitterFeed.class, "parsed", "lines", TimeUnit.SECONDS);
+    // Stage latencies are in microseconds: waiting in msgQueue, waiting in the ring and parsing
+    queueWait = Metrics.newTimer(TwitterFeed.class, "queue_wait", TimeUnit.MICROSECONDS, TimeUnit.SECONDS);
+    ringWait = Metrics.newTimer(TwitterFeed.class, "ring_wait", TimeUnit.MICROSECONDS, TimeUnit.SECONDS);
+    parse = Metrics.newTimer(TwitterFeed.class, "parse", TimeUnit.MICROSECONDS, TimeUnit.SECONDS);
+    Metrics.newGauge(TwitterFeed.class, "msg_queue_depth", new Gauge<Integer>() {
+      @Override
+      public Integer value() {
+        int depth = 0;
+        for (Connection connection : connections) {
+          depth += connection.msgQueue.size();
+        }
+        return depth;
+      }
+    });
+    Metrics.newGauge(TwitterFeed.class, "event_queue_depth", new Gauge<Integer>() {
+      @Override
+      public Integer value() {
+        int depth = 0;
+        for (Connection connection : connections) {
+          depth += connection.eventQueue.size();
+        }
+        return depth;
+      }
+    });
+    connects = Metrics.newCounter(TwitterFeed.class, "connections");
+    connected = Metrics.newGauge(TwitterFeed.class, "connected", new Gauge<Integer>() {
+      @Override
+      public Integer value() {
+        int count = 0;
+        for (Connection connection : connections) {
+          if (connection.connected.get()) {
+            count++;
+          }
+        }
+        return count;
+      }
+    });
+    Metrics.newGauge(TwitterFeed.class, "ring_depth", new Gauge<Long>() {
+      @Override
+      public Long value() {
+        long cursor = ring.cursor();
+        return cursor - ring.minimumGatingSequence(cursor);
+      }
+    });
 
-    Client hosebirdClient = builder.build();
-    // Attempts to establish a connection.
-    hosebirdClient.connect();
+    // The parse stage is striped across the cores, each worker owns every nth slot
+    parsers = new Sequence[Runtime.getRuntime().availableProcessors()];
+    for (int i = 0; i < parsers.length; i++) {
+      parsers[i] = new Sequence(-1);
+      ring.addGatingSequence(parsers[i]);
+      new Thread(new ParseWorker(parsers[i], i, parsers.length), "TwitterFeed-parse-" + i).start();
+    }
 
-    lines = Metrics.newCounter(TwitterFeed.class, "lines");
-    es.submit(new Runnable() {
-                @Override
-                public void run() {
-                  try {
-                    String line;
-                    while ((line = msgQueue.take()) != null) {
-                      if (!line.equals("")) {
-                        lines.inc();
-                        updateListeners(line);
-                      }
-                    }
-                  } catch (Throwable e) {
-                    e.printStackTrace();
-                  }
-                }
-              }
+    for (int i = 0; i < sources.size(); i++) {
+      // A single connection keeps the metric names it always had
+      connections.add(new Connection(sources.get(i), sources.size() == 1 ? "" : "_" + i));
+    }
+  }
+
+  public void start() throws IOException {
+    for (Connection connection : connections) {
+      connection.source.start(connection.msgQueue, connection.eventQueue);
+    }
+  }
+
+  /**
+   * Stops the sources and every stage. Lines still in flight are abandoned.
+   */
+  public void stop() {
+    running = false;
+    for (Connection connection : connections) {
+      connection.stop();
+    }
+    for (ListenerConsumer consumer : consumers.values()) {
+      consumer.stop();
+    }
+  }
 
-    );
+  /**
+   * One source with the queues it delivers to, the threads that drain them and its
+   * own line and connection metrics, on top of the feed wide ones.
+   */
+  private class Connection {
+    private final IngestSource source;
+    /** Set up your blocking queues: Be sure to size these properly based on expected TPS of your stream */
+    private final TimedQueue msgQueue = new TimedQueue(100000, queueWait);
+    private final BlockingQueue<Event> eventQueue = new LinkedBlockingQueue<>(1000);
+    private final AtomicBoolean connected = new AtomicBoolean();
+    private final Counter lines;
+    private final Counter connects;
+    private final Thread reader;
+    private final Thread events;
 
-    es.submit(new Runnable() {
-                @Override
-                public void run() {
-                  Event event;
-                  try {
-                    while ((event = eventQueue.take()) != null) {
-                      System.out.println(event.getMessage());
-                    }
-                  } catch (InterruptedException e) {
-                    e.printStackTrace();
-                  }
+    Connection(IngestSource source, String suffix) {
+      this.source = source;
+      if (suffix.isEmpty()) {
+        lines = null;
+        connects = null;
+      } else {
+        lines = Metrics.newCounter(TwitterFeed.class, "lines" + suffix);
+        connects = Metrics.newCounter(TwitterFeed.class, "connections" + suffix);
+        Metrics.newGauge(TwitterFeed.class, "connected" + suffix, new Gauge<Integer>() {
+          @Override
+          public Integer value() {
+            return connected.get() ? 1 : 0;
+          }
+        });
+        Metrics.newGauge(TwitterFeed.class, "msg_queue_depth" + suffix, new Gauge<Integer>() {
+          @Override
+          public Integer value() {
+            return msgQueue.size();
+          }
+        });
+      }
+
+      reader = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            String line;
+            while ((line = msgQueue.take()) != null) {
+              if (!line.equals("")) {
+                TwitterFeed.this.lines.inc();
+                if (lines != null) {
+                  lines.inc();
                 }
+                publish(line, msgQueue.lastQueued());
               }
+            }
+          } catch (InterruptedException e) {
+            // Stopped
+          } catch (Throwable e) {
+            e.printStackTrace();
+          }
+        }
+      }, "TwitterFeed-reader" + suffix);
+      reader.start();
 
-    );
+      events = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          Event event;
+          try {
+            while ((event = eventQueue.take()) != null) {
+              connectionEvent(event.getEventType());
+              System.out.println(event.getMessage());
+            }
+          } catch (InterruptedException e) {
+            // Stopped
+          }
+        }
+      }, "TwitterFeed-events" + suffix);
+      events.start();
+    }
+
+    // Keeps the connection metrics in step with what the client reports
+    private void connectionEvent(EventType type) {
+      switch (type) {
+        case CONNECTED:
+          TwitterFeed.this.connects.inc();
+          if (connects != null) {
+            connects.inc();
+          }
+          connected.set(true);
+          break;
+        case DISCONNECTED:
+        case CONNECTION_ERROR:
+        case HTTP_ERROR:
+        case STOPPED_BY_USER:
+        case STOPPED_BY_ERROR:
+          connected.set(false);
+          break;
+        default:
+          break;
+      }
+    }
+
+    void stop() {
+      source.stop();
+      reader.interrupt();
+      events.interrupt();
+    }
+  }
+
+  /**
+   * Replaces the filter that drops statuses already delivered, null to let everything through.
+   */
+  public void setDuplicateFilter(DuplicateFilter duplicates) {
+    this.duplicates = duplicates;
   }
 
   public void addEventListener(TwitterFeedListener sl) {
-    synchronized (sls) {
-      sls.add(sl);
-      counts.put(sl, new AtomicInteger(0));
+    addEventListener(sl, ListenerPolicy.DEFAULT);
+  }
+
+  /**
+   * Adds a listener that may fall behind the feed by up to the policy's capacity before
+   * the policy decides what happens to further events.
+   */
+  public synchronized void addEventListener(TwitterFeedListener sl, ListenerPolicy policy) {
+    if (consumers.containsKey(sl)) {
+      return;
     }
+    ListenerConsumer consumer = new ListenerConsumer(sl, policy, suffixFor(sl.getClass()));
+    consumers.put(sl, consumer);
+    ring.addGatingSequence(consumer.sequence);
+    String name = "TwitterFeed-" + sl.getClass().getSimpleName() + consumer.suffix;
+    consumer.thread = new Thread(consumer, name);
+    consumer.thread.start();
+    consumer.worker = new Thread(consumer.new Worker(), name + "-worker");
+    consumer.worker.start();
   }
 
-  public void removeEventListener(TwitterFeedListener sl) {
-    synchronized (sls) {
-      sls.remove(sl);
-      counts.remove(sl);
+  public synchronized void removeEventListener(TwitterFeedListener sl) {
+    ListenerConsumer consumer = consumers.remove(sl);
+    if (consumer != null) {
+      consumer.stop();
+      ring.removeGatingSequence(consumer.sequence);
+      // The gauges read this consumer, a listener registered under the same suffix gets its own
+      for (String gauge : new String[]{"in_flight", "queue_depth", "lag"}) {
+        Metrics.defaultRegistry().removeMetric(sl.getClass(), gauge + consumer.suffix);
+      }
+      consumer.close();
     }
   }
 
-  private static final AtomicInteger totalCount = new AtomicInteger(0);
+  /**
+   * What tells the metrics, threads and spill journal of listeners of the same class
+   * apart: nothing for the first one registered, _2, _3 and so on for the others.
+   */
+  private String suffixFor(Class<? extends TwitterFeedListener> type) {
+    Set<String> taken = new HashSet<>();
+    for (ListenerConsumer consumer : consumers.values()) {
+      if (consumer.listener.getClass() == type) {
+        taken.add(consumer.suffix);
+      }
+    }
+    String suffix = "";
+    for (int i = 2; taken.contains(suffix); i++) {
+      suffix = "_" + i;
+    }
+    return suffix;
+  }
 
-  private void updateListeners(final String line) {
-    synchronized (sls) {
-      if (totalCount.intValue() > 100000) {
-        for (TwitterFeedListener sl : sls) {
-          sl.tooSlow();
+  /**
+   * Called from the reader threads, which take turns since the ring has a single
+   * producer. Listener consumers only hand events off to their own queues so the ring
+   * only fills up when a listener that blocks is behind, or the parse stage is, and
+   * then we wait for it, holding up the other readers too.
+   */
+  private void publish(String line, long received) {
+    synchronized (ring) {
+      claim(line, received);
+    }
+  }
+
+  private void claim(String line, long received) {
+    long sequence;
+    int idle = 0;
+    while ((sequence = ring.tryNext()) == -1 && running) {
+      idle = RingBuffer.idle(idle);
+    }
+    if (sequence == -1) {
+      return;
+    }
+    RingBuffer.Slot slot = ring.get(sequence);
+    slot.line = line;
+    slot.received = received;
+    slot.published = System.nanoTime();
+    ring.publish(sequence);
+  }
+
+  private class ParseWorker implements Runnable {
+    private final Sequence sequence;
+    private final int stripe;
+    private final int stripes;
+
+    ParseWorker(Sequence sequence, int stripe, int stripes) {
+      this.sequence = sequence;
+      this.stripe = stripe;
+      this.stripes = stripes;
+    }
+
+    @Override
+    public void run() {
+      long next = stripe;
+      int idle = 0;
+      while (running) {
+        if (ring.cursor() < next) {
+          idle = RingBuffer.idle(idle);
+          continue;
         }
-      } else {
-        totalCount.incrementAndGet();
-        es.submit(new Runnable() {
+        idle = 0;
+        RingBuffer.Slot slot = ring.get(next);
+        String line = slot.line;
+        TwitterFeedEvent event = null;
+        long start = System.nanoTime();
+        ringWait.update(start - slot.published, TimeUnit.NANOSECONDS);
+        try {
+          JsonParser parser = jf.createJsonParser(line);
+          CompactTweet tweet = TweetExtractor.extract(parser);
+          parser.close();
+          // Copies from a reconnect or an overlapping connection never reach the listeners
+          DuplicateFilter filter = duplicates;
+          if (filter == null || tweet == null || !tweet.isStatus() || !filter.isDuplicate(tweet.id)) {
+            event = new TwitterFeedEvent(tweet, line, slot.received);
+          }
+        } catch (IOException e) {
+          System.err.println("Failed to parse: " + line + ", " + e.getMessage());
+        } catch (Throwable th) {
+          // The slot is still handed on below, a worker that stopped would hold up the ring for good
+          System.err.println("Failed to handle: " + line);
+          th.printStackTrace();
+        }
+        long parsedAt = System.nanoTime();
+        parse.update(parsedAt - start, TimeUnit.NANOSECONDS);
+        if (event != null) {
+          event.parsed = parsedAt;
+        }
+        slot.event = event;
+        slot.parsed = next;
+        parsed.mark();
+        sequence.lazySet(next);
+        next += stripes;
+      }
+    }
+  }
+
+  /**
+   * Each listener has a bounded queue between the ring and the listener. A consumer
+   * thread moves events from the ring onto the queue, applying the listener's policy
+   * when it is full, and a worker thread calls the listener. A listener that blocks
+   * is instead called on virtual threads, the worker starting one per event while
+   * fewer than the policy's concurrency are still running, or without them on a pool
+   * of that many platform threads.
+   */
+  private class ListenerConsumer implements Runnable {
+    private final TwitterFeedListener listener;
+    private final ListenerPolicy policy;
+    private final String suffix;
+    private final Sequence sequence = new Sequence(-1);
+    private final ArrayBlockingQueue<TwitterFeedEvent> queue;
+    private final SpillJournal journal;
+    private final Meter dispatched;
+    private final Counter dropped;
+    private final Counter spilled;
+    private final Timer dispatchWait;
+    private final Timer handle;
+    // Only for listeners with a concurrency above 1
+    private final Semaphore permits;
+    private final Executor threads;
+    private volatile boolean running = true;
+    private Thread thread;
+    private Thread worker;
+
+    ListenerConsumer(TwitterFeedListener listener, ListenerPolicy policy, String suffix) {
+      this.listener = listener;
+      this.policy = policy;
+      this.suffix = suffix;
+      queue = new ArrayBlockingQueue<>(policy.capacity);
+      Class<? extends TwitterFeedListener> type = listener.getClass();
+      journal = policy.overflow == ListenerPolicy.Overflow.SPILL ?
+              new SpillJournal(new File(policy.spillDirectory, "spill-" + type.getName() + suffix + ".journal")) : null;
+      dispatched = Metrics.newMeter(type, "dispatched" + suffix, "events", TimeUnit.SECONDS);
+      dropped = Metrics.newCounter(type, "queue_dropped" + suffix);
+      spilled = Metrics.newCounter(type, "queue_spilled" + suffix);
+      // From being parsed to reaching the listener, and the time the listener takes, in microseconds
+      dispatchWait = Metrics.newTimer(type, "dispatch_wait" + suffix, TimeUnit.MICROSECONDS, TimeUnit.SECONDS);
+      handle = Metrics.newTimer(type, "handle" + suffix, TimeUnit.MICROSECONDS, TimeUnit.SECONDS);
+      if (policy.concurrency > 1) {
+        final int concurrency = policy.concurrency;
+        final Semaphore semaphore = permits = new Semaphore(concurrency);
+        threads = VirtualThreads.executor("TwitterFeed-" + type.getSimpleName() + suffix, concurrency);
+        Metrics.newGauge(type, "in_flight" + suffix, new Gauge<Integer>() {
           @Override
-          public void run() {
-            try {
-              JsonParser parser = jf.createJsonParser(line);
-              final JsonNode node = parser.readValueAsTree();
-              for (final TwitterFeedListener sl : sls) {
-                final AtomicInteger count = counts.get(sl);
-                if (count.intValue() > 10000) {
-                  sl.tooSlow();
-                } else {
-                  count.incrementAndGet();
-                  es.submit(new Runnable() {
-                    public void run() {
-                      try {
-                        sl.messageReceived(new TwitterFeedEvent(node, line));
-                      } finally {
-                        count.decrementAndGet();
-                      }
+          public Integer value() {
+            return concurrency - semaphore.availablePermits();
+          }
+        });
+      } else {
+        permits = null;
+        threads = null;
+      }
+      Metrics.newGauge(type, "queue_depth" + suffix, new Gauge<Long>() {
+        @Override
+        public Long value() {
+          return queue.size() + (journal == null ? 0 : journal.pending());
+        }
+      });
+      Metrics.newGauge(type, "lag" + suffix, new Gauge<Long>() {
+        @Override
+        public Long value() {
+          // Events the listener has yet to see, whether in the ring, its queue or the journal
+          return ring.cursor() - sequence.get() + queue.size() + (journal == null ? 0 : journal.pending());
+        }
+      });
+    }
+
+    void stop() {
+      running = false;
+      if (worker != null) {
+        worker.interrupt();
+      }
+    }
+
+    /**
+     * Once stopped, waits for both threads to finish, unless called from one of them,
+     * and lets go of the journal and the listener's threads.
+     */
+    void close() {
+      for (Thread t : new Thread[]{thread, worker}) {
+        if (t != null && t != Thread.currentThread()) {
+          try {
+            t.join(10000);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            break;
+          }
+        }
+      }
+      if (threads != null) {
+        VirtualThreads.shutdown(threads);
+      }
+      if (journal != null) {
+        try {
+          journal.close();
+        } catch (IOException e) {
+          log.warning("Could not close " + listener.getClass().getName() + suffix + " spill journal: " + e);
+        }
+      }
+    }
+
+    @Override
+    public void run() {
+      long next = sequence.get() + 1;
+      int idle = 0;
+      while (running) {
+        RingBuffer.Slot slot = ring.get(next);
+        if (slot.parsed < next) {
+          idle = RingBuffer.idle(idle);
+          continue;
+        }
+        idle = 0;
+        TwitterFeedEvent event = slot.event;
+        if (event != null) {
+          try {
+            offer(event);
+          } catch (InterruptedException e) {
+            // Stopped
+            return;
+          } catch (IOException e) {
+            // Most likely a full disk, the event is lost but later ones may still fit
+            dropped.inc();
+            log.warning("Could not spill for " + listener.getClass().getName() + suffix + ", dropped: " + e);
+          } catch (Throwable th) {
+            th.printStackTrace();
+          }
+        }
+        // Always handed on, a consumer that stopped would hold up the ring for good
+        sequence.lazySet(next++);
+      }
+    }
+
+    private void offer(TwitterFeedEvent event) throws InterruptedException, IOException {
+      switch (policy.overflow) {
+        case DROP_NEWEST:
+          if (!queue.offer(event)) {
+            dropped.inc();
+            listener.tooSlow();
+          }
+          break;
+        case DROP_OLDEST:
+          while (!queue.offer(event)) {
+            if (queue.poll() != null) {
+              dropped.inc();
+              listener.tooSlow();
+            }
+          }
+          break;
+        case BLOCK:
+          // Holds our place in the ring, which eventually holds up the reader
+          while (!queue.offer(event, 100, TimeUnit.MILLISECONDS)) {
+            if (!running) {
+              return;
+            }
+          }
+          break;
+        case SPILL:
+          // Once anything is on disk everything goes there until the worker has read it back
+          if (journal.appendIfBehind(event.getLine())) {
+            spilled.inc();
+          } else if (!queue.offer(event)) {
+            journal.append(event.getLine());
+            spilled.inc();
+          }
+          break;
+      }
+    }
+
+    /**
+     * Calls the listener with queued events, then anything that was spilled to disk.
+     */
+    private class Worker implements Runnable {
+      @Override
+      public void run() {
+        while (running) {
+          try {
+            TwitterFeedEvent event = queue.poll();
+            if (event == null && journal != null) {
+              String line = journal.next();
+              if (line != null) {
+                // When a spilled line first arrived is lost, it counts from being read back
+                JsonParser parser = jf.createJsonParser(line);
+                event = new TwitterFeedEvent(TweetExtractor.extract(parser), line, System.nanoTime());
+                event.parsed = event.received;
+                parser.close();
+              }
+            }
+            if (event == null) {
+              event = queue.poll(100, TimeUnit.MILLISECONDS);
+            }
+            if (event != null) {
+              if (permits == null) {
+                deliver(event);
+              } else {
+                // Holding back here lets the queue fill and the policy take over
+                permits.acquire();
+                final TwitterFeedEvent blocking = event;
+                threads.execute(new Runnable() {
+                  @Override
+                  public void run() {
+                    try {
+                      deliver(blocking);
+                    } catch (Throwable th) {
+                      th.printStackTrace();
+                    } finally {
+                      permits.release();
                     }
-                  });
-                }
+                  }
+                });
               }
-            } catch (IOException e) {
-              System.err.println("Failed to parse: " + line + ", " + e.getMessage());
-            } finally {
-              totalCount.decrementAndGet();
             }
+          } catch (InterruptedException e) {
+            // Stopped
+          } catch (Throwable th) {
+            th.printStackTrace();
           }
-        });
+        }
+      }
+
+      private void deliver(TwitterFeedEvent event) {
+        long start = System.nanoTime();
+        dispatchWait.update(start - event.parsed, TimeUnit.NANOSECONDS);
+        listener.messageReceived(event);
+        handle.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        dispatched.mark();
       }
     }
   }
-}
\ No newline at end of file
+}
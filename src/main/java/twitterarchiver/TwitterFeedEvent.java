@@ -1,28 +1,68 @@
 package twitterarchiver;
 
+import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MappingJsonFactory;
+
+import java.io.IOException;
 
 /**
- * TODO: Edit this
+ * A line from the feed along with the compact fields extracted from it. The full
+ * JSON tree is only built if a listener asks for it.
  * <p/>
  * User: sam
  * Date: Feb 14, 2010
  * Time: 6:31:02 PM
  */
 public class TwitterFeedEvent {
-  private JsonNode node;
-  private String line;
+  private static final JsonFactory jf = new MappingJsonFactory();
+
+  private final String line;
+  private final CompactTweet tweet;
+  private volatile JsonNode node;
+  // System.nanoTime() when the line was queued, and when it was parsed, for the latency metrics
+  final long received;
+  long parsed;
 
   public String getLine() {
     return line;
   }
 
+  public CompactTweet getTweet() {
+    return tweet;
+  }
+
+  /**
+   * Parses the whole line on first use. Listeners that only need the compact
+   * fields should stick to {@link #getTweet()}.
+   */
   public JsonNode getNode() {
-    return node;
+    JsonNode result = node;
+    if (result == null) {
+      try {
+        result = node = jf.createJsonParser(line).readValueAsTree();
+      } catch (IOException e) {
+        System.err.println("Failed to parse: " + line + ", " + e.getMessage());
+      }
+    }
+    return result;
   }
 
-  public TwitterFeedEvent(JsonNode node, String line) {
-    this.node = node;
+  public TwitterFeedEvent(CompactTweet tweet, String line) {
+    this(tweet, line, System.nanoTime());
+  }
+
+  public TwitterFeedEvent(CompactTweet tweet, String line, long received) {
+    this.tweet = tweet;
     this.line = line;
+    this.received = received;
+    this.parsed = received;
+  }
+
+  /**
+   * When the line was first queued, by System.nanoTime().
+   */
+  public long getReceived() {
+    return received;
   }
-}
\ No newline at end of file
+}
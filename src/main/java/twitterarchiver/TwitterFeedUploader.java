@@ -24,9 +24,14 @@ import static java.util.regex.Pattern.quote;
 
 /**
  * Look in the current directory for files to upload that are not the current file and upload them to S3.
+ * Runs every hour and as soon as the stream provider closes a file, each upload throttled
+ * to take the spread.
  */
 public class TwitterFeedUploader extends TimerTask {
   private static final Logger log = Logger.getLogger("Uploader");
+  static final String BUCKET = "com.sampullara.twitterfeed";
+  // Indexes and sketches that go up next to an archive
+  static final String[] SIDECARS = {".gzi", ".idx", ".hll"};
 
   private final String prefix;
   private final String suffix;
@@ -36,23 +41,81 @@ public class TwitterFeedUploader extends TimerTask {
   private final Counter uploads;
   private final com.yammer.metrics.core.Timer uploadLatency;
   private final Counter uploadedBytes;
+  private final Set<String> dictionaries = new HashSet<>();
+  private long spreadMillis = TimeUnit.MINUTES.toMillis(20);
 
   public TwitterFeedUploader(String prefix, String suffix, StreamProvider streamProvider) {
+    this(prefix, suffix, streamProvider, createClient());
+  }
+
+  TwitterFeedUploader(String prefix, String suffix, StreamProvider streamProvider, AmazonS3Client client) {
     this.prefix = prefix;
     this.suffix = suffix;
     this.streamProvider = streamProvider;
+    this.client = client;
     timer = new Timer("TwitterFeedUploader", true);
+    uploads = newCounter(TwitterFeedUploader.class, "uploads");
+    uploadLatency = Metrics.newTimer(TwitterFeedUploader.class, "upload_latency");
+    uploadedBytes = newCounter(TwitterFeedUploader.class, "uploaded_bytes");
+    streamProvider.addRotationListener(new RotationListener() {
+      @Override
+      public void rotating(String filename, OutputStream stream) {
+      }
+
+      @Override
+      public void rotated(String filename) {
+        // Queued behind any upload in progress on the timer thread
+        timer.schedule(new TimerTask() {
+          @Override
+          public void run() {
+            TwitterFeedUploader.this.run();
+          }
+        }, 0);
+      }
+    });
+  }
+
+  /**
+   * How long each upload is spread over, 0 to send as fast as possible. Short segments
+   * want less than the default 20 minutes so they keep up.
+   */
+  public void setSpread(long millis) {
+    spreadMillis = millis;
+  }
+
+  /**
+   * Credentials come from auth.properties, along with an optional s3.endpoint to use
+   * instead of AWS. Give a local stand-in an IP address, http://127.0.0.1:9000, so that
+   * requests are path style rather than using the bucket as a host name.
+   */
+  static AmazonS3Client createClient() {
     try {
       Properties awsCredentials = new Properties();
       awsCredentials.load(TwitterFeedUploader.class.getResourceAsStream("/auth.properties"));
       AWSCredentials credentials = new BasicAWSCredentials(awsCredentials.getProperty("accessKey"), awsCredentials.getProperty("secretKey"));
-      client = new AmazonS3Client(credentials);
-    } catch (IOException e) {
+      AmazonS3Client client = new AmazonS3Client(credentials);
+      String endpoint = awsCredentials.getProperty("s3.endpoint");
+      if (endpoint != null) {
+        client.setEndpoint(endpoint);
+      }
+      return client;
+    } catch (IOException | NullPointerException e) {
       throw new AssertionError("No credentials found");
     }
-    uploads = newCounter(TwitterFeedUploader.class, "uploads");
-    uploadLatency = Metrics.newTimer(TwitterFeedUploader.class, "upload_latency");
-    uploadedBytes = newCounter(TwitterFeedUploader.class, "uploaded_bytes");
+  }
+
+  /**
+   * Archives are stored under prefix/year/month/day/hour/ by the timestamp in their name.
+   */
+  static String keyFor(String prefix, long timestamp, String name) {
+    Calendar cal = GregorianCalendar.getInstance();
+    cal.setTimeInMillis(timestamp);
+    File prefixDir = new File(prefix);
+    File yearDir = new File(prefixDir, String.valueOf(cal.get(Calendar.YEAR)));
+    File monthDir = new File(yearDir, String.valueOf(cal.get(Calendar.MONTH) + 1));
+    File dayDir = new File(monthDir, String.valueOf(cal.get(Calendar.DAY_OF_MONTH)));
+    File hourDir = new File(dayDir, String.valueOf(cal.get(Calendar.HOUR_OF_DAY)));
+    return new File(hourDir, name).toString();
   }
 
   public void start() {
@@ -72,44 +135,24 @@ public class TwitterFeedUploader extends TimerTask {
             @Override
             public boolean accept(File dir, String name) {
               String filename = streamProvider.getFilename();
-              return GET_TIMESTAMP.matcher(name).matches() && !name.equals(filename);
+              // A file with a checkpoint manifest is still open or waiting to be recovered
+              return GET_TIMESTAMP.matcher(name).matches() && !name.equals(filename)
+                      && !new File(dir, name + ".ckpt").exists();
             }
           });
           for (String s : list) {
             Matcher matcher = GET_TIMESTAMP.matcher(s);
             if (matcher.matches()) {
               long timestamp = parseLong(matcher.group(1));
-              Calendar cal = GregorianCalendar.getInstance();
-              cal.setTimeInMillis(timestamp);
-              // Construct filename
-              File prefixDir = new File(prefix);
-              File yearDir = new File(prefixDir, String.valueOf(cal.get(Calendar.YEAR)));
-              File monthDir = new File(yearDir, String.valueOf(cal.get(Calendar.MONTH) + 1));
-              File dayDir = new File(monthDir, String.valueOf(cal.get(Calendar.DAY_OF_MONTH)));
-              File hourDir = new File(dayDir, String.valueOf(cal.get(Calendar.HOUR_OF_DAY)));
-              File s3FileName = new File(hourDir, s);
-              File localFile = new File(s);
-              TimerContext time = uploadLatency.time();
               try {
-                ObjectMetadata metadata = new ObjectMetadata();
-                long length = localFile.length();
-                metadata.setContentLength(length);
-                SlowInputStream sis = new SlowInputStream(new FileInputStream(localFile), length, 20, TimeUnit.MINUTES);
-                PutObjectRequest por = new PutObjectRequest("com.sampullara.twitterfeed", s3FileName.toString(), sis, metadata);
-                por.setStorageClass(StorageClass.ReducedRedundancy);
-                log.info("Uploading " + localFile);
-                client.putObject(por);
-                uploadedBytes.inc(length);
-                uploads.inc();
-                localFile.delete();
-                log.info("Uploaded " + localFile);
-              } catch (FileNotFoundException e) {
+                upload(new File(s), keyFor(prefix, timestamp, s));
+              } catch (Exception e) {
+                // Everything is still on disk for the next run
                 e.printStackTrace();
-              } finally {
-                time.stop();
               }
             }
           }
+          SegmentManifest.uploadAll(client, prefix, suffix, streamProvider.getFilename(), uploadedBytes);
         } finally {
           semaphore.release();
         }
@@ -118,4 +161,86 @@ public class TwitterFeedUploader extends TimerTask {
       th.printStackTrace();
     }
   }
+
+  /**
+   * Uploads an archive with its dictionary and sidecars, the sidecars first so the archive is
+   * never in the bucket without them. Nothing is deleted until all of them are up.
+   */
+  void upload(File localFile, String s3FileName) throws IOException {
+    TimerContext time = uploadLatency.time();
+    try {
+      uploadDictionary(client, dictionaries, localFile, s3FileName, uploadedBytes);
+      uploadSidecars(client, localFile, s3FileName, uploadedBytes);
+      ObjectMetadata metadata = new ObjectMetadata();
+      long length = localFile.length();
+      metadata.setContentLength(length);
+      InputStream is = spreadMillis > 0
+              ? new SlowInputStream(new FileInputStream(localFile), length, (int) spreadMillis, TimeUnit.MILLISECONDS)
+              : new BufferedInputStream(new FileInputStream(localFile), 65536);
+      try {
+        PutObjectRequest por = new PutObjectRequest(BUCKET, s3FileName, is, metadata);
+        por.setStorageClass(StorageClass.ReducedRedundancy);
+        log.info("Uploading " + localFile);
+        client.putObject(por);
+      } finally {
+        is.close();
+      }
+      uploadedBytes.inc(length);
+      uploads.inc();
+      deleteWithSidecars(localFile);
+      log.info("Uploaded " + localFile);
+    } finally {
+      time.stop();
+    }
+  }
+
+  /**
+   * Uploads whichever sidecars of the archive exist next to its key, leaving them on disk.
+   */
+  static void uploadSidecars(AmazonS3Client client, File archive, String key, Counter uploadedBytes) {
+    for (String sidecar : SIDECARS) {
+      File file = new File(archive.getPath() + sidecar);
+      if (file.exists()) {
+        PutObjectRequest por = new PutObjectRequest(BUCKET, key + sidecar, file);
+        por.setStorageClass(StorageClass.ReducedRedundancy);
+        client.putObject(por);
+        uploadedBytes.inc(file.length());
+      }
+    }
+  }
+
+  static void deleteWithSidecars(File archive) {
+    for (String sidecar : SIDECARS) {
+      new File(archive.getPath() + sidecar).delete();
+    }
+    archive.delete();
+  }
+
+  /**
+   * Uploads the zstd dictionary an archive needs into the same directory of the bucket,
+   * ahead of the archive, once per directory. Nothing for archives without one.
+   */
+  static void uploadDictionary(AmazonS3Client client, Set<String> uploaded, File archive, String key, Counter uploadedBytes) {
+    if (!archive.getName().endsWith(".zst")) {
+      return;
+    }
+    File dictionary;
+    try {
+      dictionary = ZstdCodec.dictionary(archive);
+    } catch (IOException e) {
+      // The archive is no less worth having, a copy of the dictionary can follow it up
+      log.warning("No dictionary uploaded for " + archive + ": " + e.getMessage());
+      return;
+    }
+    if (dictionary != null) {
+      String dictionaryKey = new File(new File(key).getParentFile(), dictionary.getName()).toString();
+      if (!uploaded.contains(dictionaryKey)) {
+        PutObjectRequest por = new PutObjectRequest(BUCKET, dictionaryKey, dictionary);
+        por.setStorageClass(StorageClass.ReducedRedundancy);
+        client.putObject(por);
+        uploadedBytes.inc(dictionary.length());
+        uploaded.add(dictionaryKey);
+      }
+    }
+  }
 }
@@ -0,0 +1,227 @@
+package twitterarchiver;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Fingerprint and last seen time of every user id, in an open addressing hash table
+ * that lives in a memory mapped file rather than on the heap. Each slot is 32 bytes:
+ * the user id (0 for an empty slot), the fingerprint of the profile we last wrote,
+ * when we last saw the user and when we last wrote their counters. Lookups probe linearly from a mixed
+ * hash of the id. Since the table is the file, a restart picks up where the last run
+ * left off without rebuilding anything, and writes survive the process dying. The
+ * file is mapped in 1GB segments to get past the 2GB limit of a single mapping, and
+ * doubles, rehashing into a new file, once it is 70% full.
+ */
+public class UserIndex implements Closeable {
+  private static final long MAGIC = 0x5549445831L; // UIDX1
+  private static final int SLOT = 32;
+  private static final int SEGMENT_SHIFT = 30;
+  private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+  // The header takes the first slot: magic, capacity, size
+  private static final long HEADER = SLOT;
+
+  private final File file;
+  private RandomAccessFile raf;
+  private MappedByteBuffer[] segments;
+  private long capacity;
+  private long mask;
+  private long size;
+
+  /**
+   * Opens the index in the file, creating it with room for the given number of ids,
+   * rounded up to a power of two, if it doesn't exist.
+   */
+  public UserIndex(File file, long initialCapacity) throws IOException {
+    this.file = file;
+    if (file.exists() && file.length() > 0) {
+      open(file);
+    } else {
+      create(file, Long.highestOneBit(Math.max(initialCapacity, 1024) - 1) << 1);
+    }
+  }
+
+  private void open(File file) throws IOException {
+    raf = new RandomAccessFile(file, "rw");
+    map(raf.length());
+    if (getLong(0) != MAGIC) {
+      raf.close();
+      throw new IOException("Not a user index: " + file);
+    }
+    capacity = getLong(8);
+    size = getLong(16);
+    mask = capacity - 1;
+  }
+
+  private void create(File file, long capacity) throws IOException {
+    raf = new RandomAccessFile(file, "rw");
+    // Sparse, only the pages we touch take up disk
+    raf.setLength(HEADER + capacity * SLOT);
+    map(raf.length());
+    this.capacity = capacity;
+    mask = capacity - 1;
+    size = 0;
+    putLong(8, capacity);
+    putLong(16, 0);
+    putLong(0, MAGIC);
+  }
+
+  private void map(long length) throws IOException {
+    FileChannel channel = raf.getChannel();
+    segments = new MappedByteBuffer[(int) ((length + SEGMENT_SIZE - 1) >> SEGMENT_SHIFT)];
+    for (int i = 0; i < segments.length; i++) {
+      long start = (long) i << SEGMENT_SHIFT;
+      segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(SEGMENT_SIZE, length - start));
+    }
+  }
+
+  /**
+   * True if the user is in the index with this fingerprint, in which case the profile
+   * hasn't changed since it was written. Either way the user is marked as seen now.
+   */
+  public synchronized boolean unchanged(long id, long fingerprint, long now) {
+    long slot = find(id);
+    if (slot < 0) {
+      return false;
+    }
+    putLong(slot + 16, now);
+    return getLong(slot + 8) == fingerprint;
+  }
+
+  /**
+   * Records the fingerprint of the profile just written for the user.
+   */
+  public synchronized void put(long id, long fingerprint, long now) throws IOException {
+    if (id == 0) {
+      throw new IllegalArgumentException("User id 0 marks an empty slot");
+    }
+    long slot = probe(id);
+    if (getLong(slot) == 0) {
+      if ((size + 1) * 10 > capacity * 7) {
+        grow();
+        slot = probe(id);
+      }
+      putLong(slot, id);
+      putLong(16, ++size);
+    }
+    putLong(slot + 8, fingerprint);
+    putLong(slot + 16, now);
+    // The whole profile went, counters included
+    putLong(slot + 24, now);
+  }
+
+  /**
+   * Records that the counters of a user already in the index were just written.
+   */
+  public synchronized void putCounters(long id, long now) {
+    long slot = find(id);
+    if (slot >= 0) {
+      putLong(slot + 24, now);
+    }
+  }
+
+  /**
+   * When the counters of the user were last written, or 0 if never.
+   */
+  public synchronized long countersWritten(long id) {
+    long slot = find(id);
+    return slot < 0 ? 0 : getLong(slot + 24);
+  }
+
+  /**
+   * The fingerprint recorded for the user, or 0 if there is none.
+   */
+  public synchronized long fingerprint(long id) {
+    long slot = find(id);
+    return slot < 0 ? 0 : getLong(slot + 8);
+  }
+
+  /**
+   * When the user was last seen, or 0 if never.
+   */
+  public synchronized long lastSeen(long id) {
+    long slot = find(id);
+    return slot < 0 ? 0 : getLong(slot + 16);
+  }
+
+  public synchronized long size() {
+    return size;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    for (MappedByteBuffer segment : segments) {
+      segment.force();
+    }
+    raf.close();
+  }
+
+  // Offset of the slot holding the id, or -1
+  private long find(long id) {
+    if (id == 0) {
+      return -1;
+    }
+    long slot = probe(id);
+    return getLong(slot) == id ? slot : -1;
+  }
+
+  // Offset of the slot holding the id or the empty slot it would go in
+  private long probe(long id) {
+    long index = mix(id) & mask;
+    while (true) {
+      long offset = HEADER + index * SLOT;
+      long key = getLong(offset);
+      if (key == id || key == 0) {
+        return offset;
+      }
+      index = (index + 1) & mask;
+    }
+  }
+
+  private void grow() throws IOException {
+    File next = new File(file.getPath() + ".grow");
+    next.delete();
+    UserIndex bigger = new UserIndex(next, capacity * 2);
+    for (long i = 0; i < capacity; i++) {
+      long offset = HEADER + i * SLOT;
+      long id = getLong(offset);
+      if (id != 0) {
+        long slot = bigger.probe(id);
+        bigger.putLong(slot, id);
+        bigger.putLong(slot + 8, getLong(offset + 8));
+        bigger.putLong(slot + 16, getLong(offset + 16));
+        bigger.putLong(slot + 24, getLong(offset + 24));
+      }
+    }
+    bigger.putLong(16, size);
+    bigger.close();
+    // The old mappings stay until they are collected, there is no way to unmap them
+    raf.close();
+    if (!next.renameTo(file)) {
+      throw new IOException("Could not replace " + file);
+    }
+    open(file);
+  }
+
+  // Murmur3 finalizer, user ids are far from uniformly distributed in the low bits
+  private static long mix(long key) {
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+    key *= 0xc4ceb9fe1a85ec53L;
+    key ^= key >>> 33;
+    return key;
+  }
+
+  private long getLong(long offset) {
+    return segments[(int) (offset >>> SEGMENT_SHIFT)].getLong((int) (offset & (SEGMENT_SIZE - 1)));
+  }
+
+  private void putLong(long offset, long value) {
+    segments[(int) (offset >>> SEGMENT_SHIFT)].putLong((int) (offset & (SEGMENT_SIZE - 1)), value);
+  }
+}
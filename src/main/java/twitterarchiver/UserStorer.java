@@ -2,23 +2,114 @@ package twitterarchiver;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteOperation;
 import com.mongodb.DB;
-import com.mongodb.DBAddress;
 import com.mongodb.DBCollection;
 import com.mongodb.MongoClient;
+import com.mongodb.ServerAddress;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.TimerContext;
 
-import java.net.UnknownHostException;
+import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
+import static com.yammer.metrics.Metrics.newCounter;
+import static com.yammer.metrics.Metrics.newHistogram;
+
+/**
+ * Keeps the latest profile of every user we see in Mongo. Profiles are written behind:
+ * each event only replaces the pending profile for its user, and a flusher thread
+ * writes what is pending once a second, or sooner if enough users are waiting, as
+ * one unordered bulk upsert. The fingerprint of every profile written is kept in a
+ * UserIndex, so a profile that hasn't changed since is dropped as soon as it arrives,
+ * this run or a later one. The fingerprint leaves out the counters, which change with
+ * nearly every status. Those are written on their own with a $set instead, at most once
+ * every ten minutes for each user.
+ */
 public class UserStorer implements TwitterFeedListener {
+  private static final long WINDOW = TimeUnit.SECONDS.toNanos(1);
+  private static final int MAX_BATCH = 1000;
+  private static final long COUNTER_INTERVAL = TimeUnit.MINUTES.toMillis(10);
+  // Not part of the fingerprint of a profile
+  private static final Set<String> COUNTERS = new HashSet<>(Arrays.asList(
+          "statuses_count", "followers_count", "friends_count", "favourites_count", "listed_count"));
 
   private final DB client;
+  private final ConcurrentHashMap<String, BasicDBObject> pending = new ConcurrentHashMap<>();
+  // Users with only new counters to write
+  private final ConcurrentHashMap<String, BasicDBObject> pendingCounters = new ConcurrentHashMap<>();
+  // Users in the flush being written, not yet in the index
+  private final Set<String> writing = new HashSet<>();
+  // Held while checking a profile against the index and while the flusher moves users in and out of writing
+  private final Object lock = new Object();
+  private final UserIndex index;
+  private final long counterInterval;
+  private final Thread flusher;
+  private volatile boolean running = true;
+  private final Counter received;
+  private final Counter coalesced;
+  private final Counter unchanged;
+  private final Counter upserts;
+  private final Counter counterUpdates;
+  private final Histogram flushSize;
+  private final com.yammer.metrics.core.Timer flushLatency;
+
+  public UserStorer() throws IOException {
+    this(new MongoClient(ServerAddress.defaultHost(), ServerAddress.defaultPort()).getDB("twitter"),
+            new UserIndex(new File("users.idx"), 1 << 24), COUNTER_INTERVAL);
+  }
 
-  public UserStorer() throws UnknownHostException {
-    client = MongoClient.connect(new DBAddress(DBAddress.defaultHost(), DBAddress.defaultPort(), "twitter"));
+  UserStorer(DB client, UserIndex index, long counterInterval) {
+    this.client = client;
+    this.index = index;
+    this.counterInterval = counterInterval;
+    received = newCounter(UserStorer.class, "received");
+    coalesced = newCounter(UserStorer.class, "coalesced");
+    unchanged = newCounter(UserStorer.class, "unchanged");
+    upserts = newCounter(UserStorer.class, "upserts");
+    counterUpdates = newCounter(UserStorer.class, "counter_updates");
+    flushSize = newHistogram(UserStorer.class, "flush_size");
+    flushLatency = Metrics.newTimer(UserStorer.class, "flush_latency");
+    Metrics.newGauge(UserStorer.class, "coalescing_ratio", new Gauge<Double>() {
+      @Override
+      public Double value() {
+        // Profiles received for every one written
+        long count = upserts.count();
+        return count == 0 ? 0 : (double) received.count() / count;
+      }
+    });
+    flusher = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        while (running) {
+          LockSupport.parkNanos(WINDOW);
+          flush();
+        }
+      }
+    }, "UserStorer-flusher");
+    flusher.setDaemon(true);
+    flusher.start();
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        close();
+      }
+    });
   }
 
   @Override
@@ -26,24 +117,178 @@ public class UserStorer implements TwitterFeedListener {
     try {
       JsonNode user = se.getNode().get("user");
       if (user != null) {
-        DBCollection users = client.getCollection("users");
-        BasicDBObject o = new BasicDBObject();
-        Iterator<Map.Entry<String,JsonNode>> fields = user.fields();
-        while(fields.hasNext()) {
-          Map.Entry<String, JsonNode> next = fields.next();
-          String key = next.getKey();
-          if (key.equals("id")) {
-            key = "_id";
+        BasicDBObject document = toDocument(user);
+        String id = (String) document.get("_id");
+        if (id != null) {
+          received.inc();
+          long now = System.currentTimeMillis();
+          long userId = Long.parseLong(id);
+          synchronized (lock) {
+            // Something pending or being written always gets replaced, it may be a change back to what was written
+            if (pending.containsKey(id) || writing.contains(id) || !index.unchanged(userId, contentHash(document), now)) {
+              pendingCounters.remove(id);
+              if (pending.put(id, document) != null) {
+                coalesced.inc();
+              } else if (pending.size() >= MAX_BATCH) {
+                LockSupport.unpark(flusher);
+              }
+            } else if (now - index.countersWritten(userId) >= counterInterval) {
+              if (pendingCounters.put(id, counters(document)) != null) {
+                coalesced.inc();
+              }
+            } else {
+              unchanged.inc();
+            }
           }
-          o.put(key, next.getValue().asText());
         }
-        users.save(o);
       }
     } catch (Exception e) {
       e.printStackTrace();
     }
   }
 
+  /**
+   * Writes everything pending and stops the flusher.
+   */
+  public void close() {
+    running = false;
+    LockSupport.unpark(flusher);
+    try {
+      flusher.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    flush();
+    try {
+      index.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  // Only called from the flusher, or once it has stopped
+  private synchronized void flush() {
+    List<BasicDBObject> batch = new ArrayList<>();
+    List<BasicDBObject> counters = new ArrayList<>();
+    synchronized (lock) {
+      for (String id : pending.keySet()) {
+        batch.add(pending.remove(id));
+        writing.add(id);
+      }
+      for (String id : pendingCounters.keySet()) {
+        counters.add(pendingCounters.remove(id));
+      }
+    }
+    if (batch.isEmpty() && counters.isEmpty()) {
+      return;
+    }
+    TimerContext time = flushLatency.time();
+    try {
+      write(batch, counters);
+      long now = System.currentTimeMillis();
+      // Only once Mongo has them, until then the same profile arriving again still gets written
+      synchronized (lock) {
+        for (BasicDBObject document : batch) {
+          index.put(Long.parseLong((String) document.get("_id")), contentHash(document), now);
+        }
+        for (BasicDBObject document : counters) {
+          index.putCounters(Long.parseLong((String) document.get("_id")), now);
+        }
+        writing.clear();
+      }
+      upserts.inc(batch.size());
+      counterUpdates.inc(counters.size());
+      flushSize.update(batch.size() + counters.size());
+    } catch (Exception e) {
+      e.printStackTrace();
+      // Try again next time unless a newer profile has come in meanwhile
+      synchronized (lock) {
+        for (BasicDBObject document : batch) {
+          pending.putIfAbsent(document.get("_id").toString(), document);
+        }
+        for (BasicDBObject document : counters) {
+          String id = document.get("_id").toString();
+          if (!pending.containsKey(id)) {
+            pendingCounters.putIfAbsent(id, document);
+          }
+        }
+        writing.clear();
+      }
+    } finally {
+      time.stop();
+    }
+  }
+
+  /**
+   * Upserts the whole of each profile and sets just the counters of the others.
+   */
+  void write(List<BasicDBObject> profiles, List<BasicDBObject> counters) {
+    DBCollection users = client.getCollection("users");
+    BulkWriteOperation bulk = users.initializeUnorderedBulkOperation();
+    for (BasicDBObject document : profiles) {
+      bulk.find(new BasicDBObject("_id", document.get("_id"))).upsert().replaceOne(document);
+    }
+    for (BasicDBObject document : counters) {
+      BasicDBObject set = new BasicDBObject(document);
+      set.remove("_id");
+      bulk.find(new BasicDBObject("_id", document.get("_id"))).updateOne(new BasicDBObject("$set", set));
+    }
+    bulk.execute();
+  }
+
+  static BasicDBObject toDocument(JsonNode user) {
+    BasicDBObject o = new BasicDBObject();
+    Iterator<Map.Entry<String,JsonNode>> fields = user.fields();
+    while(fields.hasNext()) {
+      Map.Entry<String, JsonNode> next = fields.next();
+      String key = next.getKey();
+      if (key.equals("id")) {
+        key = "_id";
+      }
+      o.put(key, next.getValue().asText());
+    }
+    return o;
+  }
+
+  /**
+   * The id and counters of a document from toDocument.
+   */
+  static BasicDBObject counters(BasicDBObject document) {
+    BasicDBObject o = new BasicDBObject("_id", document.get("_id"));
+    for (String counter : COUNTERS) {
+      if (document.containsField(counter)) {
+        o.put(counter, document.get(counter));
+      }
+    }
+    return o;
+  }
+
+  /**
+   * 64 bit FNV-1a over the fields of a document from toDocument, apart from the counters.
+   */
+  static long contentHash(BasicDBObject document) {
+    long hash = 0xcbf29ce484222325l;
+    for (Map.Entry<String, Object> entry : document.entrySet()) {
+      if (COUNTERS.contains(entry.getKey())) {
+        continue;
+      }
+      hash = fnv(hash, entry.getKey());
+      hash = fnv(hash, String.valueOf(entry.getValue()));
+    }
+    return hash;
+  }
+
+  private static long fnv(long hash, String s) {
+    for (int i = 0; i < s.length(); i++) {
+      hash ^= s.charAt(i);
+      hash *= 0x100000001b3l;
+    }
+    // Separates fields so that moving characters between them changes the hash
+    hash ^= 0xff;
+    hash *= 0x100000001b3l;
+    return hash;
+  }
+
   @Override
   public void tooSlow() {
 
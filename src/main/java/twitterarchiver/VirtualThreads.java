@@ -0,0 +1,91 @@
+package twitterarchiver;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Threads for listeners that spend their time blocked on I/O. On a JVM with virtual
+ * threads they are virtual, so thousands can wait on a database for the price of a
+ * few carrier threads; the build targets 17, so they are looked up reflectively, and
+ * on older JVMs ordinary daemon threads are used instead.
+ */
+class VirtualThreads {
+  private static final Logger log = Logger.getLogger(VirtualThreads.class.getName());
+  private static final Method OF_VIRTUAL = method(Thread.class, "ofVirtual");
+
+  static boolean available() {
+    return OF_VIRTUAL != null;
+  }
+
+  /**
+   * Runs tasks on threads named prefix-1, prefix-2 and so on, up to size at once. Virtual threads are cheap enough to start one per
+   * task; platform threads are kept in a pool of size, idle ones ending after a minute.
+   */
+  static Executor executor(String prefix, int size) {
+    final ThreadFactory virtual = virtual(prefix);
+    if (virtual != null) {
+      return new Executor() {
+        @Override
+        public void execute(Runnable command) {
+          virtual.newThread(command).start();
+        }
+      };
+    }
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(size, size, 1, TimeUnit.MINUTES,
+            new LinkedBlockingQueue<Runnable>(), platform(prefix));
+    pool.allowCoreThreadTimeOut(true);
+    return pool;
+  }
+
+  /**
+   * Lets an executor from executor() go once it has run what it was given. Virtual
+   * threads end with their task, the platform pool is shut down.
+   */
+  static void shutdown(Executor executor) {
+    if (executor instanceof ExecutorService) {
+      ((ExecutorService) executor).shutdown();
+    }
+  }
+
+  private static ThreadFactory virtual(String prefix) {
+    if (OF_VIRTUAL != null) {
+      try {
+        Object builder = OF_VIRTUAL.invoke(null);
+        Class<?> type = Class.forName("java.lang.Thread$Builder");
+        type.getMethod("name", String.class, long.class).invoke(builder, prefix + "-", 1L);
+        return (ThreadFactory) type.getMethod("factory").invoke(builder);
+      } catch (ReflectiveOperationException e) {
+        log.warning("Could not create virtual threads, using platform threads: " + e);
+      }
+    }
+    return null;
+  }
+
+  private static ThreadFactory platform(final String prefix) {
+    return new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, prefix + "-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+
+  private static Method method(Class<?> type, String name) {
+    try {
+      return type.getMethod(name);
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,249 @@
+package twitterarchiver;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdCompressCtx;
+import com.github.luben.zstd.ZstdDictCompress;
+import com.github.luben.zstd.ZstdInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Zstandard frames, optionally with a dictionary trained on our own compact records,
+ * which is where zstd pulls ahead on blocks of short, repetitive JSON. Every file
+ * starts with a skippable frame naming the dictionary it needs, which zstd itself
+ * passes over, so `zstd -D tweets-&lt;id&gt;.zdict -d` reads an archive and open() finds
+ * the dictionary on its own. A dictionary's id is in its name and in every frame, so
+ * retrained dictionaries never get mixed up with the archives of older ones.
+ * <pre>
+ * header := magic:int=0x184D2A50 length:int "TDIC" version:byte dictId:long name:utf
+ * </pre>
+ * with the magic and length little endian as zstd has them, the rest big endian.
+ */
+public class ZstdCodec implements BlockCodec {
+  static final int SKIPPABLE_MAGIC = 0x184D2A50;
+  static final byte[] TAG = {'T', 'D', 'I', 'C'};
+  static final int VERSION = 1;
+  public static final int LEVEL = 3;
+  // As large as zstd suggests for a few hundred thousand samples
+  public static final int DICTIONARY_SIZE = 112640;
+
+  private final int level;
+  private final ZstdDictCompress dictionary;
+  private final long dictId;
+  private final String name;
+  private final ThreadLocal<ZstdCompressCtx> contexts = new ThreadLocal<ZstdCompressCtx>() {
+    @Override
+    protected ZstdCompressCtx initialValue() {
+      ZstdCompressCtx context = new ZstdCompressCtx();
+      context.setLevel(level);
+      context.setChecksum(true);
+      if (dictionary != null) {
+        context.loadDict(dictionary);
+      }
+      return context;
+    }
+  };
+
+  /**
+   * Plain zstd, no dictionary.
+   */
+  public ZstdCodec(int level) {
+    this(level, null, null);
+  }
+
+  /**
+   * @param dictionary the contents of a file written by train(), or null for none
+   * @param name       its file name, recorded in every archive
+   */
+  public ZstdCodec(int level, byte[] dictionary, String name) {
+    this.level = level;
+    this.dictionary = dictionary == null ? null : new ZstdDictCompress(dictionary, level);
+    this.dictId = dictionary == null ? 0 : Zstd.getDictIdFromDict(dictionary);
+    this.name = name == null ? "" : name;
+  }
+
+  public static ZstdCodec load(File dictionary, int level) throws IOException {
+    return new ZstdCodec(level, Files.readAllBytes(dictionary.toPath()), dictionary.getName());
+  }
+
+  @Override
+  public byte[] header() {
+    try {
+      ByteArrayOutputStream payload = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(payload);
+      out.write(TAG);
+      out.write(VERSION);
+      out.writeLong(dictId);
+      out.writeUTF(name);
+      byte[] header = new byte[8 + payload.size()];
+      putIntLE(header, 0, SKIPPABLE_MAGIC);
+      putIntLE(header, 4, payload.size());
+      System.arraycopy(payload.toByteArray(), 0, header, 8, payload.size());
+      return header;
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Override
+  public byte[] compress(byte[] data) {
+    return contexts.get().compress(data);
+  }
+
+  @Override
+  public byte[] trailer() {
+    return new byte[0];
+  }
+
+  public long getDictId() {
+    return dictId;
+  }
+
+  /**
+   * Reads a file written with this codec, with the dictionary named in its header
+   * looked for next to the file and then in the working directory.
+   */
+  public static InputStream open(File file) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+    try {
+      in.mark(8 + 65536);
+      Header header = Header.read(in, file);
+      in.reset();
+      ZstdInputStream zstd = new ZstdInputStream(in);
+      if (header != null && header.dictId != 0) {
+        zstd.setDict(Files.readAllBytes(dictionary(file, header).toPath()));
+      }
+      return new BufferedInputStream(zstd, 65536);
+    } catch (IOException e) {
+      in.close();
+      throw e;
+    }
+  }
+
+  /**
+   * The dictionary a file written with this codec needs, found where open() looks for
+   * it, or null if it was written without one.
+   */
+  public static File dictionary(File file) throws IOException {
+    Header header;
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536))) {
+      header = Header.read(in, file);
+    }
+    return header == null || header.dictId == 0 ? null : dictionary(file, header);
+  }
+
+  private static File dictionary(File file, Header header) throws IOException {
+    for (File candidate : new File[]{new File(file.getAbsoluteFile().getParentFile(), header.name), new File(header.name)}) {
+      if (candidate.exists()) {
+        if (Zstd.getDictIdFromDict(Files.readAllBytes(candidate.toPath())) != header.dictId) {
+          throw new IOException(candidate + " is not dictionary " + header.dictId + " that " + file + " needs");
+        }
+        return candidate;
+      }
+    }
+    throw new IOException("Dictionary " + header.name + " that " + file + " needs is missing");
+  }
+
+  /**
+   * The dictionary named in the skippable frame a file starts with.
+   */
+  private static class Header {
+    final long dictId;
+    final String name;
+
+    Header(long dictId, String name) {
+      this.dictId = dictId;
+      this.name = name;
+    }
+
+    // Null for plain zstd without our frame
+    static Header read(DataInputStream in, File file) throws IOException {
+      byte[] prefix = new byte[8];
+      in.readFully(prefix);
+      if (getIntLE(prefix, 0) != SKIPPABLE_MAGIC) {
+        return null;
+      }
+      byte[] tag = new byte[TAG.length];
+      in.readFully(tag);
+      if (!Arrays.equals(tag, TAG) || in.read() != VERSION) {
+        throw new IOException("Unknown header in " + file);
+      }
+      return new Header(in.readLong(), in.readUTF());
+    }
+  }
+
+  /**
+   * Up to max records, newlines included, from a gzipped archive or every one in a
+   * directory, taking an even share from each file.
+   */
+  public static List<byte[]> sample(File path, int max) throws IOException {
+    List<File> archives = new ArrayList<>();
+    if (path.isDirectory()) {
+      File[] list = path.listFiles();
+      Arrays.sort(list);
+      for (File file : list) {
+        if (file.getName().endsWith(".json.gz")) {
+          archives.add(file);
+        }
+      }
+    } else {
+      archives.add(path);
+    }
+    List<byte[]> samples = new ArrayList<>();
+    for (int i = 0; i < archives.size(); i++) {
+      int share = (max - samples.size()) / (archives.size() - i);
+      try (InputStream is = new GZIPInputStream(new FileInputStream(archives.get(i)), 65536)) {
+        ArchiveIndex.LineReader lines = new ArchiveIndex.LineReader(is);
+        byte[] line;
+        for (int taken = 0; taken < share && (line = lines.next()) != null; taken++) {
+          byte[] record = Arrays.copyOf(line, line.length + 1);
+          record[line.length] = '\n';
+          samples.add(record);
+        }
+      }
+    }
+    return samples;
+  }
+
+  /**
+   * Trains a dictionary on sample records and saves it in the directory as
+   * tweets-&lt;id&gt;.zdict, returning the file.
+   */
+  public static File train(List<byte[]> samples, int size, File directory) throws IOException {
+    byte[] buffer = new byte[size];
+    long trained = Zstd.trainFromBuffer(samples.toArray(new byte[samples.size()][]), buffer);
+    if (Zstd.isError(trained)) {
+      throw new IOException("Could not train a dictionary: " + Zstd.getErrorName(trained));
+    }
+    byte[] dictionary = Arrays.copyOf(buffer, (int) trained);
+    File file = new File(directory, "tweets-" + Zstd.getDictIdFromDict(dictionary) + ".zdict");
+    try (FileOutputStream out = new FileOutputStream(file)) {
+      out.write(dictionary);
+    }
+    return file;
+  }
+
+  private static void putIntLE(byte[] b, int offset, int value) {
+    b[offset] = (byte) value;
+    b[offset + 1] = (byte) (value >> 8);
+    b[offset + 2] = (byte) (value >> 16);
+    b[offset + 3] = (byte) (value >> 24);
+  }
+
+  private static int getIntLE(byte[] b, int offset) {
+    return (b[offset] & 0xff) | (b[offset + 1] & 0xff) << 8 | (b[offset + 2] & 0xff) << 16 | (b[offset + 3] & 0xff) << 24;
+  }
+}
@@ -0,0 +1,132 @@
+package twitterarchiver;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ArchiveIndexTest {
+  static final int STATUSES = 20000;
+  static final long FIRST_ID = 282187322005766184l;
+
+  static CompactTweet status(int i) {
+    CompactTweet t = TweetSerializerTest.tweet(FIRST_ID + i);
+    t.text = "status " + i;
+    // One user at the start and one rare hashtag in the middle, everyone else once
+    t.userId = i < 100 ? 7 : 1000 + i;
+    t.hashtags = i == STATUSES / 2 ? new String[]{"Rare", "common"} : new String[]{"common"};
+    return t;
+  }
+
+  /**
+   * Writes a block gzipped archive with its .gzi and .idx the way StreamProvider does.
+   */
+  static File archive(File dir, String name) throws IOException {
+    File file = new File(dir, name);
+    TweetSerializer serializer = new TweetSerializer(null);
+    ArchiveIndex.Builder builder = new ArchiveIndex.Builder();
+    ParallelGzipOutputStream out = new ParallelGzipOutputStream(file);
+    long position = 0;
+    for (int i = 0; i < STATUSES; i++) {
+      CompactTweet t = status(i);
+      byte[] line = serializer.toJson(t);
+      builder.add(t, position);
+      out.write(line);
+      position += line.length;
+    }
+    out.close();
+    builder.write(new File(file + ".idx"), BlockGzipIndex.read(new File(file + ".gzi")));
+    return file;
+  }
+
+  @Test
+  public void testLookups() throws IOException {
+    File dir = Files.createTempDirectory("index").toFile();
+    File file = archive(dir, "t1356112800000.json.gz");
+    BlockGzipIndex gzi = BlockGzipIndex.read(new File(file + ".gzi"));
+    ArchiveIndex index = ArchiveIndex.read(new File(file + ".idx"));
+    assertEquals(gzi.members(), index.members());
+    assertTrue(index.members() > 10);
+
+    int records = 0;
+    for (int member = 0; member < index.members(); member++) {
+      records += index.records(member);
+      if (member > 0 && index.records(member) > 0) {
+        assertTrue(index.minId(member) > index.maxId(member - 1));
+      }
+    }
+    assertEquals(STATUSES, records);
+
+    long id = FIRST_ID + STATUSES / 3;
+    int[] members = index.membersForId(id);
+    assertEquals(1, members.length);
+    List<String> lines = ArchiveIndex.read(file, gzi, members, new ArchiveIndex.Filter() {
+      @Override
+      public boolean accept(CompactTweet tweet) {
+        return tweet.id == FIRST_ID + STATUSES / 3;
+      }
+    });
+    assertEquals(1, lines.size());
+    assertTrue(lines.get(0).contains("status " + STATUSES / 3));
+    assertEquals(0, index.membersForId(FIRST_ID - 1).length);
+    assertEquals(0, index.membersForId(FIRST_ID + STATUSES).length);
+
+    assertArrayEquals(new int[]{0}, index.membersForUser(7));
+    assertEquals(1, index.membersForUser(1000 + STATUSES - 1).length);
+    assertEquals(0, index.membersForUser(8).length);
+
+    // Hashtags match whatever their case
+    members = index.membersForHashtag("rARE");
+    assertEquals(1, members.length);
+    lines = ArchiveIndex.read(file, gzi, members, new ArchiveIndex.Filter() {
+      @Override
+      public boolean accept(CompactTweet tweet) {
+        return tweet.hashtags.length == 2;
+      }
+    });
+    assertEquals(1, lines.size());
+    assertTrue(lines.get(0).contains("status " + STATUSES / 2));
+    assertEquals(index.members(), index.membersForHashtag("common").length);
+    assertEquals(0, index.membersForHashtag("missing").length);
+
+    for (File f : dir.listFiles()) {
+      f.delete();
+    }
+    dir.delete();
+  }
+
+  @Test
+  public void testSortUnique() {
+    long[] keys = {5, 3, 5, 1, 3, 5};
+    int[] values = {2, 1, 2, 0, 4, 1};
+    int length = ArchiveIndex.sortUnique(keys, values, keys.length);
+    assertEquals(5, length);
+    assertArrayEquals(new long[]{1, 3, 3, 5, 5}, Arrays.copyOf(keys, length));
+    assertArrayEquals(new int[]{0, 1, 4, 1, 2}, Arrays.copyOf(values, length));
+  }
+
+  @Test
+  public void testRejectsOtherFiles() throws IOException {
+    File file = File.createTempFile("archive", ".idx");
+    try (FileOutputStream out = new FileOutputStream(file)) {
+      out.write("TIDY\1".getBytes());
+    }
+    try {
+      ArchiveIndex.read(file);
+      fail("Read a file that isn't an index");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().contains("Not an archive index"));
+    } finally {
+      file.delete();
+    }
+  }
+}
@@ -0,0 +1,89 @@
+package twitterarchiver;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ArchiveQueryTest {
+  // What the query writes to stdout
+  static String run(ArchiveQuery.Predicate predicate, String aggregate, File path) throws Exception {
+    return query(predicate, aggregate, path)[0];
+  }
+
+  // What the query writes to stdout and the summary it writes to stderr
+  private static String[] query(ArchiveQuery.Predicate predicate, String aggregate, File path) throws Exception {
+    PrintStream stdout = System.out;
+    PrintStream stderr = System.err;
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ByteArrayOutputStream err = new ByteArrayOutputStream();
+    System.setOut(new PrintStream(out, true));
+    System.setErr(new PrintStream(err, true));
+    try {
+      new ArchiveQuery(predicate, aggregate).run(path);
+    } finally {
+      System.setOut(stdout);
+      System.setErr(stderr);
+    }
+    return new String[]{out.toString("UTF-8"), err.toString("UTF-8")};
+  }
+
+  @Test
+  public void scansZstdArchivesWithTheirDictionary() throws Exception {
+    File dir = Files.createTempDirectory("query").toFile();
+    File dictionary = ZstdCodec.train(ZstdCodecTest.samples(5000), ZstdCodec.DICTIONARY_SIZE, dir);
+    ZstdCodecTest.archive(dir, "t1356112800000.json.zst", ZstdCodec.load(dictionary, ZstdCodec.LEVEL));
+    ZstdCodecTest.archive(dir, "t1356116400000.json.zst", new ZstdCodec(ZstdCodec.LEVEL));
+    assertEquals("40000\n", run(new ArchiveQuery.Predicate(), "count", dir));
+    assertEquals("3336\n", run(new ArchiveQuery.Predicate().lang("l1"), "count", dir));
+  }
+
+  @Test
+  public void prunesArchivesAndMembers() throws Exception {
+    File dir = Files.createTempDirectory("query").toFile();
+    // The same statuses, all created at 18:14:35, in archives started at 18:00 and 19:00
+    ArchiveIndexTest.archive(dir, "t1356112800000.json.gz");
+    ArchiveIndexTest.archive(dir, "t1356116400000.json.gz");
+    int members = BlockGzipIndex.read(new File(dir, "t1356112800000.json.gz.gzi")).members();
+
+    String[] result = query(new ArchiveQuery.Predicate(), "count", dir);
+    assertEquals(2 * ArchiveIndexTest.STATUSES + "\n", result[0]);
+    assertTrue(result[1], result[1].contains("Scanned 2 of 2 archives, " + 2 * members + " of " + 2 * members + " members"));
+    assertTrue(new File(dir, "t1356112800000.json.gz.stats").exists());
+
+    // Only the members the .idx lists are read
+    result = query(new ArchiveQuery.Predicate().hashtag("RARE"), "hashtag", dir);
+    assertEquals("common\t2\nrare\t2\n", result[0]);
+    assertTrue(result[1], result[1].contains("Scanned 2 of 2 archives, 2 of " + 2 * members + " members"));
+    result = query(new ArchiveQuery.Predicate().userId(7), "count", dir);
+    assertEquals("200\n", result[0]);
+    assertTrue(result[1], result[1].contains("Scanned 2 of 2 archives, 2 of " + 2 * members + " members"));
+
+    // The first archive by its name, the second by the created_at range in its .stats
+    result = query(new ArchiveQuery.Predicate().from(ArchiveQuery.parseTime("2012-12-21T19")), "count", dir);
+    assertEquals("", result[0]);
+    assertTrue(result[1], result[1].contains("Scanned 0 of 2 archives, 0 of " + members + " members"));
+    result = query(new ArchiveQuery.Predicate().to(ArchiveQuery.parseTime("2012-12-21T18:14")), "count", dir);
+    assertEquals("", result[0]);
+    assertTrue(result[1], result[1].contains("Scanned 0 of 2 archives, 0 of " + 2 * members + " members"));
+    result = query(new ArchiveQuery.Predicate().from(ArchiveQuery.parseTime("2012-12-21T18:14"))
+            .to(ArchiveQuery.parseTime("2012-12-21T18:15")), "count", dir);
+    assertEquals(2 * ArchiveIndexTest.STATUSES + "\n", result[0]);
+
+    // Records, rather than counts, come out whole
+    result = query(new ArchiveQuery.Predicate().hashtag("rare"), null, dir);
+    String[] lines = result[0].split("\n");
+    assertEquals(2, lines.length);
+    assertTrue(lines[0].contains("status " + ArchiveIndexTest.STATUSES / 2));
+
+    for (File f : dir.listFiles()) {
+      f.delete();
+    }
+    dir.delete();
+  }
+}
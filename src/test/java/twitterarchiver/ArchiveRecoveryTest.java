@@ -0,0 +1,209 @@
+package twitterarchiver;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ArchiveRecoveryTest {
+  private static final long HOUR = 1356112800000l;
+
+  // An archive as the process left it, cut off at length, with a manifest checkpointed at checkpoint
+  private static File crashed(File file, BlockCodec codec, long length, long checkpoint) throws IOException {
+    ParquetExportTest.write(new ParallelGzipOutputStream(new FileOutputStream(file), null, codec));
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.setLength(length < 0 ? raf.length() + length : length);
+    }
+    try (DataOutputStream out = new DataOutputStream(new FileOutputStream(ArchiveRecovery.checkpointFile(file)))) {
+      out.writeLong(checkpoint);
+      out.writeLong(0);
+    }
+    return file;
+  }
+
+  private static byte[] read(InputStream is) throws IOException {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      byte[] buffer = new byte[65536];
+      int n;
+      while ((n = is.read(buffer)) != -1) {
+        bytes.write(buffer, 0, n);
+      }
+      return bytes.toByteArray();
+    } finally {
+      is.close();
+    }
+  }
+
+  @Test
+  public void gzipIsCutBackToItsLastWholeMemberAndFinished() throws Exception {
+    File dir = Files.createTempDirectory("recovery").toFile();
+    byte[] contents = ZstdCodecTest.contents();
+    // Halfway into the last member, the EOF member gone with it
+    File archive = crashed(new File(dir, "t" + HOUR + ".json.gz"), BlockCodec.GZIP, -1000, 0);
+    long length = archive.length();
+    long lost = ArchiveRecovery.recover(archive);
+    assertEquals(length - lost + ParallelGzipOutputStream.EOF.length, archive.length());
+    assertTrue(lost > 0);
+    assertFalse(ArchiveRecovery.checkpointFile(archive).exists());
+
+    byte[] kept = read(new GZIPInputStream(Files.newInputStream(archive.toPath())));
+    assertTrue(kept.length > 0 && kept.length < contents.length);
+    assertArrayEquals(Arrays.copyOf(contents, kept.length), kept);
+    assertEquals('\n', kept[kept.length - 1]);
+    long lines = 0;
+    for (byte b : kept) {
+      if (b == '\n') {
+        lines++;
+      }
+    }
+    assertEquals(lines, ArchiveRecovery.records(archive));
+
+    // The sidecars it would have had, the .gzi reading back every member
+    BlockGzipIndex gzi = BlockGzipIndex.read(new File(archive.getPath() + ".gzi"));
+    assertTrue(gzi.members() > 1);
+    assertArrayEquals(kept, read(gzi.open(archive, 0, gzi.members())));
+    int last = gzi.members() - 1;
+    byte[] tail = read(gzi.open(archive, last, gzi.members()));
+    assertArrayEquals(Arrays.copyOfRange(kept, (int) gzi.uncompressedOffset(last), kept.length), tail);
+    assertTrue(new File(archive.getPath() + ".idx").exists());
+  }
+
+  @Test
+  public void aWholeArchiveLosesNothing() throws Exception {
+    File dir = Files.createTempDirectory("recovery").toFile();
+    // Everything but the EOF member made it out
+    File archive = crashed(new File(dir, "t" + HOUR + ".json.gz"), BlockCodec.GZIP, -ParallelGzipOutputStream.EOF.length, 0);
+    assertEquals(0, ArchiveRecovery.recover(archive));
+    assertArrayEquals(ZstdCodecTest.contents(), read(new GZIPInputStream(Files.newInputStream(archive.toPath()))));
+  }
+
+  @Test
+  public void zstdIsCutBackToTheCheckpoint() throws Exception {
+    File dir = Files.createTempDirectory("recovery").toFile();
+    final byte[] contents = ZstdCodecTest.contents();
+    final ZstdCodec zstd = new ZstdCodec(ZstdCodec.LEVEL);
+    final long[] firstFrame = new long[1];
+    // Notes how long the first frame is, where a checkpoint could have been
+    BlockCodec codec = new BlockCodec() {
+      @Override
+      public byte[] header() {
+        return zstd.header();
+      }
+
+      @Override
+      public byte[] compress(byte[] data) {
+        byte[] frame = zstd.compress(data);
+        if (Arrays.equals(data, Arrays.copyOf(contents, data.length))) {
+          firstFrame[0] = frame.length;
+        }
+        return frame;
+      }
+
+      @Override
+      public byte[] trailer() {
+        return zstd.trailer();
+      }
+    };
+
+    // Nothing checkpointed, only the header is kept
+    File archive = crashed(new File(dir, "t" + HOUR + ".json.zst"), codec, -10, 0);
+    ArchiveRecovery.recover(archive);
+    assertEquals(zstd.header().length, archive.length());
+    assertEquals(0, ArchiveRecovery.records(archive));
+
+    long checkpoint = zstd.header().length + firstFrame[0];
+    archive = crashed(new File(dir, "t" + (HOUR + 1) + ".json.zst"), codec, -10, checkpoint);
+    ArchiveRecovery.recover(archive);
+    assertEquals(checkpoint, archive.length());
+    byte[] kept = read(ZstdCodec.open(archive));
+    assertTrue(kept.length > 0 && kept.length < contents.length);
+    assertArrayEquals(Arrays.copyOf(contents, kept.length), kept);
+  }
+
+  @Test
+  public void columnarKeepsWholeBlocks() throws Exception {
+    File dir = Files.createTempDirectory("recovery").toFile();
+    File archive = new File(dir, "t" + HOUR + ".tcol");
+    List<CompactTweet> tweets = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      tweets.add(ParquetExportTest.status(i));
+    }
+    long checkpoint;
+    try (FileOutputStream out = new FileOutputStream(archive)) {
+      ColumnarFormat.writeHeader(out);
+      ColumnarBlock.write(out, tweets);
+      checkpoint = out.getChannel().position();
+      ColumnarBlock.write(out, tweets);
+      ColumnarBlock.write(out, tweets);
+    }
+    long whole = archive.length();
+    try (RandomAccessFile raf = new RandomAccessFile(archive, "rw")) {
+      // Half of a fourth block
+      ByteArrayOutputStream block = new ByteArrayOutputStream();
+      ColumnarBlock.write(block, tweets);
+      raf.seek(whole);
+      raf.write(block.toByteArray(), 0, block.size() / 2);
+    }
+    try (DataOutputStream out = new DataOutputStream(new FileOutputStream(ArchiveRecovery.checkpointFile(archive)))) {
+      out.writeLong(checkpoint);
+      out.writeLong(0);
+    }
+    ArchiveRecovery.recover(archive);
+    assertEquals(whole, archive.length());
+    assertEquals(3, ArchiveRecovery.records(archive));
+  }
+
+  // A segment left open is listed in its hour's manifest, as closing it would have
+  @Test
+  public void recoveredSegmentsAreListedInTheManifest() throws Exception {
+    File dir = Files.createTempDirectory("recovery").toFile();
+    String prefix = new File(dir, "t").getPath();
+    File first = crashed(new File(prefix + HOUR + ".json.gz"), BlockCodec.GZIP, -1000, 0);
+    File second = crashed(new File(prefix + (HOUR + 60000) + ".json.gz"), BlockCodec.GZIP, -1000, 0);
+    File next = crashed(new File(prefix + (HOUR + 3600000) + ".json.gz"), BlockCodec.GZIP, -1000, 0);
+    // Parts of the first were already uploaded, beyond what is left of it
+    MultipartUploader.State state = new MultipartUploader.State("key", "upload");
+    state.etags.put(1, "etag");
+    state.save(new File(first.getPath() + ".mpu"));
+    ArchiveRecovery.recoverAll(prefix, ".json.gz", true);
+
+    for (File archive : new File[]{first, second, next}) {
+      assertFalse(ArchiveRecovery.checkpointFile(archive).exists());
+    }
+    assertTrue(new File(first.getPath() + ".mpu.abort").exists());
+    assertFalse(new File(first.getPath() + ".mpu").exists());
+    List<String> hour = Files.readAllLines(SegmentManifest.fileFor(prefix, HOUR, ".json.gz").toPath(), StandardCharsets.UTF_8);
+    assertEquals(Arrays.asList(
+            first.getPath() + " " + ArchiveRecovery.records(first) + " " + first.length(),
+            second.getPath() + " " + ArchiveRecovery.records(second) + " " + second.length()), hour);
+    List<String> later = Files.readAllLines(SegmentManifest.fileFor(prefix, HOUR + 3600000, ".json.gz").toPath(), StandardCharsets.UTF_8);
+    assertEquals(Arrays.asList(next.getPath() + " " + ArchiveRecovery.records(next) + " " + next.length()), later);
+  }
+
+  @Test
+  public void hourlyArchivesHaveNoManifest() throws Exception {
+    File dir = Files.createTempDirectory("recovery").toFile();
+    String prefix = new File(dir, "t").getPath();
+    File archive = crashed(new File(prefix + HOUR + ".json.gz"), BlockCodec.GZIP, -1000, 0);
+    ArchiveRecovery.recoverAll(prefix, ".json.gz", false);
+    assertFalse(ArchiveRecovery.checkpointFile(archive).exists());
+    assertFalse(SegmentManifest.fileFor(prefix, HOUR, ".json.gz").exists());
+  }
+}
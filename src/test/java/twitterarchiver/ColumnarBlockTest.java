@@ -0,0 +1,123 @@
+package twitterarchiver;
+
+import org.junit.Test;
+import twitterarchiver.ColumnarFormat.Column;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ColumnarBlockTest {
+
+  private static byte[] file(List<List<CompactTweet>> blocks) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ColumnarFormat.writeHeader(out);
+    for (List<CompactTweet> block : blocks) {
+      ColumnarBlock.write(out, block);
+    }
+    return out.toByteArray();
+  }
+
+  private static List<CompactTweet> statuses(int from, int to) {
+    List<CompactTweet> statuses = new ArrayList<>();
+    for (int i = from; i < to; i++) {
+      CompactTweet t = ParquetExportTest.status(i);
+      t.inReplyToStatusId = i % 7 == 0 ? 0 : t.id - i;
+      t.retweetedId = t.retweet ? t.id - 1000 - i : 0;
+      t.urls = i % 2 == 0 ? null : new String[]{"http://example.com/" + i % 3};
+      t.verified = i % 3 == 1;
+      t.followers = i * 1000l;
+      t.listed = i;
+      statuses.add(t);
+    }
+    return statuses;
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    List<List<CompactTweet>> blocks = new ArrayList<>();
+    blocks.add(statuses(0, 100));
+    blocks.add(statuses(100, 137));
+    byte[] bytes = file(blocks);
+
+    ColumnarReader reader = new ColumnarReader(new ByteArrayInputStream(bytes), EnumSet.allOf(Column.class));
+    long createdAt = TweetExtractor.parseCreatedAt("Fri Dec 21 18:14:35 +0000 2012");
+    for (List<CompactTweet> expected : blocks) {
+      ColumnarBlock block = reader.next();
+      assertEquals(expected.size(), block.size);
+      for (int i = 0; i < block.size; i++) {
+        CompactTweet t = expected.get(i);
+        assertEquals(t.text, block.text[i]);
+        assertEquals(t.id, block.id[i]);
+        assertEquals(t.userId, block.userId[i]);
+        assertEquals(createdAt, block.createdAt[i]);
+        assertEquals(t.inReplyToStatusId, block.inReplyToId[i]);
+        assertEquals(t.retweetedId, block.retweetedId[i]);
+        assertArrayEquals(t.mentions, block.mentions[i]);
+        assertArrayEquals(t.hashtags, block.hashtags[i]);
+        assertArrayEquals(t.urls == null ? new String[0] : t.urls, block.urls[i]);
+        assertArrayEquals(t.media, block.media[i]);
+        assertEquals(t.geo, block.geo[i]);
+        if (t.geo) {
+          assertEquals(t.coordinates[0], block.longitude[i], 0);
+          assertEquals(t.coordinates[1], block.latitude[i], 0);
+        }
+        assertEquals(t.verified, block.verified[i]);
+        assertEquals(t.followers, block.followers[i]);
+        assertEquals(t.friends, block.friends[i]);
+        assertEquals(t.favourites, block.favourites[i]);
+        assertEquals(t.statuses, block.statuses[i]);
+        assertEquals(t.listed, block.listed[i]);
+        assertEquals(t.lang, block.lang[i]);
+      }
+    }
+    assertNull(reader.next());
+    reader.close();
+  }
+
+  @Test
+  public void testOnlyRequestedColumnsAreDecoded() throws IOException {
+    List<List<CompactTweet>> blocks = new ArrayList<>();
+    blocks.add(statuses(0, 50));
+    ColumnarReader reader = new ColumnarReader(new ByteArrayInputStream(file(blocks)), EnumSet.of(Column.USER_ID, Column.RETWEETED_ID));
+    ColumnarBlock block = reader.next();
+    assertEquals(50, block.size);
+    assertNull(block.text);
+    assertNull(block.hashtags);
+    assertNull(block.lang);
+    // Retweeted ids are relative to the status id, which comes along
+    assertEquals(blocks.get(0).get(4).retweetedId, block.retweetedId[4]);
+    assertEquals(0, block.retweetedId[5]);
+    assertEquals(42, block.userId[49]);
+    assertNull(reader.next());
+  }
+
+  @Test
+  public void testEmptyAndForeignFiles() throws IOException {
+    assertNull(new ColumnarReader(new ByteArrayInputStream(new byte[0]), EnumSet.allOf(Column.class)).next());
+    try {
+      new ColumnarReader(new ByteArrayInputStream("TCOX\1".getBytes()), EnumSet.allOf(Column.class));
+      fail("Read a file that isn't columnar");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().contains("columnar"));
+    }
+    byte[] header = file(new ArrayList<List<CompactTweet>>());
+    header[4] = (byte) (ColumnarFormat.VERSION + 1);
+    try {
+      new ColumnarReader(new ByteArrayInputStream(header), EnumSet.allOf(Column.class));
+      fail("Read an unknown version");
+    } catch (IOException e) {
+      assertFalse(e.getMessage().isEmpty());
+    }
+  }
+}
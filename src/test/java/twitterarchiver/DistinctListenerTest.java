@@ -0,0 +1,73 @@
+package twitterarchiver;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.MetricName;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DistinctListenerTest {
+  private static final long HOUR = 1356112800000l;
+  private static final long MINUTE = 60000;
+
+  private static void users(DistinctListener listener, long from, long to) {
+    for (long user = from; user < to; user++) {
+      CompactTweet t = TweetSerializerTest.tweet(user);
+      t.userId = user;
+      listener.messageReceived(new TwitterFeedEvent(t, null));
+    }
+  }
+
+  private static long gauge() {
+    return (Long) ((Gauge<?>) Metrics.defaultRegistry().allMetrics().get(
+            new MetricName(DistinctListener.class, "distinct_users"))).value();
+  }
+
+  private static long saved(File hll) throws Exception {
+    return HyperLogLog.read(hll).get("users").cardinality();
+  }
+
+  private static void assertWithin(long expected, long actual) {
+    assertTrue(actual + " is not within 3% of " + expected, Math.abs(actual - expected) <= expected * 0.03);
+  }
+
+  // Each segment saves its own counts while the gauges count the hour
+  @Test
+  public void countsTheHourAcrossSegments() throws Exception {
+    File dir = Files.createTempDirectory("distinct").toFile();
+    DistinctListener listener = new DistinctListener();
+    listener.rotating(new File(dir, "start.hll"), HOUR);
+
+    users(listener, 0, 1000);
+    File first = new File(dir, "first.hll");
+    listener.rotating(first, HOUR + 10 * MINUTE);
+    assertWithin(1000, saved(first));
+    assertWithin(1000, gauge());
+
+    // Half of them again
+    users(listener, 500, 1500);
+    assertWithin(1500, gauge());
+    File second = new File(dir, "second.hll");
+    listener.rotating(second, HOUR + 20 * MINUTE);
+    assertWithin(1000, saved(second));
+    assertWithin(1500, gauge());
+
+    // A new hour starts from nothing
+    File last = new File(dir, "last.hll");
+    listener.rotating(last, HOUR + 60 * MINUTE);
+    assertEquals(0, saved(last));
+    assertEquals(0, gauge());
+    users(listener, 0, 100);
+    assertWithin(100, gauge());
+
+    for (File f : dir.listFiles()) {
+      f.delete();
+    }
+    dir.delete();
+  }
+}
@@ -0,0 +1,71 @@
+package twitterarchiver;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.MetricName;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DuplicateFilterTest {
+  // A snowflake id with the given sequence, all from the same millisecond
+  private static long id(long sequence) {
+    return (1000000l << 22) + sequence;
+  }
+
+  private static double gauge(DuplicateFilter filter) {
+    return (Double) ((Gauge<?>) Metrics.defaultRegistry().allMetrics().get(
+            new MetricName(DuplicateFilter.class, "false_positive_rate" + filter.suffix))).value();
+  }
+
+  @Test
+  public void testDropsCopies() {
+    DuplicateFilter filter = new DuplicateFilter(10000);
+    for (int i = 0; i < 5000; i++) {
+      assertFalse(filter.isDuplicate(id(i)));
+    }
+    for (int i = 0; i < 5000; i++) {
+      assertTrue(filter.isDuplicate(id(i)));
+    }
+    assertTrue(filter.falsePositiveRate() < 0.0001);
+  }
+
+  @Test
+  public void testStopsDroppingOnceFull() {
+    DuplicateFilter filter = new DuplicateFilter(TimeUnit.MINUTES.toMillis(10), 7, 1000, 0.0001);
+    int dropped = 0;
+    // Fifty times what it was sized for, as the firehose is for the default sizing
+    for (int i = 0; i < 50000; i++) {
+      if (filter.isDuplicate(id(i))) {
+        dropped++;
+      }
+    }
+    // Only the false positives before it filled up
+    assertTrue(dropped + " statuses dropped", dropped < 5);
+    assertTrue(filter.falsePositiveRate() > 0.0001);
+  }
+
+  @Test
+  public void testMetricsPerFilter() {
+    DuplicateFilter empty = new DuplicateFilter(1000);
+    DuplicateFilter full = new DuplicateFilter(1000);
+    assertFalse(empty.suffix.equals(full.suffix));
+    for (int i = 0; i < 5000; i++) {
+      full.isDuplicate(id(i));
+    }
+    assertEquals(0, gauge(empty), 0);
+    assertEquals(full.falsePositiveRate(), gauge(full), 0);
+    assertTrue(gauge(full) > 0);
+  }
+
+  @Test
+  public void testSizedForHose() {
+    assertEquals(DuplicateFilter.FIREHOSE_PER_BUCKET, DuplicateFilter.perBucket("firehose"));
+    assertEquals(DuplicateFilter.SAMPLE_PER_BUCKET, DuplicateFilter.perBucket("sample"));
+    assertEquals(DuplicateFilter.SAMPLE_PER_BUCKET, DuplicateFilter.perBucket("filter"));
+  }
+}
@@ -0,0 +1,56 @@
+package twitterarchiver;
+
+import com.twitter.hbc.core.endpoint.StatusesFilterEndpoint;
+import com.twitter.hbc.core.endpoint.StatusesFirehoseEndpoint;
+import com.twitter.hbc.core.endpoint.StatusesSampleEndpoint;
+import com.twitter.hbc.core.endpoint.StreamingEndpoint;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HosebirdSourceTest {
+  private static final List<String> NO_TERMS = Collections.emptyList();
+  private static final List<Long> NO_USERS = Collections.emptyList();
+
+  @Test
+  public void hoseChoosesTheEndpoint() {
+    List<StreamingEndpoint> sample = HosebirdSource.endpoints("sample", NO_TERMS, NO_USERS, 2);
+    assertEquals(2, sample.size());
+    assertTrue(sample.get(0) instanceof StatusesSampleEndpoint);
+    List<StreamingEndpoint> firehose = HosebirdSource.endpoints("firehose", NO_TERMS, NO_USERS, 1);
+    assertEquals(1, firehose.size());
+    assertTrue(firehose.get(0) instanceof StatusesFirehoseEndpoint);
+    List<StreamingEndpoint> filter = HosebirdSource.endpoints("filter", Arrays.asList("a", "b", "c"), Arrays.asList(1l), 2);
+    assertEquals(2, filter.size());
+    assertTrue(filter.get(0) instanceof StatusesFilterEndpoint);
+    assertTrue(filter.get(0).getPostParamString(), filter.get(0).getPostParamString().contains("follow=1"));
+    assertTrue(filter.get(0).getPostParamString(), filter.get(0).getPostParamString().contains("a%2Cc"));
+    assertTrue(filter.get(1).getPostParamString(), filter.get(1).getPostParamString().contains("track=b"));
+  }
+
+  @Test
+  public void unsupportedCombinationsAreRejected() {
+    for (Object[] args : new Object[][]{
+            {"links", NO_TERMS, NO_USERS},
+            {"filter", NO_TERMS, NO_USERS},
+            {"sample", Arrays.asList("a"), NO_USERS},
+            {"firehose", NO_TERMS, Arrays.asList(1l)}}) {
+      try {
+        @SuppressWarnings("unchecked")
+        List<String> terms = (List<String>) args[1];
+        @SuppressWarnings("unchecked")
+        List<Long> users = (List<Long>) args[2];
+        HosebirdSource.endpoints((String) args[0], terms, users, 1);
+        fail(Arrays.toString(args));
+      } catch (IllegalArgumentException e) {
+        // Expected
+      }
+    }
+  }
+}
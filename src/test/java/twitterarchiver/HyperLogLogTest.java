@@ -0,0 +1,103 @@
+package twitterarchiver;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HyperLogLogTest {
+
+  private static void assertWithin(long expected, long actual, double error) {
+    assertTrue(actual + " is not within " + error + " of " + expected,
+            Math.abs(actual - expected) <= expected * error);
+  }
+
+  @Test
+  public void testCardinality() {
+    HyperLogLog sketch = new HyperLogLog();
+    assertEquals(0, sketch.cardinality());
+    for (long i = 1; i <= 1000000; i++) {
+      sketch.add(HyperLogLog.hash(i));
+      // Repeats don't count
+      sketch.add(HyperLogLog.hash(i / 2 + 1));
+      if (i == 100 || i == 10000) {
+        assertWithin(i, sketch.cardinality(), 0.03);
+      }
+    }
+    // Three standard errors of 0.8%
+    assertWithin(1000000, sketch.cardinality(), 0.025);
+
+    HyperLogLog strings = new HyperLogLog();
+    for (int i = 0; i < 50000; i++) {
+      strings.add("#tag" + i);
+      strings.add("#tag" + i % 100);
+    }
+    assertWithin(50000, strings.cardinality(), 0.025);
+    strings.clear();
+    assertEquals(0, strings.cardinality());
+  }
+
+  @Test
+  public void testMerge() {
+    HyperLogLog day = new HyperLogLog();
+    HyperLogLog copy = null;
+    // 24 hours of 10000 users each, half of them back every hour
+    for (int hour = 0; hour < 24; hour++) {
+      HyperLogLog sketch = new HyperLogLog();
+      for (long user = 0; user < 10000; user++) {
+        sketch.add(HyperLogLog.hash(user < 5000 ? user : hour * 10000 + user));
+      }
+      assertWithin(10000, sketch.cardinality(), 0.025);
+      day.merge(sketch);
+      if (hour == 0) {
+        copy = day.copy();
+      }
+    }
+    assertWithin(5000 + 24 * 5000, day.cardinality(), 0.025);
+    // A copy doesn't see later merges
+    assertWithin(10000, copy.cardinality(), 0.025);
+
+    try {
+      day.merge(new HyperLogLog(10));
+      fail("Merged sketches of different precisions");
+    } catch (IllegalArgumentException e) {
+      // Expected
+    }
+    try {
+      new HyperLogLog(3);
+      fail("Accepted a precision out of range");
+    } catch (IllegalArgumentException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void testWriteAndRead() throws IOException {
+    Map<String, HyperLogLog> sketches = new LinkedHashMap<>();
+    HyperLogLog users = new HyperLogLog();
+    HyperLogLog urls = new HyperLogLog(10);
+    for (int i = 0; i < 3000; i++) {
+      users.add(HyperLogLog.hash(i));
+      urls.add("http://example.com/" + i % 500);
+    }
+    sketches.put("users", users);
+    sketches.put("urls", urls);
+    File file = File.createTempFile("sketches", ".hll");
+    try {
+      HyperLogLog.write(file, sketches);
+      Map<String, HyperLogLog> read = HyperLogLog.read(file);
+      assertEquals(2, read.size());
+      assertEquals(users.cardinality(), read.get("users").cardinality());
+      assertEquals(urls.cardinality(), read.get("urls").cardinality());
+      assertEquals("users", read.keySet().iterator().next());
+    } finally {
+      file.delete();
+    }
+  }
+}
@@ -0,0 +1,186 @@
+package twitterarchiver;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.MetricsRegistry;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class JsonMetricsReporterTest {
+
+  @Test
+  public void testSpoolsWhereToldAndSendsInOrder() throws Exception {
+    File dir = Files.createTempDirectory("spool").toFile();
+    File spoolFile = new File(dir, "metrics.spool");
+    int port;
+    try (ServerSocket socket = new ServerSocket(0)) {
+      port = socket.getLocalPort();
+    }
+    JsonMetricsReporter reporter = new JsonMetricsReporter("test", new MetricsRegistry(), "token", "http://127.0.0.1:" + port, false);
+    reporter.setSpool(spoolFile, 1024 * 1024);
+    try {
+      // Nothing listening yet, both reports are kept
+      reporter.report();
+      long first = spoolFile.length();
+      assertTrue(first > 0);
+      reporter.report();
+      assertTrue(spoolFile.length() > first);
+      List<byte[]> spooled = new ReportSpool(spoolFile, 1024 * 1024).drain();
+      assertEquals(2, spooled.size());
+      new ReportSpool(spoolFile, 1024 * 1024).appendAll(spooled);
+
+      final List<byte[]> received = new ArrayList<>();
+      HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+      server.createContext("/", new HttpHandler() {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+          ByteArrayOutputStream body = new ByteArrayOutputStream();
+          try (InputStream in = exchange.getRequestBody()) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+              body.write(buffer, 0, read);
+            }
+          }
+          synchronized (received) {
+            received.add(body.toByteArray());
+          }
+          exchange.sendResponseHeaders(200, -1);
+          exchange.close();
+        }
+      });
+      server.start();
+      try {
+        reporter.report();
+      } finally {
+        server.stop(0);
+      }
+      assertEquals(3, received.size());
+      assertTrue(Arrays.equals(spooled.get(0), received.get(0)));
+      assertTrue(Arrays.equals(spooled.get(1), received.get(1)));
+      assertFalse(spoolFile.exists());
+    } finally {
+      reporter.shutdown();
+      spoolFile.delete();
+      dir.delete();
+    }
+  }
+
+  @Test
+  public void testSpoolDropsOldestPastLimit() throws Exception {
+    File file = File.createTempFile("reports", ".spool");
+    file.delete();
+    try {
+      ReportSpool spool = new ReportSpool(file, 3 * (4 + 10));
+      for (int i = 0; i < 3; i++) {
+        assertEquals(0, spool.append(report(i, 10), 0, 10));
+      }
+      assertEquals(1, spool.append(report(3, 10), 0, 10));
+      // Too big to keep at all, everything else goes too
+      assertEquals(4, spool.append(report(4, 50), 0, 50));
+      assertTrue(spool.isEmpty());
+
+      spool.append(report(5, 10), 0, 10);
+      spool.append(report(6, 10), 0, 10);
+      List<byte[]> reports = spool.drain();
+      assertEquals(2, reports.size());
+      assertEquals(5, reports.get(0)[0]);
+      assertEquals(6, reports.get(1)[0]);
+      assertTrue(spool.isEmpty());
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testSpoolIgnoresTornReport() throws Exception {
+    File file = File.createTempFile("reports", ".spool");
+    file.delete();
+    try {
+      ReportSpool spool = new ReportSpool(file, 1024);
+      spool.append(report(1, 10), 0, 10);
+      spool.append(report(2, 10), 0, 10);
+      byte[] bytes = Files.readAllBytes(file.toPath());
+      Files.write(file.toPath(), Arrays.copyOf(bytes, bytes.length - 3));
+      List<byte[]> reports = spool.drain();
+      assertEquals(1, reports.size());
+      assertEquals(1, reports.get(0)[0]);
+    } finally {
+      file.delete();
+    }
+  }
+
+  private static byte[] report(int tag, int length) {
+    byte[] report = new byte[length];
+    Arrays.fill(report, (byte) tag);
+    return report;
+  }
+
+  private static byte[] gunzip(byte[] gzipped) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped))) {
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+    }
+    return out.toByteArray();
+  }
+
+  // Full and delta reports both read each gauge once
+  @Test
+  public void testEvaluatesGaugesOncePerReport() throws Exception {
+    File dir = Files.createTempDirectory("spool").toFile();
+    File spoolFile = new File(dir, "metrics.spool");
+    int port;
+    try (ServerSocket socket = new ServerSocket(0)) {
+      port = socket.getLocalPort();
+    }
+    MetricsRegistry registry = new MetricsRegistry();
+    final AtomicInteger reads = new AtomicInteger();
+    registry.newGauge(JsonMetricsReporterTest.class, "reads", new Gauge<Integer>() {
+      @Override
+      public Integer value() {
+        return reads.incrementAndGet();
+      }
+    });
+    JsonMetricsReporter reporter = new JsonMetricsReporter("test", registry, "token", "http://127.0.0.1:" + port, false);
+    reporter.setSpool(spoolFile, 1024 * 1024);
+    try {
+      reporter.report();
+      assertEquals(1, reads.get());
+      reporter.report();
+      assertEquals(2, reads.get());
+      List<byte[]> spooled = new ReportSpool(spoolFile, 1024 * 1024).drain();
+      assertEquals(2, spooled.size());
+      // The value read is the one sent
+      String delta = new String(gunzip(spooled.get(1)), StandardCharsets.UTF_8);
+      assertTrue(delta, delta.contains(":2"));
+    } finally {
+      reporter.shutdown();
+      spoolFile.delete();
+      dir.delete();
+    }
+  }
+}
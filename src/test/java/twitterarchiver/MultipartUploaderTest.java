@@ -0,0 +1,241 @@
+package twitterarchiver;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static twitterarchiver.MultipartUploader.PART_SIZE;
+
+public class MultipartUploaderTest {
+  private static final String KEY = "2012/12/21/t1356112800000.json.gz";
+
+  // Keeps the multipart calls it gets rather than sending anything, failing parts of the uploads it is told are gone
+  static class RecordingClient extends AmazonS3Client {
+    final List<String> initiated = new ArrayList<>();
+    final List<UploadPartRequest> parts = Collections.synchronizedList(new ArrayList<UploadPartRequest>());
+    final List<CompleteMultipartUploadRequest> completed = new ArrayList<>();
+    final List<String> aborted = new ArrayList<>();
+    final Set<String> gone = new HashSet<>();
+
+    RecordingClient() {
+      super(new BasicAWSCredentials("access", "secret"));
+    }
+
+    @Override
+    public InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request) {
+      String uploadId = "upload" + (initiated.size() + 1);
+      initiated.add(uploadId);
+      InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+      result.setKey(request.getKey());
+      result.setUploadId(uploadId);
+      return result;
+    }
+
+    @Override
+    public UploadPartResult uploadPart(UploadPartRequest request) {
+      if (gone.contains(request.getUploadId())) {
+        AmazonServiceException e = new AmazonServiceException("The specified upload does not exist");
+        e.setErrorCode("NoSuchUpload");
+        throw e;
+      }
+      parts.add(request);
+      UploadPartResult result = new UploadPartResult();
+      result.setPartNumber(request.getPartNumber());
+      result.setETag(request.getUploadId() + "-" + request.getPartNumber());
+      return result;
+    }
+
+    @Override
+    public CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request) {
+      completed.add(request);
+      return new CompleteMultipartUploadResult();
+    }
+
+    @Override
+    public void abortMultipartUpload(AbortMultipartUploadRequest request) {
+      aborted.add(request.getUploadId());
+    }
+
+    // The parts sent so far in part order, they go up in parallel
+    List<UploadPartRequest> sorted() {
+      List<UploadPartRequest> sorted = new ArrayList<>(parts);
+      Collections.sort(sorted, new Comparator<UploadPartRequest>() {
+        @Override
+        public int compare(UploadPartRequest a, UploadPartRequest b) {
+          return a.getPartNumber() - b.getPartNumber();
+        }
+      });
+      return sorted;
+    }
+  }
+
+  private static MultipartUploader uploader(File dir, String suffix, RecordingClient client) {
+    return new MultipartUploader(dir + "/t", suffix, new StreamProvider(dir + "/t", suffix), client);
+  }
+
+  // Sparse, only the length matters to the uploader
+  private static File archive(File dir, long length) throws IOException {
+    File file = new File(dir, "t1356112800000.json.gz");
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.setLength(length);
+    }
+    return file;
+  }
+
+  private static void assertPart(UploadPartRequest request, String uploadId, int part, long size, boolean last) {
+    assertEquals(uploadId, request.getUploadId());
+    assertEquals(KEY, request.getKey());
+    assertEquals(part, request.getPartNumber());
+    assertEquals((part - 1) * PART_SIZE, request.getFileOffset());
+    assertEquals(size, request.getPartSize());
+    assertEquals(last, request.isLastPart());
+  }
+
+  private static List<String> etags(CompleteMultipartUploadRequest request) {
+    List<String> etags = new ArrayList<>();
+    for (PartETag etag : request.getPartETags()) {
+      etags.add(etag.getPartNumber() + ":" + etag.getETag());
+    }
+    return etags;
+  }
+
+  @Test
+  public void sendsWholePartsThenTheRest() throws Exception {
+    File dir = Files.createTempDirectory("mpu").toFile();
+    RecordingClient client = new RecordingClient();
+    MultipartUploader uploader = uploader(dir, ".parts.json.gz", client);
+
+    // Less than a part of a file still being written waits
+    File file = archive(dir, PART_SIZE - 1);
+    uploader.upload(file, KEY, false);
+    assertTrue(client.initiated.isEmpty());
+    assertFalse(new File(file + ".mpu").exists());
+
+    // Only whole parts while it grows
+    file = archive(dir, 2 * PART_SIZE + 100);
+    uploader.upload(file, KEY, false);
+    assertEquals(Arrays.asList("upload1"), client.initiated);
+    List<UploadPartRequest> parts = client.sorted();
+    assertEquals(2, parts.size());
+    assertPart(parts.get(0), "upload1", 1, PART_SIZE, false);
+    assertPart(parts.get(1), "upload1", 2, PART_SIZE, false);
+    assertTrue(client.completed.isEmpty());
+    assertEquals(2, MultipartUploader.State.load(new File(file + ".mpu")).etags.size());
+
+    // Once closed the remainder goes as the last part and the upload completes
+    file = archive(dir, 2 * PART_SIZE + 200);
+    uploader.upload(file, KEY, true);
+    parts = client.sorted();
+    assertEquals(3, parts.size());
+    assertPart(parts.get(2), "upload1", 3, 200, true);
+    assertEquals(1, client.completed.size());
+    assertEquals("upload1", client.completed.get(0).getUploadId());
+    assertEquals(Arrays.asList("1:upload1-1", "2:upload1-2", "3:upload1-3"), etags(client.completed.get(0)));
+    assertFalse(file.exists());
+    assertFalse(new File(file + ".mpu").exists());
+  }
+
+  // A file that ends on a boundary has no empty part after it
+  @Test
+  public void endsOnAPartBoundary() throws Exception {
+    File dir = Files.createTempDirectory("mpu").toFile();
+    RecordingClient client = new RecordingClient();
+    File file = archive(dir, 2 * PART_SIZE);
+    uploader(dir, ".boundary.json.gz", client).upload(file, KEY, true);
+    List<UploadPartRequest> parts = client.sorted();
+    assertEquals(2, parts.size());
+    assertPart(parts.get(0), "upload1", 1, PART_SIZE, false);
+    assertPart(parts.get(1), "upload1", 2, PART_SIZE, true);
+    assertEquals(1, client.completed.size());
+  }
+
+  // After a restart the upload carries on from the parts in the .mpu file
+  @Test
+  public void resumesFromTheStateFile() throws Exception {
+    File dir = Files.createTempDirectory("mpu").toFile();
+    File file = archive(dir, 3 * PART_SIZE + 10);
+    MultipartUploader.State state = new MultipartUploader.State(KEY, "before");
+    state.etags.put(1, "before-1");
+    state.etags.put(2, "before-2");
+    state.save(new File(file + ".mpu"));
+
+    RecordingClient client = new RecordingClient();
+    uploader(dir, ".resume.json.gz", client).upload(file, KEY, true);
+    assertTrue(client.initiated.isEmpty());
+    List<UploadPartRequest> parts = client.sorted();
+    assertEquals(2, parts.size());
+    assertPart(parts.get(0), "before", 3, PART_SIZE, false);
+    assertPart(parts.get(1), "before", 4, 10, true);
+    assertEquals(Arrays.asList("1:before-1", "2:before-2", "3:before-3", "4:before-4"), etags(client.completed.get(0)));
+    assertFalse(file.exists());
+  }
+
+  // An upload S3 no longer knows about is dropped and started again on the next run
+  @Test
+  public void restartsAnUploadThatIsGone() throws Exception {
+    File dir = Files.createTempDirectory("mpu").toFile();
+    File file = archive(dir, PART_SIZE + 10);
+    File stateFile = new File(file + ".mpu");
+    MultipartUploader.State state = new MultipartUploader.State(KEY, "expired");
+    state.save(stateFile);
+
+    RecordingClient client = new RecordingClient();
+    client.gone.add("expired");
+    MultipartUploader uploader = uploader(dir, ".gone.json.gz", client);
+    uploader.upload(file, KEY, true);
+    assertFalse(stateFile.exists());
+    assertTrue(file.exists());
+    assertTrue(client.completed.isEmpty());
+
+    uploader.upload(file, KEY, true);
+    assertEquals(Arrays.asList("upload1"), client.initiated);
+    assertEquals(Arrays.asList("1:upload1-1", "2:upload1-2"), etags(client.completed.get(0)));
+    assertFalse(file.exists());
+  }
+
+  // Recovery cut the file back past sent parts and set the state aside, so it is aborted and sent again
+  @Test
+  public void abortsWhatRecoverySetAside() throws Exception {
+    File dir = Files.createTempDirectory("mpu").toFile();
+    File file = archive(dir, PART_SIZE + 10);
+    MultipartUploader.State state = new MultipartUploader.State(KEY, "stale");
+    state.etags.put(1, "stale-1");
+    state.etags.put(2, "stale-2");
+    state.save(new File(file + ".mpu.abort"));
+
+    RecordingClient client = new RecordingClient();
+    uploader(dir, ".abort.json.gz", client).upload(file, KEY, true);
+    assertEquals(Arrays.asList("stale"), client.aborted);
+    assertFalse(new File(file + ".mpu.abort").exists());
+    assertEquals(Arrays.asList("upload1"), client.initiated);
+    List<UploadPartRequest> parts = client.sorted();
+    assertEquals(2, parts.size());
+    assertPart(parts.get(0), "upload1", 1, PART_SIZE, false);
+    assertPart(parts.get(1), "upload1", 2, 10, true);
+    assertEquals(Arrays.asList("1:upload1-1", "2:upload1-2"), etags(client.completed.get(0)));
+  }
+}
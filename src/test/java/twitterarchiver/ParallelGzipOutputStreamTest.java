@@ -0,0 +1,140 @@
+package twitterarchiver;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ParallelGzipOutputStreamTest {
+
+  private static byte[] read(InputStream is) throws IOException {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      byte[] buffer = new byte[65536];
+      int n;
+      while ((n = is.read(buffer)) != -1) {
+        bytes.write(buffer, 0, n);
+      }
+      return bytes.toByteArray();
+    } finally {
+      is.close();
+    }
+  }
+
+  // Lines of varying length, about a megabyte of them
+  private static byte[] lines() {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; sb.length() < 1024 * 1024; i++) {
+      sb.append("line ").append(i);
+      for (int j = 0; j < i % 97; j++) {
+        sb.append(' ').append(j);
+      }
+      sb.append('\n');
+    }
+    return sb.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void testMembersAndIndex() throws IOException {
+    File dir = Files.createTempDirectory("bgzf").toFile();
+    File file = new File(dir, "lines.json.gz");
+    byte[] data = lines();
+    ParallelGzipOutputStream out = new ParallelGzipOutputStream(file);
+    // Odd sized writes so cuts don't line up with them
+    for (int i = 0; i < data.length; i += 1000) {
+      out.write(data, i, Math.min(1000, data.length - i));
+    }
+    out.close();
+    assertEquals(file.length(), out.getCompressedLength());
+
+    // Plain gunzip sees one stream ending in the empty BGZF member
+    assertArrayEquals(data, read(new GZIPInputStream(new FileInputStream(file))));
+    byte[] bytes = Files.readAllBytes(file.toPath());
+    assertArrayEquals(ParallelGzipOutputStream.EOF,
+            Arrays.copyOfRange(bytes, bytes.length - ParallelGzipOutputStream.EOF.length, bytes.length));
+
+    BlockGzipIndex index = BlockGzipIndex.read(new File(file + ".gzi"));
+    assertTrue(index.members() >= data.length / ParallelGzipOutputStream.BLOCK_SIZE);
+    assertEquals(0, index.compressedOffset(0));
+    assertEquals(0, index.uncompressedOffset(0));
+    for (int member = 1; member < index.members(); member++) {
+      long start = index.uncompressedOffset(member);
+      assertTrue(start - index.uncompressedOffset(member - 1) <= ParallelGzipOutputStream.BLOCK_SIZE);
+      // Members hold whole lines
+      assertEquals('\n', data[(int) start - 1]);
+      // Each one decompresses on its own
+      byte[] one = read(index.open(file, member, member + 1));
+      long end = member + 1 < index.members() ? index.uncompressedOffset(member + 1) : data.length;
+      assertArrayEquals(Arrays.copyOfRange(data, (int) start, (int) end), one);
+      assertEquals(member, index.memberFor(start));
+      assertEquals(member, index.memberFor(end - 1));
+    }
+
+    // A range of members reads back exactly that part of the file
+    int from = index.members() / 3;
+    int to = 2 * index.members() / 3;
+    assertArrayEquals(Arrays.copyOfRange(data, (int) index.uncompressedOffset(from), (int) index.uncompressedOffset(to)),
+            read(index.open(file, from, to)));
+    assertArrayEquals(Arrays.copyOfRange(data, (int) index.uncompressedOffset(to), data.length),
+            read(index.open(file, to, index.members())));
+
+    new File(file + ".gzi").delete();
+    file.delete();
+    dir.delete();
+  }
+
+  @Test
+  public void testLineLongerThanBlock() throws IOException {
+    File dir = Files.createTempDirectory("bgzf").toFile();
+    File file = new File(dir, "long.json.gz");
+    byte[] data = new byte[ParallelGzipOutputStream.BLOCK_SIZE * 3 + 17];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) ('a' + i % 26);
+    }
+    data[data.length - 1] = '\n';
+    ParallelGzipOutputStream out = new ParallelGzipOutputStream(file);
+    out.write(data);
+    out.write("short\n".getBytes(StandardCharsets.UTF_8));
+    out.close();
+
+    BlockGzipIndex index = BlockGzipIndex.read(new File(file + ".gzi"));
+    assertEquals(4, index.members());
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    expected.write(data);
+    expected.write("short\n".getBytes(StandardCharsets.UTF_8));
+    assertArrayEquals(expected.toByteArray(), read(index.open(file, 0, index.members())));
+    assertArrayEquals(expected.toByteArray(), read(new GZIPInputStream(new FileInputStream(file))));
+
+    new File(file + ".gzi").delete();
+    file.delete();
+    dir.delete();
+  }
+
+  @Test
+  public void testFlushWritesWholeMembers() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ParallelGzipOutputStream out = new ParallelGzipOutputStream(bytes, null);
+    out.write("first\n".getBytes(StandardCharsets.UTF_8));
+    out.flush();
+    // What has been flushed is readable before the file is closed
+    assertEquals(bytes.size(), out.getCompressedLength());
+    assertArrayEquals("first\n".getBytes(StandardCharsets.UTF_8),
+            read(new GZIPInputStream(new ByteArrayInputStream(bytes.toByteArray()))));
+    out.write("second\n".getBytes(StandardCharsets.UTF_8));
+    out.close();
+    assertArrayEquals("first\nsecond\n".getBytes(StandardCharsets.UTF_8),
+            read(new GZIPInputStream(new ByteArrayInputStream(bytes.toByteArray()))));
+  }
+}
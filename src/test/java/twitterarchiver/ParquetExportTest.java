@@ -0,0 +1,125 @@
+package twitterarchiver;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ParquetExportTest {
+  private static final int STATUSES = 20000;
+  private static final long ROW_GROUP_BYTES = 512 * 1024;
+
+  static CompactTweet status(int i) {
+    CompactTweet t = TweetSerializerTest.tweet(282187322005766184l + i);
+    t.text = "status " + i;
+    t.lang = i % 4 == 0 ? null : "l" + i % 9;
+    t.hashtags = i % 3 == 0 ? new String[0] : new String[]{"h" + i, "x"};
+    t.geo = i % 5 == 0;
+    t.coordinates = t.geo ? new double[]{i, -i} : null;
+    t.retweet = i % 2 == 0;
+    return t;
+  }
+
+  // Statuses with a few lines that aren't any between them
+  static void write(OutputStream out) throws IOException {
+    TweetSerializer serializer = new TweetSerializer(null);
+    for (int i = 0; i < STATUSES; i++) {
+      out.write(serializer.toJson(status(i)));
+      if (i % 1000 == 0) {
+        out.write("{}\nnot json\n".getBytes(StandardCharsets.UTF_8));
+      }
+    }
+    out.close();
+  }
+
+  private static File archive(File dir, String name, BlockCodec codec, boolean gzi) throws IOException {
+    dir.mkdirs();
+    File file = new File(dir, name);
+    write(new ParallelGzipOutputStream(new FileOutputStream(file), gzi ? new File(file + ".gzi") : null, codec));
+    return file;
+  }
+
+  private static void check(File parquet) throws IOException {
+    ParquetReader reader = new ParquetReader(parquet);
+    assertEquals(STATUSES, reader.rows());
+    assertTrue(reader.rowGroups().size() > 1);
+    long rows = 0;
+    for (Map<Integer, Object> group : reader.rowGroups()) {
+      assertEquals(ParquetExport.SCHEMA.size(), ParquetReader.list(group, 1).size());
+      rows += (Long) group.get(3);
+    }
+    assertEquals(STATUSES, rows);
+    assertEquals(ParquetExport.SCHEMA.size() + 1, reader.schema().size());
+    List<List<Object>> ids = reader.column(0);
+    List<List<Object>> text = reader.column(2);
+    List<List<Object>> createdAt = reader.column(3);
+    List<List<Object>> retweeted = reader.column(5);
+    List<List<Object>> mentions = reader.column(6);
+    List<List<Object>> hashtags = reader.column(7);
+    List<List<Object>> longitude = reader.column(10);
+    List<List<Object>> latitude = reader.column(11);
+    List<List<Object>> followers = reader.column(13);
+    List<List<Object>> lang = reader.column(18);
+    for (int i = 0; i < STATUSES; i++) {
+      CompactTweet t = status(i);
+      assertEquals(Collections.singletonList((Object) t.id), ids.get(i));
+      assertEquals(Collections.singletonList((Object) t.text), text.get(i));
+      assertEquals(Collections.singletonList((Object) 1356113675000l), createdAt.get(i));
+      assertEquals(t.retweet ? Collections.singletonList((Object) t.retweetedId) : Collections.emptyList(), retweeted.get(i));
+      assertEquals(Arrays.asList((Object) 1l, 2l), mentions.get(i));
+      assertEquals(Arrays.asList((Object[]) t.hashtags), hashtags.get(i));
+      assertEquals(t.geo ? Collections.singletonList((Object) (double) i) : Collections.emptyList(), longitude.get(i));
+      assertEquals(t.geo ? Collections.singletonList((Object) (double) -i) : Collections.emptyList(), latitude.get(i));
+      assertEquals(Collections.singletonList((Object) t.followers), followers.get(i));
+      assertEquals(t.lang == null ? Collections.emptyList() : Collections.singletonList((Object) t.lang), lang.get(i));
+    }
+  }
+
+  @Test
+  public void exportsEveryStatusOfEachKindOfArchive() throws Exception {
+    File root = Files.createTempDirectory("export").toFile();
+    File archives = new File(root, "t");
+    archive(new File(archives, "2012/12/21/18"), "t1356112800000.json.gz", BlockCodec.GZIP, true);
+    archive(new File(archives, "2012/12/21/19"), "t1356116400000.json.gz", BlockCodec.GZIP, false);
+    archive(new File(archives, "2012/12/21/20"), "t1356120000000.json.zst", new ZstdCodec(ZstdCodec.LEVEL), false);
+    File out = new File(root, "out");
+    new ParquetExport(out, ROW_GROUP_BYTES).run(archives);
+    check(new File(out, "2012/12/21/18/t1356112800000.parquet"));
+    check(new File(out, "2012/12/21/19/t1356116400000.parquet"));
+    check(new File(out, "2012/12/21/20/t1356120000000.parquet"));
+  }
+
+  @Test
+  public void onlyConvertsWhatHasNoExportYet() throws Exception {
+    File dir = Files.createTempDirectory("incremental").toFile();
+    archive(dir, "t1356112800000.json.gz", BlockCodec.GZIP, true);
+    new ParquetExport(null, ROW_GROUP_BYTES).run(dir);
+    File first = new File(dir, "t1356112800000.parquet");
+    assertTrue(first.exists());
+    assertTrue(first.setLastModified(0));
+
+    archive(dir, "t1356116400000.json.gz", BlockCodec.GZIP, true);
+    // Still being written
+    archive(dir, "t1356120000000.json.gz", BlockCodec.GZIP, true);
+    assertTrue(new File(dir, "t1356120000000.json.gz.ckpt").createNewFile());
+    new ParquetExport(null, ROW_GROUP_BYTES).run(dir);
+    assertEquals(0, first.lastModified());
+    check(new File(dir, "t1356116400000.parquet"));
+    assertFalse(new File(dir, "t1356120000000.parquet").exists());
+    for (String name : dir.list()) {
+      assertFalse(name, name.endsWith(".tmp"));
+    }
+  }
+}
@@ -0,0 +1,128 @@
+package twitterarchiver;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static twitterarchiver.ParquetFile.BOOLEAN;
+import static twitterarchiver.ParquetFile.BYTE_ARRAY;
+import static twitterarchiver.ParquetFile.DOUBLE;
+import static twitterarchiver.ParquetFile.INT64;
+import static twitterarchiver.ParquetFile.NONE;
+import static twitterarchiver.ParquetFile.OPTIONAL;
+import static twitterarchiver.ParquetFile.REPEATED;
+import static twitterarchiver.ParquetFile.REQUIRED;
+import static twitterarchiver.ParquetFile.TIMESTAMP_MILLIS;
+import static twitterarchiver.ParquetFile.UTF8;
+
+public class ParquetFileTest {
+  private static final List<ParquetFile.Field> FIELDS = Arrays.asList(
+          new ParquetFile.Field("id", INT64, REQUIRED, NONE),
+          new ParquetFile.Field("name", BYTE_ARRAY, OPTIONAL, UTF8),
+          new ParquetFile.Field("at", INT64, OPTIONAL, TIMESTAMP_MILLIS),
+          new ParquetFile.Field("ids", INT64, REPEATED, NONE),
+          new ParquetFile.Field("tags", BYTE_ARRAY, REPEATED, UTF8),
+          new ParquetFile.Field("x", DOUBLE, OPTIONAL, NONE),
+          new ParquetFile.Field("flag", BOOLEAN, REQUIRED, NONE));
+
+  private static void row(ParquetFile.RowGroup group, long i) {
+    ParquetFile.Column[] c = group.columns;
+    c[0].add(i * 1000003);
+    if (i % 3 == 0) {
+      c[1].addNull();
+    } else {
+      c[1].add("name " + i + " ü");
+    }
+    if (i % 5 == 0) {
+      c[2].addNull();
+    } else {
+      c[2].add(i);
+    }
+    long[] ids = new long[(int) (i % 4)];
+    for (int j = 0; j < ids.length; j++) {
+      ids[j] = i + j;
+    }
+    c[3].add(ids);
+    c[4].add(i % 7 == 0 ? null : new String[]{"a" + i, "", "b"});
+    if (i % 2 == 0) {
+      c[5].add(i / 2.0);
+    } else {
+      c[5].addNull();
+    }
+    c[6].add(i % 3 == 1);
+    group.endRow();
+  }
+
+  @Test
+  public void roundTrip() throws Exception {
+    File file = File.createTempFile("round", ".parquet");
+    ParquetFile parquet = new ParquetFile(new FileOutputStream(file), FIELDS);
+    // Enough rows in the first group for the id column to need more than one page
+    int[] sizes = {150000, 0, 1, 1000};
+    long i = 0;
+    for (int size : sizes) {
+      ParquetFile.RowGroup group = parquet.newRowGroup();
+      for (int j = 0; j < size; j++) {
+        row(group, i++);
+      }
+      parquet.write(group);
+    }
+    parquet.close();
+
+    ParquetReader reader = new ParquetReader(file);
+    assertEquals(i, reader.rows());
+    // The empty group is left out
+    assertEquals(3, reader.rowGroups().size());
+    List<Map<Integer, Object>> schema = reader.schema();
+    assertEquals(FIELDS.size() + 1, schema.size());
+    assertEquals((long) FIELDS.size(), schema.get(0).get(5));
+    for (int f = 0; f < FIELDS.size(); f++) {
+      assertEquals(FIELDS.get(f).name, schema.get(f + 1).get(4));
+    }
+    for (Map<Integer, Object> group : reader.rowGroups()) {
+      assertEquals(FIELDS.size(), ParquetReader.list(group, 1).size());
+    }
+
+    List<List<Object>> ids = reader.column(0);
+    List<List<Object>> names = reader.column(1);
+    List<List<Object>> at = reader.column(2);
+    List<List<Object>> lists = reader.column(3);
+    List<List<Object>> tags = reader.column(4);
+    List<List<Object>> xs = reader.column(5);
+    List<List<Object>> flags = reader.column(6);
+    assertEquals(i, ids.size());
+    for (int r = 0; r < i; r++) {
+      assertEquals(Collections.singletonList((Object) (r * 1000003l)), ids.get(r));
+      assertEquals(r % 3 == 0 ? Collections.emptyList() : Collections.singletonList("name " + r + " ü"), names.get(r));
+      assertEquals(r % 5 == 0 ? Collections.emptyList() : Collections.singletonList((Object) (long) r), at.get(r));
+      assertEquals(r % 4, lists.get(r).size());
+      for (int j = 0; j < r % 4; j++) {
+        assertEquals((long) r + j, lists.get(r).get(j));
+      }
+      assertEquals(r % 7 == 0 ? Collections.emptyList() : Arrays.asList("a" + r, "", "b"), tags.get(r));
+      assertEquals(r % 2 == 0 ? Collections.singletonList((Object) (r / 2.0)) : Collections.emptyList(), xs.get(r));
+      assertEquals(Collections.singletonList((Object) (r % 3 == 1)), flags.get(r));
+    }
+    file.delete();
+  }
+
+  @Test
+  public void noRowGroups() throws Exception {
+    File file = File.createTempFile("empty", ".parquet");
+    ParquetFile parquet = new ParquetFile(new FileOutputStream(file), FIELDS);
+    parquet.write(parquet.newRowGroup());
+    parquet.close();
+    ParquetReader reader = new ParquetReader(file);
+    assertEquals(0, reader.rows());
+    assertEquals(0, reader.rowGroups().size());
+    assertEquals(0, reader.column(0).size());
+    Files.delete(file.toPath());
+  }
+}
@@ -0,0 +1,230 @@
+package twitterarchiver;
+
+import com.github.luben.zstd.Zstd;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads back what ParquetFile writes, independently of it: the Thrift compact footer
+ * as nested maps of field id to value, and columns as one list of values per row.
+ */
+class ParquetReader {
+  final byte[] bytes;
+  final Map<Integer, Object> meta;
+
+  ParquetReader(File file) throws IOException {
+    bytes = Files.readAllBytes(file.toPath());
+    ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    if (!Arrays.equals(Arrays.copyOf(bytes, 4), ParquetFile.MAGIC)
+            || !Arrays.equals(Arrays.copyOfRange(bytes, bytes.length - 4, bytes.length), ParquetFile.MAGIC)) {
+      throw new IOException("Not a Parquet file");
+    }
+    int length = buffer.getInt(bytes.length - 8);
+    buffer.position(bytes.length - 8 - length);
+    buffer.limit(bytes.length - 8);
+    meta = new Compact(buffer).struct();
+    if (buffer.hasRemaining()) {
+      throw new IOException("Footer longer than its struct");
+    }
+  }
+
+  long rows() {
+    return (Long) meta.get(3);
+  }
+
+  List<Map<Integer, Object>> schema() {
+    return list(meta, 2);
+  }
+
+  List<Map<Integer, Object>> rowGroups() {
+    return list(meta, 4);
+  }
+
+  /**
+   * Every row of a column across the row groups, a list of its values, empty for null.
+   */
+  List<List<Object>> column(int index) throws IOException {
+    Map<Integer, Object> element = schema().get(index + 1);
+    int type = ((Long) element.get(1)).intValue();
+    int repetition = ((Long) element.get(3)).intValue();
+    List<List<Object>> rows = new ArrayList<>();
+    for (Map<Integer, Object> group : rowGroups()) {
+      Map<Integer, Object> chunk = list(group, 1).get(index);
+      Map<Integer, Object> column = struct(chunk, 3);
+      int position = ((Long) column.get(9)).intValue();
+      int end = position + ((Long) column.get(7)).intValue();
+      long values = 0;
+      int groupRows = 0;
+      while (position < end) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, position, end - position).order(ByteOrder.LITTLE_ENDIAN);
+        Map<Integer, Object> header = new Compact(buffer).struct();
+        int uncompressed = ((Long) header.get(2)).intValue();
+        int compressed = ((Long) header.get(3)).intValue();
+        int count = ((Long) struct(header, 5).get(1)).intValue();
+        byte[] page = Zstd.decompress(Arrays.copyOfRange(bytes, buffer.position(), buffer.position() + compressed),
+                uncompressed);
+        position = buffer.position() + compressed;
+        ByteBuffer in = ByteBuffer.wrap(page).order(ByteOrder.LITTLE_ENDIAN);
+        int[] reps = repetition == ParquetFile.REPEATED ? levels(in, count) : new int[count];
+        int[] defs = repetition != ParquetFile.REQUIRED ? levels(in, count) : filled(count);
+        int bit = 0;
+        for (int i = 0; i < count; i++) {
+          if (reps[i] == 0) {
+            rows.add(new ArrayList<>());
+            groupRows++;
+          }
+          if (defs[i] == 0) {
+            continue;
+          }
+          Object value;
+          switch (type) {
+            case ParquetFile.BOOLEAN:
+              value = (page[in.position() + bit / 8] >> (bit & 7) & 1) == 1;
+              bit++;
+              break;
+            case ParquetFile.INT64:
+              value = in.getLong();
+              break;
+            case ParquetFile.DOUBLE:
+              value = in.getDouble();
+              break;
+            default:
+              byte[] string = new byte[in.getInt()];
+              in.get(string);
+              value = new String(string, StandardCharsets.UTF_8);
+          }
+          rows.get(rows.size() - 1).add(value);
+        }
+        values += count;
+      }
+      if (values != (Long) column.get(5) || groupRows != (Long) group.get(3)) {
+        throw new IOException("Column " + index + " doesn't add up to its row group");
+      }
+    }
+    return rows;
+  }
+
+  // The RLE runs ParquetFile writes, a 4 byte length then run headers each followed by a byte
+  private static int[] levels(ByteBuffer in, int count) throws IOException {
+    int end = in.getInt();
+    end += in.position();
+    int[] levels = new int[count];
+    int i = 0;
+    while (in.position() < end) {
+      long header = varint(in);
+      if ((header & 1) != 0) {
+        throw new IOException("Bit packed levels");
+      }
+      int value = in.get();
+      for (long run = header >>> 1; run > 0; run--) {
+        levels[i++] = value;
+      }
+    }
+    if (i != count) {
+      throw new IOException("Expected " + count + " levels, got " + i);
+    }
+    return levels;
+  }
+
+  private static int[] filled(int count) {
+    int[] ones = new int[count];
+    Arrays.fill(ones, 1);
+    return ones;
+  }
+
+  @SuppressWarnings("unchecked")
+  static List<Map<Integer, Object>> list(Map<Integer, Object> struct, int id) {
+    return (List<Map<Integer, Object>>) struct.get(id);
+  }
+
+  @SuppressWarnings("unchecked")
+  static Map<Integer, Object> struct(Map<Integer, Object> struct, int id) {
+    return (Map<Integer, Object>) struct.get(id);
+  }
+
+  static long varint(ByteBuffer in) {
+    long value = 0;
+    int shift = 0;
+    byte b;
+    do {
+      b = in.get();
+      value |= (long) (b & 0x7f) << shift;
+      shift += 7;
+    } while (b < 0);
+    return value;
+  }
+
+  /**
+   * Thrift compact protocol, enough to read any struct without knowing its fields.
+   */
+  static final class Compact {
+    private final ByteBuffer in;
+
+    Compact(ByteBuffer in) {
+      this.in = in;
+    }
+
+    Map<Integer, Object> struct() throws IOException {
+      Map<Integer, Object> fields = new HashMap<>();
+      int last = 0;
+      while (true) {
+        int b = in.get() & 0xff;
+        if (b == 0) {
+          return fields;
+        }
+        int delta = b >>> 4;
+        int id = delta != 0 ? last + delta : (int) zigzag(varint(in));
+        int type = b & 0x0f;
+        fields.put(id, type == 1 ? Boolean.TRUE : type == 2 ? Boolean.FALSE : value(type));
+        last = id;
+      }
+    }
+
+    private Object value(int type) throws IOException {
+      switch (type) {
+        case 3:
+          return (long) in.get();
+        case 4:
+        case 5:
+        case 6:
+          return zigzag(varint(in));
+        case 7:
+          return in.getDouble();
+        case 8:
+          byte[] bytes = new byte[(int) varint(in)];
+          in.get(bytes);
+          return new String(bytes, StandardCharsets.UTF_8);
+        case 9:
+        case 10:
+          int header = in.get() & 0xff;
+          int size = header >>> 4;
+          if (size == 15) {
+            size = (int) varint(in);
+          }
+          List<Object> list = new ArrayList<>();
+          for (int i = 0; i < size; i++) {
+            list.add(value(header & 0x0f));
+          }
+          return list;
+        case 12:
+          return struct();
+        default:
+          throw new IOException("Unexpected Thrift type " + type);
+      }
+    }
+
+    private static long zigzag(long n) {
+      return (n >>> 1) ^ -(n & 1);
+    }
+  }
+}
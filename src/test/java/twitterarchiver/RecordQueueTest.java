@@ -0,0 +1,103 @@
+package twitterarchiver;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class RecordQueueTest {
+
+  @Test
+  public void recordsGoBackToThePoolOnceConsumed() {
+    RecordQueue queue = new RecordQueue();
+    RecordQueue.Record first = queue.claim();
+    first.write('a');
+    queue.offer(first);
+    RecordQueue.Record second = queue.claim();
+    assertNotSame(first, second);
+    second.write('b');
+    queue.offer(second);
+    assertSame(first, queue.poll());
+    // The last record polled stays readable until the next poll
+    assertSame(second, queue.poll());
+    assertEquals('a', first.data[0]);
+    assertNull(queue.poll());
+    assertTrue(queue.isEmpty());
+    RecordQueue.Record reused = queue.claim();
+    assertSame(first, reused);
+    assertEquals(0, reused.length);
+  }
+
+  @Test
+  public void releasedRecordsAreReused() {
+    RecordQueue queue = new RecordQueue();
+    RecordQueue.Record record = queue.claim();
+    record.write(new byte[100], 0, 100);
+    queue.release(record);
+    assertSame(record, queue.claim());
+    assertEquals(0, record.length);
+  }
+
+  @Test
+  public void callersArraysAndLargeBuffersAreNotPooled() {
+    RecordQueue queue = new RecordQueue();
+    RecordQueue.Record own = new RecordQueue.Record(new byte[]{'x'});
+    queue.release(own);
+    RecordQueue.Record large = queue.claim();
+    large.write(new byte[1 << 17], 0, 1 << 17);
+    queue.release(large);
+    RecordQueue.Record claimed = queue.claim();
+    assertNotSame(own, claimed);
+    assertNotSame(large, claimed);
+  }
+
+  @Test
+  public void producersKeepTheirOrder() throws Exception {
+    final RecordQueue queue = new RecordQueue();
+    final int producers = 4;
+    final int count = 200000;
+    List<Thread> threads = new ArrayList<>();
+    for (int p = 0; p < producers; p++) {
+      final int producer = p;
+      Thread thread = new Thread() {
+        @Override
+        public void run() {
+          byte[] bytes = new byte[8];
+          for (int i = 0; i < count; i++) {
+            RecordQueue.Record record = queue.claim();
+            ByteBuffer.wrap(bytes).putInt(producer).putInt(i);
+            record.write(bytes, 0, 8);
+            queue.offer(record);
+          }
+        }
+      };
+      threads.add(thread);
+      thread.start();
+    }
+    int[] next = new int[producers];
+    int total = 0;
+    while (total < producers * count) {
+      RecordQueue.Record record = queue.poll();
+      if (record == null) {
+        Thread.yield();
+        continue;
+      }
+      assertEquals(8, record.length);
+      ByteBuffer buffer = ByteBuffer.wrap(record.data, 0, 8);
+      int producer = buffer.getInt();
+      assertEquals(next[producer]++, buffer.getInt());
+      total++;
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertNull(queue.poll());
+  }
+}
@@ -0,0 +1,112 @@
+package twitterarchiver;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class RingBufferTest {
+
+  @Test
+  public void testSizeMustBePowerOfTwo() {
+    try {
+      new RingBuffer(12);
+      fail("Accepted a size that isn't a power of 2");
+    } catch (IllegalArgumentException e) {
+      // Expected
+    }
+    RingBuffer ring = new RingBuffer(8);
+    assertEquals(8, ring.size());
+    assertSame(ring.get(3), ring.get(11));
+  }
+
+  @Test
+  public void testProducerWaitsForSlowestStage() {
+    RingBuffer ring = new RingBuffer(4);
+    Sequence fast = new Sequence(-1);
+    Sequence slow = new Sequence(-1);
+    ring.addGatingSequence(fast);
+    ring.addGatingSequence(slow);
+    for (long i = 0; i < 4; i++) {
+      assertEquals(i, ring.tryNext());
+      ring.publish(i);
+    }
+    // Every slot is in use until both stages move past it
+    assertEquals(-1, ring.tryNext());
+    fast.set(3);
+    assertEquals(-1, ring.tryNext());
+    slow.set(0);
+    assertEquals(4, ring.tryNext());
+    ring.publish(4);
+    assertEquals(-1, ring.tryNext());
+
+    // A stage that goes away stops holding the producer back
+    ring.removeGatingSequence(slow);
+    assertEquals(5, ring.tryNext());
+    assertEquals(3, ring.minimumGatingSequence(Long.MAX_VALUE));
+  }
+
+  @Test
+  public void testStageAddedLateStartsAtCursor() {
+    RingBuffer ring = new RingBuffer(4);
+    for (long i = 0; i < 10; i++) {
+      assertEquals(i, ring.tryNext());
+      ring.publish(i);
+    }
+    Sequence late = new Sequence(-1);
+    ring.addGatingSequence(late);
+    assertEquals(9, late.get());
+    for (long i = 10; i < 14; i++) {
+      assertEquals(i, ring.tryNext());
+      ring.publish(i);
+    }
+    assertEquals(-1, ring.tryNext());
+  }
+
+  @Test
+  public void testConsumerSeesEveryLineInOrder() throws InterruptedException {
+    final RingBuffer ring = new RingBuffer(16);
+    final Sequence consumed = new Sequence(-1);
+    ring.addGatingSequence(consumed);
+    final int lines = 100000;
+    final AtomicReference<String> error = new AtomicReference<>();
+    Thread consumer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        long next = 0;
+        int idle = 0;
+        while (next < lines) {
+          if (ring.cursor() < next) {
+            idle = RingBuffer.idle(idle);
+            continue;
+          }
+          idle = 0;
+          String line = ring.get(next).line;
+          if (!String.valueOf(next).equals(line)) {
+            error.compareAndSet(null, "Expected " + next + " but got " + line);
+          }
+          consumed.set(next++);
+        }
+      }
+    });
+    consumer.start();
+    int idle = 0;
+    for (int i = 0; i < lines; ) {
+      long sequence = ring.tryNext();
+      if (sequence == -1) {
+        idle = RingBuffer.idle(idle);
+        continue;
+      }
+      idle = 0;
+      ring.get(sequence).line = String.valueOf(i++);
+      ring.publish(sequence);
+    }
+    consumer.join(10000);
+    assertNull(error.get());
+    assertEquals(lines - 1, consumed.get());
+  }
+}
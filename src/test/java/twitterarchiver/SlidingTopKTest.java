@@ -0,0 +1,141 @@
+package twitterarchiver;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SlidingTopKTest {
+  private static final long MINUTE = 60000;
+
+  // A skewed stream, key i turns up about 1/(i+1) as often as key 0
+  private static List<String> stream(int length, int keys) {
+    Random random = new Random(1);
+    double[] weights = new double[keys];
+    double sum = 0;
+    for (int i = 0; i < keys; i++) {
+      sum += 1.0 / (i + 1);
+      weights[i] = sum;
+    }
+    List<String> stream = new ArrayList<>(length);
+    for (int i = 0; i < length; i++) {
+      double r = random.nextDouble() * sum;
+      int key = 0;
+      while (weights[key] < r) {
+        key++;
+      }
+      stream.add("k" + key);
+    }
+    return stream;
+  }
+
+  private static Map<String, Long> counts(List<String> stream) {
+    Map<String, Long> counts = new HashMap<>();
+    for (String key : stream) {
+      Long count = counts.get(key);
+      counts.put(key, count == null ? 1 : count + 1);
+    }
+    return counts;
+  }
+
+  @Test
+  public void testCountMinSketchOnlyOverCounts() {
+    List<String> stream = stream(100000, 5000);
+    Map<String, Long> counts = counts(stream);
+    CountMinSketch sketch = new CountMinSketch(4, 2048);
+    for (String key : stream) {
+      sketch.add(CountMinSketch.hash(key));
+    }
+    assertEquals(stream.size(), sketch.total());
+    long bound = (long) (Math.E / 2048 * stream.size());
+    int over = 0;
+    for (Map.Entry<String, Long> entry : counts.entrySet()) {
+      long estimate = sketch.estimate(CountMinSketch.hash(entry.getKey()));
+      assertTrue(estimate >= entry.getValue());
+      if (estimate - entry.getValue() > bound) {
+        over++;
+      }
+    }
+    // The bound holds with probability 1 - e^-depth per key
+    assertTrue(over + " keys over counted by more than " + bound, over < counts.size() / 50);
+    assertTrue(sketch.estimate(CountMinSketch.hash("never seen")) <= bound);
+    sketch.clear();
+    assertEquals(0, sketch.total());
+    assertEquals(0, sketch.estimate(CountMinSketch.hash("k0")));
+  }
+
+  @Test
+  public void testSpaceSavingKeepsHeavyHitters() {
+    List<String> stream = stream(100000, 5000);
+    Map<String, Long> counts = counts(stream);
+    int capacity = 100;
+    SpaceSaving summary = new SpaceSaving(capacity);
+    for (String key : stream) {
+      summary.offer(key);
+    }
+    assertEquals(capacity, summary.size());
+    Map<String, Integer> tracked = new HashMap<>();
+    for (int slot = 0; slot < summary.size(); slot++) {
+      tracked.put(summary.key(slot), slot);
+      long actual = counts.get(summary.key(slot));
+      // The count is an upper bound and the count less the error a lower one
+      assertTrue(summary.count(slot) >= actual);
+      assertTrue(summary.count(slot) - summary.error(slot) <= actual);
+    }
+    for (Map.Entry<String, Long> entry : counts.entrySet()) {
+      if (entry.getValue() > stream.size() / capacity) {
+        assertTrue(entry.getKey(), tracked.containsKey(entry.getKey()));
+      }
+    }
+    summary.clear();
+    assertEquals(0, summary.size());
+  }
+
+  @Test
+  public void testTopOfWindow() {
+    SlidingTopK topK = new SlidingTopK(12, 5 * MINUTE, 64);
+    long start = 1356112800000l;
+    for (int i = 0; i < 30; i++) {
+      topK.add("a", start + i * 1000);
+    }
+    for (int i = 0; i < 20; i++) {
+      // Spread over later slices, still counted together
+      topK.add("b", start + i * 2 * MINUTE);
+    }
+    for (int i = 0; i < 10; i++) {
+      topK.add("c", start + 30 * MINUTE);
+    }
+    Map<String, Long> top = topK.top(2);
+    assertEquals(2, top.size());
+    List<String> keys = new ArrayList<>(top.keySet());
+    assertEquals("a", keys.get(0));
+    assertEquals("b", keys.get(1));
+    assertEquals(30, (long) top.get("a"));
+    assertEquals(20, (long) top.get("b"));
+    assertEquals(60, topK.total());
+
+    // An hour on, the first slice has left the window along with everything of a's
+    topK.add("d", start + 60 * MINUTE);
+    top = topK.top(10);
+    assertEquals(null, top.get("a"));
+    assertEquals(10, (long) top.get("c"));
+    assertEquals(1, (long) top.get("d"));
+    assertTrue(top.get("b") < 20);
+    assertEquals(0, topK.late());
+    topK.add("a", start);
+    assertEquals(1, topK.late());
+    assertEquals(null, topK.top(10).get("a"));
+
+    // A gap longer than the window clears it all
+    topK.add("e", start + 5 * 60 * MINUTE);
+    top = topK.top(10);
+    assertEquals(1, top.size());
+    assertEquals(1, topK.total());
+  }
+}
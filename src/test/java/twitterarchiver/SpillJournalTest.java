@@ -0,0 +1,53 @@
+package twitterarchiver;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SpillJournalTest {
+  @Test
+  public void readsBackInOrderAndEmptiesOnceCaughtUp() throws Exception {
+    File file = new File(Files.createTempDirectory("spill").toFile(), "spill.journal");
+    SpillJournal journal = new SpillJournal(file);
+    assertNull(journal.next());
+    assertFalse(journal.appendIfBehind("first"));
+    assertEquals(0, journal.pending());
+
+    journal.append("first");
+    assertTrue(journal.appendIfBehind("é ☃ second"));
+    assertTrue(journal.appendIfBehind(""));
+    assertEquals(3, journal.pending());
+    assertEquals("first", journal.next());
+    // Written while reading
+    assertTrue(journal.appendIfBehind("fourth"));
+    assertEquals("é ☃ second", journal.next());
+    assertEquals("", journal.next());
+    assertEquals("fourth", journal.next());
+    assertEquals(0, journal.pending());
+    assertNull(journal.next());
+    assertFalse(file.exists());
+
+    // And again after it was emptied
+    assertFalse(journal.appendIfBehind("fifth"));
+    journal.append("fifth");
+    assertEquals(1, journal.pending());
+    assertEquals("fifth", journal.next());
+    assertNull(journal.next());
+  }
+
+  @Test
+  public void leftOverJournalsAreDiscarded() throws Exception {
+    File file = new File(Files.createTempDirectory("spill").toFile(), "spill.journal");
+    Files.write(file.toPath(), new byte[]{0, 0, 0, 5, 'a'});
+    SpillJournal journal = new SpillJournal(file);
+    assertFalse(file.exists());
+    assertEquals(0, journal.pending());
+    assertNull(journal.next());
+  }
+}
@@ -0,0 +1,220 @@
+package twitterarchiver;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.MetricName;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StreamProviderTest {
+
+  @Test
+  public void recordsArriveInOrderAcrossSegments() throws Exception {
+    File dir = Files.createTempDirectory("segments").toFile();
+    StreamProvider provider = new StreamProvider(dir + "/t", ".seg.json");
+    provider.setSegments(0, 3, 0);
+    provider.start();
+    for (int i = 0; i < 20; i++) {
+      assertTrue(provider.append(("record " + i + "\n").getBytes(StandardCharsets.UTF_8)));
+    }
+    provider.close();
+    List<String> lines = lines(dir, ".seg.json");
+    assertEquals(20, lines.size());
+    for (int i = 0; i < 20; i++) {
+      assertEquals("record " + i, lines.get(i));
+    }
+    assertEquals(7, files(dir, ".seg.json").size());
+  }
+
+  @Test
+  public void segmentsBySizeAreListedInTheManifest() throws Exception {
+    File dir = Files.createTempDirectory("segments").toFile();
+    StreamProvider provider = new StreamProvider(dir + "/t", ".size.json");
+    provider.setSegments(100, 0, 0);
+    provider.start();
+    for (int i = 0; i < 50; i++) {
+      assertTrue(provider.append(String.format("record %02d\n", i).getBytes(StandardCharsets.UTF_8)));
+      if (i % 10 == 9) {
+        // Let the appender take what is queued as a batch of its own
+        Thread.sleep(50);
+      }
+    }
+    provider.close();
+    assertEquals(50, lines(dir, ".size.json").size());
+    // The limit is checked between batches, so a segment can run over it but never stops short
+    List<File> segments = files(dir, ".size.json");
+    assertTrue(segments.size() > 1);
+    List<String> listed = new ArrayList<>();
+    for (File manifest : files(dir, ".size.json.manifest")) {
+      listed.addAll(Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8));
+    }
+    assertEquals(segments.size(), listed.size());
+    for (int i = 0; i < segments.size(); i++) {
+      File segment = segments.get(i);
+      if (i < segments.size() - 1) {
+        assertTrue(segment.length() >= 100);
+      }
+      long records = Files.readAllLines(segment.toPath(), StandardCharsets.UTF_8).size();
+      assertEquals(segment.getPath() + " " + records + " " + segment.length(), listed.get(i));
+    }
+  }
+
+  @Test
+  public void segmentsByTimeAreCutOnTheInterval() throws Exception {
+    File dir = Files.createTempDirectory("segments").toFile();
+    StreamProvider provider = new StreamProvider(dir + "/t", ".time.json");
+    provider.setSegments(0, 0, 200);
+    provider.start();
+    assertTrue(provider.append("first\n".getBytes(StandardCharsets.UTF_8)));
+    Thread.sleep(500);
+    assertTrue(provider.append("second\n".getBytes(StandardCharsets.UTF_8)));
+    provider.close();
+    assertEquals(2, files(dir, ".time.json").size());
+    assertEquals(Arrays.asList("first", "second"), lines(dir, ".time.json"));
+  }
+
+  @Test
+  public void failingRotationListenerDoesNotStopTheAppender() throws Exception {
+    File dir = Files.createTempDirectory("rotation").toFile();
+    StreamProvider provider = new StreamProvider(dir + "/t", ".rot.json");
+    provider.setSegments(0, 2, 0);
+    final List<String> rotated = new ArrayList<>();
+    provider.addRotationListener(new RotationListener() {
+      @Override
+      public void rotating(String filename, OutputStream stream) throws IOException {
+        throw new IOException("Broken rotating");
+      }
+
+      @Override
+      public void rotated(String filename) {
+        throw new IllegalStateException("Broken rotated");
+      }
+    });
+    provider.addRotationListener(new RotationListener() {
+      @Override
+      public void rotating(String filename, OutputStream stream) {
+      }
+
+      @Override
+      public void rotated(String filename) {
+        rotated.add(filename);
+      }
+    });
+    provider.start();
+    for (int i = 0; i < 10; i++) {
+      provider.append(("record " + i + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+    provider.close();
+    assertEquals(10, lines(dir, ".rot.json").size());
+    assertEquals(5, rotated.size());
+  }
+
+  @Test
+  public void failedWritesAreCountedAndLeaveTheQueue() throws Exception {
+    File dir = Files.createTempDirectory("failing").toFile();
+    BlockCodec failing = new BlockCodec() {
+      @Override
+      public byte[] header() {
+        return new byte[0];
+      }
+
+      @Override
+      public byte[] compress(byte[] data) {
+        throw new IllegalStateException("Broken codec");
+      }
+
+      @Override
+      public byte[] trailer() {
+        return new byte[0];
+      }
+    };
+    StreamProvider provider = new StreamProvider(dir + "/t", ".fail.json", failing);
+    provider.start();
+    byte[] record = new byte[ParallelGzipOutputStream.BLOCK_SIZE + 1];
+    Arrays.fill(record, (byte) 'x');
+    record[record.length - 1] = '\n';
+    // Each record fills a block, whose failure turns up when the next record is written
+    for (int i = 0; i < 5; i++) {
+      assertTrue(provider.append(record));
+      Thread.sleep(100);
+    }
+    long deadline = System.currentTimeMillis() + 10000;
+    while (gauge(".fail.json") != 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(0, gauge(".fail.json"));
+    Counter lost = (Counter) Metrics.defaultRegistry().allMetrics().get(
+            new MetricName(StreamProvider.class, "lost.fail.json"));
+    assertTrue(lost.count() > 0);
+    provider.close();
+  }
+
+  private static long gauge(String suffix) {
+    return (Long) ((Gauge<?>) Metrics.defaultRegistry().allMetrics().get(
+            new MetricName(StreamProvider.class, "queued" + suffix))).value();
+  }
+
+  static List<File> files(File dir, final String suffix) {
+    List<File> files = new ArrayList<>();
+    for (File file : dir.listFiles()) {
+      if (file.getName().endsWith(suffix)) {
+        files.add(file);
+      }
+    }
+    Collections.sort(files);
+    return files;
+  }
+
+  private static List<String> lines(File dir, String suffix) throws IOException {
+    List<String> lines = new ArrayList<>();
+    for (File file : files(dir, suffix)) {
+      lines.addAll(Files.readAllLines(file.toPath(), StandardCharsets.UTF_8));
+    }
+    return lines;
+  }
+
+  // A manifest only goes up again once it has grown, and goes once its hour is over and uploaded
+  @Test
+  public void manifestsAreUploadedOnceEachChange() throws Exception {
+    File dir = Files.createTempDirectory("manifests").toFile();
+    long hour = 1356112800000l;
+    File manifest = new File(dir, "t" + hour + ".json.manifest");
+    File segment = new File(dir, "t" + (hour + 60000) + ".json");
+    Files.write(segment.toPath(), "waiting\n".getBytes(StandardCharsets.UTF_8));
+    SegmentManifest.append(manifest, "t" + hour + ".json", 10, 100);
+    String current = "t" + (hour + 3600000) + ".json";
+    String key = TwitterFeedUploader.keyFor("t", hour, manifest.getName());
+    TwitterFeedUploaderTest.RecordingClient client = new TwitterFeedUploaderTest.RecordingClient();
+    Counter bytes = Metrics.newCounter(StreamProviderTest.class, "manifest_bytes");
+
+    SegmentManifest.uploadAll(dir, client, "t", ".json", current, bytes);
+    SegmentManifest.uploadAll(dir, client, "t", ".json", current, bytes);
+    assertEquals(Arrays.asList(key), client.keys);
+    assertEquals(manifest.length(), bytes.count());
+
+    SegmentManifest.append(manifest, segment.getName(), 1, 8);
+    SegmentManifest.uploadAll(dir, client, "t", ".json", current, bytes);
+    assertEquals(Arrays.asList(key, key), client.keys);
+    assertTrue(manifest.exists());
+
+    // Its last segment is up, nothing more to send and nothing left to keep
+    segment.delete();
+    SegmentManifest.uploadAll(dir, client, "t", ".json", current, bytes);
+    assertEquals(2, client.keys.size());
+    assertEquals(0, dir.list().length);
+    dir.delete();
+  }
+}
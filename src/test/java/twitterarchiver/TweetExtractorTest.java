@@ -0,0 +1,34 @@
+package twitterarchiver;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class TweetExtractorTest {
+  private final JsonFactory jf = new JsonFactory();
+
+  private CompactTweet extract(String entities) throws Exception {
+    return TweetExtractor.extract(jf.createJsonParser(
+            "{\"id\":282187322005766184,\"text\":\"t\",\"user\":{\"id\":42},\"entities\":" + entities + "}"));
+  }
+
+  @Test
+  public void entitiesWithoutTheFieldAreLeftOut() throws Exception {
+    CompactTweet t = extract("{" +
+            "\"hashtags\":[{\"indices\":[0,4]},{\"text\":\"tag\"},{\"text\":null}]," +
+            "\"urls\":[{\"url\":\"http://t.co/a\"},{\"indices\":[5,9]},{\"url\":\"http://t.co/b\",\"expanded_url\":\"http://example.com/b\"}]," +
+            "\"media\":[{\"id\":1}]}");
+    assertArrayEquals(new String[]{"tag"}, t.hashtags);
+    assertArrayEquals(new String[]{"http://t.co/a", "http://example.com/b"}, t.urls);
+    assertArrayEquals(new String[0], t.media);
+  }
+
+  @Test
+  public void emptyEntities() throws Exception {
+    CompactTweet t = extract("{\"hashtags\":[],\"urls\":[],\"media\":[]}");
+    assertArrayEquals(new String[0], t.hashtags);
+    assertArrayEquals(new String[0], t.urls);
+    assertArrayEquals(new String[0], t.media);
+  }
+}
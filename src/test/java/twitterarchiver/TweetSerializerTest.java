@@ -0,0 +1,134 @@
+package twitterarchiver;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TweetSerializerTest {
+  private final JsonFactory jf = new JsonFactory();
+
+  static CompactTweet tweet(long id) {
+    CompactTweet t = new CompactTweet();
+    t.text = "hello \"world\" é #tag";
+    t.id = id;
+    t.userId = 42;
+    t.createdAt = "Fri Dec 21 18:14:35 +0000 2012";
+    t.inReplyToStatusId = 7;
+    t.retweet = true;
+    t.retweetedId = 8;
+    t.mentions = new long[]{1, 2};
+    t.hashtags = new String[]{"tag"};
+    t.urls = new String[]{"http://example.com/a"};
+    t.media = new String[]{"http://example.com/m.jpg"};
+    t.geo = true;
+    t.coordinates = new double[]{-122.5, 37.75};
+    t.verified = true;
+    t.followers = 10;
+    t.friends = 11;
+    t.favourites = 12;
+    t.statuses = 13;
+    t.listed = 14;
+    t.lang = "en";
+    return t;
+  }
+
+  @Test
+  public void roundTrip() throws Exception {
+    TweetSerializer serializer = new TweetSerializer(null);
+    CompactTweet t = tweet(282187322005766184l);
+    byte[] json = serializer.toJson(t);
+    assertEquals('\n', json[json.length - 1]);
+    CompactTweet read = TweetSerializer.readJson(jf.createJsonParser(json));
+    assertEquals(t.text, read.text);
+    assertEquals(t.id, read.id);
+    assertEquals(t.userId, read.userId);
+    assertEquals(1356113675000l, read.createdAtMillis);
+    assertEquals(t.inReplyToStatusId, read.inReplyToStatusId);
+    assertTrue(read.retweet);
+    assertEquals(t.retweetedId, read.retweetedId);
+    assertArrayEquals(t.mentions, read.mentions);
+    assertArrayEquals(t.hashtags, read.hashtags);
+    assertArrayEquals(t.urls, read.urls);
+    assertArrayEquals(t.media, read.media);
+    assertTrue(read.geo);
+    assertArrayEquals(t.coordinates, read.coordinates, 0);
+    assertTrue(read.verified);
+    assertEquals(t.followers, read.followers);
+    assertEquals(t.friends, read.friends);
+    assertEquals(t.favourites, read.favourites);
+    assertEquals(t.statuses, read.statuses);
+    assertEquals(t.listed, read.listed);
+    assertEquals(t.lang, read.lang);
+  }
+
+  @Test
+  public void minimalStatus() throws Exception {
+    CompactTweet t = new CompactTweet();
+    t.text = "";
+    t.id = 1;
+    CompactTweet read = TweetSerializer.readJson(jf.createJsonParser(new TweetSerializer(null).toJson(t)));
+    assertEquals("", read.text);
+    assertEquals(0, read.createdAtMillis);
+    assertNull(read.hashtags);
+    assertNull(read.lang);
+  }
+
+  // A record that fails halfway leaves the thread able to encode the next one
+  @Test
+  public void failedEncodeDoesNotBreakTheNext() throws Exception {
+    TweetSerializer serializer = new TweetSerializer(null);
+    CompactTweet broken = tweet(1);
+    broken.coordinates = new double[1];
+    try {
+      serializer.toJson(broken);
+      fail();
+    } catch (ArrayIndexOutOfBoundsException e) {
+      // Expected
+    }
+    CompactTweet read = TweetSerializer.readJson(jf.createJsonParser(serializer.toJson(tweet(2))));
+    assertEquals(2, read.id);
+  }
+
+  @Test
+  public void failedRecordsNeverReachTheArchive() throws Exception {
+    File dir = Files.createTempDirectory("serializer").toFile();
+    StreamProvider provider = new StreamProvider(dir + "/t", ".ser.json");
+    provider.start();
+    TweetSerializer serializer = new TweetSerializer(provider);
+    CompactTweet broken = tweet(1);
+    broken.coordinates = new double[1];
+    serializer.messageReceived(new TwitterFeedEvent(broken, "{}"));
+    serializer.messageReceived(new TwitterFeedEvent(tweet(2), "{}"));
+    serializer.messageReceived(new TwitterFeedEvent(tweet(3), "{}"));
+    provider.close();
+    List<Long> ids = new ArrayList<>();
+    for (File file : StreamProviderTest.files(dir, ".ser.json")) {
+      for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+        ids.add(TweetSerializer.readJson(jf.createJsonParser(line)).id);
+      }
+    }
+    assertEquals(2, ids.size());
+    assertEquals(2l, (long) ids.get(0));
+    assertEquals(3l, (long) ids.get(1));
+  }
+
+  @Test
+  public void nullsInOlderArchivesAreLeftOut() throws Exception {
+    CompactTweet read = TweetSerializer.readJson(jf.createJsonParser(
+            "{\"i\":282187322005766184,\"t\":\"t\",\"u\":42,\"h\":[null,\"tag\"],\"l\":[null],\"p\":[\"m\",null]}"));
+    assertArrayEquals(new String[]{"tag"}, read.hashtags);
+    assertArrayEquals(new String[0], read.urls);
+    assertArrayEquals(new String[]{"m"}, read.media);
+  }
+}
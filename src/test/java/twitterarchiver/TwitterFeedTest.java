@@ -0,0 +1,408 @@
+package twitterarchiver;
+
+import com.twitter.hbc.core.event.Event;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.MetricName;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class TwitterFeedTest {
+
+  // Lines that fail to parse, or fail once parsed, still leave the ring moving
+  @Test
+  public void malformedLinesDoNotStallTheRing() throws Exception {
+    final int count = Runtime.getRuntime().availableProcessors() * 8;
+    IngestSource source = new IngestSource() {
+      @Override
+      public void start(BlockingQueue<String> msgQueue, BlockingQueue<Event> eventQueue) {
+        for (int i = 1; i <= count; i++) {
+          if (i % 3 == 0) {
+            msgQueue.add("{\"id\":" + i + ",\"text\":");
+          } else {
+            msgQueue.add("{\"id\":" + i + ",\"text\":\"t\",\"user\":{\"id\":1}}");
+          }
+        }
+      }
+
+      @Override
+      public void stop() {
+      }
+    };
+    TwitterFeed feed = new TwitterFeed(source);
+    // Throws from the parse stage for every other parsable line
+    feed.setDuplicateFilter(new DuplicateFilter() {
+      @Override
+      public boolean isDuplicate(long id) {
+        if (id % 3 == 2) {
+          throw new IllegalStateException("Broken filter");
+        }
+        return false;
+      }
+    });
+    final BlockingQueue<Long> received = new LinkedBlockingQueue<>();
+    feed.addEventListener(new TwitterFeedListener() {
+      @Override
+      public void messageReceived(TwitterFeedEvent se) {
+        received.add(se.getTweet().id);
+      }
+
+      @Override
+      public void tooSlow() {
+      }
+    });
+    try {
+      feed.start();
+      Set<Long> expected = new HashSet<>();
+      for (long i = 1; i <= count; i++) {
+        if (i % 3 == 1) {
+          expected.add(i);
+        }
+      }
+      Set<Long> ids = new HashSet<>();
+      while (ids.size() < expected.size()) {
+        Long id = received.poll(10, TimeUnit.SECONDS);
+        assertNotNull("Feed stalled after " + ids, id);
+        ids.add(id);
+      }
+      assertEquals(expected, ids);
+    } finally {
+      feed.stop();
+    }
+  }
+
+  // Called from no more than its concurrency at once, and without virtual threads no more threads either
+  @Test
+  public void blockingListenerIsCalledFromABoundedNumberOfThreads() throws Exception {
+    final int count = 400;
+    final int concurrency = 4;
+    IngestSource source = new IngestSource() {
+      @Override
+      public void start(BlockingQueue<String> msgQueue, BlockingQueue<Event> eventQueue) {
+        for (int i = 1; i <= count; i++) {
+          msgQueue.add("{\"id\":" + i + ",\"text\":\"t\",\"user\":{\"id\":1}}");
+        }
+      }
+
+      @Override
+      public void stop() {
+      }
+    };
+    TwitterFeed feed = new TwitterFeed(source);
+    final Set<String> threads = ConcurrentHashMap.newKeySet();
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger most = new AtomicInteger();
+    final BlockingQueue<Long> received = new LinkedBlockingQueue<>();
+    feed.addEventListener(new TwitterFeedListener() {
+      @Override
+      public void messageReceived(TwitterFeedEvent se) {
+        threads.add(Thread.currentThread().getName());
+        int now = running.incrementAndGet();
+        most.accumulateAndGet(now, Math::max);
+        try {
+          Thread.sleep(1);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        running.decrementAndGet();
+        received.add(se.getTweet().id);
+      }
+
+      @Override
+      public void tooSlow() {
+      }
+    }, ListenerPolicy.DEFAULT.blocking(concurrency));
+    try {
+      feed.start();
+      for (int i = 0; i < count; i++) {
+        assertNotNull("Feed stalled after " + i, received.poll(10, TimeUnit.SECONDS));
+      }
+      assertTrue("Ran " + most.get() + " at once", most.get() <= concurrency);
+      if (!VirtualThreads.available()) {
+        assertTrue("Called from " + threads, threads.size() <= concurrency);
+      }
+    } finally {
+      feed.stop();
+    }
+  }
+
+  // Blocks on the first event until released, so the rest pile up behind it
+  static class Blocking implements TwitterFeedListener {
+    final CountDownLatch entered = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final BlockingQueue<Long> received = new LinkedBlockingQueue<>();
+    final AtomicInteger tooSlow = new AtomicInteger();
+
+    @Override
+    public void messageReceived(TwitterFeedEvent se) {
+      received.add(se.getTweet().id);
+      if (entered.getCount() > 0) {
+        entered.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+
+    @Override
+    public void tooSlow() {
+      tooSlow.incrementAndGet();
+    }
+
+    List<Long> take(int count) throws InterruptedException {
+      List<Long> ids = new ArrayList<>();
+      for (int i = 0; i < count; i++) {
+        Long id = received.poll(10, TimeUnit.SECONDS);
+        assertNotNull("Received only " + ids, id);
+        ids.add(id);
+      }
+      return ids;
+    }
+  }
+
+  static class Spilling extends Blocking {
+  }
+
+  static class ThrowsWhenTooSlow extends Blocking {
+    @Override
+    public void tooSlow() {
+      super.tooSlow();
+      throw new IllegalStateException("Broken tooSlow");
+    }
+  }
+
+  static class SpillsToNowhere extends Blocking {
+  }
+
+  // Holds every event until released, not only the first
+  static class Removed extends Blocking {
+    @Override
+    public void messageReceived(TwitterFeedEvent se) {
+      entered.countDown();
+      super.messageReceived(se);
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  // The first status, then the rest once every listener is stuck on it
+  private static IngestSource staggered(final int count, final Blocking... listeners) {
+    return new IngestSource() {
+      @Override
+      public void start(final BlockingQueue<String> msgQueue, BlockingQueue<Event> eventQueue) {
+        new Thread(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              msgQueue.add(status(1));
+              for (Blocking listener : listeners) {
+                listener.entered.await();
+              }
+              for (int i = 2; i <= count; i++) {
+                msgQueue.add(status(i));
+              }
+            } catch (InterruptedException e) {
+              // Stopped
+            }
+          }
+        }).start();
+      }
+
+      @Override
+      public void stop() {
+      }
+    };
+  }
+
+  private static String status(long id) {
+    return "{\"id\":" + id + ",\"text\":\"t\",\"user\":{\"id\":1}}";
+  }
+
+  private static void await(AtomicInteger value, int expected) throws InterruptedException {
+    for (int i = 0; i < 1000 && value.get() < expected; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(expected, value.get());
+  }
+
+  // Ten statuses to a listener stuck on the first with room for two more
+  private static void overflow(ListenerPolicy.Overflow overflow, List<Long> expected) throws Exception {
+    Blocking listener = new Blocking();
+    TwitterFeed feed = new TwitterFeed(staggered(10, listener));
+    feed.addEventListener(listener, new ListenerPolicy(2, overflow));
+    try {
+      feed.start();
+      assertTrue(listener.entered.await(10, TimeUnit.SECONDS));
+      await(listener.tooSlow, 7);
+      listener.release.countDown();
+      assertEquals(expected, listener.take(expected.size()));
+      Thread.sleep(100);
+      assertTrue(listener.received.isEmpty());
+      assertEquals(7, listener.tooSlow.get());
+    } finally {
+      feed.stop();
+    }
+  }
+
+  @Test
+  public void dropNewestKeepsWhatWasQueued() throws Exception {
+    overflow(ListenerPolicy.Overflow.DROP_NEWEST, Arrays.asList(1l, 2l, 3l));
+  }
+
+  @Test
+  public void dropOldestKeepsTheLatest() throws Exception {
+    overflow(ListenerPolicy.Overflow.DROP_OLDEST, Arrays.asList(1l, 9l, 10l));
+  }
+
+  @Test
+  public void blockLosesNothing() throws Exception {
+    Blocking listener = new Blocking();
+    TwitterFeed feed = new TwitterFeed(staggered(10, listener));
+    feed.addEventListener(listener, new ListenerPolicy(2, ListenerPolicy.Overflow.BLOCK));
+    try {
+      feed.start();
+      assertTrue(listener.entered.await(10, TimeUnit.SECONDS));
+      Thread.sleep(200);
+      assertEquals(1, listener.received.size());
+      listener.release.countDown();
+      assertEquals(Arrays.asList(1l, 2l, 3l, 4l, 5l, 6l, 7l, 8l, 9l, 10l), listener.take(10));
+      assertEquals(0, listener.tooSlow.get());
+    } finally {
+      feed.stop();
+    }
+  }
+
+  // Two listeners of one class each spill to a journal of their own, counted apart
+  @Test
+  public void spillKeepsListenersOfTheSameClassApart() throws Exception {
+    File dir = Files.createTempDirectory("spill").toFile();
+    Spilling first = new Spilling();
+    Spilling second = new Spilling();
+    TwitterFeed feed = new TwitterFeed(staggered(10, first, second));
+    ListenerPolicy policy = new ListenerPolicy(2, ListenerPolicy.Overflow.SPILL, dir);
+    feed.addEventListener(first, policy);
+    feed.addEventListener(second, policy);
+    try {
+      feed.start();
+      assertTrue(first.entered.await(10, TimeUnit.SECONDS));
+      assertTrue(second.entered.await(10, TimeUnit.SECONDS));
+      Counter spilled = (Counter) Metrics.defaultRegistry().allMetrics().get(new MetricName(Spilling.class, "queue_spilled"));
+      Counter spilled2 = (Counter) Metrics.defaultRegistry().allMetrics().get(new MetricName(Spilling.class, "queue_spilled_2"));
+      for (int i = 0; i < 1000 && (spilled.count() < 7 || spilled2.count() < 7); i++) {
+        Thread.sleep(10);
+      }
+      assertEquals(7, spilled.count());
+      assertEquals(7, spilled2.count());
+      assertTrue(new File(dir, "spill-" + Spilling.class.getName() + ".journal").exists());
+      assertTrue(new File(dir, "spill-" + Spilling.class.getName() + "_2.journal").exists());
+      first.release.countDown();
+      second.release.countDown();
+      List<Long> all = Arrays.asList(1l, 2l, 3l, 4l, 5l, 6l, 7l, 8l, 9l, 10l);
+      assertEquals(all, first.take(10));
+      assertEquals(all, second.take(10));
+    } finally {
+      feed.stop();
+    }
+  }
+
+  private static long lag(Class<?> type) {
+    return (Long) ((Gauge<?>) Metrics.defaultRegistry().allMetrics().get(new MetricName(type, "lag"))).value();
+  }
+
+  @Test
+  public void throwingTooSlowDoesNotStopTheConsumer() throws Exception {
+    ThrowsWhenTooSlow listener = new ThrowsWhenTooSlow();
+    TwitterFeed feed = new TwitterFeed(staggered(10, listener));
+    feed.addEventListener(listener, new ListenerPolicy(2, ListenerPolicy.Overflow.DROP_NEWEST));
+    try {
+      feed.start();
+      assertTrue(listener.entered.await(10, TimeUnit.SECONDS));
+      // Every one past the queue still reaches tooSlow, and only the queued two are left to see
+      await(listener.tooSlow, 7);
+      assertEquals(2, lag(ThrowsWhenTooSlow.class));
+      listener.release.countDown();
+      assertEquals(Arrays.asList(1l, 2l, 3l), listener.take(3));
+    } finally {
+      feed.stop();
+    }
+  }
+
+  @Test
+  public void failingToSpillDropsTheEvent() throws Exception {
+    SpillsToNowhere listener = new SpillsToNowhere();
+    File missing = new File(Files.createTempDirectory("spill").toFile(), "missing");
+    TwitterFeed feed = new TwitterFeed(staggered(10, listener));
+    feed.addEventListener(listener, new ListenerPolicy(2, ListenerPolicy.Overflow.SPILL, missing));
+    Counter dropped = (Counter) Metrics.defaultRegistry().allMetrics().get(
+            new MetricName(SpillsToNowhere.class, "queue_dropped"));
+    try {
+      feed.start();
+      assertTrue(listener.entered.await(10, TimeUnit.SECONDS));
+      for (int i = 0; i < 1000 && dropped.count() < 7; i++) {
+        Thread.sleep(10);
+      }
+      assertEquals(7, dropped.count());
+      assertEquals(2, lag(SpillsToNowhere.class));
+      listener.release.countDown();
+      assertEquals(Arrays.asList(1l, 2l, 3l), listener.take(3));
+    } finally {
+      feed.stop();
+    }
+  }
+
+  @Test
+  public void removingAListenerLetsGoOfItsJournalAndThreads() throws Exception {
+    File dir = Files.createTempDirectory("spill").toFile();
+    Removed listener = new Removed();
+    TwitterFeed feed = new TwitterFeed(staggered(10, listener));
+    feed.addEventListener(listener, new ListenerPolicy(2, ListenerPolicy.Overflow.SPILL, dir).blocking(2));
+    File journal = new File(dir, "spill-" + Removed.class.getName() + ".journal");
+    try {
+      feed.start();
+      assertTrue(listener.entered.await(10, TimeUnit.SECONDS));
+      for (int i = 0; i < 1000 && !journal.exists(); i++) {
+        Thread.sleep(10);
+      }
+      assertTrue(journal.exists());
+      listener.release.countDown();
+      feed.removeEventListener(listener);
+      assertFalse(journal.exists());
+      String prefix = "TwitterFeed-" + Removed.class.getSimpleName();
+      boolean alive = true;
+      for (int i = 0; i < 1000 && alive; i++) {
+        alive = false;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+          alive |= thread.getName().startsWith(prefix);
+        }
+        Thread.sleep(10);
+      }
+      assertFalse(alive);
+    } finally {
+      feed.stop();
+    }
+  }
+}
@@ -0,0 +1,106 @@
+package twitterarchiver;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TwitterFeedUploaderTest {
+  // Keeps the keys it is asked to put rather than sending anything, failing those with the given ending
+  static class RecordingClient extends AmazonS3Client {
+    final List<String> keys = new ArrayList<>();
+    String failOn;
+
+    RecordingClient() {
+      super(new BasicAWSCredentials("access", "secret"));
+    }
+
+    @Override
+    public PutObjectResult putObject(PutObjectRequest request) {
+      if (failOn != null && request.getKey().endsWith(failOn)) {
+        throw new AmazonClientException("Could not put " + request.getKey());
+      }
+      keys.add(request.getKey());
+      return new PutObjectResult();
+    }
+  }
+
+  @Test
+  public void uploadsEachDictionaryOncePerDirectory() throws Exception {
+    File dir = Files.createTempDirectory("upload").toFile();
+    File dictionary = ZstdCodec.train(ZstdCodecTest.samples(5000), ZstdCodec.DICTIONARY_SIZE, dir);
+    ZstdCodec codec = ZstdCodec.load(dictionary, ZstdCodec.LEVEL);
+    long hour = 1356112800000l;
+    File first = ZstdCodecTest.archive(dir, "t" + hour + ".json.zst", codec);
+    File second = ZstdCodecTest.archive(dir, "t" + (hour + 60000) + ".json.zst", codec);
+    File next = ZstdCodecTest.archive(dir, "t" + (hour + 3600000) + ".json.zst", codec);
+    File plain = ZstdCodecTest.archive(dir, "t" + (hour + 120000) + ".json.zst", new ZstdCodec(ZstdCodec.LEVEL));
+
+    RecordingClient client = new RecordingClient();
+    Set<String> uploaded = new HashSet<>();
+    Counter bytes = Metrics.newCounter(TwitterFeedUploaderTest.class, "dictionary_bytes");
+    for (File archive : new File[]{first, second, plain, next}) {
+      TwitterFeedUploader.uploadDictionary(client, uploaded, archive,
+              TwitterFeedUploader.keyFor("t", Long.parseLong(archive.getName().replaceAll("[^0-9]", "")), archive.getName()), bytes);
+    }
+    assertEquals(Arrays.asList(
+            new File(new File(TwitterFeedUploader.keyFor("t", hour, "x")).getParentFile(), dictionary.getName()).toString(),
+            new File(new File(TwitterFeedUploader.keyFor("t", hour + 3600000, "x")).getParentFile(), dictionary.getName()).toString()),
+            client.keys);
+    assertEquals(2 * dictionary.length(), bytes.count());
+
+    // Archived without a dictionary there's nothing to send
+    assertEquals(null, ZstdCodec.dictionary(plain));
+  }
+
+  // The sidecars go up ahead of the archive and nothing is deleted until every one of them has
+  @Test
+  public void deletesOnlyOnceEverythingIsUp() throws Exception {
+    File dir = Files.createTempDirectory("upload").toFile();
+    File archive = ArchiveIndexTest.archive(dir, "t1356112800000.json.gz");
+    File hll = new File(archive + ".hll");
+    HyperLogLog.write(hll, Collections.singletonMap("users", new HyperLogLog()));
+    File[] files = {archive, new File(archive + ".gzi"), new File(archive + ".idx"), hll};
+    String key = TwitterFeedUploader.keyFor("t", 1356112800000l, archive.getName());
+
+    RecordingClient client = new RecordingClient();
+    TwitterFeedUploader uploader = new TwitterFeedUploader(dir + "/t", ".json.gz", new StreamProvider(dir + "/t", ".json.gz"), client);
+    uploader.setSpread(0);
+    client.failOn = ".hll";
+    try {
+      uploader.upload(archive, key);
+    } catch (AmazonClientException e) {
+      // Expected
+    }
+    for (File file : files) {
+      assertTrue(file + " was deleted", file.exists());
+    }
+    assertFalse(client.keys.contains(key));
+
+    client.failOn = null;
+    client.keys.clear();
+    uploader.upload(archive, key);
+    assertEquals(Arrays.asList(key + ".gzi", key + ".idx", key + ".hll", key), client.keys);
+    for (File file : files) {
+      assertFalse(file + " was left", file.exists());
+    }
+    dir.delete();
+  }
+}
@@ -0,0 +1,104 @@
+package twitterarchiver;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class UserIndexTest {
+
+  @Test
+  public void testPutAndUnchanged() throws IOException {
+    File file = File.createTempFile("users", ".idx");
+    file.delete();
+    UserIndex index = new UserIndex(file, 1024);
+    try {
+      assertFalse(index.unchanged(42, 7, 1000));
+      assertEquals(0, index.fingerprint(42));
+      assertEquals(0, index.lastSeen(42));
+
+      index.put(42, 7, 1000);
+      assertEquals(1, index.size());
+      assertEquals(7, index.fingerprint(42));
+      assertTrue(index.unchanged(42, 7, 2000));
+      assertEquals(2000, index.lastSeen(42));
+      // A changed profile is still marked as seen
+      assertFalse(index.unchanged(42, 8, 3000));
+      assertEquals(3000, index.lastSeen(42));
+
+      index.put(42, 8, 4000);
+      assertEquals(1, index.size());
+      assertTrue(index.unchanged(42, 8, 5000));
+
+      try {
+        index.put(0, 1, 1);
+        fail("Stored user id 0");
+      } catch (IllegalArgumentException e) {
+        // Expected
+      }
+      assertFalse(index.unchanged(0, 0, 1));
+    } finally {
+      index.close();
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testGrowsAndReopens() throws IOException {
+    File file = File.createTempFile("users", ".idx");
+    file.delete();
+    // Sequential ids, which the hash has to spread out
+    int users = 5000;
+    UserIndex index = new UserIndex(file, 1024);
+    try {
+      for (long id = 1; id <= users; id++) {
+        index.put(id, id * 31, id);
+      }
+      assertEquals(users, index.size());
+    } finally {
+      index.close();
+    }
+    long length = file.length();
+    assertTrue(length > 32 + 1024 * 32);
+    assertFalse(new File(file.getPath() + ".grow").exists());
+
+    index = new UserIndex(file, 1024);
+    try {
+      assertEquals(users, index.size());
+      for (long id = 1; id <= users; id++) {
+        assertTrue(index.unchanged(id, id * 31, id + 1));
+        assertEquals(id + 1, index.lastSeen(id));
+      }
+      assertEquals(0, index.fingerprint(users + 1));
+      assertEquals(length, file.length());
+    } finally {
+      index.close();
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testRejectsOtherFiles() throws IOException {
+    File dir = Files.createTempDirectory("users").toFile();
+    File file = new File(dir, "users.idx");
+    try (FileOutputStream out = new FileOutputStream(file)) {
+      out.write(new byte[64]);
+    }
+    try {
+      new UserIndex(file, 1024);
+      fail("Opened a file that isn't an index");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().contains("Not a user index"));
+    } finally {
+      file.delete();
+      dir.delete();
+    }
+  }
+}
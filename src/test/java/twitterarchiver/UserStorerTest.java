@@ -0,0 +1,130 @@
+package twitterarchiver;
+
+import com.mongodb.BasicDBObject;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UserStorerTest {
+  private static String status(long id, long userId, String name, int followers, int statuses) {
+    return "{\"id\":" + id + ",\"text\":\"t\",\"user\":{\"id\":" + userId + ",\"screen_name\":\"" + name + "\",\"followers_count\":"
+            + followers + ",\"friends_count\":3,\"statuses_count\":" + statuses + ",\"favourites_count\":1,\"listed_count\":0}}";
+  }
+
+  private static BasicDBObject document(String name, int followers, int statuses) throws Exception {
+    return UserStorer.toDocument(new TwitterFeedEvent(null, status(1, 42, name, followers, statuses)).getNode().get("user"));
+  }
+
+  @Test
+  public void fingerprintLeavesOutTheCounters() throws Exception {
+    long hash = UserStorer.contentHash(document("sam", 10, 100));
+    assertEquals(hash, UserStorer.contentHash(document("sam", 11, 101)));
+    assertFalse(hash == UserStorer.contentHash(document("spullara", 10, 100)));
+  }
+
+  // Records what each flush writes, holding up the first one until released if asked to
+  static class Recording extends UserStorer {
+    final List<BasicDBObject> written = new ArrayList<>();
+    final List<BasicDBObject> counters = new ArrayList<>();
+    final CountDownLatch writing = new CountDownLatch(1);
+    final CountDownLatch release;
+
+    Recording(UserIndex index, long counterInterval, boolean hold) {
+      super(null, index, counterInterval);
+      release = new CountDownLatch(hold ? 1 : 0);
+    }
+
+    @Override
+    void write(List<BasicDBObject> profiles, List<BasicDBObject> counters) {
+      writing.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      synchronized (this) {
+        written.addAll(profiles);
+        this.counters.addAll(counters);
+      }
+    }
+  }
+
+  private static UserIndex index() throws Exception {
+    return new UserIndex(new File(Files.createTempDirectory("users").toFile(), "users.idx"), 1024);
+  }
+
+  // Through the flusher and into the index
+  private static void awaitWritten(UserIndex index, long id, long fingerprint) throws InterruptedException {
+    for (int i = 0; i < 500 && index.fingerprint(id) != fingerprint; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(fingerprint, index.fingerprint(id));
+  }
+
+  // A user whose counters went up since the profile was written isn't written again
+  @Test
+  public void onlyProfileChangesAreWritten() throws Exception {
+    UserIndex index = index();
+    Recording storer = new Recording(index, TimeUnit.MINUTES.toMillis(10), false);
+    storer.messageReceived(new TwitterFeedEvent(null, status(1, 42, "sam", 10, 100)));
+    awaitWritten(index, 42, UserStorer.contentHash(document("sam", 10, 100)));
+    storer.messageReceived(new TwitterFeedEvent(null, status(2, 42, "sam", 11, 101)));
+    storer.messageReceived(new TwitterFeedEvent(null, status(3, 43, "other", 12, 102)));
+    storer.close();
+    assertEquals(2, storer.written.size());
+    assertEquals("sam", storer.written.get(0).get("screen_name"));
+    assertEquals("other", storer.written.get(1).get("screen_name"));
+    assertEquals("12", storer.written.get(1).get("followers_count"));
+    assertTrue(storer.counters.isEmpty());
+  }
+
+  // Once the interval is up the counters of an unchanged profile are set on their own
+  @Test
+  public void countersAreWrittenOnTheirOwn() throws Exception {
+    UserIndex index = index();
+    Recording storer = new Recording(index, 0, false);
+    storer.messageReceived(new TwitterFeedEvent(null, status(1, 42, "sam", 10, 100)));
+    awaitWritten(index, 42, UserStorer.contentHash(document("sam", 10, 100)));
+    long written = index.countersWritten(42);
+    assertTrue(written > 0);
+    Thread.sleep(5);
+    storer.messageReceived(new TwitterFeedEvent(null, status(2, 42, "sam", 11, 101)));
+    storer.messageReceived(new TwitterFeedEvent(null, status(3, 42, "sam", 12, 102)));
+    storer.close();
+    assertEquals(1, storer.written.size());
+    assertEquals(1, storer.counters.size());
+    BasicDBObject counters = storer.counters.get(0);
+    assertEquals("42", counters.get("_id"));
+    assertEquals("12", counters.get("followers_count"));
+    assertEquals("102", counters.get("statuses_count"));
+    assertFalse(counters.containsField("screen_name"));
+    assertTrue(index.countersWritten(42) > written);
+  }
+
+  // A profile that changes back while the change is being written still gets written
+  @Test
+  public void changeBackDuringFlushIsWritten() throws Exception {
+    UserIndex index = index();
+    index.put(42, UserStorer.contentHash(document("sam", 10, 100)), 1);
+    Recording storer = new Recording(index, TimeUnit.MINUTES.toMillis(10), true);
+    storer.messageReceived(new TwitterFeedEvent(null, status(1, 42, "spullara", 10, 100)));
+    assertTrue(storer.writing.await(10, TimeUnit.SECONDS));
+    // The index still has the first profile until the flush is acknowledged
+    storer.messageReceived(new TwitterFeedEvent(null, status(2, 42, "sam", 10, 100)));
+    storer.release.countDown();
+    storer.close();
+    assertEquals(2, storer.written.size());
+    assertEquals("spullara", storer.written.get(0).get("screen_name"));
+    assertEquals("sam", storer.written.get(1).get("screen_name"));
+    assertEquals(UserStorer.contentHash(document("sam", 10, 100)), index.fingerprint(42));
+  }
+}
@@ -0,0 +1,141 @@
+package twitterarchiver;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdInputStream;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ZstdCodecTest {
+  static List<byte[]> samples(int count) throws IOException {
+    TweetSerializer serializer = new TweetSerializer(null);
+    List<byte[]> samples = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      samples.add(serializer.toJson(ParquetExportTest.status(i)));
+    }
+    return samples;
+  }
+
+  // What ParquetExportTest.write writes, in one piece
+  static byte[] contents() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ParquetExportTest.write(bytes);
+    return bytes.toByteArray();
+  }
+
+  private static byte[] read(InputStream is) throws IOException {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      byte[] buffer = new byte[65536];
+      int n;
+      while ((n = is.read(buffer)) != -1) {
+        bytes.write(buffer, 0, n);
+      }
+      return bytes.toByteArray();
+    } finally {
+      is.close();
+    }
+  }
+
+  static File archive(File dir, String name, ZstdCodec codec) throws IOException {
+    File file = new File(dir, name);
+    ParquetExportTest.write(new ParallelGzipOutputStream(new FileOutputStream(file), null, codec));
+    return file;
+  }
+
+  @Test
+  public void headerIsASkippableFrameNamingTheDictionary() throws Exception {
+    File dir = Files.createTempDirectory("zstd").toFile();
+    File dictionary = ZstdCodec.train(samples(5000), ZstdCodec.DICTIONARY_SIZE, dir);
+    ZstdCodec codec = ZstdCodec.load(dictionary, ZstdCodec.LEVEL);
+    assertEquals("tweets-" + codec.getDictId() + ".zdict", dictionary.getName());
+    assertTrue(codec.getDictId() != 0);
+
+    byte[] header = codec.header();
+    assertEquals(0x50, header[0] & 0xff);
+    assertEquals(0x2A, header[1] & 0xff);
+    assertEquals(0x4D, header[2] & 0xff);
+    assertEquals(0x18, header[3] & 0xff);
+    assertEquals(header.length - 8, (header[4] & 0xff) | (header[5] & 0xff) << 8);
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(header, 8, header.length - 8));
+    byte[] tag = new byte[4];
+    in.readFully(tag);
+    assertArrayEquals(ZstdCodec.TAG, tag);
+    assertEquals(ZstdCodec.VERSION, in.read());
+    assertEquals(codec.getDictId(), in.readLong());
+    assertEquals(dictionary.getName(), in.readUTF());
+    assertEquals(-1, in.read());
+
+    // zstd itself passes over the frame, though it needs the dictionary for the rest
+    byte[] frame = codec.compress("{}\n".getBytes("UTF-8"));
+    byte[] both = Arrays.copyOf(header, header.length + frame.length);
+    System.arraycopy(frame, 0, both, header.length, frame.length);
+    ZstdInputStream zstd = new ZstdInputStream(new ByteArrayInputStream(both));
+    zstd.setDict(Files.readAllBytes(dictionary.toPath()));
+    assertArrayEquals("{}\n".getBytes("UTF-8"), read(zstd));
+  }
+
+  @Test
+  public void opensWithTheDictionaryNextToTheArchive() throws Exception {
+    File dir = Files.createTempDirectory("zstd").toFile();
+    File dictionary = ZstdCodec.train(samples(5000), ZstdCodec.DICTIONARY_SIZE, dir);
+    File archive = archive(dir, "t1356112800000.json.zst", ZstdCodec.load(dictionary, ZstdCodec.LEVEL));
+    assertArrayEquals(contents(), read(ZstdCodec.open(archive)));
+    assertEquals(dictionary.getAbsoluteFile(), ZstdCodec.dictionary(archive).getAbsoluteFile());
+
+    File plain = archive(dir, "t1356116400000.json.zst", new ZstdCodec(ZstdCodec.LEVEL));
+    assertArrayEquals(contents(), read(ZstdCodec.open(plain)));
+    assertNull(ZstdCodec.dictionary(plain));
+
+    // Written by zstd itself, without our frame
+    File bare = new File(dir, "bare.zst");
+    Files.write(bare.toPath(), Zstd.compress(contents()));
+    assertArrayEquals(contents(), read(ZstdCodec.open(bare)));
+    assertNull(ZstdCodec.dictionary(bare));
+  }
+
+  @Test
+  public void aMissingOrDifferentDictionaryIsAnError() throws Exception {
+    File dir = Files.createTempDirectory("zstd").toFile();
+    File dictionary = ZstdCodec.train(samples(5000), ZstdCodec.DICTIONARY_SIZE, dir);
+    File archive = archive(dir, "t1356112800000.json.zst", ZstdCodec.load(dictionary, ZstdCodec.LEVEL));
+    File other = ZstdCodec.train(samples(4000), ZstdCodec.DICTIONARY_SIZE, Files.createTempDirectory("other").toFile());
+    assertTrue(dictionary.delete());
+    try {
+      ZstdCodec.open(archive);
+      fail();
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("missing"));
+    }
+    try {
+      ZstdCodec.dictionary(archive);
+      fail();
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("missing"));
+    }
+
+    Files.copy(other.toPath(), dictionary.toPath());
+    try {
+      ZstdCodec.open(archive);
+      fail();
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("is not dictionary"));
+    }
+  }
+}